@@ -1,7 +1,11 @@
 package org.unbiquitous.uos.core.adaptabitilyEngine;
 
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import org.unbiquitous.uos.core.SecurityManager;
@@ -14,11 +18,18 @@ import org.unbiquitous.uos.core.applicationManager.UOSMessageContext;
 import org.unbiquitous.uos.core.connectivity.ConnectivityManager;
 import org.unbiquitous.uos.core.deviceManager.DeviceDao;
 import org.unbiquitous.uos.core.deviceManager.DeviceManager;
+import org.unbiquitous.uos.core.deviceManager.RegistrySnapshot;
+import org.unbiquitous.uos.core.driverManager.DriverBulkheads;
 import org.unbiquitous.uos.core.driverManager.DriverDao;
 import org.unbiquitous.uos.core.driverManager.DriverDeployer;
 import org.unbiquitous.uos.core.driverManager.DriverManager;
 import org.unbiquitous.uos.core.driverManager.DriverManagerException;
+import org.unbiquitous.uos.core.driverManager.InstanceSelector;
+import org.unbiquitous.uos.core.driverManager.LeastInFlightSelector;
 import org.unbiquitous.uos.core.driverManager.ReflectionServiceCaller;
+import org.unbiquitous.uos.core.driverManager.RoundRobinSelector;
+import org.unbiquitous.uos.core.driverManager.WeightedSelector;
+import org.unbiquitous.uos.core.messageEngine.EventConflation;
 import org.unbiquitous.uos.core.messageEngine.MessageEngine;
 import org.unbiquitous.uos.core.messageEngine.MessageEngineException;
 import org.unbiquitous.uos.core.messageEngine.NotifyHandler;
@@ -29,10 +40,12 @@ import org.unbiquitous.uos.core.messageEngine.messages.Notify;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall.ServiceType;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponseFuture;
 import org.unbiquitous.uos.core.network.connectionManager.ConnectionManagerControlCenter;
 import org.unbiquitous.uos.core.network.loopback.LoopbackDevice;
 import org.unbiquitous.uos.core.network.model.NetworkDevice;
 import org.unbiquitous.uos.core.network.model.connection.ClientConnection;
+import org.unbiquitous.uos.core.network.radar.RadarEventQueue;
 import org.unbiquitous.uos.core.ontologyEngine.Ontology;
 
 /**
@@ -47,6 +60,38 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 	
 	private static Logger logger = UOSLogging.getLogger();
 	
+	private static final String INSTANCE_SELECTION_RESOURCE_KEY = "ubiquitos.driver.selection";
+	
+	private static final String STARTUP_THREADS_RESOURCE_KEY = "ubiquitos.driver.startup.threads";
+	
+	private static final String LAZY_DRIVERS_RESOURCE_KEY = "ubiquitos.driver.lazy";
+	
+	private static final String DEVICE_TTL_RESOURCE_KEY = "ubiquitos.device.ttl";
+	
+	private static final String MAX_DEVICES_RESOURCE_KEY = "ubiquitos.device.max";
+	
+	private static final long DEFAULT_SWEEP_INTERVAL = 30000;
+	
+	private static final String REGISTRY_SNAPSHOT_RESOURCE_KEY = "ubiquitos.persistence.registry";
+	
+	private static final String RADAR_THREADS_RESOURCE_KEY = "ubiquitos.radar.threads";
+	
+	private static final String GOSSIP_PEERS_RESOURCE_KEY = "ubiquitos.device.gossip.peers";
+	
+	private static final String EVENT_THREADS_RESOURCE_KEY = "ubiquitos.event.threads";
+	
+	private static final String EVENT_QUEUE_RESOURCE_KEY = "ubiquitos.event.queue";
+	
+	private static final String EVENT_OVERFLOW_RESOURCE_KEY = "ubiquitos.event.overflow";
+	
+	private static final int DEFAULT_EVENT_QUEUE = 1000;
+	
+	private static final String EVENT_LAST_VALUES_RESOURCE_KEY = "ubiquitos.event.lastValues";
+	
+	private static final String RESPONSE_CACHE_RESOURCE_KEY = "ubiquitos.cache.responses";
+	
+	private static final String HEDGE_PERCENTILE_RESOURCE_KEY = "ubiquitos.driver.hedge.percentile";
+	
 	protected DriverManager driverManager;
 	protected UpDevice currentDevice;
 	protected ConnectionManagerControlCenter connectionManagerControlCenter;
@@ -57,6 +102,16 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 	protected ApplicationManager applicationManager;
 
 	private DeviceManager deviceManager;
+	
+	private RadarEventQueue radarEvents;
+	
+	private EventDispatcher eventDispatcher;
+	
+	private WatchManager watchManager;
+	
+	private ResponseCache responseCache;
+	
+	private HedgedCalls hedgedCalls;
 
 
 	/**
@@ -133,9 +188,27 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 			ServiceCall serviceCall,
 			StreamConnectionThreaded[] streamConnectionThreadeds,
 			UOSMessageContext messageContext) throws ServiceCallException {
+		ResponseCache cache = responseCache;
+		if (cache != null){
+			ServiceResponse cached = cache.get(device, serviceCall);
+			if (cached != null){
+				cached.setMessageContext(messageContext);
+				return cached;
+			}
+		}
 		// If not a local service call, delegate to the serviceHandler
 		try{
-			ServiceResponse response = messageEngine.callService(device, serviceCall); // FIXME: Response can be null
+			ServiceResponse response;
+			if (hedgedCalls != null){
+				response = hedgedCalls.call(device, serviceCall, new HedgedCalls.Sender() {
+					public ServiceResponse send(UpDevice device, ServiceCall serviceCall) throws MessageEngineException {
+						return messageEngine.callService(device, serviceCall);
+					}
+				});
+			}else{
+				response = messageEngine.callService(device, serviceCall); // FIXME: Response can be null
+			}
+			if (cache != null) cache.put(device, serviceCall, response);
 			response.setMessageContext(messageContext);
 			return response;
 		}catch (MessageEngineException e){
@@ -257,6 +330,17 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 		eventManager.sendEventNotify(notify,device);
 	}
 	
+	/**
+	 * Sends a notify message to many devices at once.
+	 * 
+	 * @param notify Notify message to be sent.
+	 * @param devices Devices which are going to receive the notify event
+	 * @throws NotifyException
+	 */
+	public void sendEventNotifyToAll(Notify notify, List<UpDevice> devices) throws NotifyException{
+		eventManager.sendEventNotifyToAll(notify,devices);
+	}
+	
 	/**
 	 * Register a Listener for a event, driver and device specified.
 	 * 
@@ -284,6 +368,36 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 		eventManager.registerForEvent(listener, device, driver, instanceId, eventKey);
 	}
 	
+	/**
+	 * Register a Listener for the notifies of an event that match a filter,
+	 * evaluated by the device producing the event.
+	 * 
+	 * @param listener UosEventListener responsible for dealing with the event.
+	 * @param device Device which event must be listened
+	 * @param driver Driver responsible for the event.
+	 * @param instanceId Instance Identifier of the driver to be registered upon.
+	 * @param eventKey EventKey that identifies the wanted event to be listened.
+	 * @param filter Condition over the notify parameters (see {@link EventFilter}).
+	 * @throws NotifyException In case of an error.
+	 */
+	public void registerForEvent(UosEventListener listener, UpDevice device, String driver, String instanceId, String eventKey, String filter) throws NotifyException{
+		eventManager.registerForEvent(listener, device, driver, instanceId, eventKey, filter);
+	}
+	
+	/**
+	 * Creates a flow controlled source of the notifies of an event.
+	 * 
+	 * @param device Device which event must be listened
+	 * @param driver Driver responsible for the event.
+	 * @param instanceId Instance Identifier of the driver to be registered upon. (Optional)
+	 * @param eventKey EventKey that identifies the wanted event to be listened.
+	 * @param filter Condition over the notify parameters (see {@link EventFilter}). (Optional)
+	 * @return The publisher of the notifies.
+	 */
+	public EventFlow.Publisher<Notify> eventPublisher(UpDevice device, String driver, String instanceId, String eventKey, String filter){
+		return new EventPublisher(eventManager, device, driver, instanceId, eventKey, filter, EventPublisher.DEFAULT_BUFFER);
+	}
+	
 	/**
 	 * Removes a listener for receiving Notify events and notifies the event driver of its removal.
 	 * 
@@ -307,10 +421,24 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 		eventManager.unregisterForEvent(listener, device, driver, instanceId, eventKey);
 	}
 	
+	/**
+	 * @param listener Listener registered for events.
+	 * @return How far behind the listener is on the notifies queued to it,
+	 * 			or <code>null</code> when notifies are delivered inline.
+	 */
+	public EventDispatcher.Stats eventDispatchStats(UosEventListener listener) {
+		return eventManager.dispatchStats(listener);
+	}
+	
 	/**
 	 * @see NotifyHandler#handleNofify(Notify)
 	 */
 	public void handleNofify(Notify notify, UpDevice device) throws DriverManagerException {
+		ResponseCache cache = responseCache;
+		if (cache != null && notify != null){
+			// the driver changed, so the responses kept for it may be stale
+			cache.invalidate(device == null ? null : device.getName(), notify.getDriver(), notify.getInstanceId());
+		}
 		eventManager.handleNofify(notify, device);
 	}
 	
@@ -323,7 +451,35 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 		if (isApplicationCall(serviceCall)){
 			return applicationManager.handleServiceCall(serviceCall, messageContext);
 		}else{
-			return driverManager.handleServiceCall(serviceCall, messageContext);
+			ServiceResponse response = driverManager.handleServiceCall(serviceCall, messageContext);
+			if (EventManager.isListenerCall(serviceCall)){
+				eventManager.handleListenerCall(serviceCall, messageContext, response);
+			}
+			return response;
+		}
+	}
+	
+	/**
+	 * ServiceCallHandler#handleServiceCallAsync(ServiceCall)
+	 */
+	@Override
+	public ServiceResponseFuture handleServiceCallAsync(final ServiceCall serviceCall, final UOSMessageContext messageContext)
+			throws DriverManagerException {
+		if (isApplicationCall(serviceCall)){
+			return ServiceResponseFuture.completed(applicationManager.handleServiceCall(serviceCall, messageContext));
+		}else{
+			ServiceResponseFuture future = driverManager.handleServiceCallAsync(serviceCall, messageContext);
+			if (EventManager.isListenerCall(serviceCall)){
+				// runs before the response is sent, as it is registered first
+				future.addListener(new ServiceResponseFuture.Listener() {
+					public void onComplete(ServiceResponseFuture future) {
+						if (future.getError() == null){
+							eventManager.handleListenerCall(serviceCall, messageContext, future.getResponse());
+						}
+					}
+				});
+			}
+			return future;
 		}
 	}
 
@@ -352,6 +508,11 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 						driverDao, 
 						deviceDao, 
 						new ReflectionServiceCaller(connectionManagerControlCenter));
+		driverManager.setInstanceSelector(createInstanceSelector());
+		driverManager.setBulkheads(new DriverBulkheads(properties));
+		int startupThreads = positiveInt(STARTUP_THREADS_RESOURCE_KEY);
+		if (startupThreads > 0) driverManager.setStartupThreads(startupThreads);
+		driverManager.setLazyDrivers(lazyDrivers());
 		
 		// Deploy service-drivers
 		DriverDeployer driverDeployer = new DriverDeployer(driverManager,properties);
@@ -359,6 +520,24 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 		
 		this.messageEngine = factory.get(MessageEngine.class);
 		this.eventManager = new EventManager(messageEngine);
+		EventConflation conflation = new EventConflation(driverManager);
+		messageEngine.setConflation(conflation);
+		eventManager.setConflation(conflation);
+		startEventDispatcher(conflation);
+		int lastValues = positiveInt(EVENT_LAST_VALUES_RESOURCE_KEY);
+		if (lastValues > 0){
+			eventManager.setLastValueCache(new LastValueCache(lastValues, conflation));
+		}
+		int cachedResponses = positiveInt(RESPONSE_CACHE_RESOURCE_KEY);
+		if (cachedResponses > 0){
+			responseCache = new ResponseCache(cachedResponses, driverManager);
+		}
+		int hedgePercentile = positiveInt(HEDGE_PERCENTILE_RESOURCE_KEY);
+		if (hedgePercentile > 0 && hedgePercentile < 100){
+			hedgedCalls = new HedgedCalls(driverManager, hedgePercentile);
+		}else if (hedgePercentile > 0){
+			logger.warning("Invalid "+HEDGE_PERCENTILE_RESOURCE_KEY+" will be ignored.");
+		}
 		this.connectivityManager = factory.get(ConnectivityManager.class);
 		
 		deviceManager = new DeviceManager(
@@ -368,14 +547,21 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 				connectionManagerControlCenter, 
 				factory.get(ConnectivityManager.class), 
 				gateway, driverManager);
+		if (properties != null && properties.containsKey(REGISTRY_SNAPSHOT_RESOURCE_KEY)){
+			deviceManager.restore(new RegistrySnapshot(new File(properties.getString(REGISTRY_SNAPSHOT_RESOURCE_KEY))));
+		}
 		
-		connectionManagerControlCenter.radarControlCenter().setListener(deviceManager);
+		deviceManager.setGossipPeers(positiveInt(GOSSIP_PEERS_RESOURCE_KEY));
+		radarEvents = new RadarEventQueue(deviceManager, positiveInt(RADAR_THREADS_RESOURCE_KEY));
+		connectionManagerControlCenter.radarControlCenter().setListener(radarEvents);
+		startDeviceSweeper();
 		this.messageEngine.setDeviceManager(deviceManager);
 		
 		applicationManager = new ApplicationManager(properties,gateway);
 		ApplicationDeployer applicationDeployer = new ApplicationDeployer(properties,applicationManager);
 		
 		initGateway(factory, gateway, applicationDeployer);
+		watchManager = new WatchManager(driverManager, eventManager, gateway);
 		
 		applicationDeployer.deployApplications();
 		applicationManager.startApplications();
@@ -385,6 +571,71 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 		
 	}
 
+	private void startDeviceSweeper() {
+		long ttl = 1000L * positiveInt(DEVICE_TTL_RESOURCE_KEY);
+		int maxDevices = positiveInt(MAX_DEVICES_RESOURCE_KEY);
+		if (ttl > 0 || maxDevices > 0){
+			long interval = ttl > 0 ? Math.max(1000, Math.min(ttl / 2, DEFAULT_SWEEP_INTERVAL)) : DEFAULT_SWEEP_INTERVAL;
+			deviceManager.startSweeper(ttl, maxDevices, interval);
+		}
+	}
+	
+	private void startEventDispatcher(EventConflation conflation) {
+		int threads = positiveInt(EVENT_THREADS_RESOURCE_KEY);
+		if (threads == 0) return;
+		int queue = positiveInt(EVENT_QUEUE_RESOURCE_KEY);
+		EventDispatcher.Overflow overflow = EventDispatcher.Overflow.BLOCK;
+		if (properties.containsKey(EVENT_OVERFLOW_RESOURCE_KEY)){
+			try {
+				overflow = EventDispatcher.Overflow.parse(properties.getString(EVENT_OVERFLOW_RESOURCE_KEY));
+			} catch (IllegalArgumentException e) {
+				logger.warning("Unknown "+EVENT_OVERFLOW_RESOURCE_KEY+". Using block.");
+			}
+		}
+		eventDispatcher = new EventDispatcher(threads, queue > 0 ? queue : DEFAULT_EVENT_QUEUE, overflow);
+		eventDispatcher.setConflation(conflation);
+		eventManager.setDispatcher(eventDispatcher);
+	}
+	
+	/**
+	 * @return The positive integer value of the property, or 0 if absent or invalid.
+	 */
+	private int positiveInt(String key) {
+		if (properties != null && properties.containsKey(key)){
+			try {
+				int value = Integer.parseInt(properties.getString(key).trim());
+				if (value > 0) return value;
+			} catch (NumberFormatException e) {}
+			logger.warning("Invalid "+key+" will be ignored.");
+		}
+		return 0;
+	}
+	
+	private Set<String> lazyDrivers() {
+		Set<String> lazy = new HashSet<String>();
+		if (properties != null && properties.containsKey(LAZY_DRIVERS_RESOURCE_KEY)){
+			for (String name : properties.getString(LAZY_DRIVERS_RESOURCE_KEY).split(";")){
+				if (!name.trim().isEmpty()) lazy.add(name.trim());
+			}
+		}
+		return lazy;
+	}
+	
+	private InstanceSelector createInstanceSelector() {
+		String selection = null;
+		if (properties != null && properties.containsKey(INSTANCE_SELECTION_RESOURCE_KEY)){
+			selection = properties.getString(INSTANCE_SELECTION_RESOURCE_KEY).trim();
+		}
+		if ("leastInFlight".equalsIgnoreCase(selection)){
+			return new LeastInFlightSelector();
+		}else if ("weighted".equalsIgnoreCase(selection)){
+			return new WeightedSelector(properties);
+		}else if (selection != null && !"roundRobin".equalsIgnoreCase(selection)){
+			logger.warning("Unknown "+INSTANCE_SELECTION_RESOURCE_KEY+" '"+selection+"'. Using roundRobin.");
+		}
+		return new RoundRobinSelector();
+	}
+
 	private void initGateway(UOSComponentFactory factory,
 			SmartSpaceGateway gateway, ApplicationDeployer applicationDeployer){
 		try {
@@ -416,6 +667,11 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 		try {
 			driverManager.tearDown();
 			applicationManager.tearDown();
+			if (radarEvents != null) radarEvents.shutdown();
+			if (eventDispatcher != null) eventDispatcher.shutdown();
+			if (watchManager != null) watchManager.shutdown();
+			if (hedgedCalls != null) hedgedCalls.shutdown();
+			if (deviceManager != null) deviceManager.tearDown();
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -432,4 +688,8 @@ public class AdaptabilityEngine implements ServiceCallHandler,
 	public ApplicationManager applicationManager(){
 		return applicationManager;
 	}
+	
+	public WatchManager watchManager(){
+		return watchManager;
+	}
 }
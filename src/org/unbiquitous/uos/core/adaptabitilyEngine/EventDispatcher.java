@@ -0,0 +1,327 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.messageEngine.EventConflation;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+/**
+ * Delivers the notifies to the event listeners out of the thread that
+ * received them, so a slow listener doesn't hold the network nor the other
+ * listeners.
+ *
+ * Each listener has its own bounded queue and receives its notifies in the
+ * order they arrived, while different listeners run in parallel. When a
+ * queue is full the {@link Overflow} policy decides what happens.
+ */
+public class EventDispatcher {
+
+	private static Logger logger = UOSLogging.getLogger();
+
+	/** Maximum amount of notifies delivered to a listener before yielding the thread to others. */
+	private static final int BATCH = 64;
+
+	/**
+	 * What to do when the queue of a listener is full.
+	 */
+	public enum Overflow {
+		/** Waits until the listener catches up, slowing down who notifies. */
+		BLOCK,
+		/** Discards the oldest notify waiting. */
+		DROP_OLDEST,
+		/**
+		 * Replaces a waiting notify of the same event (driver, event key and
+		 * instance) by the newer one, even before the queue is full, and
+		 * discards the oldest one when there's none.
+		 */
+		COALESCE;
+
+		/**
+		 * @return The policy with the informed name (as 'block', 'dropOldest' or 'coalesce').
+		 */
+		public static Overflow parse(String name) {
+			for (Overflow o : values()){
+				if (o.name().replace("_", "").equalsIgnoreCase(name.trim())) return o;
+			}
+			throw new IllegalArgumentException("Unknown overflow policy '"+name+"'.");
+		}
+	}
+
+	/**
+	 * Metrics of the delivery to a listener.
+	 */
+	public static class Stats {
+		private final int queued;
+		private final long delivered;
+		private final long dropped;
+		private final long coalesced;
+		private final long lastLag;
+		private final long maxLag;
+
+		Stats(int queued, long delivered, long dropped, long coalesced, long lastLag, long maxLag) {
+			this.queued = queued;
+			this.delivered = delivered;
+			this.dropped = dropped;
+			this.coalesced = coalesced;
+			this.lastLag = lastLag;
+			this.maxLag = maxLag;
+		}
+
+		/** @return Amount of notifies waiting to be delivered. */
+		public int queued() { return queued; }
+		/** @return Amount of notifies delivered. */
+		public long delivered() { return delivered; }
+		/** @return Amount of notifies discarded because the queue was full. */
+		public long dropped() { return dropped; }
+		/** @return Amount of notifies replaced by a newer one of the same event (or conflation key). */
+		public long coalesced() { return coalesced; }
+		/** @return Time (in milliseconds) the last notify delivered waited in the queue. */
+		public long lastLag() { return lastLag; }
+		/** @return Longest time (in milliseconds) a notify waited in the queue. */
+		public long maxLag() { return maxLag; }
+	}
+
+	/** Marks the dispatcher threads, which must never block on a queue. */
+	private static final ThreadLocal<Boolean> dispatching = new ThreadLocal<Boolean>();
+
+	private final ExecutorService executor;
+	private final int capacity;
+	private final Overflow overflow;
+	private final ConcurrentMap<UosEventListener, ListenerQueue> queues =
+						new ConcurrentHashMap<UosEventListener, ListenerQueue>();
+	private volatile EventConflation conflation;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param threads Maximum amount of listeners running at the same time.
+	 * @param capacity Maximum amount of notifies waiting for each listener.
+	 * @param overflow What to do when the queue of a listener is full.
+	 */
+	public EventDispatcher(int threads, int capacity, Overflow overflow) {
+		if (threads <= 0 || capacity <= 0 || overflow == null){
+			throw new IllegalArgumentException("Dispatcher needs at least one thread, a positive capacity and an overflow policy.");
+		}
+		this.capacity = capacity;
+		this.overflow = overflow;
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+					60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						private AtomicInteger count = new AtomicInteger();
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "uos-event-dispatch-"+count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		pool.allowCoreThreadTimeOut(true);
+		this.executor = pool;
+	}
+
+	/**
+	 * @param conflation Tells which notifies replace each other in the queues
+	 * 			whatever the overflow policy, or <code>null</code> for none.
+	 */
+	public void setConflation(EventConflation conflation) {
+		this.conflation = conflation;
+	}
+
+	/**
+	 * Queues the notify to be delivered to the listener.
+	 */
+	public void dispatch(UosEventListener listener, Notify notify) {
+		if (shutdown) return;
+		ListenerQueue queue = queues.get(listener);
+		if (queue == null){
+			ListenerQueue created = new ListenerQueue(listener);
+			queue = queues.putIfAbsent(listener, created);
+			if (queue == null) queue = created;
+		}
+		EventConflation conflation = this.conflation;
+		queue.offer(notify, conflation == null ? null : conflation.keyOf(notify));
+	}
+
+	/**
+	 * Discards the queue of a listener which won't receive events anymore.
+	 */
+	public void forget(UosEventListener listener) {
+		ListenerQueue queue = queues.remove(listener);
+		if (queue != null) queue.clear();
+	}
+
+	/**
+	 * @return The delivery metrics of the listener, or <code>null</code> if it never received a notify.
+	 */
+	public Stats stats(UosEventListener listener) {
+		ListenerQueue queue = queues.get(listener);
+		return queue == null ? null : queue.stats();
+	}
+
+	/**
+	 * Stops delivering notifies. The ones waiting are discarded.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		executor.shutdownNow();
+		for (ListenerQueue queue : queues.values()){
+			queue.clear();
+		}
+		queues.clear();
+	}
+
+	private static boolean sameEvent(Notify a, Notify b) {
+		return equal(a.getDriver(), b.getDriver())
+				&& equal(a.getEventKey(), b.getEventKey())
+				&& equal(a.getInstanceId(), b.getInstanceId());
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static class Entry {
+		Notify notify;
+		final long enqueuedAt = System.currentTimeMillis();
+		final String conflationKey;
+		Entry(Notify notify, String conflationKey) {
+			this.notify = notify;
+			this.conflationKey = conflationKey;
+		}
+	}
+
+	private class ListenerQueue implements Runnable {
+		private final UosEventListener listener;
+		private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+		private boolean scheduled = false;
+		private final AtomicLong delivered = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+		private final AtomicLong coalesced = new AtomicLong();
+		private volatile long lastLag;
+		private volatile long maxLag;
+
+		ListenerQueue(UosEventListener listener) {
+			this.listener = listener;
+		}
+
+		synchronized void offer(Notify notify, String conflationKey) {
+			if (conflationKey != null && conflate(notify, conflationKey)) return;
+			if (overflow == Overflow.COALESCE && coalesce(notify)) return;
+			while (entries.size() >= capacity){
+				if (overflow == Overflow.BLOCK && dispatching.get() == null && !shutdown){
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						dropped.incrementAndGet();
+						return;
+					}
+				}else{
+					// dispatcher threads drop instead of blocking, they could be waiting on themselves
+					entries.poll();
+					dropped.incrementAndGet();
+				}
+			}
+			entries.add(new Entry(notify, conflationKey));
+			schedule();
+		}
+
+		private boolean coalesce(Notify notify) {
+			Iterator<Entry> it = entries.descendingIterator();
+			while (it.hasNext()){
+				Entry entry = it.next();
+				if (sameEvent(entry.notify, notify)){
+					// keeps the original time, so the lag shows how stale the value is
+					entry.notify = notify;
+					coalesced.incrementAndGet();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean conflate(Notify notify, String conflationKey) {
+			Iterator<Entry> it = entries.descendingIterator();
+			while (it.hasNext()){
+				Entry entry = it.next();
+				if (conflationKey.equals(entry.conflationKey)){
+					entry.notify = notify;
+					coalesced.incrementAndGet();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void schedule() {
+			if (scheduled || shutdown) return;
+			scheduled = true;
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				scheduled = false;
+			}
+		}
+
+		public void run() {
+			dispatching.set(Boolean.TRUE);
+			boolean released = false;
+			try {
+				for (int i = 0; i < BATCH; i++){
+					Entry entry;
+					synchronized (this) {
+						entry = entries.poll();
+						if (entry == null){
+							scheduled = false;
+							released = true;
+							return;
+						}
+						notifyAll();
+					}
+					long lag = System.currentTimeMillis() - entry.enqueuedAt;
+					lastLag = lag;
+					if (lag > maxLag) maxLag = lag;
+					try {
+						listener.handleEvent(entry.notify);
+					} catch (RuntimeException e) {
+						logger.log(Level.SEVERE, "Event listener failed handling notify.", e);
+					}
+					delivered.incrementAndGet();
+				}
+				// let other listeners run before continuing
+				released = true;
+				reschedule();
+			} finally {
+				dispatching.remove();
+				// an Error thrown by the listener mustn't leave its queue stuck
+				if (!released) reschedule();
+			}
+		}
+
+		private synchronized void reschedule() {
+			scheduled = false;
+			if (!entries.isEmpty()) schedule();
+		}
+
+		synchronized void clear() {
+			entries.clear();
+			notifyAll();
+		}
+
+		synchronized Stats stats() {
+			return new Stats(entries.size(), delivered.get(), dropped.get(), coalesced.get(), lastLag, maxLag);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
+
+/**
+ * Condition over the parameters of a {@link Notify} a listener is interested
+ * in, informed when registering for an event so the producing device only
+ * sends the notifies that match it.
+ *
+ * A filter is a list of comparisons joined by <code>and</code>, as in
+ * <code>email == 'john@mail.com'</code> or
+ * <code>positionX between 10 and 20 and positionY &lt; 5</code>. The operators
+ * are <code>==</code>, <code>!=</code>, <code>&lt;</code>, <code>&lt;=</code>,
+ * <code>&gt;</code>, <code>&gt;=</code> and <code>between</code> (inclusive).
+ * Values are compared as numbers when both sides are numbers and as text
+ * otherwise. Values with spaces or operators must be quoted. A notify without
+ * the compared parameter never matches.
+ */
+public class EventFilter {
+
+	/** Parameter of the 'registerListener' service carrying the filter. */
+	public static final String FILTER_PARAM = "filter";
+
+	private static final String AND = "and";
+	private static final String BETWEEN = "between";
+
+	private final String expression;
+	private final List<Condition> conditions;
+
+	private EventFilter(String expression, List<Condition> conditions) {
+		this.expression = expression;
+		this.conditions = conditions;
+	}
+
+	/**
+	 * @return The filter described by the expression.
+	 * @throws IllegalArgumentException If the expression is malformed.
+	 */
+	public static EventFilter parse(String expression) {
+		if (expression == null || expression.trim().isEmpty()){
+			throw new IllegalArgumentException("Empty event filter.");
+		}
+		List<String> tokens = tokenize(expression);
+		List<Condition> conditions = new ArrayList<Condition>();
+		int i = 0;
+		while (true){
+			if (tokens.size() - i < 3){
+				throw new IllegalArgumentException("Incomplete condition in event filter '"+expression+"'.");
+			}
+			String parameter = tokens.get(i++);
+			String operator = tokens.get(i++);
+			if (BETWEEN.equalsIgnoreCase(operator)){
+				if (tokens.size() - i < 3 || !AND.equalsIgnoreCase(tokens.get(i+1))){
+					throw new IllegalArgumentException("Expected 'between <low> and <high>' in event filter '"+expression+"'.");
+				}
+				conditions.add(new Condition(parameter, BETWEEN, tokens.get(i), tokens.get(i+2)));
+				i += 3;
+			}else if (Condition.isComparison(operator)){
+				conditions.add(new Condition(parameter, operator, tokens.get(i++), null));
+			}else{
+				throw new IllegalArgumentException("Unknown operator '"+operator+"' in event filter '"+expression+"'.");
+			}
+			if (i == tokens.size()) break;
+			if (!AND.equalsIgnoreCase(tokens.get(i++))){
+				throw new IllegalArgumentException("Expected 'and' between conditions in event filter '"+expression+"'.");
+			}
+		}
+		return new EventFilter(expression.trim(), Collections.unmodifiableList(conditions));
+	}
+
+	/**
+	 * @return The filter informed in the 'registerListener' call, or
+	 * 			<code>null</code> when there's none.
+	 * @throws IllegalArgumentException If the filter is malformed.
+	 */
+	public static EventFilter of(ServiceCall registerCall) {
+		Object filter = registerCall.getParameter(FILTER_PARAM);
+		if (filter == null || filter.toString().trim().isEmpty()) return null;
+		return parse(filter.toString());
+	}
+
+	/**
+	 * @return <code>true</code> if the notify satisfies every condition.
+	 */
+	public boolean matches(Notify notify) {
+		for (Condition c : conditions){
+			if (!c.matches(notify.getParameter(c.parameter))) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	private static List<String> tokenize(String expression) {
+		List<String> tokens = new ArrayList<String>();
+		int i = 0;
+		int length = expression.length();
+		while (i < length){
+			char c = expression.charAt(i);
+			if (Character.isWhitespace(c)){
+				i++;
+			}else if (c == '\'' || c == '"'){
+				int end = expression.indexOf(c, i+1);
+				if (end < 0){
+					throw new IllegalArgumentException("Unclosed quote in event filter '"+expression+"'.");
+				}
+				tokens.add(expression.substring(i+1, end));
+				i = end + 1;
+			}else if (isOperatorChar(c)){
+				int end = i + 1;
+				if (end < length && expression.charAt(end) == '=') end++;
+				tokens.add(expression.substring(i, end));
+				i = end;
+			}else{
+				int end = i;
+				while (end < length
+						&& !Character.isWhitespace(expression.charAt(end))
+						&& !isOperatorChar(expression.charAt(end))){
+					end++;
+				}
+				tokens.add(expression.substring(i, end));
+				i = end;
+			}
+		}
+		return tokens;
+	}
+
+	private static boolean isOperatorChar(char c) {
+		return c == '=' || c == '!' || c == '<' || c == '>';
+	}
+
+	private static class Condition {
+		final String parameter;
+		final String operator;
+		final String value;
+		final String high;
+
+		Condition(String parameter, String operator, String value, String high) {
+			this.parameter = parameter;
+			this.operator = operator;
+			this.value = value;
+			this.high = high;
+		}
+
+		static boolean isComparison(String operator) {
+			return "==".equals(operator) || "!=".equals(operator)
+					|| "<".equals(operator) || "<=".equals(operator)
+					|| ">".equals(operator) || ">=".equals(operator);
+		}
+
+		boolean matches(Object actual) {
+			if (actual == null) return false;
+			String text = actual.toString();
+			if (operator == BETWEEN){
+				return compare(text, value) >= 0 && compare(text, high) <= 0;
+			}
+			int cmp = compare(text, value);
+			if ("==".equals(operator)) return cmp == 0;
+			if ("!=".equals(operator)) return cmp != 0;
+			if ("<".equals(operator)) return cmp < 0;
+			if ("<=".equals(operator)) return cmp <= 0;
+			if (">".equals(operator)) return cmp > 0;
+			return cmp >= 0;
+		}
+
+		private static int compare(String actual, String expected) {
+			Double a = number(actual);
+			Double b = number(expected);
+			if (a != null && b != null) return a.compareTo(b);
+			return actual.compareTo(expected);
+		}
+
+		private static Double number(String text) {
+			try {
+				return Double.valueOf(text.trim());
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+/**
+ * Interfaces of a flow controlled stream of events, with the same contract
+ * as the ones in <code>java.util.concurrent.Flow</code> (and Reactive
+ * Streams), which aren't available to the Java versions supported.
+ *
+ * A {@link Subscriber} only receives as many items as it has requested
+ * through its {@link Subscription}, so a slow consumer isn't flooded.
+ */
+public final class EventFlow {
+
+	private EventFlow() {}
+
+	/**
+	 * Producer of items for the subscribers.
+	 */
+	public interface Publisher<T> {
+		/**
+		 * Starts sending items to the subscriber, which is informed of its
+		 * subscription through {@link Subscriber#onSubscribe(Subscription)}.
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receiver of items. Its methods are never called concurrently for the
+	 * same subscription.
+	 */
+	public interface Subscriber<T> {
+		/** Called before any other method, with the subscription to request items from. */
+		void onSubscribe(Subscription subscription);
+		/** The next item, only sent when requested. */
+		void onNext(T item);
+		/** The subscription failed. Nothing else is sent after it. */
+		void onError(Throwable error);
+		/** There are no more items. Nothing else is sent after it. */
+		void onComplete();
+	}
+
+	/**
+	 * Link between a publisher and a subscriber.
+	 */
+	public interface Subscription {
+		/**
+		 * Adds <code>n</code> items to the amount the subscriber is willing to
+		 * receive. A non positive <code>n</code> fails the subscription.
+		 */
+		void request(long n);
+		/** Stops sending items. */
+		void cancel();
+	}
+}
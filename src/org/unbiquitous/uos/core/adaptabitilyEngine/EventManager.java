@@ -1,21 +1,24 @@
 package org.unbiquitous.uos.core.adaptabitilyEngine;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.unbiquitous.json.JSONException;
 import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.applicationManager.UOSMessageContext;
+import org.unbiquitous.uos.core.messageEngine.EventConflation;
 import org.unbiquitous.uos.core.messageEngine.MessageEngine;
 import org.unbiquitous.uos.core.messageEngine.MessageEngineException;
 import org.unbiquitous.uos.core.messageEngine.NotifyHandler;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
 import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.messageEngine.messages.NotifyBatch;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.messageEngine.messages.json.JSONNotifyBatch;
 
 /**
  * Class responsible for managing the events received and the event listeners in the current device.
@@ -31,21 +34,76 @@ public class EventManager implements NotifyHandler {
 
 	private static final String REGISTER_LISTENER_SERVICE = "registerListener";
 	private static final String UNREGISTER_LISTENER_SERVICE = "unregisterListener";
+	
+	/** Response parameter with the current values of the event, packed as a {@link NotifyBatch}. */
+	private static final String SNAPSHOT_PARAMETER = "snapshot";
+	
+	/** Registration parameter with how many notifies the listener can take, 0 asking to hold them. */
+	private static final String DEMAND_PARAMETER = "demand";
 
-	private Map<String, List<ListenerInfo>> listenerMap = new HashMap<String, List<ListenerInfo>>();
+	private ListenerIndex listeners = new ListenerIndex();
 	
 	private MessageEngine messageEngine;
 	
+	/** Delivers the notifies out of the receiving thread, when informed. */
+	private volatile EventDispatcher dispatcher;
+	
+	/** Last values of the events produced in this device, when kept. */
+	private volatile LastValueCache lastValues;
+	
+	/** Remote listeners which asked to hold their notifies. */
+	private final ListenerDemand demand = new ListenerDemand();
+	
 	public EventManager(MessageEngine messageEngine) {
 		this.messageEngine = messageEngine;
 	}
 	
-	private static class ListenerInfo{
+	/**
+	 * @param dispatcher Queues the notifies to the listeners, or <code>null</code>
+	 * 			to call them on the thread which received the notify.
+	 */
+	public void setDispatcher(EventDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+	
+	/**
+	 * @param lastValues Keeps the last notify of each event sent from this
+	 * 			device to be handed to new listeners, or <code>null</code> to
+	 * 			keep none.
+	 */
+	public void setLastValueCache(LastValueCache lastValues) {
+		this.lastValues = lastValues;
+	}
+	
+	/**
+	 * @param conflation Tells which notifies held for a paused listener
+	 * 			replace each other, or <code>null</code> to hold the latest
+	 * 			of each event.
+	 */
+	public void setConflation(EventConflation conflation) {
+		demand.setConflation(conflation);
+	}
+	
+	/**
+	 * @return The delivery metrics of the listener, or <code>null</code> when
+	 * 			notifies are delivered inline or it never received one.
+	 */
+	public EventDispatcher.Stats dispatchStats(UosEventListener listener) {
+		EventDispatcher dispatcher = this.dispatcher;
+		return dispatcher == null ? null : dispatcher.stats(listener);
+	}
+	
+	static class ListenerInfo{
 		UosEventListener listener;
 		UpDevice device;
 		String driver;
 		String instanceId;
 		String eventKey;
+		EventFilter filter;
+		/** Live notifies held while the current values are handed, or <code>null</code> once they were. */
+		volatile List<Notify> pending;
+		/** If it asked the producing device to hold its notifies. */
+		volatile boolean paused;
 	}
 	
 	/**
@@ -56,6 +114,8 @@ public class EventManager implements NotifyHandler {
 	 * @throws MessageEngineException
 	 */
 	public void sendEventNotify(Notify notify, UpDevice device) throws NotifyException{
+		record(notify);
+		if (device != null && demand.hold(device, notify)) return;
 		try {
 			if(device == null){
 				handleNofify(notify, device);
@@ -67,6 +127,131 @@ public class EventManager implements NotifyHandler {
 		}
 	}
 	
+	/**
+	 * Sends a notify message to many devices at once. The <code>null</code>
+	 * entries are notified locally.
+	 * 
+	 * @param notify Notify message to be sent.
+	 * @param devices Devices which are going to receive the notify event
+	 * @throws NotifyException
+	 */
+	public void sendEventNotifyToAll(Notify notify, List<UpDevice> devices) throws NotifyException{
+		record(notify);
+		List<UpDevice> remote = new ArrayList<UpDevice>(devices.size());
+		for (UpDevice device : devices){
+			if (device == null){
+				handleNofify(notify, null);
+			}else if (!demand.hold(device, notify)){
+				remote.add(device);
+			}
+		}
+		if (remote.isEmpty()) return;
+		try {
+			messageEngine.notifyEventToAll(notify, remote);
+		} catch (MessageEngineException e) {
+			throw new NotifyException(e);
+		}
+	}
+	
+	private void record(Notify notify) {
+		LastValueCache lastValues = this.lastValues;
+		if (lastValues != null) lastValues.record(notify);
+	}
+	
+	/**
+	 * @return <code>true</code> if the call registers or unregisters a
+	 * 			listener, to be informed to {@link #handleListenerCall}.
+	 */
+	public static boolean isListenerCall(ServiceCall serviceCall) {
+		return REGISTER_LISTENER_SERVICE.equals(serviceCall.getService())
+				|| UNREGISTER_LISTENER_SERVICE.equals(serviceCall.getService());
+	}
+	
+	/**
+	 * Keeps track of the listeners registered in the drivers of this device,
+	 * answering new ones with the last values of the event and holding the
+	 * notifies to the ones which asked to.
+	 * 
+	 * @param serviceCall Call to 'registerListener' or 'unregisterListener'.
+	 * @param messageContext Context of the call.
+	 * @param response Response given by the driver.
+	 */
+	public void handleListenerCall(ServiceCall serviceCall, UOSMessageContext messageContext, ServiceResponse response) {
+		if (response == null || (response.getError() != null && !response.getError().isEmpty())) return;
+		if (REGISTER_LISTENER_SERVICE.equals(serviceCall.getService())){
+			attachSnapshot(serviceCall, response);
+		}
+		if (messageContext == null || messageContext.getCallerDevice() == null) return;
+		String address = messageContext.getCallerDevice().getNetworkDeviceName();
+		String eventKey = (String) serviceCall.getParameter(REGISTER_EVENT_LISTENER_EVENT_KEY_PARAMETER);
+		Long requested = demandOf(serviceCall);
+		if (UNREGISTER_LISTENER_SERVICE.equals(serviceCall.getService())){
+			demand.forget(address, serviceCall.getDriver(), eventKey);
+		}else if (requested == null){
+			// another listener of the device, which takes every notify
+			sendHeld(demand.resume(address, serviceCall.getDriver(), eventKey));
+		}else if (requested <= 0){
+			demand.pause(address, serviceCall.getDriver(), eventKey);
+		}else{
+			sendHeld(demand.resume(address, serviceCall.getDriver(), eventKey));
+		}
+	}
+	
+	private static Long demandOf(ServiceCall registerCall) {
+		Object demand = registerCall.getParameter(DEMAND_PARAMETER);
+		if (demand == null) return null;
+		try {
+			return Long.valueOf(demand.toString().trim());
+		} catch (NumberFormatException e) {
+			logger.warning("Invalid demand '"+demand+"' will be ignored.");
+			return null;
+		}
+	}
+	
+	private void sendHeld(ListenerDemand.Held held) {
+		if (held == null || held.device() == null) return;
+		for (Notify notify : held.notifies()){
+			try {
+				messageEngine.notifyEvent(notify, held.device());
+			} catch (MessageEngineException e) {
+				logger.log(Level.WARNING, "Failed to send held notify to "+held.device(), e);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Adds to the response of a successful listener registration the last
+	 * values of the event that match the filter of the listener.
+	 * 
+	 * @param registerCall Call to the 'registerListener' service.
+	 * @param response Response given by the driver.
+	 */
+	public void attachSnapshot(ServiceCall registerCall, ServiceResponse response) {
+		LastValueCache lastValues = this.lastValues;
+		if (lastValues == null || response == null || !REGISTER_LISTENER_SERVICE.equals(registerCall.getService())
+				|| (response.getError() != null && !response.getError().isEmpty())){
+			return;
+		}
+		EventFilter filter;
+		try {
+			filter = EventFilter.of(registerCall);
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		String eventKey = (String) registerCall.getParameter(REGISTER_EVENT_LISTENER_EVENT_KEY_PARAMETER);
+		NotifyBatch snapshot = new NotifyBatch();
+		for (Notify notify : lastValues.snapshot(registerCall.getDriver(), registerCall.getInstanceId(), eventKey)){
+			if (filter == null || filter.matches(notify)) snapshot.addNotify(notify);
+		}
+		if (snapshot.getNotifies().isEmpty()) return;
+		try {
+			response.addParameter(SNAPSHOT_PARAMETER, new JSONNotifyBatch(snapshot).toString());
+		} catch (JSONException e) {
+			logger.log(Level.WARNING, "Failed to encode the current values of "+eventKey, e);
+		}
+	}
+	
 	/**
 	 * This method formats a unique identifier for the event.
 	 */
@@ -103,13 +288,34 @@ public class EventManager implements NotifyHandler {
 	 * @throws NotifyException In case of an error.
 	 */
 	public void registerForEvent(UosEventListener listener, UpDevice device, String driver, String instanceId, String eventKey) throws NotifyException{
+		registerForEvent(listener, device, driver, instanceId, eventKey, null);
+	}
+	
+	/**
+	 * Register a Listener for the notifies of an event that match a filter.
+	 * The filter is sent to the device producing the event, so the other
+	 * notifies aren't even sent, and checked again when they arrive.
+	 * 
+	 * @param listener UosEventListener responsible for dealing with the event.
+	 * @param device Device which event must be listened
+	 * @param driver Driver responsible for the event.
+	 * @param instanceId Instance Identifier of the driver to be registered upon. (Optional)
+	 * @param eventKey EventKey that identifies the wanted event to be listened.
+	 * @param filter Condition over the notify parameters (see {@link EventFilter}). (Optional)
+	 * @throws NotifyException In case of an error.
+	 * @throws IllegalArgumentException If the filter is malformed.
+	 */
+	public void registerForEvent(UosEventListener listener, UpDevice device, String driver, String instanceId, String eventKey, String filter) throws NotifyException{
+		
+		EventFilter eventFilter = filter == null ? null : EventFilter.parse(filter);
 		
 		// If the listener is already registered it cannot be registered again
 		String eventIdentifier = getEventIdentifier(device, driver, instanceId, eventKey);
 		
 		logger.fine("Registering listener for event :"+eventIdentifier);
 		
-		if (findListener(listener, listenerMap.get(eventIdentifier))== null){
+		String deviceName = device == null ? null : device.getName();
+		if (ListenerIndex.find(listener, listeners.get(deviceName, driver, eventKey, instanceId)) == null){
 			
 			ListenerInfo info = new ListenerInfo();
 			
@@ -118,26 +324,117 @@ public class EventManager implements NotifyHandler {
 			info.eventKey = eventKey;
 			info.listener = listener;
 			info.device = device;
+			info.filter = eventFilter;
+			info.pending = new ArrayList<Notify>();
 			
+			// Listens from before the registration, so no notify is lost, holding
+			// the live ones until the current values are handed
+			listeners.add(info);
+			boolean registered = false;
 			try {
+				ServiceResponse response = null;
 				if (device != null){
 					// Send the event register request to the called device
-					ServiceCall serviceCall = new ServiceCall(driver,REGISTER_LISTENER_SERVICE,instanceId);
-					serviceCall.addParameter(REGISTER_EVENT_LISTENER_EVENT_KEY_PARAMETER, eventKey);
-					ServiceResponse response = messageEngine.callService(device, serviceCall);
-					if (response == null || (response.getError() != null && !response.getError().isEmpty())){
-						throw new NotifyException(response.getError());
-					}
+					response = callRegister(info, registerCall(info));
 				}
-				// If the registry process goes ok, then add the listenner to the listener map
-				if (listenerMap.get(eventIdentifier) == null){
-					listenerMap.put(eventIdentifier,new ArrayList<ListenerInfo>());
-				}
-				
-				listenerMap.get(eventIdentifier).add(info);				
+				registered = true;
 				logger.fine("Registered listener for event :"+eventIdentifier);
+				deliverSnapshot(info, response);
 			} catch (MessageEngineException e) {
 				throw new NotifyException(e);
+			} finally {
+				if (!registered) listeners.remove(info);
+			}
+		}
+	}
+	
+	/**
+	 * Tells the device producing the event how many notifies the listener
+	 * can take. With none, the device holds the notifies to the current one
+	 * until it is informed of more, sending only the latest ones then.
+	 * 
+	 * The device holds the notifies to every listener of the event in this
+	 * one, so it is only told to hold them once all of them asked to. The
+	 * others keep receiving them, the paused listener being the one to keep
+	 * what arrives meanwhile.
+	 * 
+	 * @param demand Amount of notifies the listener can take.
+	 * @throws NotifyException In case of an error.
+	 */
+	public void updateDemand(UosEventListener listener, UpDevice device, String driver, String instanceId, String eventKey, long demand) throws NotifyException{
+		if (device == null) return;
+		ListenerInfo info = ListenerIndex.find(listener, listeners.get(device.getName(), driver, eventKey, instanceId));
+		if (info == null) return;
+		info.paused = demand <= 0;
+		if (info.paused){
+			for (ListenerInfo li : listeners.get(device.getName(), driver, eventKey)){
+				if (!li.paused) return;
+			}
+		}
+		ServiceCall serviceCall = registerCall(info);
+		serviceCall.addParameter(DEMAND_PARAMETER, String.valueOf(demand));
+		try {
+			callRegister(info, serviceCall);
+		} catch (MessageEngineException e) {
+			throw new NotifyException(e);
+		}
+	}
+	
+	private static ServiceCall registerCall(ListenerInfo info) {
+		ServiceCall serviceCall = new ServiceCall(info.driver,REGISTER_LISTENER_SERVICE,info.instanceId);
+		serviceCall.addParameter(REGISTER_EVENT_LISTENER_EVENT_KEY_PARAMETER, info.eventKey);
+		if (info.filter != null){
+			serviceCall.addParameter(EventFilter.FILTER_PARAM, info.filter.toString());
+		}
+		return serviceCall;
+	}
+	
+	private ServiceResponse callRegister(ListenerInfo info, ServiceCall serviceCall) throws MessageEngineException, NotifyException {
+		ServiceResponse response = messageEngine.callService(info.device, serviceCall);
+		if (response == null || (response.getError() != null && !response.getError().isEmpty())){
+			throw new NotifyException(response == null ? null : response.getError());
+		}
+		return response;
+	}
+	
+	/**
+	 * Hands to a new listener the current values of the event, as informed by
+	 * the device producing it or, for local events, kept by this one, and
+	 * then the live notifies held meanwhile, so the older values never
+	 * replace the newer ones.
+	 */
+	private void deliverSnapshot(ListenerInfo info, ServiceResponse response) {
+		List<Notify> snapshot = null;
+		if (info.device == null){
+			LastValueCache lastValues = this.lastValues;
+			if (lastValues != null) snapshot = lastValues.snapshot(info.driver, info.instanceId, info.eventKey);
+		}else{
+			String packed = response.getResponseString(SNAPSHOT_PARAMETER);
+			if (packed != null){
+				try {
+					snapshot = new JSONNotifyBatch(packed).getAsObject().getNotifies();
+				} catch (JSONException e) {
+					logger.log(Level.WARNING, "Failed to read the current values of "+info.eventKey, e);
+				}
+			}
+		}
+		if (snapshot != null){
+			for (Notify notify : snapshot){
+				dispatch(info, notify);
+			}
+		}
+		while (true){
+			List<Notify> held;
+			synchronized (info) {
+				held = info.pending;
+				if (held.isEmpty()){
+					info.pending = null;
+					return;
+				}
+				info.pending = new ArrayList<Notify>();
+			}
+			for (Notify notify : held){
+				dispatch(info, notify);
 			}
 		}
 	}
@@ -153,20 +450,13 @@ public class EventManager implements NotifyHandler {
 	 */
 	public void unregisterForEvent(UosEventListener listener, UpDevice device, String driver, String instanceId, String eventKey) throws NotifyException{
 		
-		List<ListenerInfo> listeners = findListeners(	device, driver,
+		List<ListenerInfo> candidates = findListeners(	listener, device, driver,
 														instanceId, eventKey);
 		
-		if (listeners == null){
-			return;
-		}
-		
 		NotifyException exception = null;
 		
 		// Secondly filter listenners by the other data [listener, driver and instanceId]
-		Iterator<ListenerInfo> it = listeners.iterator();
-		ListenerInfo li;
-		while(it.hasNext() ){
-			li = it.next();
+		for (ListenerInfo li : candidates){
 			
 			// only if its the same listener, it should be removed
 			if (li.listener.equals(listener) ){
@@ -187,8 +477,8 @@ public class EventManager implements NotifyHandler {
 						//Notify device of the listener removal
 						unregisterForEvent(li);
 						
-						//remove listener from the list
-						it.remove();
+						//remove listener from the index
+						listeners.remove(li);
 						
 					} catch (NotifyException e) {
 						logger.log(Level.SEVERE,"Failed to unregisterForEvent",e);
@@ -198,29 +488,27 @@ public class EventManager implements NotifyHandler {
 			}
 		}
 		
+		EventDispatcher dispatcher = this.dispatcher;
+		if (dispatcher != null && listeners.all(listener).isEmpty()){
+			dispatcher.forget(listener);
+		}
+		
 		// In case of an error, throw it
 		if (exception != null){
 			throw exception;
 		}
 	}
 
-	private List<ListenerInfo> findListeners(UpDevice device, String driver,
+	private List<ListenerInfo> findListeners(UosEventListener listener, UpDevice device, String driver,
 			String instanceId, String eventKey) {
 		// First filter the listeners by the event key 
-		List<ListenerInfo> listeners = null;
-		
 		if (eventKey == null){
 			// In this case all eventKeys must be checked for the listener to be removed.
-			listeners = new ArrayList<ListenerInfo>();
-			for (List<ListenerInfo> list : listenerMap.values()){
-				listeners.addAll(list);
-			}
-		}else{
-			// In case a eventKey is informed, then only the listeners for that event key must be used
-			String eventIdentifier = getEventIdentifier(device, driver, instanceId, eventKey);
-			listeners = listenerMap.get(eventIdentifier);
+			return listeners.all(listener);
 		}
-		return listeners;
+		// In case a eventKey is informed, then only the listeners for that event key must be used
+		String deviceName = device == null ? null : device.getName();
+		return Arrays.asList(listeners.get(deviceName, driver, eventKey, instanceId));
 	}
 	
 	/**
@@ -254,66 +542,65 @@ public class EventManager implements NotifyHandler {
 	public void handleNofify(Notify notify, UpDevice device) {
 		if (notify == null || notify.getEventKey() == null || notify.getEventKey().isEmpty()){
 			logger.fine("No information in notify to handle.");
+			return;
 		}
 		
-		if (listenerMap == null || listenerMap.isEmpty()){
+		if (listeners.isEmpty()){
 			logger.fine("No listeners waiting for notify events.");
+			return;
 		}
 		
 		//Notifying listeners from more specific to more general entries
+		String deviceName = device == null || device.getName() == null || device.getName().isEmpty() ? null : device.getName();
+		String driver = notify.getDriver();
+		String eventKey = notify.getEventKey();
+		String instanceId = notify.getInstanceId();
+		boolean hasInstance = instanceId != null && !instanceId.isEmpty();
 		
-		String eventIdentifier;
 		// First full entries (device, driver, event, intanceId)
-		eventIdentifier = getEventIdentifier(device, notify.getDriver(), notify.getInstanceId(), notify.getEventKey());
-		List<ListenerInfo> listeners = listenerMap.get(eventIdentifier);
-		handleNotify(notify, listeners, eventIdentifier);
+		if (hasInstance){
+			handleNotify(notify, listeners.get(deviceName, driver, eventKey, instanceId));
+		}
 		
 		// After less general entries (device, driver, event)
-		eventIdentifier = getEventIdentifier(device, notify.getDriver(), null, notify.getEventKey());
-		listeners = listenerMap.get(eventIdentifier);
-		handleNotify(notify, listeners, eventIdentifier);
+		handleNotify(notify, listeners.get(deviceName, driver, eventKey, null));
 
 		// An then the least general entries (driver, event)
-		eventIdentifier = getEventIdentifier(null, notify.getDriver(), null, notify.getEventKey());
-		listeners = listenerMap.get(eventIdentifier);
-		handleNotify(notify, listeners, eventIdentifier);
-		
+		if (deviceName != null){
+			handleNotify(notify, listeners.get(null, driver, eventKey, null));
+		}
 	}
 
-	private void handleNotify(Notify notify, List<ListenerInfo> listeners, String eventIdentifier) {
-		if (listeners == null || listeners.isEmpty()){
-			logger.fine("No listeners waiting for notify events for the key '"+eventIdentifier+"'.");
-			return;
-		}
-		
+	private void handleNotify(Notify notify, ListenerInfo[] listeners) {
 		// call handlers in each listener
 		for(ListenerInfo li : listeners){
-			if (li.listener != null){
-				li.listener.handleEvent(notify);
-			}
+			deliver(li, notify);
 		}
 	}
 	
-	/**
-	 * Find a listener instance in a list of ListenerInfos
-	 * 
-	 * @param listener Listener to be found.
-	 * @param list List to search in.
-	 * @return LinstenerInfo for the listener, if found.
-	 */
-	private ListenerInfo findListener(UosEventListener listener, List<ListenerInfo> list){
-		ListenerInfo info = null;
-		
-		if (list != null && !list.isEmpty() && listener != null){
-			for (ListenerInfo li : list){
-				if (li.listener != null && li.listener.equals(listener)){
-					info = li;
-					break;
+	private void deliver(ListenerInfo li, Notify notify) {
+		// only new listeners hold notifies, and never again once handed their snapshot
+		if (li.pending != null){
+			synchronized (li) {
+				if (li.pending != null){
+					li.pending.add(notify);
+					return;
 				}
 			}
 		}
-		
-		return info;
+		dispatch(li, notify);
+	}
+	
+	private void dispatch(ListenerInfo li, Notify notify) {
+		// producers which don't know about filters send every notify
+		if (li.listener != null && (li.filter == null || li.filter.matches(notify))){
+			EventDispatcher dispatcher = this.dispatcher;
+			if (dispatcher == null){
+				li.listener.handleEvent(notify);
+			}else{
+				dispatcher.dispatch(li.listener, notify);
+			}
+		}
 	}
 	
 }
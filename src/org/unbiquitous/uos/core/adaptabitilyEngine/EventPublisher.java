@@ -0,0 +1,185 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+/**
+ * Publishes the notifies of an event to flow controlled subscribers.
+ *
+ * Each subscription is an event listener of its own, registered while it
+ * lasts. The notifies arriving beyond what the subscriber requested wait in
+ * a bounded buffer (the oldest are discarded when it is full) and the
+ * producing device is told to hold the notifies to this device until the
+ * subscriber requests more, sending only the latest ones then.
+ *
+ * Events have no end, so subscribers are never completed: a subscription
+ * lasts until cancelled or failed.
+ */
+public class EventPublisher implements EventFlow.Publisher<Notify> {
+
+	private static Logger logger = UOSLogging.getLogger();
+
+	public static final int DEFAULT_BUFFER = 256;
+
+	private final EventManager eventManager;
+	private final UpDevice device;
+	private final String driver;
+	private final String instanceId;
+	private final String eventKey;
+	private final String filter;
+	private final int buffer;
+
+	/**
+	 * @param device Device producing the event, or <code>null</code> for the current one.
+	 * @param driver Driver responsible for the event.
+	 * @param instanceId Instance of the driver. (Optional)
+	 * @param eventKey Key of the event.
+	 * @param filter Condition over the notify parameters (see {@link EventFilter}). (Optional)
+	 * @param buffer Maximum amount of notifies waiting for each subscriber to request them.
+	 */
+	public EventPublisher(EventManager eventManager, UpDevice device, String driver,
+							String instanceId, String eventKey, String filter, int buffer) {
+		if (buffer <= 0) throw new IllegalArgumentException("Buffer must be positive.");
+		this.eventManager = eventManager;
+		this.device = device;
+		this.driver = driver;
+		this.instanceId = instanceId;
+		this.eventKey = eventKey;
+		this.filter = filter;
+		this.buffer = buffer;
+	}
+
+	public void subscribe(EventFlow.Subscriber<? super Notify> subscriber) {
+		if (subscriber == null) throw new NullPointerException("Subscriber cannot be null.");
+		EventSubscription subscription = new EventSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		try {
+			eventManager.registerForEvent(subscription, device, driver, instanceId, eventKey, filter);
+		} catch (NotifyException e) {
+			subscription.fail(e);
+		} catch (IllegalArgumentException e) {
+			subscription.fail(e);
+		}
+	}
+
+	private class EventSubscription implements EventFlow.Subscription, UosEventListener {
+		private final EventFlow.Subscriber<? super Notify> subscriber;
+		private final ArrayDeque<Notify> buffered = new ArrayDeque<Notify>();
+		private long demand = 0;
+		private boolean draining = false;
+		private boolean paused = false;
+		private boolean done = false;
+
+		EventSubscription(EventFlow.Subscriber<? super Notify> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public void handleEvent(Notify notify) {
+			boolean pause = false;
+			synchronized (this) {
+				if (done) return;
+				if (buffered.size() >= buffer){
+					buffered.poll();
+					logger.fine("Subscriber of "+eventKey+" is behind, discarding its oldest notify.");
+				}
+				buffered.add(notify);
+				if (demand == 0 && !paused){
+					paused = true;
+					pause = true;
+				}
+			}
+			if (pause) updateDemand(0);
+			drain();
+		}
+
+		public void request(long n) {
+			if (n <= 0){
+				fail(new IllegalArgumentException("Requested "+n+" notifies, must be positive."));
+				return;
+			}
+			synchronized (this) {
+				if (done) return;
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			}
+			drain();
+			long resume = 0;
+			synchronized (this) {
+				// only when the buffer didn't satisfy the whole demand
+				if (paused && !done && demand > 0){
+					paused = false;
+					resume = demand;
+				}
+			}
+			if (resume > 0) updateDemand(resume);
+		}
+
+		public void cancel() {
+			synchronized (this) {
+				if (done) return;
+				done = true;
+				buffered.clear();
+			}
+			unregister();
+		}
+
+		void fail(Throwable error) {
+			synchronized (this) {
+				if (done) return;
+				done = true;
+				buffered.clear();
+			}
+			unregister();
+			subscriber.onError(error);
+		}
+
+		private void drain() {
+			synchronized (this) {
+				// a request made from onNext is served by the loop already running
+				if (draining) return;
+				draining = true;
+			}
+			while (true){
+				Notify next;
+				synchronized (this) {
+					if (done || demand == 0 || buffered.isEmpty()){
+						draining = false;
+						return;
+					}
+					next = buffered.poll();
+					if (demand != Long.MAX_VALUE) demand--;
+				}
+				try {
+					subscriber.onNext(next);
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "Subscriber of "+eventKey+" failed, cancelling it.", e);
+					synchronized (this) {
+						draining = false;
+					}
+					cancel();
+					return;
+				}
+			}
+		}
+
+		private void updateDemand(long demand) {
+			try {
+				eventManager.updateDemand(this, device, driver, instanceId, eventKey, demand);
+			} catch (NotifyException e) {
+				logger.log(Level.WARNING, "Failed to inform the demand for "+eventKey, e);
+			}
+		}
+
+		private void unregister() {
+			try {
+				eventManager.unregisterForEvent(this, device, driver, instanceId, eventKey);
+			} catch (NotifyException e) {
+				logger.log(Level.WARNING, "Failed to unregister subscriber of "+eventKey, e);
+			}
+		}
+	}
+}
@@ -72,6 +72,73 @@ public interface Gateway {
 			UpDevice device, String driver, String instanceId, String eventKey)
 			throws NotifyException;
 
+	/**
+	 * Register a Listener for the notifies of an event that match a filter.
+	 * The device producing the event evaluates the filter, so the notifies 
+	 * that don't match never leave it.
+	 * 
+	 * @param listener UosEventListener responsible for dealing with the event.
+	 * @param device Device which event must be listened
+	 * @param driver Driver responsible for the event.
+	 * @param instanceId Instance Identifier of the driver to be registered upon.
+	 * @param eventKey EventKey that identifies the wanted event to be listened.
+	 * @param filter Condition over the notify parameters, as 
+	 * 			<code>email == 'john@mail.com'</code> or 
+	 * 			<code>positionX between 10 and 20</code> (see {@link EventFilter}).
+	 * @throws NotifyException In case of an error.
+	 */
+	public void registerForEvent(UosEventListener listener,
+			UpDevice device, String driver, String instanceId, String eventKey,
+			String filter) throws NotifyException;
+
+	/**
+	 * Creates a flow controlled source of the notifies of an event. Each
+	 * subscriber is registered as a listener, only receives the notifies it
+	 * requested, and makes the producing device hold the notifies to it while
+	 * it has requested none.
+	 * 
+	 * @param device Device which event must be listened
+	 * @param driver Driver responsible for the event.
+	 * @param instanceId Instance Identifier of the driver to be registered upon. (Optional)
+	 * @param eventKey EventKey that identifies the wanted event to be listened.
+	 * @param filter Condition over the notify parameters (see {@link EventFilter}). (Optional)
+	 * @return The publisher of the notifies.
+	 */
+	public EventFlow.Publisher<Notify> eventPublisher(UpDevice device,
+			String driver, String instanceId, String eventKey, String filter);
+
+	/**
+	 * Watches the result of a service instead of polling it. The device 
+	 * providing it runs the call again whenever its driver changes (see 
+	 * {@link #invalidate(String, String)}) and only sends the result when it 
+	 * is different from the last one.
+	 * 
+	 * @param device Device providing the service, or <code>null</code> for the current one.
+	 * @param serviceCall Call to be watched.
+	 * @param listener Receives the current result right away and then each change.
+	 * @return The id of the watch, to stop it with {@link #unwatch(String)}.
+	 * @throws ServiceCallException If the service can't be watched.
+	 */
+	public String watch(UpDevice device, ServiceCall serviceCall,
+			ServiceWatchListener listener) throws ServiceCallException;
+
+	/**
+	 * Stops watching the result of a service.
+	 * 
+	 * @param watchId Id returned by {@link #watch(UpDevice, ServiceCall, ServiceWatchListener)}.
+	 * @throws ServiceCallException If the providing device couldn't be told.
+	 */
+	public void unwatch(String watchId) throws ServiceCallException;
+
+	/**
+	 * Informs that the results of the services of a driver may have changed,
+	 * so the calls watched on them are run again.
+	 * 
+	 * @param driver Name of the driver.
+	 * @param instanceId Instance which changed, or <code>null</code> for all of them.
+	 */
+	public void invalidate(String driver, String instanceId);
+
 	/**
 	 * Removes a listener for receiving Notify events and notifies the event driver of its removal.
 	 * 
@@ -100,6 +167,16 @@ public interface Gateway {
 	 */
 	public void sendEventNotify(Notify notify, UpDevice device) throws NotifyException;
 	
+	/**
+	 * Sends a notify message to many devices at once. A device failing to
+	 * receive it doesn't stop the others.
+	 * 
+	 * @param notify Notify message to be sent.
+	 * @param devices Devices which are going to receive the notify event
+	 * @throws NotifyException
+	 */
+	public void sendEventNotifyToAll(Notify notify, List<UpDevice> devices) throws NotifyException;
+	
 	/**
 	 * @return Data about the Current Device uOS is running on.
 	 */
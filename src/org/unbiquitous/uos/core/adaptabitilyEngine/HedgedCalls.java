@@ -0,0 +1,316 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.driverManager.DriverData;
+import org.unbiquitous.uos.core.driverManager.DriverManager;
+import org.unbiquitous.uos.core.messageEngine.MessageEngineException;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpService;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+
+/**
+ * Hedges the remote calls to idempotent services (see
+ * {@link UpService#setIdempotent(boolean)}) so a slow device doesn't define
+ * how long they take.
+ *
+ * When a call takes longer than the configured percentile of the latencies
+ * observed for its service, the same call is sent to another instance of the
+ * driver (or of an equivalent one) on another device. The first response is
+ * used and the other call is cancelled. Services without enough latencies
+ * observed yet are not hedged.
+ *
+ * The calls run on a bounded pool. When it is full, calls are sent without
+ * hedging, on the calling thread. Cancelling a call only interrupts it, which
+ * doesn't stop a thread blocked on the connection: it is held until the
+ * message handler gives up waiting for the response
+ * (<code>ubiquitos.message.response.timeout</code>).
+ */
+public class HedgedCalls {
+
+	private static Logger logger = UOSLogging.getLogger();
+
+	/** Latencies kept for each service. */
+	static final int WINDOW = 100;
+	/** Latencies needed before a service is hedged. */
+	static final int MIN_SAMPLES = 20;
+	/** Calls running at the same time, by default. */
+	static final int THREADS = 16;
+
+	/**
+	 * Sends a call to a device.
+	 */
+	public interface Sender {
+		ServiceResponse send(UpDevice device, ServiceCall serviceCall) throws MessageEngineException;
+	}
+
+	private final DriverManager driverManager;
+	private final int percentile;
+	private final ExecutorService executor;
+	private final Map<String, Latencies> latencies = new ConcurrentHashMap<String, Latencies>();
+
+	/**
+	 * @param driverManager Where the driver declarations and instances are looked up.
+	 * @param percentile Percentile of the latencies a call waits before being hedged.
+	 */
+	public HedgedCalls(DriverManager driverManager, int percentile) {
+		this(driverManager, percentile, THREADS);
+	}
+
+	/**
+	 * @param driverManager Where the driver declarations and instances are looked up.
+	 * @param percentile Percentile of the latencies a call waits before being hedged.
+	 * @param threads Maximum amount of calls running at the same time.
+	 */
+	public HedgedCalls(DriverManager driverManager, int percentile, int threads) {
+		if (percentile <= 0 || percentile >= 100) throw new IllegalArgumentException("Percentile must be between 1 and 99.");
+		if (threads <= 0) throw new IllegalArgumentException("Threads must be positive.");
+		this.driverManager = driverManager;
+		this.percentile = percentile;
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "uos-hedge");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		this.executor = pool;
+	}
+
+	/**
+	 * Sends the call to the device, and to another instance when it takes too long.
+	 *
+	 * @return The first response received.
+	 * @throws MessageEngineException If every call sent failed.
+	 */
+	public ServiceResponse call(UpDevice device, ServiceCall serviceCall, Sender sender) throws MessageEngineException {
+		if (!isIdempotent(serviceCall)) return sender.send(device, serviceCall);
+		Latencies observed = latenciesOf(serviceCall);
+		long delay = observed.percentile(percentile);
+		DriverData alternative = delay < 0 ? null : alternative(device, serviceCall);
+		if (alternative == null) return timed(sender, device, serviceCall, observed).call();
+
+		CompletionService<ServiceResponse> calls = new ExecutorCompletionService<ServiceResponse>(executor);
+		List<Future<ServiceResponse>> pending = new ArrayList<Future<ServiceResponse>>(2);
+		List<Timed> sent = new ArrayList<Timed>(2);
+		Timed primary = timed(sender, device, serviceCall, observed);
+		try {
+			pending.add(calls.submit(primary));
+		} catch (RejectedExecutionException e) {
+			logger.fine("Too many hedged calls, sending "+serviceCall.getDriver()+"."+serviceCall.getService()+" alone.");
+			return primary.call();
+		}
+		sent.add(primary);
+		try {
+			Future<ServiceResponse> done = calls.poll(delay, TimeUnit.NANOSECONDS);
+			if (done == null){
+				hedge(calls, pending, sent, timed(sender, alternative.getDevice(),
+								callOn(alternative, serviceCall), observed));
+				done = calls.take();
+			}
+			return firstResponse(calls, pending, done);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessageEngineException(e);
+		} finally {
+			// the slower call isn't needed anymore
+			for (int i = 0; i < pending.size(); i++){
+				if (!pending.get(i).isDone()){
+					pending.get(i).cancel(true);
+					sent.get(i).cancelled(delay);
+				}
+			}
+		}
+	}
+
+	private void hedge(CompletionService<ServiceResponse> calls, List<Future<ServiceResponse>> pending,
+						List<Timed> sent, Timed hedge) {
+		logger.fine("Hedging "+hedge.serviceCall.getDriver()+"."+hedge.serviceCall.getService()
+						+" on "+hedge.device.getName());
+		try {
+			pending.add(calls.submit(hedge));
+			sent.add(hedge);
+		} catch (RejectedExecutionException e) {
+			logger.fine("Too many hedged calls, waiting for the first one alone.");
+		}
+	}
+
+	/**
+	 * Stops the calls in flight.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private ServiceResponse firstResponse(CompletionService<ServiceResponse> calls,
+			List<Future<ServiceResponse>> pending, Future<ServiceResponse> done)
+			throws InterruptedException, MessageEngineException {
+		MessageEngineException failure = null;
+		for (int received = 1; ; received++){
+			try {
+				ServiceResponse response = done.get();
+				if (response != null || received == pending.size()) return response;
+			} catch (ExecutionException e) {
+				if (failure == null) failure = failure(e.getCause());
+				if (received == pending.size()) throw failure;
+			}
+			done = calls.take();
+		}
+	}
+
+	private static MessageEngineException failure(Throwable cause) {
+		if (cause instanceof MessageEngineException) return (MessageEngineException) cause;
+		return new MessageEngineException(cause);
+	}
+
+	private static Timed timed(Sender sender, UpDevice device, ServiceCall serviceCall, Latencies observed) {
+		return new Timed(sender, device, serviceCall, observed);
+	}
+
+	private boolean isIdempotent(ServiceCall serviceCall) {
+		// stream calls are bound to the channels they open
+		if (serviceCall.getServiceType() != ServiceCall.ServiceType.DISCRETE) return false;
+		UpService service = service(driverManager.getDriverFromEquivalanceTree(serviceCall.getDriver()),
+									serviceCall.getService());
+		return service != null && service.isIdempotent();
+	}
+
+	/**
+	 * @return Another instance of the driver, on another device, providing the service.
+	 */
+	private DriverData alternative(UpDevice device, ServiceCall serviceCall) {
+		List<DriverData> instances = driverManager.listDrivers(serviceCall.getDriver(), null);
+		if (instances == null) return null;
+		for (DriverData instance : instances){
+			UpDevice other = instance.getDevice();
+			if (other != null && other.getName() != null
+					&& !other.getName().equalsIgnoreCase(device.getName())
+					&& service(instance.getDriver(), serviceCall.getService()) != null){
+				return instance;
+			}
+		}
+		return null;
+	}
+
+	private static UpService service(UpDriver driver, String name) {
+		if (driver == null || driver.getServices() == null) return null;
+		for (UpService service : driver.getServices()){
+			if (name.equals(service.getName())) return service;
+		}
+		return null;
+	}
+
+	private static ServiceCall callOn(DriverData instance, ServiceCall serviceCall) {
+		ServiceCall call = new ServiceCall(instance.getDriver().getName(), serviceCall.getService(),
+											instance.getInstanceID());
+		call.setParameters(serviceCall.getParameters());
+		call.setSecurityType(serviceCall.getSecurityType());
+		return call;
+	}
+
+	Latencies latenciesOf(ServiceCall serviceCall) {
+		String key = serviceCall.getDriver()+"."+serviceCall.getService();
+		Latencies observed = latencies.get(key);
+		if (observed == null){
+			// a concurrent creation only loses a few samples
+			observed = new Latencies();
+			latencies.put(key, observed);
+		}
+		return observed;
+	}
+
+	/**
+	 * Call which records its latency when answered or cancelled.
+	 */
+	private static class Timed implements Callable<ServiceResponse> {
+		private final Sender sender;
+		private final UpDevice device;
+		private final ServiceCall serviceCall;
+		private final Latencies observed;
+		private final AtomicBoolean recorded = new AtomicBoolean();
+		private volatile long start;
+
+		Timed(Sender sender, UpDevice device, ServiceCall serviceCall, Latencies observed) {
+			this.sender = sender;
+			this.device = device;
+			this.serviceCall = serviceCall;
+			this.observed = observed;
+		}
+
+		public ServiceResponse call() throws MessageEngineException {
+			start = System.nanoTime();
+			ServiceResponse response = sender.send(device, serviceCall);
+			if (response != null) record(System.nanoTime() - start);
+			return response;
+		}
+
+		/**
+		 * Records the latency of the call cancelled before being answered,
+		 * which took at least the time waited for it to be hedged, so the
+		 * slow devices aren't left out of the percentile.
+		 */
+		void cancelled(long delay) {
+			long started = start;
+			record(Math.max(delay, started == 0 ? 0 : System.nanoTime() - started));
+		}
+
+		private void record(long latency) {
+			if (recorded.compareAndSet(false, true)) observed.add(latency);
+		}
+	}
+
+	/**
+	 * The latest latencies of a service.
+	 */
+	static class Latencies {
+		private final long[] samples = new long[WINDOW];
+		private int count = 0;
+		private int next = 0;
+
+		synchronized int count() {
+			return count;
+		}
+
+		synchronized void add(long latency) {
+			samples[next] = latency;
+			next = (next + 1) % WINDOW;
+			if (count < WINDOW) count++;
+		}
+
+		/**
+		 * @return The latency (in nanoseconds) below which the percentage informed
+		 * 			of the calls answered, or -1 if not enough calls were observed.
+		 */
+		long percentile(int percentile) {
+			long[] sorted;
+			synchronized (this) {
+				if (count < MIN_SAMPLES) return -1;
+				sorted = Arrays.copyOf(samples, count);
+			}
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+			return sorted[Math.max(0, index)];
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.unbiquitous.uos.core.messageEngine.EventConflation;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+/**
+ * Keeps the last notify sent by the drivers of the current device for each
+ * event, so a listener registering late starts from the current state
+ * instead of waiting for (or polling) the next change.
+ *
+ * Each event (driver, instance and event key) keeps one value, or one for
+ * each conflation key when the event declares one (see
+ * {@link EventConflation}), as the position of each user. The least recently
+ * updated values are discarded beyond the capacity.
+ */
+public class LastValueCache {
+
+	private final Map<String, Notify> values;
+	private final EventConflation conflation;
+
+	/**
+	 * @param capacity Maximum amount of values kept.
+	 * @param conflation Tells which notifies carry the same state, or
+	 * 			<code>null</code> to keep a single value per event.
+	 */
+	public LastValueCache(final int capacity, EventConflation conflation) {
+		if (capacity <= 0) throw new IllegalArgumentException("Cache capacity must be positive.");
+		this.conflation = conflation;
+		this.values = new LinkedHashMap<String, Notify>(16, 0.75f, false){
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String, Notify> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Stores the notify as the current value of its event.
+	 */
+	public void record(Notify notify) {
+		if (notify == null || notify.getDriver() == null || notify.getEventKey() == null) return;
+		String key = conflation == null ? null : conflation.keyOf(notify);
+		if (key == null){
+			key = notify.getDriver()+"."+notify.getEventKey()+"#"+notify.getInstanceId();
+		}
+		synchronized (values) {
+			// re-inserted so the updated value is the last to be discarded
+			values.remove(key);
+			values.put(key, notify);
+		}
+	}
+
+	/**
+	 * @param driver Driver of the event.
+	 * @param instanceId Instance of the driver, or <code>null</code> for all of them.
+	 * @param eventKey Key of the event.
+	 * @return The current values of the event, from the oldest to the newest.
+	 */
+	public List<Notify> snapshot(String driver, String instanceId, String eventKey) {
+		List<Notify> snapshot = new ArrayList<Notify>();
+		synchronized (values) {
+			for (Notify notify : values.values()){
+				if (equal(driver, notify.getDriver())
+						&& equal(eventKey, notify.getEventKey())
+						&& (instanceId == null || instanceId.equals(notify.getInstanceId()))){
+					snapshot.add(notify);
+				}
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return Amount of values kept.
+	 */
+	public int size() {
+		synchronized (values) {
+			return values.size();
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,135 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.unbiquitous.uos.core.messageEngine.EventConflation;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpNetworkInterface;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+/**
+ * Remote listeners which asked the current device to hold their notifies
+ * until they catch up.
+ *
+ * While paused, only the latest notify of each event (or of each conflation
+ * key, see {@link EventConflation}) is kept for the listener, to be sent when
+ * it asks for more.
+ *
+ * Notifies are sent to devices, so the state is kept by the address of the
+ * listening device, which only asks to hold them once every listener there
+ * did. A registration from it without flow control resumes it.
+ */
+class ListenerDemand {
+
+	/** Maximum amount of notifies held for each paused listener. */
+	static final int HELD = 100;
+
+	private final Map<String, Held> paused = new LinkedHashMap<String, Held>();
+	private volatile boolean empty = true;
+	private volatile EventConflation conflation;
+
+	void setConflation(EventConflation conflation) {
+		this.conflation = conflation;
+	}
+
+	/**
+	 * @return <code>true</code> if no listener is paused.
+	 */
+	boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * Starts holding the notifies of the event to the listener at the address.
+	 */
+	synchronized void pause(String address, String driver, String eventKey) {
+		String key = key(address, driver, eventKey);
+		if (!paused.containsKey(key)) paused.put(key, new Held());
+		empty = false;
+	}
+
+	/**
+	 * Stops holding the notifies of the event to the listener at the address.
+	 *
+	 * @return The notifies held, to be sent to it.
+	 */
+	synchronized Held resume(String address, String driver, String eventKey) {
+		Held held = paused.remove(key(address, driver, eventKey));
+		empty = paused.isEmpty();
+		return held;
+	}
+
+	/**
+	 * Discards the state of a listener at the address.
+	 *
+	 * @param eventKey Event which it doesn't listen anymore, or <code>null</code> for all.
+	 */
+	synchronized void forget(String address, String driver, String eventKey) {
+		if (eventKey != null){
+			paused.remove(key(address, driver, eventKey));
+		}else{
+			Iterator<String> it = paused.keySet().iterator();
+			while (it.hasNext()){
+				if (it.next().startsWith(address+"|")) it.remove();
+			}
+		}
+		empty = paused.isEmpty();
+	}
+
+	/**
+	 * Holds the notify if the device is paused for it.
+	 *
+	 * @return <code>true</code> if it was held and must not be sent now.
+	 */
+	boolean hold(UpDevice device, Notify notify) {
+		if (empty || device == null || device.getNetworks() == null) return false;
+		EventConflation conflation = this.conflation;
+		String conflationKey = conflation == null ? null : conflation.keyOf(notify);
+		synchronized (this) {
+			for (UpNetworkInterface network : device.getNetworks()){
+				Held held = paused.get(key(network.getNetworkAddress(), notify.getDriver(), notify.getEventKey()));
+				if (held != null){
+					held.put(device, notify, conflationKey);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static String key(String address, String driver, String eventKey) {
+		return address+"|"+driver+"."+eventKey;
+	}
+
+	/**
+	 * Notifies held for a paused listener.
+	 */
+	static class Held {
+		private UpDevice device;
+		private final Map<String, Notify> notifies = new LinkedHashMap<String, Notify>();
+
+		void put(UpDevice device, Notify notify, String conflationKey) {
+			this.device = device;
+			String key = conflationKey != null ? conflationKey : notify.getEventKey()+"#"+notify.getInstanceId();
+			// re-inserted so the order is the one of the latest values
+			notifies.remove(key);
+			if (notifies.size() >= HELD){
+				notifies.remove(notifies.keySet().iterator().next());
+			}
+			notifies.put(key, notify);
+		}
+
+		/** @return The device to send the notifies to, or <code>null</code> if none was held. */
+		UpDevice device() {
+			return device;
+		}
+
+		List<Notify> notifies() {
+			return new ArrayList<Notify>(notifies.values());
+		}
+	}
+}
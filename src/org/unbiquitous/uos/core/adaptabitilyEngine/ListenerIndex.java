@@ -0,0 +1,152 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.unbiquitous.uos.core.adaptabitilyEngine.EventManager.ListenerInfo;
+
+/**
+ * Index of the event listeners by device, driver, event key and instance id
+ * (in this order). Missing parts of a registration are indexed as "any".
+ *
+ * Lookups walk concurrent maps and return the listener arrays as they are,
+ * so notifies are dispatched without locks nor allocations. Changes are
+ * serialized and replace the arrays (copy-on-write), so the arrays returned
+ * must never be changed.
+ */
+class ListenerIndex {
+
+	static final ListenerInfo[] NONE = new ListenerInfo[0];
+
+	private static final String ANY = "";
+
+	private final Node root = new Node();
+
+	/**
+	 * @return The listeners registered exactly for this combination.
+	 */
+	ListenerInfo[] get(String device, String driver, String eventKey, String instanceId) {
+		Node node = root.children.get(key(device));
+		if (node == null) return NONE;
+		node = node.children.get(key(driver));
+		if (node == null) return NONE;
+		node = node.children.get(key(eventKey));
+		if (node == null) return NONE;
+		node = node.children.get(key(instanceId));
+		if (node == null) return NONE;
+		return node.listeners;
+	}
+
+	/**
+	 * @return The listeners registered for the event of the device, whatever
+	 * 			the instance.
+	 */
+	List<ListenerInfo> get(String device, String driver, String eventKey) {
+		List<ListenerInfo> found = new ArrayList<ListenerInfo>();
+		Node node = root.children.get(key(device));
+		if (node == null) return found;
+		node = node.children.get(key(driver));
+		if (node == null) return found;
+		node = node.children.get(key(eventKey));
+		if (node == null) return found;
+		for (Node instance : node.children.values()){
+			for (ListenerInfo li : instance.listeners) found.add(li);
+		}
+		return found;
+	}
+
+	/**
+	 * @return <code>false</code> if the same listener was already registered for the same combination.
+	 */
+	synchronized boolean add(ListenerInfo info) {
+		Node node = root;
+		for (String part : path(info)){
+			Node child = node.children.get(part);
+			if (child == null){
+				child = new Node();
+				node.children.put(part, child);
+			}
+			node = child;
+		}
+		if (find(info.listener, node.listeners) != null) return false;
+		ListenerInfo[] listeners = new ListenerInfo[node.listeners.length + 1];
+		System.arraycopy(node.listeners, 0, listeners, 0, node.listeners.length);
+		listeners[node.listeners.length] = info;
+		node.listeners = listeners;
+		return true;
+	}
+
+	/**
+	 * Removes the registration, dropping the entries left empty.
+	 */
+	synchronized void remove(ListenerInfo info) {
+		String[] path = path(info);
+		Node[] nodes = new Node[path.length + 1];
+		nodes[0] = root;
+		for (int i = 0; i < path.length; i++){
+			nodes[i + 1] = nodes[i].children.get(path[i]);
+			if (nodes[i + 1] == null) return;
+		}
+		Node leaf = nodes[path.length];
+		int index = -1;
+		for (int i = 0; i < leaf.listeners.length; i++){
+			if (leaf.listeners[i] == info) index = i;
+		}
+		if (index < 0) return;
+		ListenerInfo[] listeners = new ListenerInfo[leaf.listeners.length - 1];
+		System.arraycopy(leaf.listeners, 0, listeners, 0, index);
+		System.arraycopy(leaf.listeners, index + 1, listeners, index, listeners.length - index);
+		leaf.listeners = listeners;
+		for (int i = path.length; i > 0; i--){
+			if (nodes[i].listeners.length > 0 || !nodes[i].children.isEmpty()) break;
+			nodes[i - 1].children.remove(path[i - 1], nodes[i]);
+		}
+	}
+
+	/**
+	 * @return Every registration of the listener.
+	 */
+	List<ListenerInfo> all(UosEventListener listener) {
+		List<ListenerInfo> found = new ArrayList<ListenerInfo>();
+		collect(root, listener, found);
+		return found;
+	}
+
+	boolean isEmpty() {
+		return root.children.isEmpty();
+	}
+
+	private static void collect(Node node, UosEventListener listener, List<ListenerInfo> found) {
+		for (ListenerInfo li : node.listeners){
+			if (li.listener != null && li.listener.equals(listener)) found.add(li);
+		}
+		for (Node child : node.children.values()){
+			collect(child, listener, found);
+		}
+	}
+
+	static ListenerInfo find(UosEventListener listener, ListenerInfo[] listeners) {
+		if (listener == null) return null;
+		for (ListenerInfo li : listeners){
+			if (li.listener != null && li.listener.equals(listener)) return li;
+		}
+		return null;
+	}
+
+	private static String[] path(ListenerInfo info) {
+		return new String[]{
+				key(info.device == null ? null : info.device.getName()),
+				key(info.driver), key(info.eventKey), key(info.instanceId)};
+	}
+
+	private static String key(String part) {
+		return part == null ? ANY : part;
+	}
+
+	private static class Node {
+		final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>(4);
+		volatile ListenerInfo[] listeners = NONE;
+	}
+}
@@ -0,0 +1,173 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.unbiquitous.uos.core.driverManager.DriverManager;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpService;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+
+/**
+ * Keeps the responses of the remote services their drivers declared
+ * cacheable (see {@link UpService#setCacheTtl(long)}), so repeated reads
+ * are answered without going to the network while they are fresh.
+ *
+ * Responses are kept by device, driver, instance, service and parameters
+ * (in the order of their names). The least recently used are discarded
+ * beyond the capacity, and the ones of a driver are discarded when it sends
+ * an event or when one of its other services is called, since either means
+ * its state may have changed.
+ */
+public class ResponseCache {
+
+	private final Map<String, Cached> responses;
+	private final DriverManager driverManager;
+
+	/**
+	 * @param capacity Maximum amount of responses kept.
+	 * @param driverManager Where the driver declarations are looked up.
+	 */
+	public ResponseCache(final int capacity, DriverManager driverManager) {
+		if (capacity <= 0) throw new IllegalArgumentException("Cache capacity must be positive.");
+		this.driverManager = driverManager;
+		this.responses = new LinkedHashMap<String, Cached>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return A copy of the fresh response kept for the call, or <code>null</code> if there's none.
+	 */
+	public ServiceResponse get(UpDevice device, ServiceCall serviceCall) {
+		if (!isCacheable(serviceCall)) return null;
+		String key = key(device, serviceCall);
+		synchronized (responses) {
+			Cached entry = responses.get(key);
+			if (entry == null) return null;
+			if (entry.expiresAt - System.nanoTime() <= 0){
+				responses.remove(key);
+				return null;
+			}
+			return copy(entry.response);
+		}
+	}
+
+	/**
+	 * Keeps the response if its service is cacheable, otherwise discards the
+	 * responses kept for the driver called, as the call may have changed it.
+	 */
+	public void put(UpDevice device, ServiceCall serviceCall, ServiceResponse response) {
+		long ttl = ttlOf(serviceCall);
+		if (ttl <= 0){
+			invalidate(deviceName(device), serviceCall.getDriver(), serviceCall.getInstanceId());
+			return;
+		}
+		if (!isCacheable(serviceCall) || response == null
+				|| (response.getError() != null && !response.getError().isEmpty())){
+			return;
+		}
+		Cached entry = new Cached(deviceName(device), serviceCall.getDriver(), serviceCall.getInstanceId(),
+							copy(response), System.nanoTime() + ttl * 1000000);
+		synchronized (responses) {
+			responses.put(key(device, serviceCall), entry);
+		}
+	}
+
+	/**
+	 * Discards the responses kept for a driver.
+	 *
+	 * @param deviceName Device of the driver, or <code>null</code> for all devices.
+	 * @param driver Name of the driver.
+	 * @param instanceId Instance of the driver, or <code>null</code> for all of them.
+	 */
+	public void invalidate(String deviceName, String driver, String instanceId) {
+		if (driver == null) return;
+		synchronized (responses) {
+			Iterator<Cached> it = responses.values().iterator();
+			while (it.hasNext()){
+				Cached entry = it.next();
+				if (driver.equals(entry.driver)
+						&& (deviceName == null || deviceName.equalsIgnoreCase(entry.deviceName))
+						&& (instanceId == null || entry.instanceId == null || instanceId.equals(entry.instanceId))){
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Amount of responses kept.
+	 */
+	public int size() {
+		synchronized (responses) {
+			return responses.size();
+		}
+	}
+
+	/**
+	 * @return For how long (in milliseconds) the responses of the service can be kept.
+	 */
+	private long ttlOf(ServiceCall serviceCall) {
+		UpDriver driver = driverManager.getDriverFromEquivalanceTree(serviceCall.getDriver());
+		if (driver == null || driver.getServices() == null) return 0;
+		for (UpService service : driver.getServices()){
+			if (serviceCall.getService().equals(service.getName())) return service.getCacheTtl();
+		}
+		return 0;
+	}
+
+	private static boolean isCacheable(ServiceCall serviceCall) {
+		// stream services answer with channels, not with data
+		return serviceCall.getServiceType() == ServiceCall.ServiceType.DISCRETE;
+	}
+
+	private static String key(UpDevice device, ServiceCall serviceCall) {
+		StringBuilder key = new StringBuilder();
+		key.append(deviceName(device)).append('/')
+			.append(serviceCall.getDriver()).append('#').append(serviceCall.getInstanceId())
+			.append('.').append(serviceCall.getService())
+			.append('@').append(serviceCall.getSecurityType());
+		if (serviceCall.getParameters() != null){
+			key.append('?').append(new TreeMap<String, Object>(serviceCall.getParameters()));
+		}
+		return key.toString();
+	}
+
+	private static String deviceName(UpDevice device) {
+		return device == null ? null : device.getName();
+	}
+
+	private static ServiceResponse copy(ServiceResponse response) {
+		ServiceResponse copy = new ServiceResponse();
+		copy.setError(response.getError());
+		if (response.getResponseData() != null){
+			copy.setResponseData(new HashMap<String, Object>(response.getResponseData()));
+		}
+		return copy;
+	}
+
+	private static class Cached {
+		final String deviceName;
+		final String driver;
+		final String instanceId;
+		final ServiceResponse response;
+		final long expiresAt;
+
+		Cached(String deviceName, String driver, String instanceId, ServiceResponse response, long expiresAt) {
+			this.deviceName = deviceName;
+			this.driver = driver;
+			this.instanceId = instanceId;
+			this.response = response;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+
+/**
+ * Receives the results of a watched service (see
+ * {@link Gateway#watch(org.unbiquitous.uos.core.messageEngine.dataType.UpDevice, ServiceCall, ServiceWatchListener)}).
+ */
+public interface ServiceWatchListener {
+
+	/**
+	 * Called with the first result of the service and then every time it changes.
+	 *
+	 * @param serviceCall The call being watched.
+	 * @param response The current result of the call.
+	 */
+	public void serviceChanged(ServiceCall serviceCall, ServiceResponse response);
+}
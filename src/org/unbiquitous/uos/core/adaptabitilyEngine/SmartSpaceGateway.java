@@ -70,6 +70,34 @@ public class SmartSpaceGateway implements Gateway {
 				instanceId, eventKey);
 	}
 
+	public void registerForEvent(UosEventListener listener, UpDevice device,
+			String driver, String instanceId, String eventKey, String filter)
+			throws NotifyException {
+		adaptabilityEngine.registerForEvent(listener, device, driver,
+				instanceId, eventKey, filter);
+	}
+
+	public EventFlow.Publisher<Notify> eventPublisher(UpDevice device,
+			String driver, String instanceId, String eventKey, String filter) {
+		return adaptabilityEngine.eventPublisher(device, driver, instanceId,
+				eventKey, filter);
+	}
+
+	public String watch(UpDevice device, ServiceCall serviceCall,
+			ServiceWatchListener listener) throws ServiceCallException {
+		return adaptabilityEngine.watchManager().watch(device, serviceCall,
+				listener);
+	}
+
+	public void unwatch(String watchId) throws ServiceCallException {
+		adaptabilityEngine.watchManager().unwatch(watchId);
+	}
+
+	public void invalidate(String driver, String instanceId) {
+		WatchManager watchManager = getWatchManager();
+		if (watchManager != null) watchManager.invalidate(driver, instanceId);
+	}
+
 	public List<DriverData> listDrivers(String driverName) {
 		return driverManager.listDrivers(driverName, null);
 	}
@@ -87,6 +115,11 @@ public class SmartSpaceGateway implements Gateway {
 		adaptabilityEngine.sendEventNotify(notify, device);
 	}
 
+	public void sendEventNotifyToAll(Notify notify, List<UpDevice> devices)
+			throws NotifyException {
+		adaptabilityEngine.sendEventNotifyToAll(notify, devices);
+	}
+
 	public void unregisterForEvent(UosEventListener listener)
 			throws NotifyException {
 		adaptabilityEngine.unregisterForEvent(listener);
@@ -115,6 +148,10 @@ public class SmartSpaceGateway implements Gateway {
 		return driverManager;
 	}
 
+	public WatchManager getWatchManager() {
+		return adaptabilityEngine == null ? null : adaptabilityEngine.watchManager();
+	}
+
 	public ApplicationDeployer getApplicationDeployer() {
 		return applicationDeployer;
 	}
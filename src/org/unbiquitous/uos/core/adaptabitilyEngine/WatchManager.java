@@ -0,0 +1,317 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.unbiquitous.json.JSONException;
+import org.unbiquitous.json.JSONObject;
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.applicationManager.UOSMessageContext;
+import org.unbiquitous.uos.core.driverManager.DriverManager;
+import org.unbiquitous.uos.core.driverManager.DriverManagerException;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.messageEngine.messages.json.JSONServiceResponse;
+
+/**
+ * Turns the polling of a service into notifies of its changes.
+ *
+ * The device watching a service asks the device providing it (through the
+ * 'watch' service of the 'uos.DeviceDriver') to keep its result. Whenever a
+ * driver says its services may have changed (see
+ * {@link Gateway#invalidate(String, String)}), the provider runs the watched
+ * calls again, in background, and only notifies the watchers whose result
+ * is different from the last one they received.
+ */
+public class WatchManager implements UosEventListener {
+
+	private static Logger logger = UOSLogging.getLogger();
+
+	public static final String DEVICE_DRIVER = "uos.DeviceDriver";
+	public static final String WATCH_SERVICE = "watch";
+	public static final String UNWATCH_SERVICE = "unwatch";
+	public static final String WATCH_ID_PARAM = "watchId";
+	public static final String DRIVER_PARAM = "driverName";
+	public static final String SERVICE_PARAM = "serviceName";
+	public static final String INSTANCE_ID_PARAM = "instanceId";
+	public static final String PARAMETERS_PARAM = "parameters";
+	public static final String RESPONSE_PARAM = "response";
+
+	/** Event of the 'uos.DeviceDriver' carrying a new result of a watched call. */
+	public static final String WATCH_EVENT_KEY = "serviceChanged";
+
+	private final DriverManager driverManager;
+	private final EventManager eventManager;
+	private final Gateway gateway;
+	private final ExecutorService executor;
+
+	/** Calls watched by other devices (or local watchers), by watcher and watch id. */
+	private final ConcurrentMap<String, Watched> watched = new ConcurrentHashMap<String, Watched>();
+
+	/** Calls this device is watching, by watch id. */
+	private final ConcurrentMap<String, Watching> watching = new ConcurrentHashMap<String, Watching>();
+	private volatile boolean listening = false;
+
+	public WatchManager(DriverManager driverManager, EventManager eventManager, Gateway gateway) {
+		this.driverManager = driverManager;
+		this.eventManager = eventManager;
+		this.gateway = gateway;
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "uos-watch");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		pool.allowCoreThreadTimeOut(true);
+		this.executor = pool;
+	}
+
+	/************************ Watcher side ***************************/
+
+	/**
+	 * Starts watching a service call.
+	 *
+	 * @param device Device providing the service, or <code>null</code> for the current one.
+	 * @param serviceCall Call to be watched.
+	 * @param listener Receives the first result right away and then each change.
+	 * @return The id of the watch, to stop it.
+	 * @throws ServiceCallException If the provider refused to watch the call.
+	 */
+	public String watch(UpDevice device, ServiceCall serviceCall, ServiceWatchListener listener) throws ServiceCallException {
+		if (serviceCall == null || listener == null) throw new IllegalArgumentException("Service call and listener are mandatory.");
+		listen();
+		String watchId = UUID.randomUUID().toString();
+		watching.put(watchId, new Watching(device, serviceCall, listener));
+		ServiceCall watch = new ServiceCall(DEVICE_DRIVER, WATCH_SERVICE);
+		watch.addParameter(WATCH_ID_PARAM, watchId);
+		watch.addParameter(DRIVER_PARAM, serviceCall.getDriver());
+		watch.addParameter(SERVICE_PARAM, serviceCall.getService());
+		if (serviceCall.getInstanceId() != null) watch.addParameter(INSTANCE_ID_PARAM, serviceCall.getInstanceId());
+		if (serviceCall.getParameters() != null){
+			watch.addParameter(PARAMETERS_PARAM, new JSONObject(serviceCall.getParameters()).toString());
+		}
+		try {
+			ServiceResponse response = gateway.callService(device, watch);
+			if (response == null || (response.getError() != null && !response.getError().isEmpty())){
+				throw new ServiceCallException(response == null ? "No response to watch." : response.getError());
+			}
+			deliver(watchId, response.getResponseString(RESPONSE_PARAM), false);
+			return watchId;
+		} catch (ServiceCallException e) {
+			watching.remove(watchId);
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops watching a service call.
+	 *
+	 * @param watchId Id returned when it started.
+	 * @throws ServiceCallException If the provider couldn't be told.
+	 */
+	public void unwatch(String watchId) throws ServiceCallException {
+		Watching w = watching.remove(watchId);
+		if (w == null) return;
+		ServiceCall unwatch = new ServiceCall(DEVICE_DRIVER, UNWATCH_SERVICE);
+		unwatch.addParameter(WATCH_ID_PARAM, watchId);
+		gateway.callService(w.device, unwatch);
+	}
+
+	private void listen() {
+		if (listening) return;
+		synchronized (this) {
+			if (listening) return;
+			try {
+				eventManager.registerForEvent(this, null, DEVICE_DRIVER, null, WATCH_EVENT_KEY);
+				listening = true;
+			} catch (NotifyException e) {
+				// local registrations don't go to the network
+				logger.log(Level.SEVERE, "Failed to listen to watched services.", e);
+			}
+		}
+	}
+
+	public void handleEvent(Notify notify) {
+		Object watchId = notify.getParameter(WATCH_ID_PARAM);
+		Object response = notify.getParameter(RESPONSE_PARAM);
+		if (watchId != null && response != null) deliver(watchId.toString(), response.toString(), true);
+	}
+
+	private void deliver(String watchId, String encoded, boolean changed) {
+		Watching w = watching.get(watchId);
+		if (w == null || encoded == null) return;
+		synchronized (w) {
+			// a change notified before the watch was answered is newer than its result
+			if (!changed && w.changed) return;
+			if (changed) w.changed = true;
+			try {
+				ServiceResponse response = new JSONServiceResponse(encoded).getAsObject();
+				w.listener.serviceChanged(w.serviceCall, response);
+			} catch (JSONException e) {
+				logger.log(Level.WARNING, "Ignoring malformed result of watch "+watchId, e);
+			}
+		}
+	}
+
+	/************************ Provider side ***************************/
+
+	/**
+	 * Keeps the call to be run again when its driver changes.
+	 *
+	 * @param watchId Id informed by the watcher.
+	 * @param serviceCall Call watched.
+	 * @param watcher Device to be notified, or <code>null</code> for the current one.
+	 * @param messageContext Context the call is run with.
+	 * @return The current result of the call, encoded as a service response.
+	 * @throws DriverManagerException If the call can't be run.
+	 */
+	public String watched(String watchId, ServiceCall serviceCall, UpDevice watcher, UOSMessageContext messageContext)
+			throws DriverManagerException {
+		Watched w = new Watched(watchId, serviceCall, watcher, messageContext);
+		// registered first, so a change while it runs isn't missed
+		watched.put(key(watcher, watchId), w);
+		try {
+			synchronized (w.evaluating) {
+				String result = w.evaluate();
+				w.last = result;
+				return result;
+			}
+		} catch (DriverManagerException e) {
+			watched.remove(key(watcher, watchId), w);
+			throw e;
+		} catch (RuntimeException e) {
+			watched.remove(key(watcher, watchId), w);
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops running a call watched.
+	 */
+	public void unwatched(String watchId, UpDevice watcher) {
+		watched.remove(key(watcher, watchId));
+	}
+
+	/**
+	 * Runs again, in background, the calls watched on the services of the
+	 * driver, notifying the watchers of the results which changed.
+	 *
+	 * @param driver Name of the driver whose services may have changed.
+	 * @param instanceId Instance which changed, or <code>null</code> for all of them.
+	 */
+	public void invalidate(String driver, String instanceId) {
+		for (Watched w : watched.values()){
+			if (w.serviceCall.getDriver().equals(driver)
+					&& (instanceId == null || w.serviceCall.getInstanceId() == null
+						|| instanceId.equals(w.serviceCall.getInstanceId()))){
+				w.schedule();
+			}
+		}
+	}
+
+	/**
+	 * Stops running the calls watched.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		watched.clear();
+	}
+
+	private static String key(UpDevice watcher, String watchId) {
+		if (watcher == null || watcher.getNetworks() == null || watcher.getNetworks().isEmpty()){
+			return watchId;
+		}
+		return watcher.getNetworks().get(0).getNetworkAddress()+"|"+watchId;
+	}
+
+	private static class Watching {
+		final UpDevice device;
+		final ServiceCall serviceCall;
+		final ServiceWatchListener listener;
+		/** Whether a change was already delivered. */
+		boolean changed = false;
+
+		Watching(UpDevice device, ServiceCall serviceCall, ServiceWatchListener listener) {
+			this.device = device;
+			this.serviceCall = serviceCall;
+			this.listener = listener;
+		}
+	}
+
+	private class Watched implements Runnable {
+		final String watchId;
+		final ServiceCall serviceCall;
+		final UpDevice watcher;
+		final UOSMessageContext messageContext;
+		/** Last result sent, compared as a whole so no change is missed. */
+		String last;
+		/** Held while running the call, so results are compared in order. */
+		final Object evaluating = new Object();
+		private boolean scheduled = false;
+
+		Watched(String watchId, ServiceCall serviceCall, UpDevice watcher, UOSMessageContext messageContext) {
+			this.watchId = watchId;
+			this.serviceCall = serviceCall;
+			this.watcher = watcher;
+			this.messageContext = messageContext;
+		}
+
+		synchronized void schedule() {
+			// changes arriving while waiting are seen by the same run
+			if (scheduled) return;
+			scheduled = true;
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				scheduled = false;
+			}
+		}
+
+		public void run() {
+			synchronized (this) {
+				scheduled = false;
+			}
+			if (watched.get(key(watcher, watchId)) != this) return;
+			try {
+				String result;
+				synchronized (evaluating) {
+					result = evaluate();
+					if (result.equals(last)) return;
+					last = result;
+				}
+				Notify notify = new Notify(WATCH_EVENT_KEY, DEVICE_DRIVER);
+				notify.addParameter(WATCH_ID_PARAM, watchId);
+				notify.addParameter(RESPONSE_PARAM, result);
+				eventManager.sendEventNotify(notify, watcher);
+			} catch (NotifyException e) {
+				logger.log(Level.WARNING, "Watcher of "+serviceCall.getDriver()+"."+serviceCall.getService()+" is gone, dropping its watch.", e);
+				watched.remove(key(watcher, watchId), this);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to run watched "+serviceCall.getDriver()+"."+serviceCall.getService(), e);
+			}
+		}
+
+		String evaluate() throws DriverManagerException {
+			ServiceResponse response = driverManager.handleServiceCall(serviceCall, messageContext);
+			if (response == null) response = new ServiceResponse();
+			try {
+				return new JSONServiceResponse(response).toString();
+			} catch (JSONException e) {
+				throw new DriverManagerException(e);
+			}
+		}
+	}
+}
@@ -1,49 +1,53 @@
 package org.unbiquitous.uos.core.deviceManager;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpNetworkInterface;
 
-
+/**
+ * Registry of the devices known in the smart space.
+ *
+ * It can be changed by the radar threads while being read by the message threads,
+ * so all indexes are concurrent. Listings are immutable snapshots, rebuilt only
+ * after the devices they include change.
+ */
 public class DeviceDao {
-	private Map<String,UpDevice>		deviceMap;
-	private Map<String,UpDevice>		interfaceMap;
-	private Map<String,List<UpDevice>> networkTypeMap;
-	private Map<String,List<UpDevice>> addressMap;
-	
+	private ConcurrentMap<String,UpDevice>	deviceMap;
+	private ConcurrentMap<String,UpDevice>	interfaceMap;
+	private Index networkTypeIndex;
+	private Index addressIndex;
+	private Bucket all;
+
 	public DeviceDao(ResourceBundle bundle) {
-		deviceMap		= new HashMap<String, UpDevice>();
-		interfaceMap	= new HashMap<String, UpDevice>();
-		networkTypeMap	= new HashMap<String, List<UpDevice>>();
-		addressMap	= new HashMap<String, List<UpDevice>>();
+		deviceMap		= new ConcurrentHashMap<String, UpDevice>();
+		interfaceMap	= new ConcurrentHashMap<String, UpDevice>();
+		networkTypeIndex	= new Index();
+		addressIndex	= new Index();
+		all				= new Bucket(false);
 	}
-	
+
 	public void save(UpDevice device) {
 //		if (find(device.getName()) != null){
 //			throw new RuntimeException("Atempt to insert a device with same name.");
 //		}
+		String key = device.getName().toLowerCase();
 		if (device.getNetworks() != null){
 			for (UpNetworkInterface ni : device.getNetworks()){
 				interfaceMap.put(createInterfaceKey(ni), device);
-				
-				if(!networkTypeMap.containsKey(ni.getNetType())){
-					networkTypeMap.put(ni.getNetType(), new ArrayList<UpDevice>());
-				}
-				networkTypeMap.get(ni.getNetType()).add(device);
-				
-				if(!addressMap.containsKey(ni.getNetworkAddress())){
-					addressMap.put(ni.getNetworkAddress(), new ArrayList<UpDevice>());
-				}
-				addressMap.get(ni.getNetworkAddress()).add(device);
+				networkTypeIndex.add(ni.getNetType(), key, device);
+				addressIndex.add(ni.getNetworkAddress(), key, device);
 			}
 		}
-		deviceMap.put(device.getName().toLowerCase(),device);
+		deviceMap.put(key,device);
+		all.put(key, device);
 	}
 
 	private static String createInterfaceKey(UpNetworkInterface ni) {
@@ -54,54 +58,159 @@ public class DeviceDao {
 		delete(oldname);
 		save(device);
 	}
-	
+
 	public void delete(String name) {
-		UpDevice device = find(name);
+		String key = name.toLowerCase();
+		UpDevice device = deviceMap.remove(key);
+		if (device == null) return;
 		if (device.getNetworks() != null){
 			for (UpNetworkInterface ni : device.getNetworks()){
-				interfaceMap.remove(createInterfaceKey(ni));
-				networkTypeMap.get(ni.getNetType()).remove(device);
-				addressMap.get(ni.getNetworkAddress()).remove(device);
+				interfaceMap.remove(createInterfaceKey(ni), device);
+				networkTypeIndex.remove(ni.getNetType(), key, device);
+				addressIndex.remove(ni.getNetworkAddress(), key, device);
 			}
 		}
-		deviceMap.remove(name.toLowerCase());
+		all.remove(key, device);
 	}
-	
+
+	/**
+	 * @return A copy of the registered devices, which the caller may change.
+	 */
 	public List<UpDevice> list() {
-		return new ArrayList<UpDevice>(deviceMap.values());
+		return new ArrayList<UpDevice>(all.snapshot());
 	}
-	
+
+	/**
+	 * @return A copy of the matching devices, which the caller may change.
+	 */
 	public List<UpDevice> list(String address, String networktype) {
+		return new ArrayList<UpDevice>(snapshot(address, networktype));
+	}
+
+	/**
+	 * @return The registered devices, shared with the other callers until
+	 * 			they change, so it can't be changed.
+	 */
+	List<UpDevice> snapshot() {
+		return all.snapshot();
+	}
+
+	/**
+	 * @return The matching devices, shared with the other callers until
+	 * 			they change, so it can't be changed.
+	 */
+	List<UpDevice> snapshot(String address, String networktype) {
 		if (address != null && networktype != null){
 			String key = createInterfaceKey(new UpNetworkInterface(networktype, address));
 			UpDevice upDevice = interfaceMap.get(key);
-			List<UpDevice> ret = new ArrayList<UpDevice>();
 			if (upDevice != null){
-				ret.add(upDevice);
+				return Collections.singletonList(upDevice);
 			}
-			return ret;
 		}else if (address != null ){
-			if(addressMap.containsKey(address)){
-				return new ArrayList<UpDevice>(new HashSet<UpDevice>(addressMap.get(address)));
-			}
+			return addressIndex.get(address);
 		}else if (networktype != null ){
-			if(networkTypeMap.containsKey(networktype)){
-				return new ArrayList<UpDevice>(new HashSet<UpDevice>(networkTypeMap.get(networktype)));
-			}
+			return networkTypeIndex.get(networktype);
 		}else{
-			return list();
+			return all.snapshot();
 		}
-		return new ArrayList<UpDevice>();
+		return Collections.emptyList();
 	}
 
 	public UpDevice find(String name) {
 		return deviceMap.get(name.toLowerCase());
 	}
-	
+
 	public void clear(){
 		deviceMap.clear();
 		interfaceMap.clear();
-		addressMap.clear();
-		networkTypeMap.clear();
+		addressIndex.clear();
+		networkTypeIndex.clear();
+		all.clear();
+	}
+
+	/**
+	 * Secondary index from a key (address or network type) to the devices
+	 * having it. Empty buckets are dropped so churn doesn't leak memory.
+	 */
+	private static class Index {
+		private ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+		void add(String key, String deviceKey, UpDevice device){
+			while (true){
+				Bucket bucket = buckets.get(key);
+				if (bucket == null){
+					Bucket created = new Bucket(true);
+					bucket = buckets.putIfAbsent(key, created);
+					if (bucket == null) bucket = created;
+				}
+				if (bucket.put(deviceKey, device)) return;
+				// the bucket was dropped while we were using it, try again
+			}
+		}
+
+		void remove(String key, String deviceKey, UpDevice device){
+			Bucket bucket = buckets.get(key);
+			if (bucket != null && bucket.remove(deviceKey, device)){
+				buckets.remove(key, bucket);
+			}
+		}
+
+		List<UpDevice> get(String key){
+			Bucket bucket = buckets.get(key);
+			if (bucket == null) return Collections.emptyList();
+			return bucket.snapshot();
+		}
+
+		void clear(){
+			buckets.clear();
+		}
+	}
+
+	/**
+	 * Devices sharing an index key, in the order they were saved.
+	 */
+	private static class Bucket {
+		private Map<String, UpDevice> devices = new LinkedHashMap<String, UpDevice>();
+		private volatile List<UpDevice> snapshot = Collections.emptyList();
+		private boolean droppable;
+		private boolean dropped = false;
+		
+		Bucket(boolean droppable){
+			this.droppable = droppable;
+		}
+
+		/** @return <code>false</code> if the bucket was dropped and can't be used anymore. */
+		synchronized boolean put(String deviceKey, UpDevice device){
+			if (dropped) return false;
+			devices.put(deviceKey, device);
+			snapshot = null;
+			return true;
+		}
+
+		/** @return <code>true</code> if the bucket became empty and was dropped. */
+		synchronized boolean remove(String deviceKey, UpDevice device){
+			if (devices.get(deviceKey) == device){
+				devices.remove(deviceKey);
+				snapshot = null;
+			}
+			dropped = droppable && devices.isEmpty();
+			return dropped;
+		}
+
+		List<UpDevice> snapshot(){
+			List<UpDevice> current = snapshot;
+			if (current != null) return current;
+			synchronized (this) {
+				if (snapshot == null){
+					snapshot = Collections.unmodifiableList(new ArrayList<UpDevice>(devices.values()));
+				}
+				return snapshot;
+			}
+		}
+
+		synchronized void clear(){
+			devices.clear();
+			snapshot = null;
+		}
 	}
 }
@@ -1,10 +1,22 @@
 package org.unbiquitous.uos.core.deviceManager;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,6 +28,8 @@ import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
 import org.unbiquitous.uos.core.adaptabitilyEngine.ServiceCallException;
 import org.unbiquitous.uos.core.connectivity.ConnectivityManager;
 import org.unbiquitous.uos.core.driverManager.DriverDao;
+import org.unbiquitous.uos.core.driverManager.DriverData;
+import org.unbiquitous.uos.core.driverManager.DriverDigest;
 import org.unbiquitous.uos.core.driverManager.DriverManager;
 import org.unbiquitous.uos.core.driverManager.DriverManagerException;
 import org.unbiquitous.uos.core.driverManager.DriverModel;
@@ -46,6 +60,19 @@ public class DeviceManager implements RadarListener {
 	private static final String DRIVERS_NAME_KEY = "driversName";
 	
 	private static final String INTERFACES_KEY = "interfaces";
+	
+	private static final String DRIVERS_DIGEST_KEY = "driversDigest";
+	
+	private static final String KNOWN_DRIVERS_KEY = "knownDrivers";
+	
+	private static final String REMOVED_DRIVERS_KEY = "removedDrivers";
+	
+	private static final String KNOWN_DEVICES_KEY = "knownDevices";
+	
+	private static final String REGISTRY_KEY = "registry";
+	
+	/** Amount of departed devices whose drivers are remembered. */
+	private static final int DEPARTED_DEVICES = 64;
 
 	private static final Logger logger = UOSLogging.getLogger();
 
@@ -61,9 +88,47 @@ public class DeviceManager implements RadarListener {
 
 	private DriverManager driverManager;
 	
-	private Set<String> unknownDrivers;
+	/** 
+	 * Guards the changes to the registry, as radar events may be handled 
+	 * concurrently (see 'ubiquitos.radar.threads'). 
+	 */
+	private final Object registryLock = new Object();
+	
+	/** When each known device was last seen, by its lower case name. */
+	private ConcurrentMap<String, Long> lastSeen;
+	
+	/** Time (in milliseconds) a device is kept without being seen, 0 means forever. */
+	private long deviceTtl;
+	
+	/** Maximum amount of remote devices kept, 0 means no limit. */
+	private int maxDevices;
+	
+	private ScheduledExecutorService sweeper;
+	
+	/** Where the known devices and drivers are recorded, <code>null</code> if nowhere. */
+	private RegistrySnapshot snapshot;
 	
-	private Set<DriverModel> dependents;
+	/** Restored devices (by lower case name) not handshaken since the restart. */
+	private Set<String> unverified;
+	
+	/** Devices (by lower case name) learned from other devices and never handshaken. */
+	private Set<String> gossiped;
+	
+	/** Amount of devices the registry is pulled from. */
+	private int gossipPeers;
+	
+	private AtomicInteger gossipPulls;
+	
+	/** 
+	 * Drivers of the devices which left (by lower case name), the oldest 
+	 * forgotten first, so a device coming back isn't asked to list them again.
+	 */
+	@SuppressWarnings("serial")
+	private final Map<String, List<DriverModel>> departed = new LinkedHashMap<String, List<DriverModel>>() {
+		protected boolean removeEldestEntry(Map.Entry<String, List<DriverModel>> eldest) {
+			return size() > DEPARTED_DEVICES;
+		}
+	};
 
 	public DeviceManager(UpDevice currentDevice, DeviceDao deviceDao,
 			DriverDao driverDao,
@@ -77,8 +142,10 @@ public class DeviceManager implements RadarListener {
 		this.deviceDao = deviceDao;
 		this.deviceDao.save(currentDevice);
 		this.driverManager = driverManager;
-		this.unknownDrivers = new HashSet<String>();
-		this.dependents = new HashSet<DriverModel>();
+		this.lastSeen = new ConcurrentHashMap<String, Long>();
+		this.unverified = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.gossiped = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.gossipPulls = new AtomicInteger();
 	}
 
 	/**
@@ -90,6 +157,348 @@ public class DeviceManager implements RadarListener {
 	 */
 	public void registerDevice(UpDevice device) {
 		deviceDao.save(device);
+		deviceSeen(device);
+		gossiped.remove(device.getName().toLowerCase());
+		if (snapshot != null) snapshot.deviceSaved(device);
+	}
+	
+	/**
+	 * Defines from how many devices the registry is pulled after handshaking 
+	 * them, so the devices they know don't need to be handshaken. Such devices
+	 * are only contacted when called.
+	 * 
+	 * @param peers Amount of devices to pull from, 0 to never pull.
+	 */
+	public void setGossipPeers(int peers) {
+		if (peers < 0) throw new IllegalArgumentException("Amount of peers cannot be negative.");
+		this.gossipPeers = peers;
+	}
+	
+	/**
+	 * Lists the known devices, with their drivers, that differ from the ones
+	 * known by another device.
+	 * 
+	 * @param knownDevices Hash (see {@link DriverDigest#ofDevice}) of each device
+	 * 			already known by the other device, by name.
+	 * @return JSON entries with the 'device', its 'drivers' and their 'digest'.
+	 */
+	public JSONArray registryDelta(Map<String, String> knownDevices) throws JSONException {
+		Map<String, String> known = new HashMap<String, String>();
+		if (knownDevices != null){
+			for (Map.Entry<String, String> e : knownDevices.entrySet()){
+				known.put(e.getKey().toLowerCase(), e.getValue());
+			}
+		}
+		JSONArray delta = new JSONArray();
+		for (UpDevice device : deviceDao.snapshot()){
+			List<DriverModel> drivers = driverManager.list(null, device.getName());
+			String digest = DriverDigest.ofDevice(device, DriverDigest.ofModels(drivers));
+			if (digest.equals(known.get(device.getName().toLowerCase()))) continue;
+			JSONObject driverList = new JSONObject();
+			if (drivers != null){
+				for (DriverModel model : drivers){
+					driverList.put(model.id(), new JSONDriver(model.driver()));
+				}
+			}
+			JSONObject entry = new JSONObject();
+			entry.put("device", new JSONDevice(device));
+			entry.put("drivers", driverList);
+			entry.put("digest", digest);
+			delta.put(entry);
+		}
+		return delta;
+	}
+	
+	/**
+	 * @return Hash (see {@link DriverDigest#ofDevice}) of each known device, by name.
+	 */
+	public Map<String, String> registrySummary() throws JSONException {
+		Map<String, String> summary = new HashMap<String, String>();
+		for (UpDevice device : deviceDao.snapshot()){
+			summary.put(device.getName(), 
+					DriverDigest.ofDevice(device, DriverDigest.ofModels(driverManager.list(null, device.getName()))));
+		}
+		return summary;
+	}
+	
+	/**
+	 * Pulls from a device the part of its registry not known here. Devices 
+	 * already handshaken keep what was learned from themselves.
+	 * 
+	 * @param peer Device to pull from.
+	 */
+	public void pullRegistry(UpDevice peer) {
+		try {
+			ServiceCall call = new ServiceCall(DEVICE_DRIVER_NAME, "exchangeRegistry");
+			call.addParameter(KNOWN_DEVICES_KEY, new JSONObject(registrySummary()).toString());
+			ServiceResponse response = gateway.callService(peer, call);
+			String registry = response == null ? null : response.getResponseString(REGISTRY_KEY);
+			if (registry == null){
+				logger.fine("Device '"+peer.getName()+"' has no registry to share.");
+				return;
+			}
+			JSONArray entries = new JSONArray(registry);
+			int learned = 0;
+			for (int i = 0; i < entries.length(); i++){
+				if (learnFromPeer(entries.getJSONObject(i))) learned++;
+			}
+			logger.info(String.format("Learned %d devices from '%s'.", learned, peer.getName()));
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Not possible to pull the registry from device '"+peer.getName()+"'.", e);
+		}
+	}
+	
+	private boolean learnFromPeer(JSONObject entry) throws JSONException {
+		UpDevice device = new JSONDevice(entry.getJSONObject("device").toString()).getAsObject();
+		String name = device.getName().toLowerCase();
+		if (device.equals(currentDevice)) return false;
+		synchronized (registryLock) {
+			return learnFromPeer(entry, device, name);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private boolean learnFromPeer(JSONObject entry, UpDevice device, String name) throws JSONException {
+		UpDevice known = deviceDao.find(name);
+		if (known != null && !gossiped.contains(name) && !unverified.contains(name)){
+			return false; // what we heard from itself is better
+		}
+		if (known != null){
+			forgetDevice(known);
+		}
+		deviceDao.save(device);
+		deviceSeen(device);
+		gossiped.add(name);
+		if (snapshot != null) snapshot.deviceSaved(device);
+		JSONObject drivers = entry.getJSONObject("drivers");
+		Iterator<String> ids = drivers.keys();
+		while (ids.hasNext()){
+			String id = ids.next();
+			DriverModel model = new DriverModel(id, 
+					new JSONDriver(drivers.getJSONObject(id).toString()).getAsObject(), device.getName());
+			try {
+				driverManager.insert(model);
+				if (snapshot != null) snapshot.driverSaved(model);
+			} catch (Exception e) {
+				// probably depends on equivalences not known here, so it must be handshaken
+				logger.fine("Not possible to learn driver '"+id+"' of device '"+device.getName()+"': "+e.getMessage());
+				forgetDevice(device);
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Loads the devices and drivers recorded in the snapshot, so they can be 
+	 * used right away, and records there every later change. 
+	 * 
+	 * Restored devices are handshaken again when the radar finds them, but
+	 * their drivers are only listed again if the device changed meanwhile.
+	 * 
+	 * @param snapshot Snapshot of the registry from the last execution.
+	 */
+	public void restore(RegistrySnapshot snapshot) {
+		List<UpDevice> devices = new ArrayList<UpDevice>();
+		List<DriverModel> drivers = new ArrayList<DriverModel>();
+		snapshot.load(devices, drivers);
+		for (UpDevice device : devices){
+			if (device.equals(currentDevice)) continue;
+			deviceDao.save(device);
+			deviceSeen(device);
+			unverified.add(device.getName().toLowerCase());
+		}
+		Set<String> incomplete = new HashSet<String>();
+		synchronized (registryLock) {
+			for (DriverModel model : drivers){
+				if (!unverified.contains(model.device().toLowerCase())) continue;
+				try {
+					driverManager.insert(model);
+					if( this.connectivityManager.doProxying() ){
+						this.connectivityManager.registerProxyDriver(model.driver(), deviceDao.find(model.device()), model.id());
+					}
+				} catch (Exception e) {
+					// probably depends on equivalences not known yet, so it's listed again on the handshake
+					logger.fine("Not possible to restore driver '"+model.id()+"' of device '"+model.device()+"': "+e.getMessage());
+					incomplete.add(model.device().toLowerCase());
+				}
+			}
+		}
+		this.snapshot = snapshot;
+		for (String name : incomplete){
+			unverified.remove(name);
+			forgetDevice(deviceDao.find(name));
+		}
+	}
+	
+	/**
+	 * Informs that the device is still present in the neighborhood, 
+	 * postponing its expiration.
+	 * 
+	 * @param device Device which was seen.
+	 */
+	public void deviceSeen(UpDevice device) {
+		lastSeen.put(device.getName().toLowerCase(), System.currentTimeMillis());
+	}
+	
+	/**
+	 * Informs that a device sent a message or was reported by a radar. 
+	 * Devices not known yet are ignored.
+	 * 
+	 * @param device Network device which was seen.
+	 */
+	public void deviceSeen(NetworkDevice device) {
+		if (device == null || device.getNetworkDeviceName() == null) return;
+		String host = connectionManagerControlCenter.getHost(device.getNetworkDeviceName());
+		if (host == null) return;
+		UpDevice upDevice = retrieveDevice(host, device.getNetworkDeviceType());
+		if (upDevice != null) deviceSeen(upDevice);
+	}
+	
+	/**
+	 * @return When the device was last seen (in milliseconds), or <code>null</code> if never.
+	 */
+	public Long lastSeen(String deviceName) {
+		return lastSeen.get(deviceName.toLowerCase());
+	}
+	
+	/**
+	 * Starts a background sweeper which forgets the devices (and their drivers)
+	 * not seen for longer than the TTL, and the least recently seen ones when there 
+	 * are more than the maximum amount of devices.
+	 * 
+	 * @param ttl Time (in milliseconds) a device is kept without being seen, 0 means forever.
+	 * @param maxDevices Maximum amount of remote devices kept, 0 means no limit.
+	 * @param interval Time (in milliseconds) between sweeps.
+	 */
+	public synchronized void startSweeper(long ttl, int maxDevices, long interval) {
+		if (ttl < 0 || maxDevices < 0 || interval <= 0) 
+			throw new IllegalArgumentException("Invalid device sweeper configuration.");
+		this.deviceTtl = ttl;
+		this.maxDevices = maxDevices;
+		if (sweeper != null) sweeper.shutdownNow();
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "uos-device-sweeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					sweep(System.currentTimeMillis());
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "Failed to sweep devices.", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		logger.info(String.format("Device sweeper started (ttl: %d ms, max devices: %d).", ttl, maxDevices));
+	}
+	
+	/**
+	 * Stops the background sweeper, if any.
+	 */
+	public synchronized void tearDown() {
+		if (sweeper != null){
+			sweeper.shutdownNow();
+			sweeper = null;
+		}
+		if (snapshot != null){
+			snapshot.close();
+		}
+	}
+	
+	/**
+	 * Forgets the expired devices and, if there are still too many, the 
+	 * least recently seen ones. The current device is never forgotten.
+	 * 
+	 * @param now Current time in milliseconds.
+	 */
+	void sweep(long now) {
+		List<UpDevice> alive = new ArrayList<UpDevice>();
+		for (UpDevice device : deviceDao.snapshot()){
+			if (device.equals(currentDevice)) continue;
+			Long seen = lastSeen(device.getName());
+			if (seen == null){
+				// known before being tracked, start counting now
+				lastSeen.putIfAbsent(device.getName().toLowerCase(), now);
+				seen = lastSeen(device.getName());
+			}
+			if (deviceTtl > 0 && now - seen > deviceTtl){
+				forgetIfNotSeenSince(device, seen, "expired");
+			}else{
+				alive.add(device);
+			}
+		}
+		if (maxDevices > 0 && alive.size() > maxDevices){
+			final ConcurrentMap<String, Long> seen = lastSeen;
+			Collections.sort(alive, new Comparator<UpDevice>() {
+				public int compare(UpDevice a, UpDevice b) {
+					return timeSeen(a).compareTo(timeSeen(b));
+				}
+				private Long timeSeen(UpDevice d){
+					Long t = seen.get(d.getName().toLowerCase());
+					return t == null ? Long.valueOf(0) : t;
+				}
+			});
+			for (UpDevice device : alive.subList(0, alive.size() - maxDevices)){
+				Long when = lastSeen(device.getName());
+				if (when != null) forgetIfNotSeenSince(device, when, "evicted");
+			}
+		}
+	}
+	
+	private void forgetIfNotSeenSince(UpDevice device, Long seen, String reason) {
+		// if it was seen meanwhile, it stays
+		if (lastSeen.remove(device.getName().toLowerCase(), seen)){
+			forgetDevice(device);
+			logger.info(String.format("Device '%s' %s", device.getName(), reason));
+		}
+	}
+	
+	/**
+	 * Removes the device and the drivers it has.
+	 */
+	private void forgetDevice(UpDevice upDevice) {
+		synchronized (registryLock) {
+			List<DriverModel> returnedDrivers =  driverManager.list(null, upDevice.getName());
+			if (returnedDrivers != null && !returnedDrivers.isEmpty()){
+				for (DriverModel rdd : returnedDrivers){
+					driverManager.delete(rdd.id(), rdd.device());
+				}
+				departed.put(upDevice.getName().toLowerCase(), returnedDrivers);
+			}
+			deviceDao.delete(upDevice.getName());
+		}
+		lastSeen.remove(upDevice.getName().toLowerCase());
+		unverified.remove(upDevice.getName().toLowerCase());
+		gossiped.remove(upDevice.getName().toLowerCase());
+		if (snapshot != null) snapshot.deviceRemoved(upDevice.getName());
+	}
+
+	/**
+	 * Registers again the drivers a device had when it left, if none is known
+	 * now. A device coming back with the same drivers digest then isn't asked 
+	 * to list them, and otherwise only lists the ones which changed meanwhile.
+	 * 
+	 * @param upDevice Device handshaken again.
+	 */
+	public void restoreDepartedDrivers(UpDevice upDevice) {
+		synchronized (registryLock) {
+			List<DriverModel> drivers = departed.remove(upDevice.getName().toLowerCase());
+			if (drivers == null || !driverManager.list(null, upDevice.getName()).isEmpty()) return;
+			for (DriverModel driver : drivers){
+				try {
+					driverManager.insert(driver);
+					if (snapshot != null) snapshot.driverSaved(driver);
+				} catch (DriverManagerException e) {
+					logger.log(Level.FINE, "Driver '"+driver.id()+"' of device '"+upDevice.getName()+"' not restored.", e);
+				} catch (DriverNotFoundException e) {
+					logger.log(Level.FINE, "Driver '"+driver.id()+"' of device '"+upDevice.getName()+"' not restored.", e);
+				}
+			}
+		}
 	}
 
 	/**
@@ -115,7 +524,7 @@ public class DeviceManager implements RadarListener {
 	 * @return <code>UpDevice</code> with the data about the informed device.
 	 */
 	public UpDevice retrieveDevice(String networkAddress, String networkType) {
-		List<UpDevice> list = deviceDao.list(networkAddress, networkType);
+		List<UpDevice> list = deviceDao.snapshot(networkAddress, networkType);
 		if (list != null && !list.isEmpty()) {
 			UpDevice deviceFound = list.get(0);
 			logger.fine("Device with addr '" + networkAddress
@@ -150,17 +559,78 @@ public class DeviceManager implements RadarListener {
 		UpDevice upDevice = retrieveDevice(deviceHost,device.getNetworkDeviceType());
 
 		if (upDevice == null){
-			upDevice = doHandshake(device, upDevice);
-			doDriversRegistry(device, upDevice); 
+			Handshake handshake = doHandshake(device);
+			if (handshake == null){
+				doDriversRegistry(device, null, null);
+			}else{
+				doDriversRegistry(device, handshake.device, handshake.driversDigest);
+				if (gossipPulls.get() < gossipPeers && gossipPulls.incrementAndGet() <= gossipPeers){
+					pullRegistry(handshake.device);
+				}
+			}
+		}else if (unverified.remove(upDevice.getName().toLowerCase())){
+			revalidate(device, upDevice);
 		}else{
+			// devices learned from others are just used, with no handshake
+			deviceSeen(upDevice);
 			logger.fine("Already known device "+device.getNetworkDeviceName());
 		}
 	}
+	
+	/**
+	 * Handshakes again with a device restored from the snapshot, listing its 
+	 * drivers only if they changed since they were recorded.
+	 */
+	private void revalidate(NetworkDevice device, UpDevice restored) {
+		Handshake handshake = doHandshake(device);
+		if (handshake == null){
+			// keep what we know, the sweeper forgets it if it's really gone
+			deviceSeen(restored);
+			return;
+		}
+		UpDevice current = handshake.device;
+		if (!restored.getName().equalsIgnoreCase(current.getName())){
+			forgetDevice(restored);
+		}else if (handshake.driversDigest == null){
+			// the device doesn't inform its drivers digest, so guess from the device itself
+			if (restored.toString().equals(current.toString())){
+				logger.fine("Restored device "+current.getName()+" is unchanged.");
+				return;
+			}
+			logger.info("Restored device "+current.getName()+" changed, listing its drivers again.");
+			synchronized (registryLock) {
+				List<DriverModel> old = driverManager.list(null, restored.getName());
+				if (old != null){
+					for (DriverModel rdd : old){
+						driverManager.delete(rdd.id(), rdd.device());
+					}
+				}
+			}
+		}
+		doDriversRegistry(device, current, handshake.driversDigest);
+	}
 
+	/**
+	 * Registers the drivers of the device. If it informed the digest of its 
+	 * drivers, nothing is done when it matches the ones already known, and only
+	 * the differences are listed otherwise. 
+	 */
 	@SuppressWarnings("unchecked")
-	private void doDriversRegistry(NetworkDevice device, UpDevice upDevice) {
+	private void doDriversRegistry(NetworkDevice device, UpDevice upDevice, String driversDigest) {
 		try {
-			ServiceResponse response = gateway.callService(upDevice, new ServiceCall(DEVICE_DRIVER_NAME,"listDrivers"));
+			ServiceCall listDrivers = new ServiceCall(DEVICE_DRIVER_NAME,"listDrivers");
+			if (driversDigest != null && upDevice != null){
+				restoreDepartedDrivers(upDevice);
+				Map<String, String> knownDrivers = DriverDigest.ofModels(driverManager.list(null, upDevice.getName()));
+				if (driversDigest.equals(DriverDigest.ofSet(knownDrivers))){
+					logger.fine("Drivers of device '"+upDevice.getName()+"' are unchanged.");
+					return;
+				}
+				if (!knownDrivers.isEmpty()){
+					listDrivers.addParameter(KNOWN_DRIVERS_KEY, new JSONObject(knownDrivers).toString());
+				}
+			}
+			ServiceResponse response = gateway.callService(upDevice, listDrivers);
 			if (response != null && response.getResponseData() != null && response.getResponseData("driverList") != null){
 				try {
 					JSONObject driversListMap = null;
@@ -177,6 +647,7 @@ public class DeviceManager implements RadarListener {
 					}
 					
 					registerRemoteDriverInstances(upDevice, driversListMap,ids.toArray(new String[]{}));
+					removeRemoteDriverInstances(upDevice, response.getResponseString(REMOVED_DRIVERS_KEY));
 				} catch (JSONException e) {
 					logger.log(Level.SEVERE,"Problems ocurred in the registering of drivers from device '"+upDevice.getName()+"' .", e);
 				}
@@ -186,15 +657,32 @@ public class DeviceManager implements RadarListener {
 		}
 	}
 
+	private void removeRemoteDriverInstances(UpDevice upDevice, String removed) throws JSONException {
+		if (removed == null) return;
+		JSONArray ids = new JSONArray(removed);
+		synchronized (registryLock) {
+			for (int i = 0; i < ids.length(); i++){
+				String id = ids.getString(i);
+				driverManager.delete(id, upDevice.getName());
+				if (snapshot != null) snapshot.driverRemoved(id, upDevice.getName());
+			}
+		}
+	}
+
 	private void registerRemoteDriverInstances(UpDevice upDevice, JSONObject driversListMap, String[] instanceIds)throws JSONException {
+		// kept per call, as other devices may be registering at the same time
+		Set<String> unknownDrivers = new HashSet<String>();
+		Set<DriverModel> dependents = new HashSet<DriverModel>();
 		for (String id : instanceIds){
 			
 			UpDriver upDriver = new JSONDriver(driversListMap.getString(id)).getAsObject();
 			DriverModel driverModel = new DriverModel(id, upDriver , upDevice.getName());
 			
 			try {
-				driverManager.insert(driverModel);
-				//TODO : DeviceManager : Save the device information
+				synchronized (registryLock) {
+					driverManager.insert(driverModel);
+					if (snapshot != null) snapshot.driverSaved(driverModel);
+				}
 				if( this.connectivityManager.doProxying() ){
 					this.connectivityManager.registerProxyDriver(upDriver, upDevice, id);
 				}
@@ -211,7 +699,7 @@ public class DeviceManager implements RadarListener {
 			}
 		}
 		if(unknownDrivers.size() > 0) {
-			findDrivers(unknownDrivers, upDevice);
+			findDrivers(unknownDrivers, dependents, upDevice);
 		}
 	}
 	
@@ -222,7 +710,7 @@ public class DeviceManager implements RadarListener {
 	 * @throws JSONException 
 	 * @throws ServiceCallException
 	 */
-	private void findDrivers(Set<String> unknownDrivers, UpDevice upDevice) throws JSONException {
+	private void findDrivers(Set<String> unknownDrivers, Set<DriverModel> dependents, UpDevice upDevice) throws JSONException {
 		ServiceCall call = new ServiceCall(DEVICE_DRIVER_NAME, "tellEquivalentDrivers", null);
 		call.addParameter(DRIVERS_NAME_KEY, new JSONArray(unknownDrivers).toString());
 		
@@ -243,20 +731,23 @@ public class DeviceManager implements RadarListener {
 						drivers.add(upDriver);
 					}
 					
-					try {
-						driverManager.addToEquivalenceTree(drivers);
-					} catch (InterfaceValidationException e) {
-						logger.severe("Not possible to add to equivalance tree due to wrong interface specification.");
-					}
-					
-					for (DriverModel dependent : dependents) {
+					synchronized (registryLock) {
 						try {
-							driverManager.insert(dependent);
-						} catch (DriverManagerException e) {
-							logger.log(Level.SEVERE,"Problems ocurred in the registering of driver '"+dependent.driver().getName()+
-									"' with instanceId '"+dependent.id()+"' in the device '"+upDevice.getName()+"' and it will not be registered.", e);
-						} catch (DriverNotFoundException e) {
-							logger.severe("Not possible to register driver '" + dependent.driver().getName() + "' due to unkwnown equivalent driver.");
+							driverManager.addToEquivalenceTree(drivers);
+						} catch (InterfaceValidationException e) {
+							logger.severe("Not possible to add to equivalance tree due to wrong interface specification.");
+						}
+					
+						for (DriverModel dependent : dependents) {
+							try {
+								driverManager.insert(dependent);
+								if (snapshot != null) snapshot.driverSaved(dependent);
+							} catch (DriverManagerException e) {
+								logger.log(Level.SEVERE,"Problems ocurred in the registering of driver '"+dependent.driver().getName()+
+										"' with instanceId '"+dependent.id()+"' in the device '"+upDevice.getName()+"' and it will not be registered.", e);
+							} catch (DriverNotFoundException e) {
+								logger.severe("Not possible to register driver '" + dependent.driver().getName() + "' due to unkwnown equivalent driver.");
+							}
 						}
 					}
 					
@@ -272,7 +763,19 @@ public class DeviceManager implements RadarListener {
 		}
 	}
 
-	private UpDevice doHandshake(NetworkDevice device, UpDevice upDevice) {
+	/**
+	 * What a device answered to the handshake.
+	 */
+	private static class Handshake {
+		UpDevice device;
+		/** Digest of the drivers of the device, <code>null</code> if not informed. */
+		String driversDigest;
+	}
+
+	/**
+	 * @return The answer of the device, or <code>null</code> if the handshake failed.
+	 */
+	private Handshake doHandshake(NetworkDevice device) {
 		try {
 			// Create a Dummy device just for calling it
 			logger.fine("Trying to hanshake with device : "+device.getNetworkDeviceName());
@@ -281,6 +784,7 @@ public class DeviceManager implements RadarListener {
 			
 			ServiceCall call = new ServiceCall(DEVICE_DRIVER_NAME, "handshake", null);
 			call.addParameter("device", new JSONDevice(currentDevice).toString());
+			call.addParameter(DRIVERS_DIGEST_KEY, localDriversDigest());
 
 			ServiceResponse response = gateway.callService(dummyDevice, call);
 			if (response != null && ( response.getError() == null || response.getError().isEmpty())){
@@ -290,7 +794,10 @@ public class DeviceManager implements RadarListener {
 					UpDevice remoteDevice = new JSONDevice(responseDevice).getAsObject();
 					registerDevice(remoteDevice);
 					logger.info("Registered device "+remoteDevice.getName());
-					return remoteDevice;
+					Handshake handshake = new Handshake();
+					handshake.device = remoteDevice;
+					handshake.driversDigest = response.getResponseString(DRIVERS_DIGEST_KEY);
+					return handshake;
 				}else{
 					logger.severe("Not possible complete handshake with device '"+device.getNetworkDeviceName()+"' for no device on the handshake response.");
 				}
@@ -301,7 +808,18 @@ public class DeviceManager implements RadarListener {
 		} catch (Exception e) {
 			logger.severe("Not possible to handshake with device '"+device.getNetworkDeviceName()+"'. "+e.getMessage());
 		}
-		return upDevice;
+		return null;
+	}
+	
+	/**
+	 * @return The digest of the drivers the current device makes visible to others.
+	 */
+	private String localDriversDigest() throws JSONException {
+		List<DriverData> drivers = driverManager.listDrivers(null, currentDevice.getName());
+		if (drivers != null && connectivityManager != null && connectivityManager.doProxying()){
+			connectivityManager.filterDriversList(drivers);
+		}
+		return DriverDigest.ofSet(DriverDigest.ofData(drivers));
 	}
 
 	/**
@@ -313,17 +831,11 @@ public class DeviceManager implements RadarListener {
 		// Remove what services this device has.
 		logger.info("Device "+device.getNetworkDeviceName()+" of type "+device.getNetworkDeviceType()+" leaving.");
 		String host = connectionManagerControlCenter.getHost(device.getNetworkDeviceName());
-		List<UpDevice> devices = deviceDao.list(host,device.getNetworkDeviceType());
+		List<UpDevice> devices = deviceDao.snapshot(host,device.getNetworkDeviceType());
 
 		if (devices != null && !devices.isEmpty()){
 			UpDevice upDevice = devices.get(0);
-			List<DriverModel> returnedDrivers =  driverManager.list(null, upDevice.getName());
-			if (returnedDrivers != null && !returnedDrivers.isEmpty()){
-				for (DriverModel rdd : returnedDrivers){
-					driverManager.delete(rdd.id(), rdd.device());
-				}
-			}
-			deviceDao.delete(upDevice.getName());
+			forgetDevice(upDevice);
 			logger.info( String.format("Device '%s' left", upDevice.getName()));
 		} else {
 			logger.info("Device not found in database.");
@@ -0,0 +1,286 @@
+package org.unbiquitous.uos.core.deviceManager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.unbiquitous.json.JSONException;
+import org.unbiquitous.json.JSONObject;
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.driverManager.DriverModel;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.json.JSONDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.json.JSONDriver;
+
+/**
+ * Keeps the known devices and their drivers in an append-only file, so a
+ * restarted node knows its neighborhood before the radar rediscovers it.
+ *
+ * Each line of the file is a JSON record saving a device, saving a driver,
+ * removing a driver or removing a device (and its drivers). On load the records are replayed and the
+ * file is rewritten with only the live entries. It is also rewritten when the
+ * dead records outnumber the live ones.
+ */
+public class RegistrySnapshot {
+
+	private static Logger logger = UOSLogging.getLogger();
+
+	private static final String OPERATION = "op";
+	private static final String SAVE_DEVICE = "device";
+	private static final String SAVE_DRIVER = "driver";
+	private static final String REMOVE_DEVICE = "removeDevice";
+	private static final String REMOVE_DRIVER = "removeDriver";
+	private static final String DEVICE = "device";
+	private static final String DRIVER = "driver";
+	private static final String ID = "id";
+	private static final String NAME = "name";
+
+	/** Minimum amount of dead records before rewriting the file. */
+	private static final int COMPACTION_THRESHOLD = 64;
+
+	private File file;
+	private Writer writer;
+
+	/** Live records of each device, by its lower case name. */
+	private Map<String, String> devices = new LinkedHashMap<String, String>();
+	/** Live records of each driver, by its lower case device name and then instance id. */
+	private Map<String, Map<String, String>> drivers = new LinkedHashMap<String, Map<String, String>>();
+	private int liveRecords = 0;
+	private int writtenRecords = 0;
+
+	public RegistrySnapshot(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Replays the file and compacts it.
+	 *
+	 * @param restoredDevices Filled with the devices found.
+	 * @param restoredDrivers Filled with the drivers found.
+	 */
+	public synchronized void load(List<UpDevice> restoredDevices, List<DriverModel> restoredDrivers) {
+		devices.clear();
+		drivers.clear();
+		if (file.exists()){
+			BufferedReader reader = null;
+			try {
+				reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+				for (String line = reader.readLine(); line != null; line = reader.readLine()){
+					replay(line);
+				}
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Failed to read registry snapshot "+file, e);
+			} finally {
+				close(reader);
+			}
+		}
+		for (String record : devices.values()){
+			try {
+				restoredDevices.add(new JSONDevice(new JSONObject(record).getJSONObject(DEVICE).toString()).getAsObject());
+			} catch (JSONException e) {
+				logger.log(Level.WARNING, "Ignoring corrupted device record.", e);
+			}
+		}
+		for (Map<String, String> ofDevice : drivers.values()){
+			for (String record : ofDevice.values()){
+				try {
+					JSONObject json = new JSONObject(record);
+					restoredDrivers.add(new DriverModel(json.getString(ID),
+							new JSONDriver(json.getJSONObject(DRIVER).toString()).getAsObject(),
+							json.getString(DEVICE)));
+				} catch (JSONException e) {
+					logger.log(Level.WARNING, "Ignoring corrupted driver record.", e);
+				}
+			}
+		}
+		compact();
+		logger.info(String.format("Restored %d devices and %d drivers from %s",
+						restoredDevices.size(), restoredDrivers.size(), file));
+	}
+
+	private void replay(String line) {
+		if (line.trim().isEmpty()) return;
+		try {
+			apply(new JSONObject(line), line);
+		} catch (JSONException e) {
+			// probably a record partially written when the node stopped
+			logger.warning("Ignoring corrupted registry record: "+line);
+		}
+	}
+
+	private void apply(JSONObject record, String line) throws JSONException {
+		String operation = record.getString(OPERATION);
+		if (SAVE_DEVICE.equals(operation)){
+			String name = record.getJSONObject(DEVICE).getString(NAME).toLowerCase();
+			if (devices.put(name, line) == null) liveRecords++;
+		}else if (SAVE_DRIVER.equals(operation)){
+			String device = record.getString(DEVICE).toLowerCase();
+			Map<String, String> ofDevice = drivers.get(device);
+			if (ofDevice == null){
+				ofDevice = new LinkedHashMap<String, String>();
+				drivers.put(device, ofDevice);
+			}
+			if (ofDevice.put(record.getString(ID), line) == null) liveRecords++;
+		}else if (REMOVE_DRIVER.equals(operation)){
+			Map<String, String> ofDevice = drivers.get(record.getString(DEVICE).toLowerCase());
+			if (ofDevice != null && ofDevice.remove(record.getString(ID)) != null) liveRecords--;
+		}else if (REMOVE_DEVICE.equals(operation)){
+			String name = record.getString(NAME).toLowerCase();
+			if (devices.remove(name) != null) liveRecords--;
+			Map<String, String> ofDevice = drivers.remove(name);
+			if (ofDevice != null) liveRecords -= ofDevice.size();
+		}
+	}
+
+	/**
+	 * Records that a device was registered or changed.
+	 */
+	public synchronized void deviceSaved(UpDevice device) {
+		try {
+			JSONObject record = new JSONObject();
+			record.put(OPERATION, SAVE_DEVICE);
+			record.put(DEVICE, new JSONDevice(device));
+			append(record);
+		} catch (JSONException e) {
+			logger.log(Level.WARNING, "Not possible to record device "+device.getName(), e);
+		}
+	}
+
+	/**
+	 * Records that a driver of a remote device was registered.
+	 */
+	public synchronized void driverSaved(DriverModel model) {
+		try {
+			JSONObject record = new JSONObject();
+			record.put(OPERATION, SAVE_DRIVER);
+			record.put(ID, model.id());
+			record.put(DEVICE, model.device());
+			record.put(DRIVER, new JSONDriver(model.driver()));
+			append(record);
+		} catch (JSONException e) {
+			logger.log(Level.WARNING, "Not possible to record driver "+model.id(), e);
+		}
+	}
+
+	/**
+	 * Records that a driver of a remote device is gone.
+	 */
+	public synchronized void driverRemoved(String instanceId, String deviceName) {
+		try {
+			JSONObject record = new JSONObject();
+			record.put(OPERATION, REMOVE_DRIVER);
+			record.put(ID, instanceId);
+			record.put(DEVICE, deviceName);
+			append(record);
+		} catch (JSONException e) {
+			logger.log(Level.WARNING, "Not possible to record removal of driver "+instanceId, e);
+		}
+	}
+
+	/**
+	 * Records that a device (and its drivers) left.
+	 */
+	public synchronized void deviceRemoved(String deviceName) {
+		try {
+			JSONObject record = new JSONObject();
+			record.put(OPERATION, REMOVE_DEVICE);
+			record.put(NAME, deviceName);
+			append(record);
+		} catch (JSONException e) {
+			logger.log(Level.WARNING, "Not possible to record removal of "+deviceName, e);
+		}
+	}
+
+	private void append(JSONObject record) throws JSONException {
+		String line = record.toString();
+		apply(record, line);
+		try {
+			writer().write(line+'\n');
+			writer.flush();
+			writtenRecords++;
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Failed to write registry snapshot "+file, e);
+			close(writer);
+			writer = null;
+		}
+		if (writtenRecords - liveRecords > Math.max(COMPACTION_THRESHOLD, liveRecords)){
+			compact();
+		}
+	}
+
+	private Writer writer() throws IOException {
+		if (writer == null){
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+		}
+		return writer;
+	}
+
+	/**
+	 * Rewrites the file with only the live records, replacing it atomically.
+	 */
+	private void compact() {
+		close(writer);
+		writer = null;
+		File temp = new File(file.getPath()+".tmp");
+		Writer out = null;
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+			for (String record : liveLines()){
+				out.write(record+'\n');
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)){
+				// some platforms can't rename over an existing file
+				file.delete();
+				if (!temp.renameTo(file)) throw new IOException("Not possible to replace "+file);
+			}
+			writtenRecords = liveRecords;
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Failed to compact registry snapshot "+file, e);
+			close(out);
+		}
+	}
+
+	private List<String> liveLines() {
+		List<String> lines = new ArrayList<String>(devices.values());
+		for (Map<String, String> ofDevice : drivers.values()){
+			lines.addAll(ofDevice.values());
+		}
+		return lines;
+	}
+
+	/**
+	 * @return Amount of live devices and drivers recorded.
+	 */
+	public synchronized int size() {
+		return liveRecords;
+	}
+
+	public synchronized void close() {
+		close(writer);
+		writer = null;
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable == null) return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to close registry snapshot.", e);
+		}
+	}
+}
@@ -14,9 +14,11 @@ import org.unbiquitous.uos.core.AuthenticationHandler;
 import org.unbiquitous.uos.core.UOSLogging;
 import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
 import org.unbiquitous.uos.core.adaptabitilyEngine.SmartSpaceGateway;
+import org.unbiquitous.uos.core.adaptabitilyEngine.WatchManager;
 import org.unbiquitous.uos.core.applicationManager.UOSMessageContext;
 import org.unbiquitous.uos.core.deviceManager.DeviceManager;
 import org.unbiquitous.uos.core.driverManager.DriverData;
+import org.unbiquitous.uos.core.driverManager.DriverDigest;
 import org.unbiquitous.uos.core.driverManager.DriverManager;
 import org.unbiquitous.uos.core.driverManager.DriverModel;
 import org.unbiquitous.uos.core.driverManager.UosDriver;
@@ -27,6 +29,8 @@ import org.unbiquitous.uos.core.messageEngine.dataType.json.JSONDevice;
 import org.unbiquitous.uos.core.messageEngine.dataType.json.JSONDriver;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.network.loopback.LoopbackDevice;
+import org.unbiquitous.uos.core.network.model.NetworkDevice;
 
 /**
  * Driver responsible for providing information about the device.
@@ -43,6 +47,16 @@ public class DeviceDriver implements UosDriver {
 	private static final String DRIVER_NAME_KEY = "driverName";
 	private static final String INTERFACES_KEY = "interfaces";
 	private static final String DRIVERS_NAME_KEY = "driversName";
+	private static final String DRIVERS_DIGEST_KEY = "driversDigest";
+	private static final String KNOWN_DRIVERS_KEY = "knownDrivers";
+	private static final String REMOVED_DRIVERS_KEY = "removedDrivers";
+	private static final String KNOWN_DEVICES_KEY = "knownDevices";
+	private static final String REGISTRY_KEY = "registry";
+	private static final String SERVICE_NAME_KEY = "serviceName";
+	private static final String INSTANCE_ID_KEY = "instanceId";
+	private static final String PARAMETERS_KEY = "parameters";
+	private static final String WATCH_ID_KEY = "watchId";
+	private static final String RESPONSE_KEY = "response";
 
 	private Gateway gateway;
 	private final UpDriver driver;
@@ -63,6 +77,19 @@ public class DeviceDriver implements UosDriver {
 
 		driver.addService("tellEquivalentDriver")
 			.addParameter(DRIVER_NAME_KEY,UpService.ParameterType.MANDATORY);
+
+		driver.addService("exchangeRegistry")
+			.addParameter(KNOWN_DEVICES_KEY,UpService.ParameterType.OPTIONAL);
+
+		driver.addService("watch")
+			.addParameter(WATCH_ID_KEY,UpService.ParameterType.MANDATORY)
+			.addParameter(DRIVER_NAME_KEY,UpService.ParameterType.MANDATORY)
+			.addParameter(SERVICE_NAME_KEY,UpService.ParameterType.MANDATORY)
+			.addParameter(INSTANCE_ID_KEY,UpService.ParameterType.OPTIONAL)
+			.addParameter(PARAMETERS_KEY,UpService.ParameterType.OPTIONAL);
+
+		driver.addService("unwatch")
+			.addParameter(WATCH_ID_KEY,UpService.ParameterType.MANDATORY);
 	}
 
 	@Override
@@ -87,27 +114,34 @@ public class DeviceDriver implements UosDriver {
 	 * Service responsible for retrieving the list of Driver Instances present in the underlying device.
 	 * This listing service can have its result filtered with the use of the parameters 'serviceName' or 'driverName'.
 	 * It responds in a single responseMap within the parameter 'driverList'
+	 * 
+	 * If the parameter 'knownDrivers' informs the hash of the instances the caller already knows 
+	 * (see {@link DriverDigest}), only the new or changed ones are listed and the ids of the ones 
+	 * gone are informed in the parameter 'removedDrivers'.
 	 */
 	@SuppressWarnings("unchecked")
 	public void listDrivers(ServiceCall serviceCall, ServiceResponse serviceResponse, UOSMessageContext messageContext) {
 		logger.info("Handling DeviceDriverImpl#listDrivers service");
 
-		List<DriverData> listDrivers = null;
-		
 		Map<String, Object> parameters = serviceCall.getParameters();
 		
 		//handle parameters to filter message
-		DriverManager driverManager = ((SmartSpaceGateway)this.gateway).getDriverManager();
+		List<DriverData> listDrivers = null;
 		if (parameters != null){
-			listDrivers = driverManager.listDrivers((String) parameters.get(DRIVER_NAME_KEY),this.gateway.getCurrentDevice().getName());
+			listDrivers = localDrivers((String) parameters.get(DRIVER_NAME_KEY));
 		}else{
 			// In case no parameters informed, list all drivers
-			listDrivers = driverManager.listDrivers(null,this.gateway.getCurrentDevice().getName());
+			listDrivers = localDrivers(null);
 		}
 		
-		//If the current device is doing proxy, filter the list of drivers
-		if( ((SmartSpaceGateway)this.gateway).getConnectivityManager().doProxying() ){
-			((SmartSpaceGateway)this.gateway).getConnectivityManager().filterDriversList(listDrivers);
+		Map<String, Object> knownDrivers = null;
+		String known = serviceCall.getParameterString(KNOWN_DRIVERS_KEY);
+		if (known != null){
+			try {
+				knownDrivers = new JSONObject(known).toMap();
+			} catch (JSONException e) {
+				logger.warning("Ignoring malformed 'knownDrivers', listing all drivers.");
+			}
 		}
 		
 		// Converts the list of DriverData into Parameters
@@ -117,6 +151,13 @@ public class DeviceDriver implements UosDriver {
 			for (DriverData driverData : listDrivers) {
 				
 				try {
+					if (knownDrivers != null){
+						Object knownDigest = knownDrivers.remove(driverData.getInstanceID());
+						if (knownDigest != null && knownDigest.toString().equals(
+								DriverDigest.of(driverData.getInstanceID(), driverData.getDriver()))){
+							continue; // the caller already has it
+						}
+					}
 					JSONDriver jsonDriver = new JSONDriver(driverData.getDriver());
 					
 					driversList.put(driverData.getInstanceID(), jsonDriver);
@@ -129,10 +170,28 @@ public class DeviceDriver implements UosDriver {
 		Map responseData = new HashMap();
 		
 		responseData.put(DRIVER_LIST_KEY, new JSONObject(driversList));
+		if (knownDrivers != null){
+			// what is left was known by the caller but is not here anymore
+			responseData.put(REMOVED_DRIVERS_KEY, new JSONArray(knownDrivers.keySet()).toString());
+		}
 		
 		serviceResponse.setResponseData(responseData);
 	}
 	
+	/**
+	 * @return The drivers of the current device visible to other devices.
+	 */
+	private List<DriverData> localDrivers(String driverName) {
+		SmartSpaceGateway gtw = (SmartSpaceGateway)this.gateway;
+		List<DriverData> listDrivers = gtw.getDriverManager().listDrivers(driverName,this.gateway.getCurrentDevice().getName());
+		
+		//If the current device is doing proxy, filter the list of drivers
+		if( gtw.getConnectivityManager() != null && gtw.getConnectivityManager().doProxying() ){
+			gtw.getConnectivityManager().filterDriversList(listDrivers);
+		}
+		return listDrivers;
+	}
+	
 	/**
 	 * Service responsible for authenticating a device. This Service can be called multiple times for a authentication process
 	 * with multiple steps. 
@@ -159,6 +218,9 @@ public class DeviceDriver implements UosDriver {
 	 * This method is responsible for creating a mutual knowledge of two device about it's basic informations.
 	 * This information must be informed in the parameter 'device'(<code>UpDevice</code>) by the caller device 
 	 * and will be returned in the same parameter with the information of the called device.
+	 * 
+	 * Both may also inform the hash of their set of drivers in the parameter 'driversDigest'. 
+	 * The drivers of the caller are only listed when it differs from the ones already known. 
 	 */
 	public void handshake(ServiceCall serviceCall, ServiceResponse serviceResponse, UOSMessageContext messageContext){
 		SmartSpaceGateway gtw = (SmartSpaceGateway)this.gateway;
@@ -178,8 +240,22 @@ public class DeviceDriver implements UosDriver {
 								new JSONDevice(gateway.getCurrentDevice())
 									.toString()
 									);
-			ServiceResponse driversResponse = 
-					gateway.callService(device, new ServiceCall("uos.DeviceDriver","listDrivers"));
+			serviceResponse.addParameter(DRIVERS_DIGEST_KEY, 
+								DriverDigest.ofSet(DriverDigest.ofData(localDrivers(null))));
+			
+			DriverManager driverManager = gtw.getDriverManager();
+			String driversDigest = serviceCall.getParameterString(DRIVERS_DIGEST_KEY);
+			if (driversDigest != null) deviceManager.restoreDepartedDrivers(device);
+			Map<String, String> knownDrivers = DriverDigest.ofModels(driverManager.list(null, device.getName()));
+			if (driversDigest != null && driversDigest.equals(DriverDigest.ofSet(knownDrivers))){
+				logger.fine("Drivers of device '"+device.getName()+"' are unchanged.");
+				return;
+			}
+			ServiceCall listDrivers = new ServiceCall("uos.DeviceDriver","listDrivers");
+			if (!knownDrivers.isEmpty()){
+				listDrivers.addParameter(KNOWN_DRIVERS_KEY, new JSONObject(knownDrivers).toString());
+			}
+			ServiceResponse driversResponse = gateway.callService(device, listDrivers);
 			Object driverList = driversResponse.getResponseData("driverList");
 			if (driverList != null){
 				Map<String, Object> driverMap = new JSONObject( driverList.toString()).toMap();
@@ -187,7 +263,14 @@ public class DeviceDriver implements UosDriver {
 				for (String id : driverMap.keySet()){
 					UpDriver upDriver = new JSONDriver(driverMap.get(id).toString()).getAsObject();
 					DriverModel driverModel = new DriverModel(id, upDriver , device.getName());
-					gtw.getDriverManager().insert(driverModel);
+					driverManager.insert(driverModel);
+				}
+			}
+			String removed = driversResponse.getResponseString(REMOVED_DRIVERS_KEY);
+			if (removed != null){
+				JSONArray removedIds = new JSONArray(removed);
+				for (int i = 0; i < removedIds.length(); i++){
+					driverManager.delete(removedIds.getString(i), device.getName());
 				}
 			}
 		} catch (Exception e) {
@@ -196,6 +279,82 @@ public class DeviceDriver implements UosDriver {
 		} 
 	}
 	
+	/**
+	 * Shares the devices (and their drivers) known by this device, so the caller doesn't need to 
+	 * handshake each of them. The parameter 'knownDevices' informs the hash of each device the 
+	 * caller already knows (see {@link DriverDigest#ofDevice}), which are not sent again.
+	 * It responds a JSON array within the parameter 'registry'.
+	 */
+	public void exchangeRegistry(ServiceCall serviceCall, ServiceResponse serviceResponse, UOSMessageContext messageContext) {
+		try {
+			Map<String, String> knownDevices = new HashMap<String, String>();
+			String known = serviceCall.getParameterString(KNOWN_DEVICES_KEY);
+			if (known != null){
+				for (Map.Entry<String, Object> e : new JSONObject(known).toMap().entrySet()){
+					knownDevices.put(e.getKey(), String.valueOf(e.getValue()));
+				}
+			}
+			DeviceManager deviceManager = ((SmartSpaceGateway)gateway).getDeviceManager();
+			serviceResponse.addParameter(REGISTRY_KEY, deviceManager.registryDelta(knownDevices).toString());
+		} catch (JSONException e) {
+			serviceResponse.setError(e.getMessage());
+			logger.log(Level.SEVERE,"Problems on registry exchange",e);
+		}
+	}
+	
+	/**
+	 * Runs the service informed by 'driverName', 'serviceName', 'instanceId' and 'parameters' (a JSON object) 
+	 * and keeps running it whenever its driver changes, notifying the caller with the event 'serviceChanged' 
+	 * when the result is different (see {@link WatchManager}). 
+	 * The current result is responded in the parameter 'response'.
+	 */
+	public void watch(ServiceCall serviceCall, ServiceResponse serviceResponse, UOSMessageContext messageContext) {
+		WatchManager watchManager = ((SmartSpaceGateway)gateway).getWatchManager();
+		String watchId = serviceCall.getParameterString(WATCH_ID_KEY);
+		String driverName = serviceCall.getParameterString(DRIVER_NAME_KEY);
+		String serviceName = serviceCall.getParameterString(SERVICE_NAME_KEY);
+		if (watchManager == null || watchId == null || driverName == null || serviceName == null){
+			serviceResponse.setError("No 'watchId', 'driverName' or 'serviceName' informed.");
+			return;
+		}
+		try {
+			ServiceCall watched = new ServiceCall(driverName, serviceName, 
+										serviceCall.getParameterString(INSTANCE_ID_KEY));
+			String parameters = serviceCall.getParameterString(PARAMETERS_KEY);
+			if (parameters != null){
+				watched.setParameters(new JSONObject(parameters).toMap());
+			}
+			UOSMessageContext watchedContext = new UOSMessageContext();
+			watchedContext.setCallerDevice(messageContext.getCallerDevice());
+			serviceResponse.addParameter(RESPONSE_KEY, 
+				watchManager.watched(watchId, watched, watcher(messageContext), watchedContext));
+		} catch (Exception e) {
+			serviceResponse.setError(e.getMessage());
+			logger.log(Level.WARNING,"Problems watching "+driverName+"."+serviceName,e);
+		}
+	}
+	
+	/**
+	 * Stops running the service watched by the caller with the id 'watchId'.
+	 */
+	public void unwatch(ServiceCall serviceCall, ServiceResponse serviceResponse, UOSMessageContext messageContext) {
+		WatchManager watchManager = ((SmartSpaceGateway)gateway).getWatchManager();
+		String watchId = serviceCall.getParameterString(WATCH_ID_KEY);
+		if (watchManager != null && watchId != null){
+			watchManager.unwatched(watchId, watcher(messageContext));
+		}
+	}
+	
+	/**
+	 * @return The device to be notified of the watched results, or <code>null</code> when watched locally.
+	 */
+	private static UpDevice watcher(UOSMessageContext messageContext) {
+		NetworkDevice caller = messageContext.getCallerDevice();
+		if (caller == null || caller instanceof LoopbackDevice) return null;
+		return new UpDevice("Anonymous")
+					.addNetworkInterface(caller.getNetworkDeviceName(), caller.getNetworkDeviceType());
+	}
+	
 	/**
 	 * This method is responsible for informing that the caller device is leaving the smart-space, so all its data 
 	 * must be removed.
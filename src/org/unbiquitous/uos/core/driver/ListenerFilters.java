@@ -0,0 +1,68 @@
+package org.unbiquitous.uos.core.driver;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.unbiquitous.uos.core.adaptabitilyEngine.EventFilter;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpNetworkInterface;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+/**
+ * Filters informed by the listeners of a driver, by event key and listener
+ * address. Every listener on a device registers from the same address, so
+ * the device is sent a notify when any of their filters match it, and every
+ * notify once one of them registered without a filter.
+ */
+class ListenerFilters {
+
+	private final Map<String, Registrations> registrations = new HashMap<String, Registrations>();
+
+	/**
+	 * Adds the filter of a listener registered from the address.
+	 *
+	 * @param filter Filter informed, or <code>null</code> if the listener
+	 * 			wants every notify of the event.
+	 */
+	synchronized void add(String eventKey, UpNetworkInterface networkInterface, EventFilter filter) {
+		String key = key(eventKey, networkInterface);
+		Registrations registration = registrations.get(key);
+		if (registration == null){
+			registration = new Registrations();
+			registrations.put(key, registration);
+		}
+		if (filter == null){
+			registration.unfiltered = true;
+		}else{
+			registration.filters.put(filter.toString(), filter);
+		}
+	}
+
+	/**
+	 * Forgets every filter informed from the address for the event.
+	 */
+	synchronized void remove(String eventKey, UpNetworkInterface networkInterface) {
+		registrations.remove(key(eventKey, networkInterface));
+	}
+
+	/**
+	 * @return <code>true</code> if the notify must be sent to the address.
+	 */
+	synchronized boolean matches(UpNetworkInterface networkInterface, Notify notify) {
+		Registrations registration = registrations.get(key(notify.getEventKey(), networkInterface));
+		if (registration == null || registration.unfiltered) return true;
+		for (EventFilter filter : registration.filters.values()){
+			if (filter.matches(notify)) return true;
+		}
+		return false;
+	}
+
+	private static String key(String eventKey, UpNetworkInterface networkInterface) {
+		return eventKey + "@" + networkInterface.getNetworkAddress();
+	}
+
+	private static class Registrations {
+		boolean unfiltered;
+		final Map<String, EventFilter> filters = new LinkedHashMap<String, EventFilter>();
+	}
+}
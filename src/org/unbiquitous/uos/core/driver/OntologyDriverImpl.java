@@ -11,6 +11,7 @@ import java.util.logging.Logger;
 
 import org.unbiquitous.json.JSONException;
 import org.unbiquitous.json.JSONObject;
+import org.unbiquitous.uos.core.adaptabitilyEngine.EventFilter;
 import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
 import org.unbiquitous.uos.core.adaptabitilyEngine.NotifyException;
 import org.unbiquitous.uos.core.adaptabitilyEngine.SmartSpaceGateway;
@@ -37,10 +38,14 @@ public class OntologyDriverImpl implements OntologyDriver {
     private List<UpNetworkInterface> instanceOfListenerDevices;
     private List<UpNetworkInterface> dataPropertyListenerDevices;
     private List<UpNetworkInterface> objectPropertyListenerDevices;
+    /** Filters informed by the listeners, by event key and listener address. */
+    private ListenerFilters listenerFilters;
     private String instanceId;
     private OntologyInstance ontologyInstance;
     public static final String ADD = "add";
     public static final String REMOVE = "remove";
+    /** Time (in milliseconds) the answers of the queries can be reused. */
+    private static final long QUERY_CACHE_TTL = 5000;
     
     @Override
     public void isInstanceOf(ServiceCall serviceCall,
@@ -206,11 +211,12 @@ public class OntologyDriverImpl implements OntologyDriver {
     public UpDriver getDriver() {
         UpDriver driver = new UpDriver("br.unb.unbiquitous.ubiquitos.uos.driver.OntologyDriver");
 
-        driver.addService("isInstanceOf").addParameter("instanceName", UpService.ParameterType.MANDATORY).addParameter("className", UpService.ParameterType.MANDATORY);
-        driver.addService("isSubClassOf").addParameter("subClassName", UpService.ParameterType.MANDATORY).addParameter("className", UpService.ParameterType.MANDATORY);
-        driver.addService("hasObjectProperty").addParameter("instanceName1", UpService.ParameterType.MANDATORY).addParameter("objectPropertyName", UpService.ParameterType.MANDATORY).addParameter("instanceName2", UpService.ParameterType.MANDATORY);
-        driver.addService("areDisjointClasses").addParameter("className1", UpService.ParameterType.MANDATORY).addParameter("className2", UpService.ParameterType.MANDATORY);
-        driver.addService("areEquivalentClasses").addParameter("className1", UpService.ParameterType.MANDATORY).addParameter("className2", UpService.ParameterType.MANDATORY);
+        // the queries only read the ontology, so callers may reuse their answers for a while
+        driver.addService("isInstanceOf").addParameter("instanceName", UpService.ParameterType.MANDATORY).addParameter("className", UpService.ParameterType.MANDATORY).setCacheTtl(QUERY_CACHE_TTL);
+        driver.addService("isSubClassOf").addParameter("subClassName", UpService.ParameterType.MANDATORY).addParameter("className", UpService.ParameterType.MANDATORY).setCacheTtl(QUERY_CACHE_TTL);
+        driver.addService("hasObjectProperty").addParameter("instanceName1", UpService.ParameterType.MANDATORY).addParameter("objectPropertyName", UpService.ParameterType.MANDATORY).addParameter("instanceName2", UpService.ParameterType.MANDATORY).setCacheTtl(QUERY_CACHE_TTL);
+        driver.addService("areDisjointClasses").addParameter("className1", UpService.ParameterType.MANDATORY).addParameter("className2", UpService.ParameterType.MANDATORY).setCacheTtl(QUERY_CACHE_TTL);
+        driver.addService("areEquivalentClasses").addParameter("className1", UpService.ParameterType.MANDATORY).addParameter("className2", UpService.ParameterType.MANDATORY).setCacheTtl(QUERY_CACHE_TTL);
         return driver;
     }
 
@@ -227,6 +233,7 @@ public class OntologyDriverImpl implements OntologyDriver {
         this.instanceOfListenerDevices = new ArrayList<UpNetworkInterface>();
         this.dataPropertyListenerDevices = new ArrayList<UpNetworkInterface>();
         this.objectPropertyListenerDevices = new ArrayList<UpNetworkInterface>();
+        this.listenerFilters = new ListenerFilters();
     }
 
     @Override
@@ -238,19 +245,20 @@ public class OntologyDriverImpl implements OntologyDriver {
         NetworkDevice networkDevice = messageContext.getCallerDevice();
         UpNetworkInterface networkInterface = new UpNetworkInterface(networkDevice.getNetworkDeviceType(), networkDevice.getNetworkDeviceName());
         String eventKey = (String) serviceCall.getParameter(EVENT_KEY_PARAM);
+        EventFilter filter;
+        try {
+            filter = EventFilter.of(serviceCall);
+        } catch (IllegalArgumentException e) {
+            serviceResponse.setError(e.getMessage());
+            return;
+        }
 
         if (INSTANCE_OF_EVENT_KEY.equals(eventKey)) {
-            if (!instanceOfListenerDevices.contains(networkInterface)) {
-                instanceOfListenerDevices.add(networkInterface);
-            }
+            addListener(instanceOfListenerDevices, networkInterface, eventKey, filter);
         } else if (DATA_PROPERTY_EVENT_KEY.equals(eventKey)) {
-            if (!dataPropertyListenerDevices.contains(networkInterface)) {
-                dataPropertyListenerDevices.add(networkInterface);
-            }
+            addListener(dataPropertyListenerDevices, networkInterface, eventKey, filter);
         } else if (OBJECT_PROPERTY_EVENT_KEY.equals(eventKey)) {
-            if (!objectPropertyListenerDevices.contains(networkInterface)) {
-                objectPropertyListenerDevices.add(networkInterface);
-            }
+            addListener(objectPropertyListenerDevices, networkInterface, eventKey, filter);
         }
     }
 
@@ -261,15 +269,15 @@ public class OntologyDriverImpl implements OntologyDriver {
         String eventKey = (String) serviceCall.getParameter(EVENT_KEY_PARAM);
 
         if (eventKey == null) {
-            instanceOfListenerDevices.remove(networkInterface);
-            dataPropertyListenerDevices.remove(networkInterface);
-            objectPropertyListenerDevices.remove(networkInterface);
+            removeListener(instanceOfListenerDevices, networkInterface, INSTANCE_OF_EVENT_KEY);
+            removeListener(dataPropertyListenerDevices, networkInterface, DATA_PROPERTY_EVENT_KEY);
+            removeListener(objectPropertyListenerDevices, networkInterface, OBJECT_PROPERTY_EVENT_KEY);
         } else if (INSTANCE_OF_EVENT_KEY.equals(eventKey)) {
-            instanceOfListenerDevices.remove(networkInterface);
+            removeListener(instanceOfListenerDevices, networkInterface, INSTANCE_OF_EVENT_KEY);
         } else if (DATA_PROPERTY_EVENT_KEY.equals(eventKey)) {
-            dataPropertyListenerDevices.remove(networkInterface);
+            removeListener(dataPropertyListenerDevices, networkInterface, DATA_PROPERTY_EVENT_KEY);
         } else if (OBJECT_PROPERTY_EVENT_KEY.equals(eventKey)) {
-            objectPropertyListenerDevices.remove(networkInterface);
+            removeListener(objectPropertyListenerDevices, networkInterface, OBJECT_PROPERTY_EVENT_KEY);
         }
     }
 
@@ -334,12 +342,31 @@ public class OntologyDriverImpl implements OntologyDriver {
 		notifyRegisteredDevices(notify);
 	}
         
+    /**
+     * Adds the listener, keeping the filters informed by the others on the
+     * same device.
+     */
+    private void addListener(List<UpNetworkInterface> listenerDevices, UpNetworkInterface networkInterface, String eventKey, EventFilter filter) {
+        if (!listenerDevices.contains(networkInterface)) {
+            listenerDevices.add(networkInterface);
+        }
+        listenerFilters.add(eventKey, networkInterface, filter);
+    }
+
+    private void removeListener(List<UpNetworkInterface> listenerDevices, UpNetworkInterface networkInterface, String eventKey) {
+        listenerDevices.remove(networkInterface);
+        listenerFilters.remove(eventKey, networkInterface);
+    }
+
     /**
      * Notify all listeners when a certain event occurs.
      * 
      * @param notify
      */
     private void notifyRegisteredDevices(Notify notify) {
+        // the ontology changed, so do the services watched on it
+        this.gateway.invalidate(DRIVER_NAME, instanceId);
+
         List<UpNetworkInterface> listenerDevices = null;
 
         if (INSTANCE_OF_EVENT_KEY.equals(notify.getEventKey())) {
@@ -350,15 +377,20 @@ public class OntologyDriverImpl implements OntologyDriver {
             listenerDevices = objectPropertyListenerDevices;
         }
 
+        List<UpDevice> devices = new ArrayList<UpDevice>(listenerDevices.size());
         for (UpNetworkInterface networkInterface : listenerDevices) {
+            if (!listenerFilters.matches(networkInterface, notify)) {
+                continue;
+            }
             UpDevice device = new UpDevice("Anonymous");
             device.addNetworkInterface(networkInterface.getNetworkAddress(), networkInterface.getNetType());
+            devices.add(device);
+        }
 
-            try {
-                this.gateway.sendEventNotify(notify, device);
-            } catch (NotifyException e) {
-                e.printStackTrace();
-            }
+        try {
+            this.gateway.sendEventNotifyToAll(notify, devices);
+        } catch (NotifyException e) {
+            Logger.getLogger(OntologyDriverImpl.class.getName()).log(Level.SEVERE, null, e);
         }
     }
 }
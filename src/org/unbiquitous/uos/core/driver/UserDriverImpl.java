@@ -7,11 +7,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.unbiquitous.json.JSONException;
 import org.unbiquitous.json.JSONObject;
 import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.adaptabitilyEngine.EventFilter;
 import org.unbiquitous.uos.core.adaptabitilyEngine.Gateway;
 import org.unbiquitous.uos.core.adaptabitilyEngine.NotifyException;
 import org.unbiquitous.uos.core.applicationManager.UOSMessageContext;
@@ -47,6 +49,8 @@ public class UserDriverImpl extends UserDriverNativeSupport {
 	private List<UpNetworkInterface> newUserListenerDevices;
 	private List<UpNetworkInterface> changeInformationListenerDevices;
 	private List<UpNetworkInterface> lostUserListenerDevices;
+	/** Filters informed by the listeners, by event key and listener address. */
+	private ListenerFilters listenerFilters;
 
 	private static final int TIME_IN_SLEEP_BEFORE_START = 500;
 
@@ -70,6 +74,7 @@ public class UserDriverImpl extends UserDriverNativeSupport {
 		this.newUserListenerDevices = new ArrayList<UpNetworkInterface>();
 		this.changeInformationListenerDevices = new ArrayList<UpNetworkInterface>();
 		this.lostUserListenerDevices = new ArrayList<UpNetworkInterface>();
+		this.listenerFilters = new ListenerFilters();
 		this.labels = new HashMap<String, JSONObject>();
 
 		// starting the TRUE system
@@ -131,6 +136,8 @@ public class UserDriverImpl extends UserDriverNativeSupport {
 		driver.addEvent(lostUserEvent);
 
 		UpService updateUserEvent = new UpService(CHANGE_INFORMATION_TO_USER_KEY);
+		// only the latest position of each user matters
+		updateUserEvent.setConflationKey(EMAIL_PARAM);
 		driver.addEvent(updateUserEvent);
 
 		return driver;
@@ -263,19 +270,20 @@ public class UserDriverImpl extends UserDriverNativeSupport {
 		UpNetworkInterface networkInterface = new UpNetworkInterface(networkDevice.getNetworkDeviceType(), networkDevice.getNetworkDeviceName());
 
 		String eventKey = (String) serviceCall.getParameter(EVENT_KEY_PARAM);
+		EventFilter filter;
+		try {
+			filter = EventFilter.of(serviceCall);
+		} catch (IllegalArgumentException e) {
+			serviceResponse.setError(e.getMessage());
+			return;
+		}
 
 		if (NEW_USER_EVENT_KEY.equals(eventKey)) {
-			if (!newUserListenerDevices.contains(networkInterface)) {
-				newUserListenerDevices.add(networkInterface);
-			}
+			addListener(newUserListenerDevices, networkInterface, eventKey, filter);
 		} else if (CHANGE_INFORMATION_TO_USER_KEY.equals(eventKey)) {
-			if (!changeInformationListenerDevices.contains(networkInterface)) {
-				changeInformationListenerDevices.add(networkInterface);
-			}
+			addListener(changeInformationListenerDevices, networkInterface, eventKey, filter);
 		} else if (LOST_USER_EVENT_KEY.equals(eventKey)) {
-			if (!lostUserListenerDevices.contains(networkInterface)) {
-				lostUserListenerDevices.add(networkInterface);
-			}
+			addListener(lostUserListenerDevices, networkInterface, eventKey, filter);
 		}
 	}
 
@@ -290,15 +298,15 @@ public class UserDriverImpl extends UserDriverNativeSupport {
 		String eventKey = (String) serviceCall.getParameter(EVENT_KEY_PARAM);
 
 		if (eventKey == null) {
-			newUserListenerDevices.remove(networkInterface);
-			changeInformationListenerDevices.remove(networkInterface);
-			lostUserListenerDevices.remove(networkInterface);
+			removeListener(newUserListenerDevices, networkInterface, NEW_USER_EVENT_KEY);
+			removeListener(changeInformationListenerDevices, networkInterface, CHANGE_INFORMATION_TO_USER_KEY);
+			removeListener(lostUserListenerDevices, networkInterface, LOST_USER_EVENT_KEY);
 		} else if (NEW_USER_EVENT_KEY.equals(eventKey)) {
-			newUserListenerDevices.remove(networkInterface);
+			removeListener(newUserListenerDevices, networkInterface, NEW_USER_EVENT_KEY);
 		} else if (CHANGE_INFORMATION_TO_USER_KEY.equals(eventKey)) {
-			changeInformationListenerDevices.remove(networkInterface);
+			removeListener(changeInformationListenerDevices, networkInterface, CHANGE_INFORMATION_TO_USER_KEY);
 		} else if (LOST_USER_EVENT_KEY.equals(eventKey)) {
-			lostUserListenerDevices.remove(networkInterface);
+			removeListener(lostUserListenerDevices, networkInterface, LOST_USER_EVENT_KEY);
 		}
 	}
 
@@ -396,12 +404,31 @@ public class UserDriverImpl extends UserDriverNativeSupport {
 		return notify;
 	}
 
+	/**
+	 * Adds the listener, keeping the filters informed by the others on the
+	 * same device.
+	 */
+	private void addListener(List<UpNetworkInterface> listenerDevices, UpNetworkInterface networkInterface, String eventKey, EventFilter filter) {
+		if (!listenerDevices.contains(networkInterface)) {
+			listenerDevices.add(networkInterface);
+		}
+		listenerFilters.add(eventKey, networkInterface, filter);
+	}
+
+	private void removeListener(List<UpNetworkInterface> listenerDevices, UpNetworkInterface networkInterface, String eventKey) {
+		listenerDevices.remove(networkInterface);
+		listenerFilters.remove(eventKey, networkInterface);
+	}
+
 	/**
 	 * Notify all listeners when a certain event occurs.
 	 * 
 	 * @param notify
 	 */
 	private void notifyAllListerners(Notify notify) {
+		// the known users changed, so do the services watched on them
+		this.gateway.invalidate(USER_DRIVER, instanceId);
+
 		List<UpNetworkInterface> listenerDevices = null;
 
 		if (NEW_USER_EVENT_KEY.equals(notify.getEventKey())) {
@@ -412,15 +439,20 @@ public class UserDriverImpl extends UserDriverNativeSupport {
 			listenerDevices = lostUserListenerDevices;
 		}
 
+		List<UpDevice> devices = new ArrayList<UpDevice>(listenerDevices.size());
 		for (UpNetworkInterface networkInterface : listenerDevices) {
+			if (!listenerFilters.matches(networkInterface, notify)) {
+				continue;
+			}
 			UpDevice device = new UpDevice("Anonymous"); // TODO ??
 			device.addNetworkInterface(networkInterface.getNetworkAddress(), networkInterface.getNetType());
+			devices.add(device);
+		}
 
-			try {
-				this.gateway.sendEventNotify(notify, device);
-			} catch (NotifyException e) {
-				e.printStackTrace();
-			}
+		try {
+			this.gateway.sendEventNotifyToAll(notify, devices);
+		} catch (NotifyException e) {
+			logger.log(Level.SEVERE, "Failed to notify listeners of " + notify.getEventKey(), e);
 		}
 	}
 
@@ -0,0 +1,254 @@
+package org.unbiquitous.uos.core.driverManager;
+
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponseFuture;
+
+/**
+ * Isolates the execution of the services of each driver, so a slow driver
+ * can't take all the threads handling incoming calls.
+ *
+ * Each configured driver has its own bounded pool of threads and queue.
+ * When both are full new calls are rejected right away. Drivers without a
+ * bulkhead run on the thread that received the call.
+ *
+ * The bulkheads are defined in the property 'ubiquitos.driver.bulkheads' as
+ * a list of 'driverName(threads,queueSize)' separated by semicolon (';').
+ * The property 'ubiquitos.driver.bulkheads.default' (as 'threads,queueSize')
+ * defines a bulkhead for every driver not listed.
+ */
+public class DriverBulkheads {
+
+	private static Logger logger = UOSLogging.getLogger();
+
+	private static final String BULKHEADS_RESOURCE_KEY = "ubiquitos.driver.bulkheads";
+
+	private static final String DEFAULT_BULKHEAD_RESOURCE_KEY = "ubiquitos.driver.bulkheads.default";
+
+	private static String BULKHEAD_SEPARATOR = ";";
+
+	private static String SIZE_INDICATOR_BEGIN = "(";
+
+	private static String SIZE_INDICATOR_END = ")";
+
+	private static String SIZE_SEPARATOR = ",";
+
+	private Map<String, int[]> configuration = new ConcurrentHashMap<String, int[]>();
+	private int[] defaultConfiguration;
+	private Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+
+	/**
+	 * Creates bulkheads as described in the bundle. A <code>null</code>
+	 * bundle means no bulkheads at all.
+	 */
+	public DriverBulkheads(ResourceBundle bundle) {
+		if (bundle == null) return;
+		if (bundle.containsKey(BULKHEADS_RESOURCE_KEY)){
+			for(String entry : bundle.getString(BULKHEADS_RESOURCE_KEY).split(BULKHEAD_SEPARATOR)){
+				entry = entry.trim();
+				if (entry.isEmpty()) continue;
+				int begin = entry.indexOf(SIZE_INDICATOR_BEGIN);
+				int end = entry.indexOf(SIZE_INDICATOR_END);
+				int[] sizes = begin < 0 || end < begin ? null : parseSizes(entry.substring(begin+1, end));
+				if (sizes == null){
+					logger.warning("Bulkhead '"+entry+"' in "+BULKHEADS_RESOURCE_KEY+" is malformed and will be ignored.");
+				}else{
+					configure(entry.substring(0, begin).trim(), sizes[0], sizes[1]);
+				}
+			}
+		}
+		if (bundle.containsKey(DEFAULT_BULKHEAD_RESOURCE_KEY)){
+			defaultConfiguration = parseSizes(bundle.getString(DEFAULT_BULKHEAD_RESOURCE_KEY));
+			if (defaultConfiguration == null){
+				logger.warning(DEFAULT_BULKHEAD_RESOURCE_KEY+" is malformed and will be ignored.");
+			}
+		}
+	}
+
+	private static int[] parseSizes(String sizes){
+		String[] split = sizes.split(SIZE_SEPARATOR);
+		if (split.length != 2) return null;
+		try {
+			int threads = Integer.parseInt(split[0].trim());
+			int queue = Integer.parseInt(split[1].trim());
+			if (threads <= 0 || queue < 0) return null;
+			return new int[]{threads, queue};
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Defines the bulkhead of a driver. Must be called before its first service call.
+	 *
+	 * @param driverName Name of the driver.
+	 * @param threads Maximum amount of services of the driver running at the same time.
+	 * @param queueSize Maximum amount of calls waiting for a thread.
+	 */
+	public void configure(String driverName, int threads, int queueSize){
+		if (threads <= 0 || queueSize < 0){
+			throw new IllegalArgumentException("Bulkhead must have at least one thread and a non negative queue.");
+		}
+		configuration.put(driverName.toLowerCase(), new int[]{threads, queueSize});
+	}
+
+	/**
+	 * Runs the service call in the bulkhead of the informed driver without
+	 * waiting for it, so the thread which received the call is released
+	 * right away. Drivers without a bulkhead run it on the current thread.
+	 *
+	 * @param driverName Name of the driver which service is being called.
+	 * @param call The service execution.
+	 * @return The response, completed once the driver answers. Failing it
+	 * 			also fails the future returned by the driver.
+	 * @throws DriverManagerException If the bulkhead is saturated.
+	 */
+	public ServiceResponseFuture submit(String driverName, final Callable<ServiceResponseFuture> call) throws DriverManagerException{
+		Bulkhead bulkhead = bulkhead(driverName);
+		if (bulkhead == null){
+			try {
+				return call.call();
+			} catch (Exception e) {
+				throw asDriverManagerException(e);
+			}
+		}
+		final ServiceResponseFuture result = new ServiceResponseFuture();
+		try {
+			bulkhead.executor.execute(new Runnable() {
+				public void run() {
+					final ServiceResponseFuture answer;
+					try {
+						answer = call.call();
+					} catch (Exception e) {
+						result.fail(asDriverManagerException(e));
+						return;
+					}
+					if (answer == null){
+						result.complete(null);
+						return;
+					}
+					answer.addListener(new ServiceResponseFuture.Listener() {
+						public void onComplete(ServiceResponseFuture future) {
+							if (future.getError() == null){
+								result.complete(future.getResponse());
+							}else{
+								result.fail(future.getError());
+							}
+						}
+					});
+					result.addListener(new ServiceResponseFuture.Listener() {
+						public void onComplete(ServiceResponseFuture future) {
+							// the caller gave up, so the driver doesn't need to answer
+							if (future.getError() != null) answer.fail(future.getError());
+						}
+					});
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw rejected(bulkhead, driverName);
+		}
+		return result;
+	}
+
+	private static DriverManagerException rejected(Bulkhead bulkhead, String driverName){
+		bulkhead.rejected.incrementAndGet();
+		String msg = "Driver '"+driverName+"' is saturated, call rejected.";
+		logger.warning(msg);
+		return new DriverManagerException(msg);
+	}
+
+	private static DriverManagerException asDriverManagerException(Throwable t){
+		if (t instanceof DriverManagerException){
+			return (DriverManagerException) t;
+		}
+		return new DriverManagerException(t);
+	}
+
+	private Bulkhead bulkhead(String driverName){
+		if (driverName == null) return null;
+		String key = driverName.toLowerCase();
+		Bulkhead bulkhead = bulkheads.get(key);
+		if (bulkhead == null){
+			int[] sizes = configuration.get(key);
+			if (sizes == null) sizes = defaultConfiguration;
+			if (sizes == null) return null;
+			synchronized (bulkheads) {
+				bulkhead = bulkheads.get(key);
+				if (bulkhead == null){
+					bulkhead = new Bulkhead(driverName, sizes[0], sizes[1]);
+					bulkheads.put(key, bulkhead);
+				}
+			}
+		}
+		return bulkhead;
+	}
+
+	/**
+	 * @return Amount of calls waiting for a thread in the bulkhead of the driver.
+	 */
+	public int queueDepth(String driverName){
+		Bulkhead bulkhead = bulkheads.get(driverName.toLowerCase());
+		return bulkhead == null ? 0 : bulkhead.executor.getQueue().size();
+	}
+
+	/**
+	 * @return Amount of calls running in the bulkhead of the driver.
+	 */
+	public int active(String driverName){
+		Bulkhead bulkhead = bulkheads.get(driverName.toLowerCase());
+		return bulkhead == null ? 0 : bulkhead.executor.getActiveCount();
+	}
+
+	/**
+	 * @return Amount of calls rejected by the bulkhead of the driver since it was created.
+	 */
+	public long rejected(String driverName){
+		Bulkhead bulkhead = bulkheads.get(driverName.toLowerCase());
+		return bulkhead == null ? 0 : bulkhead.rejected.get();
+	}
+
+	/**
+	 * Stops all bulkhead threads. Running calls are allowed to finish.
+	 */
+	public void shutdown(){
+		synchronized (bulkheads) {
+			for (Bulkhead bulkhead : bulkheads.values()){
+				bulkhead.executor.shutdown();
+			}
+			bulkheads.clear();
+		}
+	}
+
+	private static class Bulkhead {
+		ThreadPoolExecutor executor;
+		AtomicLong rejected = new AtomicLong();
+
+		Bulkhead(final String driverName, int threads, int queueSize){
+			executor = new ThreadPoolExecutor(threads, threads,
+						60, TimeUnit.SECONDS,
+						queueSize == 0 ? new SynchronousQueue<Runnable>() : new ArrayBlockingQueue<Runnable>(queueSize),
+						new ThreadFactory() {
+							private AtomicInteger count = new AtomicInteger();
+							public Thread newThread(Runnable r) {
+								Thread t = new Thread(r, "uos-driver-"+driverName+"-"+count.incrementAndGet());
+								t.setDaemon(true);
+								return t;
+							}
+						});
+			executor.allowCoreThreadTimeOut(true);
+		}
+	}
+}
@@ -9,6 +9,10 @@ import java.util.ResourceBundle;
 
 import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
 
+/**
+ * Keeps the driver instances known, local and remote. Its methods are 
+ * synchronized, as radar events and service calls use it concurrently.
+ */
 public class DriverDao {
 	private HashMap<String, UpDriver> driverMap;
 	private HashMap<String, Integer> driverCount;
@@ -16,6 +20,7 @@ public class DriverDao {
 	private HashMap<String, List<DriverModel>> driverByTypeMap;
 	private HashMap<Long, DriverModel> modelMap;
 	private HashMap<String, DriverModel> modelByIdMap;
+	private volatile long version = 0;
 	
 	public DriverDao(ResourceBundle bundle) {
 		createMaps();
@@ -35,13 +40,21 @@ public class DriverDao {
 	}
 	
 	
-	public void insert(DriverModel driver) {
+	public synchronized void insert(DriverModel driver) {
 		DriverModel found = retrieve(driver.id(), driver.device());
 		if (found != null){
 			removeFromMap(found);
 		}
 		driver.rowid(newId());
 		insertOnMap(driver);
+		version++;
+	}
+	
+	/**
+	 * @return A counter increased on every change to the stored drivers.
+	 */
+	public long version() {
+		return version;
 	}
 
 	public List<DriverModel> list() {
@@ -52,7 +65,7 @@ public class DriverDao {
 		return list(name, null);
 	}
 
-	public List<DriverModel> list(String name, String device) {
+	public synchronized List<DriverModel> list(String name, String device) {
 		List<DriverModel> result = null;
 		if (device == null) {
 			if(name == null) {
@@ -107,13 +120,15 @@ public class DriverDao {
 		return listByDeviceAndDriver;
 	}
 
-	public void clear() {
+	public synchronized void clear() {
 		createMaps();
+		version++;
 	}
 
-	public void delete(String id, String device) {
+	public synchronized void delete(String id, String device) {
 		DriverModel driver = retrieve(id, device);
 		removeFromMap(driver);
+		version++;
 	}
 
 
@@ -154,7 +169,7 @@ public class DriverDao {
 		
 	}
 	
-	public DriverModel retrieve(String id, String device) {
+	public synchronized DriverModel retrieve(String id, String device) {
 		// find by id
 		if (id != null && device == null){
 			return modelByIdMap.get(id);
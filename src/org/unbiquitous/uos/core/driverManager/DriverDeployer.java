@@ -1,6 +1,13 @@
 package org.unbiquitous.uos.core.driverManager;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +47,9 @@ public class DriverDeployer {
 	
 	private ResourceBundle resourceBundle;
 	
+	/** Class loader shared by all drivers in the DRIVER_PATH. */
+	private ClassLoader classLoader;
+	
 	/**
 	 * Default Constructor
 	 * 
@@ -77,15 +87,7 @@ public class DriverDeployer {
 				String[] driversList = deployList.split(DRIVER_SEPARATOR);
 				
 				if (driversList != null && driversList.length != 0){
-					for (String driverData : driversList){
-						try {
-							deployDriverByProperty(driverData);
-						} catch (InterfaceValidationException e) {
-							String errorMessage = "The driver could not be deployed due to invalid interface specification.";
-							logger.log(Level.SEVERE,errorMessage,e);
-							throw new DriverManagerException(errorMessage,e);
-						}
-					}
+					deployDriversByProperty(driversList);
 				}else{
 					logger.fine("Data specified for "+DRIVER_LIST_RESOURCE_KEY+" is empty.");
 				}
@@ -98,15 +100,55 @@ public class DriverDeployer {
 	}
 
 	/**
-	 * Method responsible for deploying a single driver based on the property description of it
+	 * Method responsible for deploying the drivers based on the property description of them.
+	 * The driver classes are loaded and instantiated concurrently, but deployed 
+	 * in the order they were listed.
+	 * 
+	 * @param driversList The property line configuration of each driver to be deployed
+	 * @throws DriverManagerException
+	 */
+	private void deployDriversByProperty(String[] driversList) throws DriverManagerException {
+		long start = System.currentTimeMillis();
+		List<String[]> entries = new ArrayList<String[]>();
+		for (String driverData : driversList){
+			entries.add(parseDriverData(driverData));
+		}
+		
+		List<Future<UosDriver>> loaded = new ArrayList<Future<UosDriver>>();
+		ExecutorService executor = Executors.newFixedThreadPool(
+										Math.max(1, Math.min(driverManager.startupThreads(), entries.size())));
+		try {
+			for (final String[] entry : entries){
+				loaded.add(executor.submit(new Callable<UosDriver>() {
+					public UosDriver call() throws Exception {
+						return loadDriver(entry[0]);
+					}
+				}));
+			}
+			for (int i = 0; i < entries.size(); i++){
+				try {
+					deployDriver(loaded.get(i).get(), entries.get(i)[1]);
+				} catch (ExecutionException e) {
+					logger.log(Level.SEVERE,"Problems Deploying driver",e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DriverManagerException("Interrupted while deploying drivers.", e);
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		logger.info(String.format("Deployed %d drivers in %d ms.", entries.size(), System.currentTimeMillis() - start));
+	}
+	
+	/**
+	 * Method responsible for parsing the property description of a single driver
 	 * 
 	 * @param driverData The property line configuration of the driver to be deployed
-	 * @return the Class of the informed driver.
+	 * @return the Class of the informed driver and its instanceId (optional).
 	 * @throws DriverManagerException
-	 * @throws DriverNotFoundException 
 	 */
-	private String deployDriverByProperty(String driverData)
-			throws DriverManagerException, InterfaceValidationException {
+	private String[] parseDriverData(String driverData) throws DriverManagerException {
 		String driverClass;
 		String instanceId = null;
 		if (driverData.contains(INSTANCE_ID_INDICATOR_BEGIN) &&
@@ -133,43 +175,53 @@ public class DriverDeployer {
 			}
 		}		
 
-		deployDriver(driverClass, instanceId);
+		return new String[]{driverClass, instanceId};
+	}
 
-		return driverClass;
+	/**
+	 * Method responsible for instantiating a specific driver.
+	 * 
+	 * @param driverClass Name of the driver <code>Class</code> to be instantiated.
+	 * @return The driver instance.
+	 */
+	private UosDriver loadDriver(String driverClass) throws Exception {
+		long start = System.currentTimeMillis();
+		UosDriver driver = (UosDriver) classLoader().loadClass(driverClass).newInstance();
+		logger.info(String.format("Loaded driver class %s in %d ms", driverClass, System.currentTimeMillis() - start));
+		return driver;
+	}
+	
+	private synchronized ClassLoader classLoader() throws Exception {
+		if (classLoader == null){
+			try {
+				DRIVER_PATH = resourceBundle.getString(DRIVER_PATH_RESOURCE_KEY);
+			} catch (Exception e) {
+				DRIVER_PATH = DEFAULT_DRIVER_PATH;
+			}
+			classLoader = ClassLoaderUtils.builder.createClassLoader(DRIVER_PATH);
+		}
+		return classLoader;
 	}
 
 	/**
 	 * 
-	 * Method responsible for instantiating and deploying a specific driver into the middleware.
+	 * Method responsible for deploying a specific driver into the middleware.
 	 * 
-	 * @param driverClass Name of the driver <code>Class</code> to be instantiated.
+	 * @param driver The driver instance.
 	 * @param instanceId Name of the InstanceID of the Driver do be Deployed (optional).
-	 * @throws DriverManagerException
-	 * @throws DriverNotFoundException 
 	 */
-	private void deployDriver(String driverClass, String instanceId)
-			throws DriverManagerException, InterfaceValidationException {
+	private void deployDriver(UosDriver driver, String instanceId) {
 		try {
-			DRIVER_PATH = resourceBundle.getString(DRIVER_PATH_RESOURCE_KEY);
-		} catch (Exception e) {
-			DRIVER_PATH = DEFAULT_DRIVER_PATH;
-		}
-		
-		try {
-			ClassLoader classLoader = ClassLoaderUtils.builder
-												.createClassLoader(DRIVER_PATH);
-			Class<?> clazz = classLoader.loadClass(driverClass);
-			UosDriver driver = (UosDriver) clazz.newInstance();
+			driverManager.deployDriver(driver.getDriver(), driver, instanceId);
+		} catch (DriverNotFoundException e) {
 			try {
+				driverManager.addToEquivalenceTree(driver.getParent());
 				driverManager.deployDriver(driver.getDriver(), driver, instanceId);
-			} catch (DriverNotFoundException e) {
-				try {
-					driverManager.addToEquivalenceTree(driver.getParent());
-					driverManager.deployDriver(driver.getDriver(), driver, instanceId);
-				} catch (DriverNotFoundException ex) {
-					logger.log(Level.SEVERE,"Problems ocurred in the registering of driver '"+driver.getDriver().getName()+
-							"' and it will not be registered.", ex);
-				}
+			} catch (DriverNotFoundException ex) {
+				logger.log(Level.SEVERE,"Problems ocurred in the registering of driver '"+driver.getDriver().getName()+
+						"' and it will not be registered.", ex);
+			} catch (Exception ex) {
+				logger.log(Level.SEVERE,"Problems Deploying driver",ex);
 			}
 		} catch (Exception e) {
 			logger.log(Level.SEVERE,"Problems Deploying driver",e);
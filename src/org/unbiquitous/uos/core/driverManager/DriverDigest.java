@@ -0,0 +1,109 @@
+package org.unbiquitous.uos.core.driverManager;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.unbiquitous.json.JSONException;
+import org.unbiquitous.json.JSONObject;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
+import org.unbiquitous.uos.core.messageEngine.dataType.json.JSONDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.json.JSONDriver;
+
+/**
+ * Content hashes of driver instances and of the set of instances of a device.
+ *
+ * Two devices exchange them on the handshake, so the drivers of a peer are
+ * only listed again when they changed, and then only the instances whose
+ * hash differs.
+ */
+public final class DriverDigest {
+
+	private static final String ALGORITHM = "MD5";
+
+	private DriverDigest() {}
+
+	/**
+	 * @return The hash of each driver instance, by its instance id.
+	 */
+	public static Map<String, String> ofData(Collection<DriverData> drivers) throws JSONException {
+		Map<String, String> digests = new HashMap<String, String>();
+		if (drivers != null){
+			for (DriverData data : drivers){
+				digests.put(data.getInstanceID(), of(data.getInstanceID(), data.getDriver()));
+			}
+		}
+		return digests;
+	}
+
+	/**
+	 * @return The hash of each driver instance, by its instance id.
+	 */
+	public static Map<String, String> ofModels(Collection<DriverModel> drivers) throws JSONException {
+		Map<String, String> digests = new HashMap<String, String>();
+		if (drivers != null){
+			for (DriverModel model : drivers){
+				digests.put(model.id(), of(model.id(), model.driver()));
+			}
+		}
+		return digests;
+	}
+
+	/**
+	 * @return The hash of a driver instance.
+	 */
+	public static String of(String instanceId, UpDriver driver) throws JSONException {
+		return hash(instanceId + "=" + canonical(new JSONDriver(driver)));
+	}
+
+	/**
+	 * @param digests Hashes of the driver instances, by instance id.
+	 * @return The hash of the whole set, independent of the order of the instances.
+	 */
+	public static String ofSet(Map<String, String> digests) {
+		StringBuilder all = new StringBuilder();
+		for (Map.Entry<String, String> entry : new TreeMap<String, String>(digests).entrySet()){
+			all.append(entry.getKey()).append('=').append(entry.getValue()).append(';');
+		}
+		return hash(all.toString());
+	}
+
+	/**
+	 * @param device Device owning the drivers.
+	 * @param digests Hashes of the driver instances of the device, by instance id.
+	 * @return The hash of the device along with its drivers.
+	 */
+	public static String ofDevice(UpDevice device, Map<String, String> digests) throws JSONException {
+		return hash(canonical(new JSONDevice(device)) + "#" + ofSet(digests));
+	}
+
+	/**
+	 * JSONObject keeps its properties in a HashMap, so its compact form
+	 * depends on how it was built. The indented form sorts the keys at
+	 * every level, so a copy parsed from the wire has the same text.
+	 */
+	private static String canonical(JSONObject json) throws JSONException {
+		return json.toString(0);
+	}
+
+	private static String hash(String content) {
+		try {
+			byte[] digest = MessageDigest.getInstance(ALGORITHM).digest(content.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest){
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16))
+					.append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM+" is not available.", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package org.unbiquitous.uos.core.driverManager;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -8,6 +9,14 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.unbiquitous.uos.core.UOSLogging;
@@ -24,6 +33,7 @@ import org.unbiquitous.uos.core.messageEngine.dataType.UpService;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpService.ParameterType;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponseFuture;
 
 /**
  * This Class is responsible for dealing with the installed drivers in this device. Here we handle its
@@ -45,6 +55,16 @@ public class DriverManager {
 	private List<String> toInitialize;
 	private Map<String, TreeNode> driverHash;
 	private List<TreeNode> tree;
+	private DriverResolutionCache resolutionCache;
+	private long knownDaoVersion;
+	private InstanceSelector instanceSelector;
+	private DriverBulkheads bulkheads;
+	private int startupThreads;
+	/** Names of the drivers only initialized on its first service call, '*' meaning all. */
+	private Set<String> lazyDrivers;
+	/** Lazy driver instances waiting for its first call, with the lock guarding its initialization. */
+	private ConcurrentMap<String, Object> lazyPending;
+	private Gateway gateway;
 	
 	public DriverManager(UpDevice currentDevice, DriverDao driverDao, DeviceDao deviceDao,  ReflectionServiceCaller serviceCaller) {
 		this.driverDao = driverDao;
@@ -54,6 +74,13 @@ public class DriverManager {
 		this.instances = new HashMap<Long, UosDriver>();
 		this.toInitialize = new ArrayList<String>();
 		this.driverHash = new HashMap<String, TreeNode>();
+		this.resolutionCache = new DriverResolutionCache();
+		this.instanceSelector = new RoundRobinSelector();
+		this.bulkheads = new DriverBulkheads(null);
+		this.knownDaoVersion = -1;
+		this.startupThreads = 1;
+		this.lazyDrivers = new HashSet<String>();
+		this.lazyPending = new ConcurrentHashMap<String, Object>();
 		this.treeInit();
 	}
 	
@@ -64,26 +91,110 @@ public class DriverManager {
 		driverHash.put(Pointer.DRIVER_NAME, pointer);
 	}
 	
+	/**
+	 * Looks for local instances on the equivalence tree level by level, so the
+	 * closest equivalent driver is the one chosen.
+	 */
 	private List<DriverModel> findEquivalentDriver(List<TreeNode> equivalentDrivers) {
 		List<DriverModel> list;
+		Set<TreeNode> visited = new HashSet<TreeNode>();
+		List<TreeNode> level = equivalentDrivers;
 		
-		for (TreeNode treeNode : equivalentDrivers) {
-			list = driverDao.list(treeNode.getUpDriver().getName(),currentDevice.getName());
-			if(list != null && !list.isEmpty())
-				return list;
-		}
-		
-		for (TreeNode treeNode : equivalentDrivers) {
-			return findEquivalentDriver(treeNode.getChildren());
+		while (!level.isEmpty()){
+			List<TreeNode> nextLevel = new ArrayList<TreeNode>();
+			for (TreeNode treeNode : level) {
+				if (!visited.add(treeNode)) continue;
+				list = driverDao.list(treeNode.getUpDriver().getName(),currentDevice.getName());
+				if(list != null && !list.isEmpty())
+					return list;
+				nextLevel.addAll(treeNode.getChildren());
+			}
+			level = nextLevel;
 		}
 		
 		return null;
 	}
 	
+	/**
+	 * Finds the local instances able to handle calls for the informed driver, 
+	 * which are the instances of the driver itself or, if none, of the 
+	 * closest equivalent driver. The result is memoized until a related 
+	 * driver changes.
+	 * 
+	 * @param driverName Name of the driver to be resolved.
+	 * @return The instances found, empty if none.
+	 */
+	private List<DriverModel> findLocalCandidates(String driverName) {
+		checkDaoVersion();
+		List<DriverModel> candidates = resolutionCache.local(driverName);
+		if (candidates == null){
+			long generation = resolutionCache.generation();
+			candidates = driverDao.list(driverName,currentDevice.getName());
+			if(candidates.isEmpty()){ //Try to find an equivalent driver
+				TreeNode driverNode = driverHash.get(driverName);
+				if (driverNode != null){
+					candidates = findEquivalentDriver(driverNode.getChildren());
+				}
+			}
+			if (candidates == null){
+				candidates = Collections.emptyList();
+			}
+			candidates = Collections.unmodifiableList(candidates);
+			resolutionCache.local(driverName, candidates, generation);
+		}
+		return candidates;
+	}
+	
+	/**
+	 * Drops the memoized resolutions that may include the informed drivers,
+	 * which are the ones for the drivers themselves and for every driver 
+	 * they are equivalent to.
+	 * 
+	 * @param driverNames Names of the drivers that changed.
+	 */
+	private void invalidateResolution(String ... driverNames) {
+		Set<String> affected = new HashSet<String>();
+		List<TreeNode> toVisit = new ArrayList<TreeNode>();
+		for (String name : driverNames){
+			if (name == null) continue;
+			affected.add(name);
+			TreeNode node = driverHash.get(name);
+			if (node != null) toVisit.add(node);
+		}
+		Set<TreeNode> visited = new HashSet<TreeNode>();
+		while(!toVisit.isEmpty()){
+			TreeNode node = toVisit.remove(toVisit.size()-1);
+			if (!visited.add(node)) continue;
+			affected.add(node.getUpDriver().getName());
+			toVisit.addAll(node.getParents());
+		}
+		resolutionCache.invalidate(affected);
+		knownDaoVersion = driverDao.version();
+	}
+	
+	/**
+	 * The DriverDao can be changed without passing through this manager,
+	 * in this case nothing memoized can be trusted.
+	 */
+	private void checkDaoVersion() {
+		long version = driverDao.version();
+		if (version != knownDaoVersion){
+			resolutionCache.clear();
+			knownDaoVersion = version;
+		}
+	}
+	
 	/**
 	 * @see ServiceCallHandler#handleServiceCall(ServiceCall)
 	 */
 	public ServiceResponse handleServiceCall(ServiceCall serviceCall, UOSMessageContext messageContext) throws DriverManagerException{
+		return ReflectionServiceCaller.await(serviceCall, handleServiceCallAsync(serviceCall, messageContext));
+	}
+	
+	/**
+	 * @see ServiceCallHandler#handleServiceCallAsync(ServiceCall, UOSMessageContext)
+	 */
+	public ServiceResponseFuture handleServiceCallAsync(ServiceCall serviceCall, UOSMessageContext messageContext) throws DriverManagerException{
 		//Handle named InstanceCall
 		DriverModel model = null;
 		if (serviceCall.getInstanceId() != null ){
@@ -95,41 +206,81 @@ public class DriverManager {
 			}
 		}else{
 			//Handle non-named InstanceCall
-			List<DriverModel> list = driverDao.list(serviceCall.getDriver(),currentDevice.getName());
-			if(list == null || list.isEmpty()){ //Try to find an equivalent driver
-
-				TreeNode driverNode = driverHash.get(serviceCall.getDriver());
-				
-				if(driverNode == null) {
-					logger.fine("No instance found for handling driver '"+serviceCall.getDriver()+"'");
-					throw new DriverManagerException("No instance found for handling driver '"+serviceCall.getDriver()+"'");
-				}
-				
-				list = findEquivalentDriver(driverNode.getChildren());
-				
-				if(list == null || list.isEmpty()) {
-					logger.fine("No instance found for handling driver '"+serviceCall.getDriver()+"'");
-					throw new DriverManagerException("No instance found for handling driver '"+serviceCall.getDriver()+"'");
-				}
-				
+			List<DriverModel> list = findLocalCandidates(serviceCall.getDriver());
+			if(list.isEmpty()) {
+				logger.fine("No instance found for handling driver '"+serviceCall.getDriver()+"'");
+				throw new DriverManagerException("No instance found for handling driver '"+serviceCall.getDriver()+"'");
 			}
-			// Select the first driver found (since no specific instance was informed)
-			model = list.iterator().next();
+			// Since no specific instance was informed, let the selector choose one
+			model = selectInstance(serviceCall.getDriver(), list);
 		}
 		
-		return callServiceOnDriver(serviceCall, instances.get(model.rowid()), messageContext);
+		ensureInitialized(model);
+		return callServiceOnDriver(model.driver().getName(), serviceCall, instances.get(model.rowid()), messageContext);
+	}
+	
+	private DriverModel selectInstance(String driverName, List<DriverModel> candidates) {
+		if (candidates.size() == 1){
+			return candidates.get(0);
+		}
+		int[] inFlight = new int[candidates.size()];
+		for (int i = 0; i < inFlight.length; i++){
+			inFlight[i] = serviceCaller.inFlight(instances.get(candidates.get(i).rowid()));
+		}
+		DriverModel chosen = instanceSelector.select(driverName, candidates, inFlight);
+		return chosen == null ? candidates.get(0) : chosen;
+	}
+	
+	/**
+	 * Defines how an instance is chosen among many able to handle a call 
+	 * that doesn't inform its instanceId. By default calls are spread using 
+	 * a {@link RoundRobinSelector}.
+	 * 
+	 * @param instanceSelector Selection strategy to be used.
+	 */
+	public void setInstanceSelector(InstanceSelector instanceSelector) {
+		if (instanceSelector == null) throw new IllegalArgumentException("InstanceSelector cannot be null.");
+		this.instanceSelector = instanceSelector;
 	}
 	
 	/**
 	 * Method responsible to handle a service call on an instance driver object.
+	 * The call runs in the bulkhead of the driver, if it has one, without holding 
+	 * the current thread. Services answering asynchronously only hold the bulkhead 
+	 * until they return its future.
 	 * 
+	 * @param driverName Name of the driver of the instance.
 	 * @param serviceCall Service Call Request Object about the service to call. 
 	 * @param instanceDriver Object of the instance of the driver that must contain the service.
-	 * @return Response to return to the caller device.
+	 * @return Future response to return to the caller device.
 	 * @throws DriverManagerException
 	 */
-	private ServiceResponse callServiceOnDriver(ServiceCall serviceCall, Object instanceDriver, UOSMessageContext messageContext) throws DriverManagerException{
-		return serviceCaller.callServiceOnDriver(serviceCall, instanceDriver, messageContext);
+	private ServiceResponseFuture callServiceOnDriver(String driverName, 
+									final ServiceCall serviceCall, 
+									final Object instanceDriver, 
+									final UOSMessageContext messageContext) throws DriverManagerException{
+		return bulkheads.submit(driverName, new Callable<ServiceResponseFuture>() {
+			public ServiceResponseFuture call() throws Exception {
+				return serviceCaller.callServiceOnDriverAsync(serviceCall, instanceDriver, messageContext);
+			}
+		});
+	}
+	
+	/**
+	 * Defines the bulkheads isolating the execution of each driver.
+	 * By default no driver has a bulkhead.
+	 */
+	public void setBulkheads(DriverBulkheads bulkheads) {
+		if (bulkheads == null) throw new IllegalArgumentException("DriverBulkheads cannot be null.");
+		this.bulkheads = bulkheads;
+	}
+	
+	/**
+	 * @return The bulkheads isolating the execution of each driver, 
+	 * 			where its queue metrics can be consulted.
+	 */
+	public DriverBulkheads bulkheads() {
+		return bulkheads;
 	}
 	
 	/**
@@ -179,6 +330,7 @@ public class DriverManager {
 			}
 			
 			driverDao.insert(model);
+			invalidateResolution(driver.getName());
 			instances.put(model.rowid(), uDriver);
 			toInitialize.add(instanceId);
 			logger.fine(	"Deployed Driver : "+model.driver().getName()+
@@ -240,6 +392,7 @@ public class DriverManager {
 		}
 		
 		driverHash.put(driver.getName(), node);
+		invalidateResolution(driver.getName());
 	}
 	
 	private void validateInterfaces(List<UpService> parentServices, List<UpService> driverServices) throws InterfaceValidationException {
@@ -292,9 +445,12 @@ public class DriverManager {
 		
 		if (model != null){
 			UosDriver uDriver = instances.get(model.rowid());
-			if (!toInitialize.contains(model.id()))
+			boolean neverInitialized = lazyPending.remove(model.id()) != null;
+			if (!toInitialize.contains(model.id()) && !neverInitialized)
 				uDriver.destroy();
 			driverDao.delete(model.id(), currentDevice.getName());
+			invalidateResolution(model.driver().getName());
+			serviceCaller.release(uDriver);
 			toInitialize.remove(model.id());
 		}else{
 			logger.severe("Undeploying driver with InstanceId : '"+instanceId+"' was not possible, since it's not present in the current database.");
@@ -318,24 +474,34 @@ public class DriverManager {
 		return ret;
 	}
 	
-	private List<DriverModel> findAllEquivalentDrivers(List<TreeNode> equivalentDrivers) {
-		List<DriverModel> list = new ArrayList<DriverModel>();
-		
+	private void findAllEquivalentDrivers(List<TreeNode> equivalentDrivers, Set<DriverModel> found) {
 		if(equivalentDrivers == null || equivalentDrivers.isEmpty())
-			return list;
+			return;
 		
 		for (TreeNode treeNode : equivalentDrivers) {
-			list.addAll(driverDao.list(treeNode.getUpDriver().getName(), null));//TODO: [B&M] Should we filter the device?!
-			
-			List<DriverModel> temp = findAllEquivalentDrivers(treeNode.getChildren());
-			for (DriverModel driverModel : temp) {
-				if(!list.contains(driverModel)) {
-					list.add(driverModel);
-				}
+			found.addAll(driverDao.list(treeNode.getUpDriver().getName(), null));//TODO: [B&M] Should we filter the device?!
+			findAllEquivalentDrivers(treeNode.getChildren(), found);
+		}
+	}
+	
+	/**
+	 * Finds all instances in the environment of drivers equivalent to the informed one. 
+	 * The result is memoized until a related driver changes.
+	 */
+	private List<DriverModel> findAllEquivalentDrivers(String driverName) {
+		checkDaoVersion();
+		List<DriverModel> equivalents = resolutionCache.environment(driverName);
+		if (equivalents == null){
+			long generation = resolutionCache.generation();
+			Set<DriverModel> found = new LinkedHashSet<DriverModel>();
+			TreeNode driverNode = driverHash.get(driverName);
+			if(driverNode != null) {
+				findAllEquivalentDrivers(driverNode.getChildren(), found);
 			}
+			equivalents = Collections.unmodifiableList(new ArrayList<DriverModel>(found));
+			resolutionCache.environment(driverName, equivalents, generation);
 		}
-		
-		return list;
+		return equivalents;
 	}
 	
 	public UpDriver getDriverFromEquivalanceTree(String driverName) {
@@ -355,12 +521,10 @@ public class DriverManager {
 		List<DriverModel> list = driverDao.list(driverName, deviceName);
 		Set<DriverModel> baseSet = new LinkedHashSet<DriverModel>(list);
 
-		TreeNode driverNode = driverHash.get(driverName);
-		if(driverNode != null) {
-			List<TreeNode> equivalentDrivers = driverNode.getChildren();
-			baseSet.addAll(findAllEquivalentDrivers(equivalentDrivers));
+		if(driverName != null) {
+			baseSet.addAll(findAllEquivalentDrivers(driverName));
 		}
-		if (baseSet == null || baseSet.isEmpty()){
+		if (baseSet.isEmpty()){
 			return null;
 		}
 		List<DriverData> ret = new ArrayList<DriverData>();
@@ -384,17 +548,179 @@ public class DriverManager {
 		} catch (Exception e) {
 			throw new RuntimeException(e); 
 		}
-		Iterator<String> it = toInitialize.iterator();
+		this.gateway = gateway;
+		deferLazyDrivers();
 		logger.fine(String.format("Initializing %s drivers.", toInitialize.size()));
-		while(it.hasNext()){
+		long start = System.currentTimeMillis();
+		for (List<String> wave : initializationWaves()){
+			initWave(gateway, wave);
+		}
+		logger.info(String.format("Drivers initialized in %d ms.", System.currentTimeMillis() - start));
+	}
+	
+	/**
+	 * Moves the lazy drivers waiting initialization out of the startup, 
+	 * they are initialized on its first service call instead.
+	 */
+	private void deferLazyDrivers() {
+		if (lazyDrivers.isEmpty()) return;
+		Iterator<String> it = toInitialize.iterator();
+		while (it.hasNext()){
 			String id = it.next();
 			DriverModel model = driverDao.retrieve(id,currentDevice.getName());
-			UosDriver driver = instances.get(model.rowid());
-			driver.init(gateway, id);
-			it.remove();
-			logger.fine(String.format("Initialized Driver %s with id '%s'", 
-							model.driver().getName(),id));
+			if (isLazy(model.driver().getName())){
+				lazyPending.putIfAbsent(id, new Object());
+				it.remove();
+				logger.fine(String.format("Driver %s with id '%s' will be initialized on its first call.", 
+								model.driver().getName(),id));
+			}
+		}
+	}
+	
+	private boolean isLazy(String driverName) {
+		return lazyDrivers.contains("*") || lazyDrivers.contains(driverName.toLowerCase());
+	}
+	
+	/**
+	 * Initializes a lazy driver instance if this is its first call. 
+	 * Concurrent callers wait for the initialization to finish.
+	 */
+	private void ensureInitialized(DriverModel model) throws DriverManagerException {
+		Object lock = lazyPending.get(model.id());
+		if (lock == null) return;
+		synchronized (lock) {
+			if (lazyPending.get(model.id()) != lock) return; // initialized meanwhile
+			try {
+				initDriver(gateway, model.id(), model);
+			} catch (RuntimeException e) {
+				throw new DriverManagerException("Failed to initialize driver with id '"+model.id()+"'", e);
+			}
+			lazyPending.remove(model.id());
+		}
+	}
+	
+	/**
+	 * Defines the drivers which will only be initialized on its first service call,
+	 * instead of on startup. They are still advertised as soon as deployed.
+	 * 
+	 * @param driverNames Names of the lazy drivers, '*' meaning all of them.
+	 */
+	public void setLazyDrivers(Set<String> driverNames) {
+		if (driverNames == null) throw new IllegalArgumentException("Lazy drivers cannot be null.");
+		Set<String> lazyDrivers = new HashSet<String>();
+		for (String driverName : driverNames){
+			lazyDrivers.add(driverName.toLowerCase());
+		}
+		this.lazyDrivers = lazyDrivers;
+	}
+	
+	/**
+	 * Splits the drivers to initialize in waves that can be initialized concurrently. 
+	 * A driver is only initialized after the drivers it is equivalent to,
+	 * so the ones in the same wave don't depend on each other.
+	 */
+	private List<List<String>> initializationWaves() {
+		Map<String, List<String>> pendingByName = new HashMap<String, List<String>>();
+		for (String id : toInitialize){
+			String name = driverDao.retrieve(id,currentDevice.getName()).driver().getName();
+			if (!pendingByName.containsKey(name)){
+				pendingByName.put(name, new ArrayList<String>());
+			}
+			pendingByName.get(name).add(id);
+		}
+		Map<String, Integer> waveByName = new HashMap<String, Integer>();
+		List<List<String>> waves = new ArrayList<List<String>>();
+		for (String id : toInitialize){
+			UpDriver driver = driverDao.retrieve(id,currentDevice.getName()).driver();
+			int wave = wave(driver.getName(), pendingByName, waveByName, new HashSet<String>());
+			while (waves.size() <= wave){
+				waves.add(new ArrayList<String>());
+			}
+			waves.get(wave).add(id);
+		}
+		return waves;
+	}
+	
+	private int wave(String driverName, Map<String, List<String>> pendingByName, 
+						Map<String, Integer> waveByName, Set<String> visiting) {
+		if (waveByName.containsKey(driverName)) return waveByName.get(driverName);
+		visiting.add(driverName);
+		int wave = 0;
+		TreeNode node = driverHash.get(driverName);
+		if (node != null && node.getUpDriver().getEquivalentDrivers() != null){
+			for (String equivalent : node.getUpDriver().getEquivalentDrivers()){
+				// only equivalents waiting to be initialized here hold the driver back 
+				if (pendingByName.containsKey(equivalent) && !visiting.contains(equivalent)){
+					wave = Math.max(wave, 1 + wave(equivalent, pendingByName, waveByName, visiting));
+				}
+			}
+		}
+		visiting.remove(driverName);
+		waveByName.put(driverName, wave);
+		return wave;
+	}
+	
+	private void initWave(final Gateway gateway, List<String> wave) {
+		if (startupThreads <= 1 || wave.size() == 1){
+			for (String id : wave){
+				initDriver(gateway, id, driverDao.retrieve(id,currentDevice.getName()));
+				toInitialize.remove(id);
+			}
+			return;
 		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(startupThreads, wave.size()));
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (final String id : wave){
+				final DriverModel model = driverDao.retrieve(id,currentDevice.getName());
+				results.add(executor.submit(new Runnable() {
+					public void run() {
+						initDriver(gateway, id, model);
+					}
+				}));
+			}
+			Throwable failure = null;
+			for (int i = 0; i < wave.size(); i++){
+				try {
+					results.get(i).get();
+					toInitialize.remove(wave.get(i));
+				} catch (ExecutionException e) {
+					logger.log(Level.SEVERE, "Failed to initialize driver with id '"+wave.get(i)+"'", e.getCause());
+					if (failure == null) failure = e.getCause();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+			}
+			if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+			if (failure instanceof Error) throw (Error) failure;
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	private void initDriver(Gateway gateway, String id, DriverModel model) {
+		UosDriver driver = instances.get(model.rowid());
+		long start = System.currentTimeMillis();
+		driver.init(gateway, id);
+		logger.info(String.format("Initialized Driver %s with id '%s' in %d ms", 
+						model.driver().getName(),id, System.currentTimeMillis() - start));
+	}
+	
+	/**
+	 * Defines how many drivers can be initialized at the same time. 
+	 * By default drivers are initialized one after another.
+	 */
+	public void setStartupThreads(int startupThreads) {
+		if (startupThreads <= 0) throw new IllegalArgumentException("Startup threads must be positive.");
+		this.startupThreads = startupThreads;
+	}
+	
+	/**
+	 * @return How many drivers can be loaded or initialized at the same time.
+	 */
+	public int startupThreads() {
+		return startupThreads;
 	}
 	
 	/**
@@ -405,6 +731,7 @@ public class DriverManager {
 		for (DriverModel d : driverDao.list()){
 			undeployDriver(d.id());
 		}
+		bulkheads.shutdown();
 		dCount = 0;
 	}
 
@@ -421,13 +748,20 @@ public class DriverManager {
 	}
 
 	public void delete(String id, String device) {
+		DriverModel model = driverDao.retrieve(id, device);
+		// already gone, as when the device left meanwhile
+		if (model == null) return;
 		driverDao.delete(id, device);
+		invalidateResolution(model.driver().getName());
 	}
 
 	public void insert(DriverModel driverModel) throws DriverManagerException, DriverNotFoundException {
 		try {
 			addToEquivalenceTree(driverModel.driver());
+			DriverModel replaced = driverDao.retrieve(driverModel.id(), driverModel.device());
 			driverDao.insert(driverModel);
+			invalidateResolution(driverModel.driver().getName(), 
+						replaced == null ? null : replaced.driver().getName());
 		} catch(InterfaceValidationException e) {
 			throw new DriverManagerException(e);
 		}
@@ -57,4 +57,12 @@ public class DriverModel {
 		return this.driver.equals(d.driver) && this.device.equals(d.device) && this.id.equals(d.id);
 	}
 
+	@Override
+	public int hashCode() {
+		int hash = 0;
+		if (id != null) hash += id.hashCode();
+		if (device != null) hash += device.hashCode();
+		return hash;
+	}
+
 }
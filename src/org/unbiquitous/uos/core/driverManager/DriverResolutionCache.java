@@ -0,0 +1,87 @@
+package org.unbiquitous.uos.core.driverManager;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memoizes the resolution of a driver name into the driver instances that can
+ * handle it, either directly or through the equivalence tree.
+ *
+ * Two views are kept: the <i>local</i> one, with the candidates deployed on
+ * the current device, and the <i>environment</i> one, with every equivalent
+ * instance known in the smart space. Entries are dropped by name when a
+ * driver (or one of its equivalents) changes.
+ */
+class DriverResolutionCache {
+
+	private Map<String, List<DriverModel>> local;
+	private Map<String, List<DriverModel>> environment;
+
+	/** Incremented on every invalidation, so late lookups don't store stale results. */
+	private AtomicLong generation;
+
+	DriverResolutionCache() {
+		local = new ConcurrentHashMap<String, List<DriverModel>>();
+		environment = new ConcurrentHashMap<String, List<DriverModel>>();
+		generation = new AtomicLong();
+	}
+
+	/**
+	 * @return The current generation. Must be read before resolving an entry
+	 * 			and informed back when storing it.
+	 */
+	long generation(){
+		return generation.get();
+	}
+
+	List<DriverModel> local(String driverName){
+		return local.get(key(driverName));
+	}
+
+	void local(String driverName, List<DriverModel> candidates, long resolvedAt){
+		store(local, driverName, candidates, resolvedAt);
+	}
+
+	List<DriverModel> environment(String driverName){
+		return environment.get(key(driverName));
+	}
+
+	void environment(String driverName, List<DriverModel> candidates, long resolvedAt){
+		store(environment, driverName, candidates, resolvedAt);
+	}
+
+	private void store(Map<String, List<DriverModel>> map, String driverName,
+						List<DriverModel> candidates, long resolvedAt){
+		map.put(key(driverName), candidates);
+		if (generation.get() != resolvedAt){
+			// an invalidation happened while resolving, so this entry can be stale
+			map.remove(key(driverName));
+		}
+	}
+
+	/**
+	 * Drops the resolution of the informed driver names.
+	 *
+	 * @param driverNames Names of the drivers whose resolution may have changed.
+	 */
+	void invalidate(Collection<String> driverNames){
+		generation.incrementAndGet();
+		for (String name : driverNames){
+			local.remove(key(name));
+			environment.remove(key(name));
+		}
+	}
+
+	void clear(){
+		generation.incrementAndGet();
+		local.clear();
+		environment.clear();
+	}
+
+	private static String key(String driverName){
+		return driverName.toLowerCase();
+	}
+}
@@ -0,0 +1,20 @@
+package org.unbiquitous.uos.core.driverManager;
+
+import java.util.List;
+
+/**
+ * Strategy used by the {@link DriverManager} to choose which driver instance 
+ * will handle a service call that doesn't inform an instanceId.
+ */
+public interface InstanceSelector {
+
+	/**
+	 * Chooses one of the candidates to handle the call.
+	 * 
+	 * @param driverName Name of the driver that was called.
+	 * @param candidates Instances able to handle the call. Never empty.
+	 * @param inFlight Amount of calls running on each candidate right now, in the same order of the candidates.
+	 * @return The chosen instance.
+	 */
+	public DriverModel select(String driverName, List<DriverModel> candidates, int[] inFlight);
+}
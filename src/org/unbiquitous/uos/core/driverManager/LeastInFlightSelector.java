@@ -0,0 +1,21 @@
+package org.unbiquitous.uos.core.driverManager;
+
+import java.util.List;
+
+/**
+ * Chooses the instance with the fewest calls running. Ties are solved in 
+ * favor of the first candidate.
+ */
+public class LeastInFlightSelector implements InstanceSelector {
+
+	@Override
+	public DriverModel select(String driverName, List<DriverModel> candidates, int[] inFlight) {
+		int chosen = 0;
+		for (int i = 1; i < candidates.size(); i++){
+			if (inFlight[i] < inFlight[chosen]){
+				chosen = i;
+			}
+		}
+		return candidates.get(chosen);
+	}
+}
@@ -3,6 +3,11 @@ package org.unbiquitous.uos.core.driverManager;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,6 +18,7 @@ import org.unbiquitous.uos.core.connectivity.proxying.ProxyDriver;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall.ServiceType;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponseFuture;
 import org.unbiquitous.uos.core.network.connectionManager.ConnectionManagerControlCenter;
 import org.unbiquitous.uos.core.network.exceptions.NetworkException;
 import org.unbiquitous.uos.core.network.model.NetworkDevice;
@@ -31,6 +37,9 @@ public class ReflectionServiceCaller {
 	
 	ConnectionManagerControlCenter connectionManagerControlCenter;
 	
+	/** Calls running on each driver instance right now. */
+	private ConcurrentMap<Object, AtomicInteger> inFlight = new ConcurrentHashMap<Object, AtomicInteger>();
+	
 	public ReflectionServiceCaller(ConnectionManagerControlCenter connectionManagerControlCenter) {
 		this.connectionManagerControlCenter = connectionManagerControlCenter;
 	}
@@ -45,6 +54,24 @@ public class ReflectionServiceCaller {
 	 * @throws DriverManagerException
 	 */
 	public ServiceResponse callServiceOnDriver(ServiceCall serviceCall, Object instanceDriver, UOSMessageContext messageContext) throws DriverManagerException{
+		return await(serviceCall, callServiceOnDriverAsync(serviceCall, instanceDriver, messageContext));
+	}
+	
+	/**
+	 * Method responsible to call a service on a driver instance object without waiting 
+	 * for services that answer asynchronously.
+	 * 
+	 * A service can either fill the ServiceResponse it receives or return a 
+	 * {@link ServiceResponseFuture} to be completed later. In the first case the 
+	 * returned future is already done.
+	 * 
+	 * @param serviceCall Service Call Request Object containing which service to call. 
+	 * @param instanceDriver Object of the instance of the driver that must contain the service.
+	 * @param messageContext ?
+	 * @return The future service Response to return to the caller device.
+	 * @throws DriverManagerException
+	 */
+	public ServiceResponseFuture callServiceOnDriverAsync(ServiceCall serviceCall, Object instanceDriver, UOSMessageContext messageContext) throws DriverManagerException{
 		if (instanceDriver != null){
 			try {
 				Method serviceMethod = findMethod(serviceCall, instanceDriver);
@@ -54,10 +81,30 @@ public class ReflectionServiceCaller {
 					
 					handleStreamCall(serviceCall, messageContext);
 					ServiceResponse response = new ServiceResponse();
-					serviceMethod.invoke(instanceDriver,serviceCall,response,messageContext);
+					final AtomicInteger counter = inFlightCounter(instanceDriver);
+					counter.incrementAndGet();
+					Object returned;
+					try {
+						returned = serviceMethod.invoke(instanceDriver,serviceCall,response,messageContext);
+					} catch (Exception e) {
+						counter.decrementAndGet();
+						throw e;
+					}
 					
+					if (returned instanceof ServiceResponseFuture){
+						// the call remains in flight until the driver answers it
+						ServiceResponseFuture future = (ServiceResponseFuture) returned;
+						future.addListener(new ServiceResponseFuture.Listener() {
+							public void onComplete(ServiceResponseFuture future) {
+								counter.decrementAndGet();
+								logger.info("Finished asynchronous service call.");
+							}
+						});
+						return future;
+					}
+					counter.decrementAndGet();
 					logger.info("Finished service call.");
-					return response;
+					return ServiceResponseFuture.completed(response);
 				}else{
 					String msg = String.format(
 							"No Service Implementation found " +
@@ -84,6 +131,58 @@ public class ReflectionServiceCaller {
 		}
 	}
 
+	/**
+	 * Waits for a service response, encapsulating its failures into DriverManagerException's.
+	 */
+	static ServiceResponse await(ServiceCall serviceCall, ServiceResponseFuture future) throws DriverManagerException{
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof DriverManagerException){
+				throw (DriverManagerException) e.getCause();
+			}
+			logger.log(Level.SEVERE,"Internal Failure", e.getCause());
+			throw new DriverManagerException("Internal Error calling service ("
+					+ serviceCall.getService()
+					+ ") on Driver (" + serviceCall.getDriver()
+					+ ") in instance ("
+					+ serviceCall.getInstanceId() + ")",e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DriverManagerException("Interrupted while waiting for service ("+ serviceCall.getService()+")", e);
+		} catch (CancellationException e) {
+			throw new DriverManagerException("Service ("+ serviceCall.getService()+") was cancelled", e);
+		}
+	}
+
+	private AtomicInteger inFlightCounter(Object instanceDriver) {
+		AtomicInteger counter = inFlight.get(instanceDriver);
+		if (counter == null){
+			inFlight.putIfAbsent(instanceDriver, new AtomicInteger());
+			counter = inFlight.get(instanceDriver);
+		}
+		return counter;
+	}
+	
+	/**
+	 * @param instanceDriver Object of the instance of the driver.
+	 * @return Amount of service calls currently running on the informed driver instance.
+	 */
+	public int inFlight(Object instanceDriver) {
+		if (instanceDriver == null) return 0;
+		AtomicInteger counter = inFlight.get(instanceDriver);
+		return counter == null ? 0 : counter.get();
+	}
+	
+	/**
+	 * Forgets the counters of a driver instance that is no longer deployed.
+	 */
+	public void release(Object instanceDriver) {
+		if (instanceDriver != null){
+			inFlight.remove(instanceDriver);
+		}
+	}
+
 	private void handleStreamCall(ServiceCall serviceCall,
 			UOSMessageContext messageContext) throws NetworkException,
 			IOException {
@@ -0,0 +1,26 @@
+package org.unbiquitous.uos.core.driverManager;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the calls for each driver evenly among its instances.
+ */
+public class RoundRobinSelector implements InstanceSelector {
+
+	private ConcurrentMap<String, AtomicInteger> counters = new ConcurrentHashMap<String, AtomicInteger>();
+	
+	@Override
+	public DriverModel select(String driverName, List<DriverModel> candidates, int[] inFlight) {
+		String key = driverName.toLowerCase();
+		AtomicInteger counter = counters.get(key);
+		if (counter == null){
+			counters.putIfAbsent(key, new AtomicInteger());
+			counter = counters.get(key);
+		}
+		int next = counter.getAndIncrement() & Integer.MAX_VALUE;
+		return candidates.get(next % candidates.size());
+	}
+}
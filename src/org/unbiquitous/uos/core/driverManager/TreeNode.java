@@ -31,6 +31,10 @@ public class TreeNode {
 		return children;
 	}
 	
+	public List<TreeNode> getParents() {
+		return parent;
+	}
+	
 	private void addParent(TreeNode node) {
 		parent.add(node);
 	}
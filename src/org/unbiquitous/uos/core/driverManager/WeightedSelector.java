@@ -0,0 +1,93 @@
+package org.unbiquitous.uos.core.driverManager;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.logging.Logger;
+
+import org.unbiquitous.uos.core.UOSLogging;
+
+/**
+ * Spreads the calls among the instances of a driver proportionally to their 
+ * weights, interleaving them (smooth weighted round robin). 
+ * 
+ * The weights are informed by instanceId in the property 
+ * 'ubiquitos.driver.selection.weights' (ex: "printer1:3;printer2:1").
+ * Instances not listed have weight 1.
+ */
+public class WeightedSelector implements InstanceSelector {
+	
+	private static Logger logger = UOSLogging.getLogger();
+
+	private static final String WEIGHTS_RESOURCE_KEY = "ubiquitos.driver.selection.weights";
+	
+	private static final String WEIGHT_SEPARATOR = ";";
+	
+	private static final String WEIGHT_INDICATOR = ":";
+	
+	private Map<String, Integer> weights = new HashMap<String, Integer>();
+	
+	/** Current weight of each instance, by driver. */
+	private Map<String, Map<String, Integer>> current = new HashMap<String, Map<String,Integer>>();
+	
+	public WeightedSelector(ResourceBundle bundle) {
+		if (bundle != null && bundle.containsKey(WEIGHTS_RESOURCE_KEY)){
+			for (String entry : bundle.getString(WEIGHTS_RESOURCE_KEY).split(WEIGHT_SEPARATOR)){
+				if (entry.trim().isEmpty()) continue;
+				int split = entry.lastIndexOf(WEIGHT_INDICATOR);
+				try {
+					weight(entry.substring(0, split).trim(), 
+							Integer.parseInt(entry.substring(split+1).trim()));
+				} catch (RuntimeException e) {
+					logger.warning("Weight '"+entry+"' in "+WEIGHTS_RESOURCE_KEY+" is malformed and will be ignored.");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Defines the weight of an instance.
+	 * 
+	 * @param instanceId Id of the driver instance.
+	 * @param weight Positive weight of the instance.
+	 */
+	public synchronized void weight(String instanceId, int weight){
+		if (weight <= 0){
+			throw new IllegalArgumentException("Weight must be positive.");
+		}
+		weights.put(instanceId, weight);
+	}
+	
+	private int weightOf(DriverModel model){
+		Integer weight = weights.get(model.id());
+		return weight == null ? 1 : weight;
+	}
+
+	@Override
+	public synchronized DriverModel select(String driverName, List<DriverModel> candidates, int[] inFlight) {
+		String key = driverName.toLowerCase();
+		Map<String, Integer> driverState = current.get(key);
+		if (driverState == null){
+			driverState = new HashMap<String, Integer>();
+			current.put(key, driverState);
+		}
+		
+		DriverModel chosen = null;
+		int chosenWeight = 0;
+		int total = 0;
+		for (DriverModel model : candidates){
+			int weight = weightOf(model);
+			Integer previous = driverState.get(model.id());
+			int currentWeight = (previous == null ? 0 : previous) + weight;
+			driverState.put(model.id(), currentWeight);
+			total += weight;
+			if (chosen == null || currentWeight > chosenWeight){
+				chosen = model;
+				chosenWeight = currentWeight;
+			}
+		}
+		driverState.put(chosen.id(), chosenWeight - total);
+		return chosen;
+	}
+}
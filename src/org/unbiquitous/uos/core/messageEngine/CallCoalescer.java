@@ -0,0 +1,97 @@
+package org.unbiquitous.uos.core.messageEngine;
+
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
+
+/**
+ * Shares a single request among the identical service calls made to the
+ * same device at the same time. The first call goes to the network while
+ * the others wait for it and receive the same (encoded) response, or the
+ * same failure.
+ *
+ * Calls are only shared while in flight, nothing is kept after the response
+ * arrives. Since the callers get the result of one execution, it is meant
+ * for smart spaces whose concurrent identical calls are reads (like
+ * 'listDrivers').
+ */
+public class CallCoalescer {
+
+	/**
+	 * Request sent on behalf of all the identical calls.
+	 */
+	public interface Request {
+		/** @return The encoded response, or <code>null</code> if there's none. */
+		String send() throws Exception;
+	}
+
+	private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+
+	/**
+	 * Sends the request unless an identical one is already in flight, in
+	 * which case waits for its response.
+	 *
+	 * @param key Identifies the identical calls (see {@link #keyOf(UpDevice, ServiceCall)}).
+	 * @return The encoded response.
+	 * @throws Exception The failure of the request sent.
+	 */
+	public String call(String key, Request request) throws Exception {
+		Flight flight = new Flight();
+		Flight running = inFlight.putIfAbsent(key, flight);
+		if (running != null) return running.await();
+		try {
+			flight.response = request.send();
+		} catch (Exception e) {
+			flight.error = e;
+		} finally {
+			// calls made from now on send their own request
+			inFlight.remove(key, flight);
+			flight.done.countDown();
+		}
+		return flight.await();
+	}
+
+	/**
+	 * @return Amount of requests in flight.
+	 */
+	public int inFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * @return What identifies the identical calls to the device, or
+	 * 			<code>null</code> if the call can't be shared.
+	 */
+	public static String keyOf(UpDevice device, ServiceCall serviceCall) {
+		// stream calls each open their own channels
+		if (device == null || device.getName() == null
+				|| serviceCall.getServiceType() != ServiceCall.ServiceType.DISCRETE){
+			return null;
+		}
+		StringBuilder key = new StringBuilder();
+		key.append(device.getName()).append('/')
+			.append(serviceCall.getDriver()).append('#').append(serviceCall.getInstanceId())
+			.append('.').append(serviceCall.getService())
+			.append('@').append(serviceCall.getSecurityType());
+		if (serviceCall.getParameters() != null){
+			key.append('?').append(new TreeMap<String, Object>(serviceCall.getParameters()));
+		}
+		return key.toString();
+	}
+
+	private static class Flight {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile String response;
+		volatile Exception error;
+
+		String await() throws Exception {
+			done.await();
+			if (error != null) throw error;
+			return response;
+		}
+	}
+}
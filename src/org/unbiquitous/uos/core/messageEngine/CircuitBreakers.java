@@ -0,0 +1,136 @@
+package org.unbiquitous.uos.core.messageEngine;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import org.unbiquitous.uos.core.UOSLogging;
+
+/**
+ * Stops sending messages to the network addresses which keep failing, so
+ * the callers fail right away instead of each one waiting for the
+ * connection or the response to time out.
+ *
+ * An address is opened after the configured amount of consecutive
+ * failures (a message answered slower than the slow time counts as one).
+ * While open, messages to it fail with {@link CircuitOpenException}. Once
+ * the open time passes, the address is half open: a single message is let
+ * through as a probe, closing it again if it succeeds or reopening it if
+ * it fails.
+ */
+public class CircuitBreakers {
+
+	private static Logger logger = UOSLogging.getLogger();
+
+	public enum State {CLOSED, OPEN, HALF_OPEN}
+
+	private final int failures;
+	private final long openNanos;
+	private final long slowMillis;
+	private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+
+	/**
+	 * @param failures Consecutive failures which open an address.
+	 * @param openMillis Time (in milliseconds) an address stays open before being probed.
+	 * @param slowMillis Time (in milliseconds) after which an answer counts as a failure,
+	 * 			or 0 to only count the errors.
+	 */
+	public CircuitBreakers(int failures, long openMillis, long slowMillis) {
+		if (failures <= 0) throw new IllegalArgumentException("Failures must be positive.");
+		if (openMillis <= 0) throw new IllegalArgumentException("Open time must be positive.");
+		if (slowMillis < 0) throw new IllegalArgumentException("Slow time cannot be negative.");
+		this.failures = failures;
+		this.openNanos = openMillis * 1000000;
+		this.slowMillis = slowMillis;
+	}
+
+	/**
+	 * Asks to send a message to the address.
+	 *
+	 * @throws CircuitOpenException If the address is open, or half open with a probe in flight.
+	 */
+	public void acquire(String address) throws CircuitOpenException {
+		if (!breaker(address).acquire()) throw new CircuitOpenException(address);
+	}
+
+	/**
+	 * Informs that a message sent to the address was answered.
+	 *
+	 * @param latencyMillis How long (in milliseconds) it took.
+	 */
+	public void success(String address, long latencyMillis) {
+		if (slowMillis > 0 && latencyMillis > slowMillis){
+			failure(address);
+		}else{
+			breaker(address).success();
+		}
+	}
+
+	/**
+	 * Informs that a message couldn't be sent to the address.
+	 */
+	public void failure(String address) {
+		if (breaker(address).failure()){
+			logger.warning("Calls to '"+address+"' are failing, failing them fast for "+(openNanos / 1000000)+" ms.");
+		}
+	}
+
+	/**
+	 * @return The state of the address.
+	 */
+	public State state(String address) {
+		Breaker breaker = breakers.get(address);
+		return breaker == null ? State.CLOSED : breaker.state();
+	}
+
+	private Breaker breaker(String address) {
+		Breaker breaker = breakers.get(address);
+		if (breaker == null){
+			Breaker created = new Breaker();
+			breaker = breakers.putIfAbsent(address, created);
+			if (breaker == null) breaker = created;
+		}
+		return breaker;
+	}
+
+	private class Breaker {
+		private int consecutive = 0;
+		private boolean open = false;
+		private long openedAt;
+		private boolean probing = false;
+
+		synchronized boolean acquire() {
+			if (!open) return true;
+			if (probing || System.nanoTime() - openedAt < openNanos) return false;
+			probing = true;
+			return true;
+		}
+
+		synchronized void success() {
+			consecutive = 0;
+			open = false;
+			probing = false;
+		}
+
+		/**
+		 * @return <code>true</code> if it just opened.
+		 */
+		synchronized boolean failure() {
+			consecutive++;
+			if (probing || (!open && consecutive >= failures)){
+				boolean opened = !open;
+				open = true;
+				probing = false;
+				openedAt = System.nanoTime();
+				return opened;
+			}
+			return false;
+		}
+
+		synchronized State state() {
+			if (!open) return State.CLOSED;
+			if (probing || System.nanoTime() - openedAt >= openNanos) return State.HALF_OPEN;
+			return State.OPEN;
+		}
+	}
+}
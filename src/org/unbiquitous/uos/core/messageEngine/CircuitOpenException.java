@@ -0,0 +1,13 @@
+package org.unbiquitous.uos.core.messageEngine;
+
+/**
+ * A message wasn't sent because the device kept failing recently (see
+ * {@link CircuitBreakers}).
+ */
+public class CircuitOpenException extends MessageEngineException {
+	private static final long serialVersionUID = 4052143297405526153L;
+
+	public CircuitOpenException(String address) {
+		super("Calls to '"+address+"' are failing, not trying it for now.");
+	}
+}
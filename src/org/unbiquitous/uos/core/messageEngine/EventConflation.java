@@ -0,0 +1,48 @@
+package org.unbiquitous.uos.core.messageEngine;
+
+import java.util.List;
+
+import org.unbiquitous.uos.core.driverManager.DriverManager;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpService;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+/**
+ * Tells which notifies replace each other while waiting to be delivered,
+ * according to the conflation key declared on the event by its driver
+ * (see {@link UpService#setConflationKey(String)}).
+ */
+public class EventConflation {
+
+	private DriverManager driverManager;
+
+	/**
+	 * @param driverManager Where the driver declarations are looked up.
+	 */
+	public EventConflation(DriverManager driverManager) {
+		this.driverManager = driverManager;
+	}
+
+	/**
+	 * @return The key shared by the notifies carrying the same state as this
+	 * 			one, or <code>null</code> if it must not be replaced.
+	 */
+	public String keyOf(Notify notify) {
+		if (notify == null || notify.getDriver() == null || notify.getEventKey() == null) return null;
+		UpDriver driver = driverManager.getDriverFromEquivalanceTree(notify.getDriver());
+		if (driver == null) return null;
+		String parameter = conflationParameter(driver.getEvents(), notify.getEventKey());
+		if (parameter == null) return null;
+		Object value = notify.getParameter(parameter);
+		if (value == null) return null;
+		return notify.getDriver()+"."+notify.getEventKey()+"#"+notify.getInstanceId()+"?"+parameter+"="+value;
+	}
+
+	private static String conflationParameter(List<UpService> events, String eventKey) {
+		if (events == null) return null;
+		for (UpService event : events){
+			if (eventKey.equals(event.getName())) return event.getConflationKey();
+		}
+		return null;
+	}
+}
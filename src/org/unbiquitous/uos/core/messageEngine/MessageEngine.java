@@ -1,6 +1,11 @@
 package org.unbiquitous.uos.core.messageEngine;
 
+import java.util.Collection;
 import java.util.ResourceBundle;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,14 +23,17 @@ import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
 import org.unbiquitous.uos.core.messageEngine.messages.EncapsulatedMessage;
 import org.unbiquitous.uos.core.messageEngine.messages.Message;
 import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.messageEngine.messages.NotifyBatch;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponseFuture;
 import org.unbiquitous.uos.core.messageEngine.messages.json.JSONEncapsulatedMessage;
 import org.unbiquitous.uos.core.messageEngine.messages.json.JSONNotify;
+import org.unbiquitous.uos.core.messageEngine.messages.json.JSONNotifyBatch;
 import org.unbiquitous.uos.core.messageEngine.messages.json.JSONServiceCall;
 import org.unbiquitous.uos.core.messageEngine.messages.json.JSONServiceResponse;
+import org.unbiquitous.uos.core.network.connectionManager.AsyncMessageListener;
 import org.unbiquitous.uos.core.network.connectionManager.ConnectionManagerControlCenter;
-import org.unbiquitous.uos.core.network.connectionManager.MessageListener;
 import org.unbiquitous.uos.core.network.exceptions.NetworkException;
 import org.unbiquitous.uos.core.network.model.NetworkDevice;
 
@@ -36,10 +44,13 @@ import org.unbiquitous.uos.core.network.model.NetworkDevice;
  * @author Fabricio Nogueira Buzeto
  *
  */
-public class MessageEngine implements MessageListener , UOSComponent{
+public class MessageEngine implements AsyncMessageListener , UOSComponent{
 
 	Logger logger = UOSLogging.getLogger();
 	
+	/** Services are waited for indefinitely, unless a reply timeout is informed. */
+	private static final long DEFAULT_REPLY_TIMEOUT = 0;
+	
 	private ServiceCallHandler serviceCallHandler;
 	private NotifyHandler notifyHandler;
 	private SecurityManager securityManager;
@@ -49,12 +60,17 @@ public class MessageEngine implements MessageListener , UOSComponent{
 
 	private ResourceBundle properties;
 	
+	private long replyTimeout = DEFAULT_REPLY_TIMEOUT;
+	private ScheduledExecutorService deadlines;
+	
 	@Override
 	public String handleIncomingMessage(String message,NetworkDevice clientDevice) throws NetworkException{
 		
 		if (message == null || clientDevice == null)
 			return null;
 		
+		if (deviceManager != null) deviceManager.deviceSeen(clientDevice);
+		
 		try {
 			//TODO: This JSON Conversion can be done only once
 			JSONObject json = new JSONObject(message);
@@ -64,11 +80,15 @@ public class MessageEngine implements MessageListener , UOSComponent{
 					logger.info("Incoming Service Call");
 					UOSMessageContext messageContext = new UOSMessageContext();
 					messageContext.setCallerDevice(clientDevice);
-					return handleServiceCall(message, messageContext);
+					return handleServiceCall(json, messageContext);
 				}else if (messageType == Message.Type.NOTIFY){
 					logger.info("Incoming Notify");
 					handleNotify(message,clientDevice);
 					return null;
+				}else if (messageType == Message.Type.NOTIFY_BATCH){
+					logger.info("Incoming Notify Batch");
+					handleNotifyBatch(message,clientDevice);
+					return null;
 				}else if (messageType == Message.Type.ENCAPSULATED_MESSAGE){
 					logger.info("Incoming Encapsulated Message");
 					return handleEncapsulatedMessage(message,clientDevice);
@@ -84,29 +104,127 @@ public class MessageEngine implements MessageListener , UOSComponent{
 		return null;
 	}
 
+	/**
+	 * Handles the incoming message without waiting for services that answer 
+	 * asynchronously. Other kinds of messages are answered right away.
+	 */
+	@Override
+	public void handleIncomingMessage(String message, NetworkDevice clientDevice, Reply reply) throws NetworkException {
+		JSONObject json = null;
+		if (message != null && clientDevice != null){
+			try {
+				json = new JSONObject(message);
+			} catch (JSONException e) {
+				// answered as any other malformed message
+			}
+		}
+		if (json != null && retrieveMessageType(json) == Message.Type.SERVICE_CALL_REQUEST){
+			if (deviceManager != null) deviceManager.deviceSeen(clientDevice);
+			logger.info("Incoming Service Call");
+			UOSMessageContext messageContext = new UOSMessageContext();
+			messageContext.setCallerDevice(clientDevice);
+			handleServiceCall(json, messageContext, reply);
+		}else{
+			reply.send(handleIncomingMessage(message, clientDevice));
+		}
+	}
+	
+	/**
+	 * Redirect ServiceCalls to the adequate responsible entity, replying when its response is available.
+	 * When a reply timeout is informed, services which don't answer within it are answered with 
+	 * an error and their connection is closed.
+	 */
+	private void handleServiceCall(JSONObject json, UOSMessageContext messageContext, final Reply reply){
+		try {
+			final ServiceCall serviceCall = new JSONServiceCall(json).getAsObject();
+			final ServiceResponseFuture future = serviceCallHandler.handleServiceCallAsync(serviceCall, messageContext);
+			future.addListener(new ServiceResponseFuture.Listener() {
+				public void onComplete(ServiceResponseFuture future) {
+					if (future.getError() instanceof ReplyTimeoutException){
+						reply.close();
+					}
+					reply.send(responseMessage(future.getResponse(), future.getError()));
+				}
+			});
+			if (!future.isDone() && replyTimeout > 0){
+				deadlines().schedule(new Runnable() {
+					public void run() {
+						future.fail(new ReplyTimeoutException(serviceCall, replyTimeout));
+					}
+				}, replyTimeout, TimeUnit.MILLISECONDS);
+			}
+		} catch (Exception e) {
+			reply.send(responseMessage(null, e));
+		}
+	}
+	
 	/**
 	 * Redirect ServiceCalls to the adequate responsible entity.
 	 */
-	private String handleServiceCall(String message, UOSMessageContext messageContext) throws MessageEngineException{
+	private String handleServiceCall(JSONObject json, UOSMessageContext messageContext){
 		try {
-			JSONServiceCall jsonServiceCall = new JSONServiceCall(message);
-			ServiceCall serviceCall = jsonServiceCall.getAsObject();
-			ServiceResponse response = serviceCallHandler.handleServiceCall(serviceCall, messageContext);
-			logger.info("Returning service response");
-			
-			JSONServiceResponse jsonResponse = new JSONServiceResponse(response);
-			return jsonResponse.toString();
+			ServiceCall serviceCall = new JSONServiceCall(json).getAsObject();
+			return responseMessage(serviceCallHandler.handleServiceCall(serviceCall, messageContext), null);
 		} catch (Exception e) {
-			logger.log(Level.SEVERE,"Internal Failure", e);
-			ServiceResponse errorResponse = new ServiceResponse();
-			errorResponse.setError(e.getMessage() == null ?"Internal Error":e.getMessage());
-			try {
-				JSONServiceResponse jsonResponse = new JSONServiceResponse(errorResponse);
-				return jsonResponse.toString();
-			} catch (JSONException e1) {
-				// Never Should Happens
-				throw new MessageEngineException("Unexpected Error",e1);
+			return responseMessage(null, e);
+		}
+	}
+	
+	/**
+	 * @return The message answering a service call, or describing its failure when an 
+	 * 			error is informed.
+	 */
+	private String responseMessage(ServiceResponse response, Throwable error){
+		try {
+			if (error == null){
+				logger.info("Returning service response");
+				return new JSONServiceResponse(response).toString();
 			}
+		} catch (Exception e) {
+			error = e;
+		}
+		logger.log(Level.SEVERE,"Internal Failure", error);
+		ServiceResponse errorResponse = new ServiceResponse();
+		errorResponse.setError(error.getMessage() == null ?"Internal Error":error.getMessage());
+		try {
+			return new JSONServiceResponse(errorResponse).toString();
+		} catch (JSONException e) {
+			logger.severe("Never Happens");
+			return null;
+		}
+	}
+	
+	private synchronized ScheduledExecutorService deadlines(){
+		if (deadlines == null){
+			deadlines = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "uos-reply-deadline");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return deadlines;
+	}
+	
+	/**
+	 * @param replyTimeout Time (in milliseconds) a service has to answer asynchronously 
+	 * 			before its caller receives an error, or 0 to wait for it indefinitely.
+	 */
+	public void setReplyTimeout(long replyTimeout) {
+		if (replyTimeout < 0) throw new IllegalArgumentException("Reply timeout cannot be negative.");
+		this.replyTimeout = replyTimeout;
+	}
+	
+	/**
+	 * A service didn't answer its asynchronous call in time.
+	 */
+	private static class ReplyTimeoutException extends Exception {
+		private static final long serialVersionUID = -1529634076583297015L;
+
+		ReplyTimeoutException(ServiceCall serviceCall, long timeout) {
+			super("Service ("+serviceCall.getService()+") on Driver ("+serviceCall.getDriver()
+					+") didn't answer in "+timeout+" ms.");
 		}
 	}
 	
@@ -114,18 +232,42 @@ public class MessageEngine implements MessageListener , UOSComponent{
 		try {
 			Notify notify = new JSONNotify(message).getAsObject();
 			
-			notifyHandler.handleNofify(notify,
-					deviceManager.retrieveDevice(
-							connectionManagerControlCenter.getHost(
-										clientDevice.getNetworkDeviceName()), 
-										clientDevice.getNetworkDeviceType())
-							);
+			notifyHandler.handleNofify(notify, notifyingDevice(clientDevice));
 			
 		} catch (Exception e) {
 			logger.log(Level.SEVERE,"Internal Failure. Notify cannot be handled.", e);
 		} 
 	}
 	
+	/**
+	 * Handles each notify of the batch in order. A failing one doesn't stop the others.
+	 */
+	private void handleNotifyBatch(String message,NetworkDevice clientDevice) throws MessageEngineException{
+		NotifyBatch batch;
+		UpDevice device;
+		try {
+			batch = new JSONNotifyBatch(message).getAsObject();
+			device = notifyingDevice(clientDevice);
+		} catch (Exception e) {
+			logger.log(Level.SEVERE,"Internal Failure. Notify batch cannot be handled.", e);
+			return;
+		}
+		for (Notify notify : batch.getNotifies()){
+			try {
+				notifyHandler.handleNofify(notify, device);
+			} catch (Exception e) {
+				logger.log(Level.SEVERE,"Internal Failure. Notify cannot be handled.", e);
+			}
+		}
+	}
+	
+	private UpDevice notifyingDevice(NetworkDevice clientDevice) {
+		return deviceManager.retrieveDevice(
+					connectionManagerControlCenter.getHost(
+								clientDevice.getNetworkDeviceName()), 
+								clientDevice.getNetworkDeviceType());
+	}
+	
 	private String handleEncapsulatedMessage(String message,NetworkDevice clientDevice) throws MessageEngineException{
 		try {
 			JSONEncapsulatedMessage jsonEncapsulatedMessage = new JSONEncapsulatedMessage(message);
@@ -193,6 +335,17 @@ public class MessageEngine implements MessageListener , UOSComponent{
 	public void notifyEvent(Notify notify, UpDevice device) throws MessageEngineException{
 		messageHandler.notifyEvent(notify, device);
 	}
+	
+	/**
+	 * Sends a notify message to many devices.
+	 * 
+	 * @param notify Notify message to be sent.
+	 * @param devices Devices which are going to receive the notify event
+	 * @throws MessageEngineException
+	 */
+	public void notifyEventToAll(Notify notify, Collection<UpDevice> devices) throws MessageEngineException{
+		messageHandler.notifyEventToAll(notify, devices);
+	}
 	/**
 	 * Method responsible for calling a service according to the ServiceCall informed.
 	 * 
@@ -205,11 +358,26 @@ public class MessageEngine implements MessageListener , UOSComponent{
 		return messageHandler.callService(device, serviceCall);
 	}
 
+	/**
+	 * @param conflation Tells which queued notifies replace each other.
+	 */
+	public void setConflation(EventConflation conflation) {
+		messageHandler.setConflation(conflation);
+	}
+
 	/************************ USO COmpoment ***************************/
 	
 	@Override
 	public void create(ResourceBundle properties) {
 		this.properties = properties;
+		if (properties != null && properties.containsKey("ubiquitos.message.reply.timeout")){
+			String value = properties.getString("ubiquitos.message.reply.timeout");
+			try {
+				setReplyTimeout(Long.parseLong(value.trim()));
+			} catch (IllegalArgumentException e) {
+				logger.warning("Invalid value '"+value+"' for ubiquitos.message.reply.timeout, using "+DEFAULT_REPLY_TIMEOUT+".");
+			}
+		}
 	}
 	
 	@Override
@@ -233,7 +401,13 @@ public class MessageEngine implements MessageListener , UOSComponent{
 	public void start() {}
 	
 	@Override
-	public void stop() {}
+	public void stop() {
+		if (messageHandler != null) messageHandler.tearDown();
+		synchronized (this) {
+			if (deadlines != null) deadlines.shutdownNow();
+			deadlines = null;
+		}
+	}
 
 	
 	//FIXME: remove this method
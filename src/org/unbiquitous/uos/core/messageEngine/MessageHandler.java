@@ -7,7 +7,10 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.ResourceBundle;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.unbiquitous.json.JSONObject;
@@ -50,6 +53,10 @@ public class MessageHandler {
 	private ConnectionManagerControlCenter connectionManagerControlCenter;
 	private SecurityManager securityManager;
 	private ConnectivityManager connectivityManager;
+	private NotifyFanOut fanOut;
+	private EventConflation conflation;
+	private CallCoalescer coalescer;
+	private CircuitBreakers breakers;
 	
 	
 	/*************************************
@@ -75,6 +82,78 @@ public class MessageHandler {
 		}else{
 			waitTime = 100;
 		}
+		int threads = (int) number(bundle, "ubiquitos.message.notify.threads", 0, 0);
+		long linger = number(bundle, "ubiquitos.message.notify.linger", 0, 0);
+		if (threads > 0 || linger > 0){
+			int queue = (int) number(bundle, "ubiquitos.message.notify.queue", 100, 1);
+			long ttl = number(bundle, "ubiquitos.message.notify.ttl", 5000, 1);
+			fanOut = new NotifyFanOut(connectionManagerControlCenter, connectivityManager, Math.max(threads, 1), queue, ttl);
+			fanOut.setLinger(linger);
+		}
+		if (bundle != null && bundle.containsKey("ubiquitos.message.call.coalesce")
+				&& Boolean.parseBoolean(bundle.getString("ubiquitos.message.call.coalesce").trim())){
+			coalescer = new CallCoalescer();
+		}
+		int failures = (int) number(bundle, "ubiquitos.message.breaker.failures", 0, 0);
+		if (failures > 0){
+			long open = number(bundle, "ubiquitos.message.breaker.open", 5000, 1);
+			long slow = number(bundle, "ubiquitos.message.breaker.slow", 0, 0);
+			breakers = new CircuitBreakers(failures, open, slow);
+		}
+	}
+	
+	/**
+	 * @return The value of the property, or the default one when it's missing,
+	 * 			malformed or below the minimum.
+	 */
+	private static long number(ResourceBundle bundle, String key, long defaultValue, long min) {
+		if (bundle == null || !bundle.containsKey(key)) return defaultValue;
+		String value = bundle.getString(key);
+		try {
+			long parsed = Long.parseLong(value.trim());
+			if (parsed >= min && parsed <= Integer.MAX_VALUE) return parsed;
+		} catch (NumberFormatException e) {}
+		logger.warning("Invalid value '"+value+"' for "+key+", using "+defaultValue+".");
+		return defaultValue;
+	}
+	
+	/**
+	 * @param fanOut Sends the notifies in parallel, or <code>null</code> to send
+	 * 			them one at a time on the calling thread.
+	 */
+	public void setFanOut(NotifyFanOut fanOut) {
+		this.fanOut = fanOut;
+	}
+	
+	/**
+	 * @param conflation Tells which queued notifies replace each other, or 
+	 * 			<code>null</code> to send every one.
+	 */
+	public void setConflation(EventConflation conflation) {
+		this.conflation = conflation;
+	}
+	
+	/**
+	 * @param coalescer Shares the identical calls in flight, or <code>null</code>
+	 * 			to send each one on its own.
+	 */
+	public void setCoalescer(CallCoalescer coalescer) {
+		this.coalescer = coalescer;
+	}
+	
+	/**
+	 * @param breakers Fails fast the messages to the addresses which keep
+	 * 			failing, or <code>null</code> to always try them.
+	 */
+	public void setCircuitBreakers(CircuitBreakers breakers) {
+		this.breakers = breakers;
+	}
+	
+	/**
+	 * Stops sending queued notifies.
+	 */
+	public void tearDown() {
+		if (fanOut != null) fanOut.shutdown();
 	}
 	
 	/**
@@ -85,7 +164,7 @@ public class MessageHandler {
 	 * @return Service Response for the called service.
 	 * @throws ServiceCallException
 	 */
-	public ServiceResponse callService(UpDevice device,ServiceCall serviceCall) throws MessageEngineException{
+	public ServiceResponse callService(final UpDevice device,final ServiceCall serviceCall) throws MessageEngineException{
 		if (	device == null || serviceCall == null ||
 				serviceCall.getDriver() == null || serviceCall.getDriver().isEmpty() ||
 				serviceCall.getService() == null || serviceCall.getService().isEmpty()){
@@ -93,11 +172,20 @@ public class MessageHandler {
 		}
 		
 		try {
-			JSONObject  jsonCall = new JSONServiceCall(serviceCall);
-			if (serviceCall.getSecurityType() != null ){
-				return (new JSONServiceResponse(sendEncapsulated(jsonCall.toString(), serviceCall.getSecurityType(), device))).getAsObject();
+			final JSONObject  jsonCall = new JSONServiceCall(serviceCall);
+			CallCoalescer coalescer = this.coalescer;
+			String key = coalescer == null ? null : CallCoalescer.keyOf(device, serviceCall);
+			String returnedMessage;
+			if (key != null){
+				returnedMessage = coalescer.call(key, new CallCoalescer.Request() {
+					public String send() throws Exception {
+						return exchange(jsonCall.toString(), serviceCall, device);
+					}
+				});
+			}else{
+				returnedMessage = exchange(jsonCall.toString(), serviceCall, device);
 			}
-			String returnedMessage = send(jsonCall.toString(), device,true);
+			// each caller decodes its own response
 			if (returnedMessage != null)
 				return (new JSONServiceResponse(returnedMessage)).getAsObject();
 		} catch (Exception e) {
@@ -105,6 +193,13 @@ public class MessageHandler {
 		} 
 		return null;
 	}
+	
+	private String exchange(String call, ServiceCall serviceCall, UpDevice device) throws Exception{
+		if (serviceCall.getSecurityType() != null ){
+			return sendEncapsulated(call, serviceCall.getSecurityType(), device);
+		}
+		return send(call, device,true);
+	}
 
 	private String sendEncapsulated(String message, String securityType, UpDevice target) throws Exception{
 		logger.fine("Authentication needed for type : '"+securityType+"'");
@@ -142,35 +237,92 @@ public class MessageHandler {
 		}
 		try {
 			String message = new JSONNotify(notify).toString();
-			send(message, device,false);
+			if (fanOut != null){
+				fanOut.send(message, conflationKey(notify), Collections.singletonList(device));
+			}else{
+				send(message, device,false);
+			}
 		} catch (Exception e) {
 			throw new MessageEngineException(e);
 		} 
 		
 	}
 	
+	/**
+	 * Sends a notify message to many devices. A device failing to receive 
+	 * it doesn't stop the others.
+	 * 
+	 * @param notify Notify message to be sent.
+	 * @param devices Devices which are going to receive the notify event
+	 * @throws MessageEngineException If the notify can't be encoded.
+	 */
+	public void notifyEventToAll(Notify notify, Collection<UpDevice> devices) throws MessageEngineException{
+		if (	devices == null || notify == null ||
+				notify.getDriver() == null || notify.getDriver().isEmpty() ||
+				notify.getEventKey() == null || notify.getEventKey().isEmpty()){
+			throw new IllegalArgumentException("Either the Devices or Service is invalid.");
+		}
+		String message;
+		try {
+			message = new JSONNotify(notify).toString();
+		} catch (Exception e) {
+			throw new MessageEngineException(e);
+		}
+		if (fanOut != null){
+			fanOut.send(message, conflationKey(notify), devices);
+			return;
+		}
+		for (UpDevice device : devices){
+			try {
+				send(message, device, false);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to notify "+device, e);
+			}
+		}
+	}
+	
+	private String conflationKey(Notify notify) {
+		return conflation == null ? null : conflation.keyOf(notify);
+	}
+	
 	//TODO: refactor this
 	private String send(String message, UpDevice target, boolean waitForResponse) throws Exception{
 		UpNetworkInterface netInt = connectivityManager.getAppropriateInterface(target);
-		ClientConnection connection = connectionManagerControlCenter.openActiveConnection(netInt.getNetworkAddress(), netInt.getNetType());
-		if (connection == null){
-			return null;
-		}
-		OutputStream outputStream = connection.getDataOutputStream();
-		InputStream inputStream = connection.getDataInputStream();
-		
-		if (inputStream == null || outputStream == null){
-			return null;
-		}
-		
-		String response = sendReceive(message, outputStream,inputStream,waitForResponse);
-		
-		connection.closeConnection();
-		
-		if (!waitForResponse || response.isEmpty()){
-			return null;
+		CircuitBreakers breakers = this.breakers;
+		if (breakers != null) breakers.acquire(netInt.getNetworkAddress());
+		long start = System.nanoTime();
+		boolean reached = false;
+		try {
+			ClientConnection connection = connectionManagerControlCenter.openActiveConnection(netInt.getNetworkAddress(), netInt.getNetType());
+			if (connection == null){
+				return null;
+			}
+			OutputStream outputStream = connection.getDataOutputStream();
+			InputStream inputStream = connection.getDataInputStream();
+			
+			if (inputStream == null || outputStream == null){
+				return null;
+			}
+			
+			String response = sendReceive(message, outputStream,inputStream,waitForResponse);
+			
+			connection.closeConnection();
+			
+			// a call without response timed out
+			reached = !waitForResponse || !response.isEmpty();
+			if (!waitForResponse || response.isEmpty()){
+				return null;
+			}
+			return response;
+		} finally {
+			if (breakers != null){
+				if (reached){
+					breakers.success(netInt.getNetworkAddress(), (System.nanoTime() - start) / 1000000);
+				}else{
+					breakers.failure(netInt.getNetworkAddress());
+				}
+			}
 		}
-		return response;
 	}
 	
 	/**
@@ -0,0 +1,403 @@
+package org.unbiquitous.uos.core.messageEngine;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.connectivity.ConnectivityManager;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpNetworkInterface;
+import org.unbiquitous.uos.core.messageEngine.messages.NotifyBatch;
+import org.unbiquitous.uos.core.messageEngine.messages.json.JSONNotifyBatch;
+import org.unbiquitous.uos.core.network.connectionManager.ConnectionManagerControlCenter;
+import org.unbiquitous.uos.core.network.exceptions.NetworkException;
+import org.unbiquitous.uos.core.network.model.connection.ClientConnection;
+
+/**
+ * Sends notifies to many devices in parallel.
+ *
+ * Each destination (address and network type) has its own queue, sent in
+ * order over a connection kept open while there are notifies to send, so a
+ * notify to many listeners costs about one network round instead of one
+ * connection per listener. A slow or dead listener only delays its own
+ * queue: notifies waiting longer than the time to live are expired, and when
+ * a destination fails its queue is dropped and new notifies to it are
+ * discarded for the same time.
+ *
+ * Notifies with a conflation key replace the one with the same key still
+ * waiting, so a slow listener only gets the latest state.
+ *
+ * With a linger time, the notifies to a destination are held for that long
+ * and the ones gathered are sent together in a single {@link NotifyBatch}.
+ */
+public class NotifyFanOut {
+
+	private static Logger logger = UOSLogging.getLogger();
+
+	private static final char MESSAGE_SEPARATOR = '\n';
+
+	/** Maximum amount of notifies sent to a destination (or packed in a batch) before yielding the thread to others. */
+	private static final int BATCH = 32;
+
+	/** Time (in milliseconds) an unused connection is kept open. */
+	private static final long IDLE_TIME = 10000;
+
+	private final ConnectionManagerControlCenter connectionManagerControlCenter;
+	private final ConnectivityManager connectivityManager;
+	private final int capacity;
+	private final long ttl;
+	private final ScheduledThreadPoolExecutor executor;
+	private final ConcurrentMap<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong conflated = new AtomicLong();
+	private volatile long linger = 0;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param threads Maximum amount of destinations being sent to at the same time.
+	 * @param capacity Maximum amount of notifies waiting for each destination.
+	 * @param ttl Time (in milliseconds) a notify can wait to be sent.
+	 */
+	public NotifyFanOut(ConnectionManagerControlCenter connectionManagerControlCenter,
+						ConnectivityManager connectivityManager,
+						int threads, int capacity, long ttl) {
+		if (threads <= 0 || capacity <= 0 || ttl <= 0){
+			throw new IllegalArgumentException("Fan out needs at least one thread, a positive capacity and a positive time to live.");
+		}
+		this.connectionManagerControlCenter = connectionManagerControlCenter;
+		this.connectivityManager = connectivityManager;
+		this.capacity = capacity;
+		this.ttl = ttl;
+		this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "uos-notify-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @param linger Time (in milliseconds) notifies wait for others to the
+	 * 			same destination, to be sent together. 0 sends them right away.
+	 */
+	public void setLinger(long linger) {
+		if (linger < 0) throw new IllegalArgumentException("Linger time cannot be negative.");
+		this.linger = linger;
+	}
+
+	/**
+	 * Queues the message to each device.
+	 *
+	 * @param message The notify already encoded.
+	 * @param devices Devices to receive it.
+	 */
+	public void send(String message, Collection<UpDevice> devices) {
+		send(message, null, devices);
+	}
+
+	/**
+	 * Queues the message to each device, replacing a message with the same
+	 * conflation key still waiting.
+	 *
+	 * @param message The notify already encoded.
+	 * @param conflationKey Key of the state carried by the notify (see
+	 * 			{@link EventConflation}), or <code>null</code> to always queue it.
+	 * @param devices Devices to receive it.
+	 */
+	public void send(String message, String conflationKey, Collection<UpDevice> devices) {
+		for (UpDevice device : devices){
+			if (shutdown) return;
+			UpNetworkInterface netInt = null;
+			try {
+				netInt = connectivityManager.getAppropriateInterface(device);
+			} catch (NetworkException e) {
+				logger.log(Level.FINE, "No interface to notify "+device, e);
+			}
+			if (netInt == null){
+				dropped.incrementAndGet();
+				continue;
+			}
+			destination(netInt.getNetworkAddress(), netInt.getNetType()).offer(message, conflationKey);
+		}
+	}
+
+	private Destination destination(String address, String netType) {
+		String key = address+"@"+netType;
+		Destination destination = destinations.get(key);
+		if (destination == null){
+			Destination created = new Destination(key, address, netType);
+			destination = destinations.putIfAbsent(key, created);
+			if (destination == null) destination = created;
+		}
+		return destination;
+	}
+
+	/** @return Amount of notifies sent. */
+	public long sent() {
+		return sent.get();
+	}
+
+	/** @return Amount of notifies discarded because the queue was full or the destination unreachable. */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	/** @return Amount of notifies replaced by a newer one with the same conflation key. */
+	public long conflated() {
+		return conflated.get();
+	}
+
+	/** @return Amount of notifies discarded because they waited longer than the time to live. */
+	public long expired() {
+		return expired.get();
+	}
+
+	/** @return Amount of destinations with a queue, connection or failure being kept. */
+	int destinations() {
+		return destinations.size();
+	}
+
+	/** @return Amount of notifies waiting to be sent. */
+	public int pending() {
+		int pending = 0;
+		for (Destination destination : destinations.values()){
+			pending += destination.size();
+		}
+		return pending;
+	}
+
+	/**
+	 * Stops sending notifies and closes the connections. The ones waiting are discarded.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		executor.shutdownNow();
+		for (Destination destination : destinations.values()){
+			destination.clear();
+		}
+		destinations.clear();
+	}
+
+	private static class Entry {
+		String message;
+		long enqueuedAt = System.currentTimeMillis();
+		final String conflationKey;
+		Entry(String message, String conflationKey) {
+			this.message = message;
+			this.conflationKey = conflationKey;
+		}
+	}
+
+	private class Destination implements Runnable {
+		private final String key;
+		private final String address;
+		private final String netType;
+		private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+		private boolean scheduled = false;
+		private long downUntil = 0;
+		private long lastUsed = 0;
+		// only touched by the thread draining the queue, or while idle
+		private ClientConnection connection;
+		private BufferedWriter writer;
+
+		Destination(String key, String address, String netType) {
+			this.key = key;
+			this.address = address;
+			this.netType = netType;
+		}
+
+		synchronized void offer(String message, String conflationKey) {
+			if (System.currentTimeMillis() < downUntil){
+				dropped.incrementAndGet();
+				return;
+			}
+			if (conflationKey != null && conflate(message, conflationKey)) return;
+			if (queue.size() >= capacity){
+				queue.poll();
+				dropped.incrementAndGet();
+			}
+			queue.add(new Entry(message, conflationKey));
+			schedule();
+		}
+
+		private boolean conflate(String message, String conflationKey) {
+			Iterator<Entry> it = queue.descendingIterator();
+			while (it.hasNext()){
+				Entry entry = it.next();
+				if (conflationKey.equals(entry.conflationKey)){
+					// keeps its place in the queue, but with the fresh state
+					entry.message = message;
+					entry.enqueuedAt = System.currentTimeMillis();
+					conflated.incrementAndGet();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void schedule() {
+			if (scheduled || shutdown) return;
+			scheduled = true;
+			try {
+				if (linger > 0){
+					executor.schedule(this, linger, TimeUnit.MILLISECONDS);
+				}else{
+					executor.execute(this);
+				}
+			} catch (RejectedExecutionException e) {
+				scheduled = false;
+			}
+		}
+
+		public void run() {
+			if (linger > 0){
+				List<String> batch = poll(BATCH);
+				if (!batch.isEmpty()) deliver(batch.size() == 1 ? batch.get(0) : JSONNotifyBatch.pack(batch), batch.size());
+			}else{
+				for (int i = 0; i < BATCH; i++){
+					List<String> next = poll(1);
+					if (next.isEmpty() || !deliver(next.get(0), 1)) break;
+				}
+			}
+			synchronized (this) {
+				scheduled = false;
+				lastUsed = System.currentTimeMillis();
+				if (!queue.isEmpty()){
+					schedule();
+				}else if (connection != null){
+					scheduleCleanup(IDLE_TIME);
+				}else if (downUntil > lastUsed){
+					// a failed destination is forgotten once it may be tried again
+					scheduleCleanup(downUntil - lastUsed);
+				}
+			}
+		}
+
+		/**
+		 * @return Up to the maximum of notifies waiting, discarding the expired ones.
+		 */
+		private synchronized List<String> poll(int max) {
+			List<String> messages = new ArrayList<String>();
+			long now = System.currentTimeMillis();
+			while (messages.size() < max && !queue.isEmpty()){
+				Entry entry = queue.poll();
+				if (now - entry.enqueuedAt > ttl){
+					expired.incrementAndGet();
+				}else{
+					messages.add(entry.message);
+				}
+			}
+			return messages;
+		}
+
+		/**
+		 * @return <code>false</code> if the destination failed.
+		 */
+		private boolean deliver(String message, int notifies) {
+			try {
+				write(message);
+				sent.addAndGet(notifies);
+				return true;
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to notify "+key+", dropping its notifies for "+ttl+"ms.", e);
+				close();
+				synchronized (this) {
+					dropped.addAndGet(queue.size() + notifies);
+					queue.clear();
+					downUntil = System.currentTimeMillis() + ttl;
+				}
+				return false;
+			}
+		}
+
+		private void write(String message) throws IOException, NetworkException {
+			if (connection != null){
+				try {
+					send(message);
+					return;
+				} catch (IOException e) {
+					// the peer may have dropped a connection kept open, try a fresh one
+					logger.log(Level.FINE, "Reconnecting to "+key, e);
+					close();
+				}
+			}
+			connection = connectionManagerControlCenter.openActiveConnection(address, netType);
+			if (connection == null) throw new IOException("Could not connect to "+key);
+			writer = new BufferedWriter(new OutputStreamWriter(connection.getDataOutputStream()));
+			send(message);
+		}
+
+		private void send(String message) throws IOException {
+			if (!connection.isConnected()) throw new IOException("Connection to "+key+" closed");
+			// notifies have no answer, but the peer may still write something back
+			InputStream in = connection.getDataInputStream();
+			if (in != null && in.available() > 0) in.skip(in.available());
+			writer.write(message);
+			writer.write(MESSAGE_SEPARATOR);
+			writer.flush();
+		}
+
+		private void scheduleCleanup(long delay) {
+			if (shutdown) return;
+			try {
+				executor.schedule(new Runnable() {
+					public void run() {
+						closeIfIdle();
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// shutting down
+			}
+		}
+
+		private synchronized void closeIfIdle() {
+			if (scheduled || !queue.isEmpty()) return;
+			long now = System.currentTimeMillis();
+			if (now < downUntil) return;
+			if (connection != null && now - lastUsed < IDLE_TIME) return;
+			close();
+			destinations.remove(key, this);
+		}
+
+		private void close() {
+			if (connection == null) return;
+			try {
+				connection.closeConnection();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Failed to close connection to "+key, e);
+			}
+			connection = null;
+			writer = null;
+		}
+
+		synchronized int size() {
+			return queue.size();
+		}
+
+		synchronized void clear() {
+			queue.clear();
+			if (!scheduled) close();
+		}
+	}
+}
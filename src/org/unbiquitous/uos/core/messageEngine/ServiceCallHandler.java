@@ -4,6 +4,7 @@ import org.unbiquitous.uos.core.applicationManager.UOSMessageContext;
 import org.unbiquitous.uos.core.driverManager.DriverManagerException;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponseFuture;
 
 /**
  * Interface Responsible for handling the service call messages
@@ -20,4 +21,13 @@ public interface ServiceCallHandler {
 	 * @return serviceResponse returned from the service.
 	 */
 	public ServiceResponse handleServiceCall(ServiceCall serviceCall, UOSMessageContext messageContext) throws DriverManagerException;
+	
+	/**
+	 * Method responsible for handling a service call in the appropriate instance driver
+	 * without waiting for services that answer asynchronously.
+	 * 
+	 * @param serviceCall ServiceCall message Received.
+	 * @return future serviceResponse returned from the service.
+	 */
+	public ServiceResponseFuture handleServiceCallAsync(ServiceCall serviceCall, UOSMessageContext messageContext) throws DriverManagerException;
 }
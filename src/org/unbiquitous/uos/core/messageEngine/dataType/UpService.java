@@ -11,6 +11,12 @@ public class UpService {
 	
 	private Map<String, ParameterType> parameters;
 	
+	private String conflationKey;
+	
+	private long cacheTtl;
+	
+	private boolean idempotent;
+	
 	public UpService() {}
 	
 	public UpService(String name) {
@@ -49,6 +55,64 @@ public class UpService {
 		return this;
 	}
 	
+	/**
+	 * @return The parameter identifying the state carried by this event, or 
+	 * 			<code>null</code> if every notify of it must be delivered.
+	 */
+	public String getConflationKey() {
+		return conflationKey;
+	}
+
+	/**
+	 * Declares that only the latest notify of this event matters for each
+	 * value of the parameter informed (like the e-mail of a user whose
+	 * position changed). Notifies still waiting to be delivered are then 
+	 * replaced by newer ones with the same value.
+	 * 
+	 * @param conflationKey Name of the parameter, or <code>null</code> to deliver every notify.
+	 */
+	public void setConflationKey(String conflationKey) {
+		this.conflationKey = conflationKey;
+	}
+	
+	/**
+	 * @return For how long (in milliseconds) the responses of this service 
+	 * 			can be reused, or 0 if it must always be called.
+	 */
+	public long getCacheTtl() {
+		return cacheTtl;
+	}
+
+	/**
+	 * Declares that this service only reads the state of the driver, so its
+	 * responses can be reused by the callers for the same parameters until 
+	 * the time informed passes or the driver sends an event.
+	 * 
+	 * @param cacheTtl Time (in milliseconds), or 0 to always call the service.
+	 */
+	public void setCacheTtl(long cacheTtl) {
+		if (cacheTtl < 0) throw new IllegalArgumentException("Cache TTL cannot be negative.");
+		this.cacheTtl = cacheTtl;
+	}
+	
+	/**
+	 * @return <code>true</code> if calling this service more than once has
+	 * 			the same effect as calling it once.
+	 */
+	public boolean isIdempotent() {
+		return idempotent;
+	}
+
+	/**
+	 * Declares that this service can be called more than once, on any 
+	 * instance of the driver, with the same effect as calling it once. Slow 
+	 * calls to it may then be sent to another instance as well, using the
+	 * first response.
+	 */
+	public void setIdempotent(boolean idempotent) {
+		this.idempotent = idempotent;
+	}
+	
 	@Override
 	public boolean equals(Object obj) {
 		if (obj == null || ! (obj instanceof UpService))
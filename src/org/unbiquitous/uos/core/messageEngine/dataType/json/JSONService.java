@@ -13,6 +13,9 @@ public class JSONService extends JSONObject {
 	
 	private static final String PROP_NAME = "name";
 	private static final String PROP_PARAMETERS = "parameters";
+	private static final String PROP_CONFLATION_KEY = "conflationKey";
+	private static final String PROP_CACHE_TTL = "cacheTtl";
+	private static final String PROP_IDEMPOTENT = "idempotent";
 
 	public JSONService(String source) throws JSONException {
 		super(source);
@@ -21,6 +24,13 @@ public class JSONService extends JSONObject {
 	public JSONService(UpService bean) throws JSONException {
 		this.put(PROP_NAME,bean.getName());
 		this.put(PROP_PARAMETERS,bean.getParameters());
+		this.put(PROP_CONFLATION_KEY,bean.getConflationKey());
+		if (bean.getCacheTtl() > 0){
+			this.put(PROP_CACHE_TTL,bean.getCacheTtl());
+		}
+		if (bean.isIdempotent()){
+			this.put(PROP_IDEMPOTENT,true);
+		}
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -28,6 +38,9 @@ public class JSONService extends JSONObject {
 		UpService service = new UpService();
 		
 		service.setName(this.getString(PROP_NAME));
+		service.setConflationKey(this.optString(PROP_CONFLATION_KEY, null));
+		service.setCacheTtl(Math.max(0, this.optLong(PROP_CACHE_TTL, 0)));
+		service.setIdempotent(this.optBoolean(PROP_IDEMPOTENT, false));
 		
 		if (!this.isNull(PROP_PARAMETERS)){
 			Map<String,UpService.ParameterType> map = new HashMap<String,UpService.ParameterType>();
@@ -4,7 +4,7 @@ package org.unbiquitous.uos.core.messageEngine.messages;
 
 public class Message {
 	
-	public enum Type{SERVICE_CALL_REQUEST, SERVICE_CALL_RESPONSE,NOTIFY,ENCAPSULATED_MESSAGE};
+	public enum Type{SERVICE_CALL_REQUEST, SERVICE_CALL_RESPONSE,NOTIFY,ENCAPSULATED_MESSAGE,NOTIFY_BATCH};
 
 	private Type type;
 	
@@ -0,0 +1,35 @@
+package org.unbiquitous.uos.core.messageEngine.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Many notifies to the same device sent as a single message. They are
+ * handled in the order they were added.
+ */
+public class NotifyBatch extends Message {
+
+	private List<Notify> notifies = new ArrayList<Notify>();
+
+	public NotifyBatch() {
+		setType(Type.NOTIFY_BATCH);
+	}
+
+	public NotifyBatch(List<Notify> notifies) {
+		this();
+		this.notifies = notifies;
+	}
+
+	public List<Notify> getNotifies() {
+		return notifies;
+	}
+
+	public void setNotifies(List<Notify> notifies) {
+		this.notifies = notifies;
+	}
+
+	public NotifyBatch addNotify(Notify notify) {
+		notifies.add(notify);
+		return this;
+	}
+}
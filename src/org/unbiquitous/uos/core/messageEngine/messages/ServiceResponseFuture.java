@@ -0,0 +1,165 @@
+package org.unbiquitous.uos.core.messageEngine.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link ServiceResponse} which will be available later.
+ *
+ * A driver service may return a ServiceResponseFuture instead of filling the
+ * response it receives. The caller is answered when the driver completes it
+ * (from any thread), so no thread is held while the driver waits on hardware
+ * or on other devices. Ex:
+ *
+ * <pre>
+ * public ServiceResponseFuture read(ServiceCall call, ServiceResponse response, UOSMessageContext ctx){
+ *     final ServiceResponseFuture future = new ServiceResponseFuture();
+ *     sensor.onData(new Callback(){
+ *         public void data(String value){ future.complete(new ServiceResponse().addParameter("value", value)); }
+ *     });
+ *     return future;
+ * }
+ * </pre>
+ */
+public class ServiceResponseFuture implements Future<ServiceResponse> {
+
+	/**
+	 * Notified once the future is completed, failed or cancelled.
+	 */
+	public interface Listener {
+		void onComplete(ServiceResponseFuture future);
+	}
+
+	private ServiceResponse response;
+	private Throwable error;
+	private boolean done;
+	private List<Listener> listeners = new ArrayList<Listener>();
+
+	/**
+	 * @return A future already completed with the informed response.
+	 */
+	public static ServiceResponseFuture completed(ServiceResponse response){
+		ServiceResponseFuture future = new ServiceResponseFuture();
+		future.complete(response);
+		return future;
+	}
+
+	/**
+	 * @return A future already failed with the informed error.
+	 */
+	public static ServiceResponseFuture failed(Throwable error){
+		ServiceResponseFuture future = new ServiceResponseFuture();
+		future.fail(error);
+		return future;
+	}
+
+	/**
+	 * Answers the call with the informed response.
+	 *
+	 * @return <code>false</code> if the future was already done.
+	 */
+	public boolean complete(ServiceResponse response){
+		return finish(response, null);
+	}
+
+	/**
+	 * Answers the call with an error.
+	 *
+	 * @return <code>false</code> if the future was already done.
+	 */
+	public boolean fail(Throwable error){
+		if (error == null) throw new IllegalArgumentException("Error cannot be null.");
+		return finish(null, error);
+	}
+
+	private boolean finish(ServiceResponse response, Throwable error){
+		List<Listener> toNotify;
+		synchronized (this) {
+			if (done) return false;
+			this.response = response;
+			this.error = error;
+			this.done = true;
+			toNotify = listeners;
+			listeners = null;
+			notifyAll();
+		}
+		for (Listener l : toNotify){
+			l.onComplete(this);
+		}
+		return true;
+	}
+
+	/**
+	 * Registers a listener to be notified when the future is done. If it is
+	 * already done, the listener is notified right away on the current thread.
+	 */
+	public void addListener(Listener listener){
+		synchronized (this) {
+			if (!done){
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.onComplete(this);
+	}
+
+	/**
+	 * @return The response, or <code>null</code> if not done or failed.
+	 */
+	public synchronized ServiceResponse getResponse() {
+		return response;
+	}
+
+	/**
+	 * @return The failure cause, or <code>null</code> if not done or completed.
+	 */
+	public synchronized Throwable getError() {
+		return error;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(null, new CancellationException());
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return error instanceof CancellationException;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized ServiceResponse get() throws InterruptedException, ExecutionException {
+		while (!done){
+			wait();
+		}
+		return result();
+	}
+
+	@Override
+	public synchronized ServiceResponse get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!done){
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return result();
+	}
+
+	private ServiceResponse result() throws ExecutionException {
+		if (error instanceof CancellationException) throw (CancellationException) error;
+		if (error != null) throw new ExecutionException(error);
+		return response;
+	}
+}
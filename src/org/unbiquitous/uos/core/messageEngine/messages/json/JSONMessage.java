@@ -21,6 +21,13 @@ public class JSONMessage extends JSONObject  {
 		super(map);
 	}
 	
+	/**
+	 * Reads a message already parsed, sharing its values.
+	 */
+	public JSONMessage(JSONObject json) throws JSONException {
+		super(json, json.length() == 0 ? new String[0] : JSONObject.getNames(json));
+	}
+	
 	public JSONMessage(Message bean) throws JSONException {
 		this.put(PROP_TYPE,bean.getType());
 		this.put(PROP_ERROR,bean.getError());
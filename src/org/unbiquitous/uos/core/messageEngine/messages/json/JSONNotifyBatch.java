@@ -0,0 +1,63 @@
+package org.unbiquitous.uos.core.messageEngine.messages.json;
+
+import java.util.Collection;
+
+import org.unbiquitous.json.JSONArray;
+import org.unbiquitous.json.JSONException;
+import org.unbiquitous.json.JSONObject;
+import org.unbiquitous.uos.core.messageEngine.messages.Message;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.messageEngine.messages.NotifyBatch;
+
+public class JSONNotifyBatch extends JSONMessage {
+
+	protected static final String PROP_NOTIFIES = "notifies";
+
+	public JSONNotifyBatch(String source) throws JSONException {
+		super(source);
+	}
+
+	public JSONNotifyBatch(NotifyBatch bean) throws JSONException {
+		super((Message)bean);
+		JSONArray notifies = new JSONArray();
+		for (Notify notify : bean.getNotifies()){
+			notifies.put(new JSONNotify(notify));
+		}
+		this.put(PROP_NOTIFIES, notifies);
+	}
+
+	/**
+	 * Packs notifies already encoded, without decoding them again.
+	 *
+	 * @param notifies Each notify as a JSON string.
+	 * @return The batch message as a JSON string.
+	 */
+	public static String pack(Collection<String> notifies) {
+		StringBuilder batch = new StringBuilder();
+		batch.append("{\"").append(PROP_TYPE).append("\":\"").append(Message.Type.NOTIFY_BATCH)
+			.append("\",\"").append(PROP_NOTIFIES).append("\":[");
+		boolean first = true;
+		for (String notify : notifies){
+			if (!first) batch.append(',');
+			batch.append(notify);
+			first = false;
+		}
+		return batch.append("]}").toString();
+	}
+
+	public NotifyBatch getAsObject() throws JSONException{
+		NotifyBatch batch = new NotifyBatch();
+
+		batch.setError(this.optString(PROP_ERROR,null));
+
+		JSONArray notifies = this.optJSONArray(PROP_NOTIFIES);
+		if (notifies != null){
+			for (int i = 0; i < notifies.length(); i++){
+				JSONObject notify = notifies.getJSONObject(i);
+				batch.addNotify(new JSONNotify(notify.toString()).getAsObject());
+			}
+		}
+
+		return batch;
+	}
+}
@@ -32,6 +32,10 @@ public class JSONServiceCall extends JSONMessage  {
 	}
 	
 	
+	public JSONServiceCall(JSONObject json) throws JSONException {
+		super(json);
+	}
+	
 	public JSONServiceCall(ServiceCall bean) throws JSONException {
 		super((Message)bean);
 		this.put(PROP_DRIVER,stringFillHelper(bean.getDriver()));
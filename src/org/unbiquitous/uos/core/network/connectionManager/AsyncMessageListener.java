@@ -0,0 +1,39 @@
+package org.unbiquitous.uos.core.network.connectionManager;
+
+import org.unbiquitous.uos.core.network.exceptions.NetworkException;
+import org.unbiquitous.uos.core.network.model.NetworkDevice;
+
+/**
+ * A {@link MessageListener} able to answer messages later, so the thread 
+ * handling the connection doesn't need to wait while the response is produced.
+ * 
+ */
+public interface AsyncMessageListener extends MessageListener {
+
+	/**
+	 * Delivers the response of a message back to its connection.
+	 */
+	public interface Reply {
+		/**
+		 * @param response Message to be returned as a response, or null if not needed.
+		 */
+		public void send(String response);
+		
+		/**
+		 * Closes the connection once the reply is sent, instead of waiting for 
+		 * further messages on it.
+		 */
+		public void close();
+	}
+	
+	/**
+	 * Method called by the Connection Manager when a new message is received.
+	 * The reply must be sent exactly once, by any thread, even when no response is needed.
+	 * 
+	 * @param message Message received by the Connection Manager 
+	 * @param clientDevice Device object representing the client device responsible for the message
+	 * @param reply Where the response must be sent when available.
+	 */
+	public void handleIncomingMessage(String message, NetworkDevice clientDevice, Reply reply) throws NetworkException ;
+	
+}
@@ -36,6 +36,12 @@ public class ThreadedConnectionHandler extends Thread {
 	/** A Connection Manager Listener */
 	private MessageListener messageListener = null;
 	
+	private BufferedReader reader = null;
+	private BufferedWriter writer = null;
+	
+	/** If the connection is waiting for an asynchronous response, and must not be closed. */
+	private boolean suspended = false;
+	
 	
 	/* *****************************
 	 *   	CONSTRUCTOR
@@ -49,6 +55,16 @@ public class ThreadedConnectionHandler extends Thread {
         this.messageListener = messageListener;
     }
 	
+	/**
+	 * Resumes handling a connection after its asynchronous response was sent.
+	 */
+	private ThreadedConnectionHandler(ClientConnection con, MessageListener messageListener,
+										BufferedReader reader, BufferedWriter writer) {
+		this(con, messageListener);
+		this.reader = reader;
+		this.writer = writer;
+	}
+	
 	/* *****************************
      *   	PUBLIC  METHODS - Thread
      * *****************************/
@@ -71,8 +87,10 @@ public class ThreadedConnectionHandler extends Thread {
         logger.fine("Connection received from an ubiquitos-client device :'"+con.getClientDevice().getNetworkDeviceName()+"' on '"+con.getClientDevice().getNetworkDeviceType()+"'.");
         
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(con.getDataInputStream()));
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(con.getDataOutputStream()));
+            if (reader == null){
+            	reader = new BufferedReader(new InputStreamReader(con.getDataInputStream()));
+            	writer = new BufferedWriter(new OutputStreamWriter(con.getDataOutputStream()));
+            }
             /**
              * The strategy is as follows:
              * 
@@ -82,6 +100,9 @@ public class ThreadedConnectionHandler extends Thread {
              * One connection can handle multiple messages, so we collect each character from the message until its 
              * separator come.
              * 
+             * When the listener answers asynchronously, this thread is released while the response is pending and
+             * a new one resumes the connection once it is sent.
+             * 
              */
             int notReadyCount = 0;
             while(con.isConnected()){
@@ -96,9 +117,21 @@ public class ThreadedConnectionHandler extends Thread {
 	            	
 	            	String returnedMessage;
 					try {
-						returnedMessage = messageListener.handleIncomingMessage(builder.toString(),con.getClientDevice());
-						writer.write(returnedMessage+MESSAGE_SEPARATOR);
-						writer.flush();
+						if (messageListener instanceof AsyncMessageListener){
+							PendingReply reply = new PendingReply();
+							((AsyncMessageListener)messageListener).handleIncomingMessage(builder.toString(),con.getClientDevice(), reply);
+							if (reply.suspend()){
+								logger.fine("Waiting for asynchronous response, releasing connection thread.");
+								suspended = true;
+								return;
+							}
+							if (reply.closing){
+								break;
+							}
+						}else{
+							returnedMessage = messageListener.handleIncomingMessage(builder.toString(),con.getClientDevice());
+							write(returnedMessage);
+						}
 						logger.fine("Message Handled");
 					} catch (Exception e) {
 						logger.log(Level.SEVERE,"Failed to handle ubiquitos-smartspace connection.", e);
@@ -117,13 +150,70 @@ public class ThreadedConnectionHandler extends Thread {
         } catch (Exception e) {
             logger.log(Level.SEVERE,"Failed to handle ubiquitos-smartspace connection.", e);
         } finally {
-            try {
-                con.closeConnection();
-                con = null;
-                logger.log(Level.INFO,"Closing Connection !!!");
-            } catch (IOException ex) {
-                logger.log(Level.SEVERE,"Failed to close ubiquitos-smartspace connection.", ex);
-            }
+        	if (!suspended){
+        		closeConnection();
+        	}
+        }
+    }
+    
+    private void closeConnection() {
+        try {
+            con.closeConnection();
+            con = null;
+            logger.log(Level.INFO,"Closing Connection !!!");
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE,"Failed to close ubiquitos-smartspace connection.", ex);
         }
     }
+    
+    private void write(String returnedMessage) throws IOException {
+    	writer.write(returnedMessage+MESSAGE_SEPARATOR);
+    	writer.flush();
+    }
+    
+    /**
+     * Reply of a message handled by an AsyncMessageListener. If it is sent after the 
+     * handling thread was released, a new thread resumes the connection.
+     */
+    private class PendingReply implements AsyncMessageListener.Reply {
+    	private boolean sent = false;
+    	private boolean released = false;
+    	private volatile boolean closing = false;
+    	
+    	public void send(String response) {
+    		boolean resume;
+    		synchronized (this) {
+    			if (sent) return;
+    			sent = true;
+    			resume = released;
+    			try {
+    				write(response);
+    			} catch (IOException e) {
+    				logger.log(Level.SEVERE,"Failed to send asynchronous response.", e);
+    				if (resume) closeConnection();
+    				return;
+    			}
+    		}
+    		if (resume){
+    			if (closing){
+    				closeConnection();
+    			}else{
+    				new ThreadedConnectionHandler(con, messageListener, reader, writer).start();
+    			}
+    		}
+    	}
+    	
+    	public void close() {
+    		closing = true;
+    	}
+    	
+    	/**
+    	 * @return <code>true</code> if the reply wasn't sent yet, so the handling thread can be released. 
+    	 */
+    	synchronized boolean suspend() {
+    		if (sent) return false;
+    		released = true;
+    		return true;
+    	}
+    }
 } 
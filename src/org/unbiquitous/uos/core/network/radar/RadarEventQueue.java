@@ -0,0 +1,164 @@
+package org.unbiquitous.uos.core.network.radar;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.network.model.NetworkDevice;
+
+/**
+ * Passes the radar events to a listener through a work queue, so a radar
+ * isn't blocked while the listener talks to the devices found.
+ *
+ * The events of each network device (address and type) are handled one at a
+ * time and in order. Events arriving while one is being handled replace each
+ * other, so only the latest is handled next (flapping between entering and
+ * leaving collapses into the final state) and it's dropped if it repeats the
+ * one just handled.
+ *
+ * With no threads the events are handled on the radar thread, still
+ * collapsing the ones arriving from other radars meanwhile.
+ */
+public class RadarEventQueue implements RadarListener {
+
+	private static final Logger logger = UOSLogging.getLogger();
+
+	private RadarListener listener;
+	private ExecutorService executor;
+	/** Devices with events being handled or waiting, by address and type. */
+	private Map<String, Slot> slots = new HashMap<String, Slot>();
+
+	/**
+	 * @param listener Who handles the events.
+	 * @param threads Maximum amount of events handled at the same time, 0
+	 * 			to handle them on the radar thread.
+	 */
+	public RadarEventQueue(RadarListener listener, int threads) {
+		if (listener == null) throw new IllegalArgumentException("Listener cannot be null.");
+		if (threads < 0) throw new IllegalArgumentException("Amount of threads cannot be negative.");
+		this.listener = listener;
+		if (threads > 0){
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+						60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+						new ThreadFactory() {
+							private AtomicInteger count = new AtomicInteger();
+							public Thread newThread(Runnable r) {
+								Thread t = new Thread(r, "uos-radar-events-"+count.incrementAndGet());
+								t.setDaemon(true);
+								return t;
+							}
+						});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+	}
+
+	@Override
+	public void deviceEntered(NetworkDevice device) {
+		enqueue(device, true);
+	}
+
+	@Override
+	public void deviceLeft(NetworkDevice device) {
+		enqueue(device, false);
+	}
+
+	private void enqueue(NetworkDevice device, boolean entered) {
+		if (device == null){
+			dispatch(device, entered);
+			return;
+		}
+		final String key = device.getNetworkDeviceName()+"@"+device.getNetworkDeviceType();
+		synchronized (slots) {
+			Slot slot = slots.get(key);
+			if (slot != null){
+				// someone is already on it, just leave the latest state
+				slot.device = device;
+				slot.entered = entered;
+				slot.pending = true;
+				return;
+			}
+			slot = new Slot();
+			slot.device = device;
+			slot.entered = entered;
+			slot.pending = true;
+			slots.put(key, slot);
+		}
+		Runnable drain = new Runnable() {
+			public void run() {
+				drain(key);
+			}
+		};
+		if (executor == null){
+			drain.run();
+		}else{
+			executor.execute(drain);
+		}
+	}
+
+	private void drain(String key) {
+		Boolean last = null;
+		while (true){
+			NetworkDevice device;
+			boolean entered;
+			synchronized (slots) {
+				Slot slot = slots.get(key);
+				if (!slot.pending){
+					slots.remove(key);
+					return;
+				}
+				slot.pending = false;
+				device = slot.device;
+				entered = slot.entered;
+			}
+			if (last != null && last == entered){
+				logger.fine("Ignoring repeated radar event for "+key);
+				continue;
+			}
+			last = entered;
+			dispatch(device, entered);
+		}
+	}
+
+	private void dispatch(NetworkDevice device, boolean entered) {
+		try {
+			if (entered){
+				listener.deviceEntered(device);
+			}else{
+				listener.deviceLeft(device);
+			}
+		} catch (RuntimeException e) {
+			logger.log(Level.SEVERE, "Failed to handle radar event.", e);
+		}
+	}
+
+	/**
+	 * @return Amount of devices with events being handled or waiting.
+	 */
+	public int pending() {
+		synchronized (slots) {
+			return slots.size();
+		}
+	}
+
+	/**
+	 * Stops handling events. Events waiting are discarded.
+	 */
+	public void shutdown() {
+		if (executor != null) executor.shutdownNow();
+	}
+
+	private static class Slot {
+		NetworkDevice device;
+		boolean entered;
+		boolean pending;
+	}
+}
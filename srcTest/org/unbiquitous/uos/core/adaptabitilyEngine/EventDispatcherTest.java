@@ -0,0 +1,254 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.unbiquitous.uos.core.adaptabitilyEngine.EventDispatcher.Overflow;
+import org.unbiquitous.uos.core.messageEngine.EventConflation;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+public class EventDispatcherTest {
+
+	private EventDispatcher dispatcher;
+
+	@After
+	public void tearDown() {
+		if (dispatcher != null) dispatcher.shutdown();
+	}
+
+	@Test
+	public void deliversTheNotifiesOfAListenerInOrder() throws Exception {
+		dispatcher = new EventDispatcher(4, 1000, Overflow.BLOCK);
+		RecordingListener listener = new RecordingListener();
+		for (int i = 0; i < 500; i++){
+			dispatcher.dispatch(listener, event("key", "" + i));
+		}
+		waitDelivered(listener, 500);
+		for (int i = 0; i < 500; i++){
+			assertThat(listener.received.get(i)).isEqualTo("key#" + i);
+		}
+		assertThat(dispatcher.stats(listener).delivered()).isEqualTo(500);
+		assertThat(dispatcher.stats(listener).queued()).isZero();
+	}
+
+	@Test
+	public void runsDifferentListenersInParallel() throws Exception {
+		dispatcher = new EventDispatcher(2, 10, Overflow.BLOCK);
+		final CountDownLatch bothIn = new CountDownLatch(2);
+		dispatcher.dispatch(new UosEventListener() {
+			public void handleEvent(Notify event) {
+				waitingHandle(bothIn);
+			}
+		}, event("key", "a"));
+		dispatcher.dispatch(new UosEventListener(){
+			public void handleEvent(Notify event) {
+				waitingHandle(bothIn);
+			}
+		}, event("key", "b"));
+		assertThat(bothIn.await(5, TimeUnit.SECONDS)).isTrue();
+	}
+
+	@Test
+	public void dropsTheOldestNotifyWhenFull() throws Exception {
+		dispatcher = new EventDispatcher(1, 2, Overflow.DROP_OLDEST);
+		BlockedListener listener = new BlockedListener();
+		dispatcher.dispatch(listener, event("key", "0"));
+		assertThat(listener.started.await(5, TimeUnit.SECONDS)).isTrue();
+
+		dispatcher.dispatch(listener, event("key", "1"));
+		dispatcher.dispatch(listener, event("key", "2"));
+		dispatcher.dispatch(listener, event("key", "3"));
+		assertThat(dispatcher.stats(listener).dropped()).isEqualTo(1);
+		listener.release.countDown();
+
+		waitDelivered(listener, 3);
+		assertThat(listener.received).containsExactly("key#0", "key#2", "key#3");
+	}
+
+	@Test
+	public void coalescesNotifiesOfTheSameEvent() throws Exception {
+		dispatcher = new EventDispatcher(1, 10, Overflow.COALESCE);
+		BlockedListener listener = new BlockedListener();
+		dispatcher.dispatch(listener, event("key", "a"));
+		assertThat(listener.started.await(5, TimeUnit.SECONDS)).isTrue();
+
+		Notify last = event("key", "b");
+		dispatcher.dispatch(listener, event("key", "b"));
+		dispatcher.dispatch(listener, event("other", "b"));
+		dispatcher.dispatch(listener, last);
+		assertThat(dispatcher.stats(listener).coalesced()).isEqualTo(1);
+		assertThat(dispatcher.stats(listener).queued()).isEqualTo(2);
+		listener.release.countDown();
+
+		waitDelivered(listener, 3);
+		assertThat(listener.received).containsExactly("key#a", "key#b", "other#b");
+		assertThat(listener.notifies.get(1)).isSameAs(last);
+	}
+
+	@Test
+	public void replacesNotifiesWithTheSameConflationKey() throws Exception {
+		dispatcher = new EventDispatcher(1, 10, Overflow.BLOCK);
+		EventConflation conflation = mock(EventConflation.class);
+		Notify user1 = event("position", "1").addParameter("x", "1");
+		Notify user2 = event("position", "2").addParameter("x", "2");
+		Notify user1Again = event("position", "3").addParameter("x", "3");
+		when(conflation.keyOf(user1)).thenReturn("user1");
+		when(conflation.keyOf(user2)).thenReturn("user2");
+		when(conflation.keyOf(user1Again)).thenReturn("user1");
+		dispatcher.setConflation(conflation);
+		BlockedListener listener = new BlockedListener();
+		dispatcher.dispatch(listener, event("key", "0"));
+		assertThat(listener.started.await(5, TimeUnit.SECONDS)).isTrue();
+
+		dispatcher.dispatch(listener, user1);
+		dispatcher.dispatch(listener, user2);
+		dispatcher.dispatch(listener, user1Again);
+		listener.release.countDown();
+
+		waitDelivered(listener, 3);
+		assertThat(listener.received).containsExactly("key#0", "position#3", "position#2");
+		assertThat(dispatcher.stats(listener).coalesced()).isEqualTo(1);
+	}
+
+	@Test
+	public void blocksWhoNotifiesUntilTheListenerCatchesUp() throws Exception {
+		dispatcher = new EventDispatcher(1, 1, Overflow.BLOCK);
+		final BlockedListener listener = new BlockedListener();
+		dispatcher.dispatch(listener, event("key", "0"));
+		assertThat(listener.started.await(5, TimeUnit.SECONDS)).isTrue();
+		dispatcher.dispatch(listener, event("key", "1"));
+
+		Thread notifying = new Thread(){
+			public void run() {
+				dispatcher.dispatch(listener, event("key", "2"));
+			}
+		};
+		notifying.start();
+		notifying.join(200);
+		assertThat(notifying.isAlive()).isTrue();
+
+		listener.release.countDown();
+		notifying.join(5000);
+		assertThat(notifying.isAlive()).isFalse();
+		waitDelivered(listener, 3);
+		assertThat(listener.received).containsExactly("key#0", "key#1", "key#2");
+		assertThat(dispatcher.stats(listener).dropped()).isZero();
+	}
+
+	@Test
+	public void measuresHowLongNotifiesWaited() throws Exception {
+		dispatcher = new EventDispatcher(1, 10, Overflow.BLOCK);
+		BlockedListener listener = new BlockedListener();
+		dispatcher.dispatch(listener, event("key", "0"));
+		assertThat(listener.started.await(5, TimeUnit.SECONDS)).isTrue();
+		dispatcher.dispatch(listener, event("key", "1"));
+		Thread.sleep(100);
+		listener.release.countDown();
+
+		waitDelivered(listener, 2);
+		assertThat(dispatcher.stats(listener).lastLag()).isGreaterThanOrEqualTo(90);
+		assertThat(dispatcher.stats(listener).maxLag()).isGreaterThanOrEqualTo(90);
+	}
+
+	@Test
+	public void keepsDeliveringAfterAListenerFailure() throws Exception {
+		dispatcher = new EventDispatcher(1, 10, Overflow.BLOCK);
+		RecordingListener listener = new RecordingListener(){
+			public void handleEvent(Notify event) {
+				super.handleEvent(event);
+				throw new RuntimeException("failed");
+			}
+		};
+		dispatcher.dispatch(listener, event("key", "0"));
+		dispatcher.dispatch(listener, event("key", "1"));
+		waitDelivered(listener, 2);
+		assertThat(listener.received).containsExactly("key#0", "key#1");
+	}
+
+	@Test
+	public void keepsDeliveringAfterAListenerError() throws Exception {
+		dispatcher = new EventDispatcher(1, 10, Overflow.BLOCK);
+		RecordingListener listener = new RecordingListener(){
+			public void handleEvent(Notify event) {
+				super.handleEvent(event);
+				if (received.size() == 1) throw new AssertionError("failed");
+			}
+		};
+		dispatcher.dispatch(listener, event("key", "0"));
+		waitDelivered(listener, 1);
+		dispatcher.dispatch(listener, event("key", "1"));
+		dispatcher.dispatch(listener, event("key", "2"));
+		waitDelivered(listener, 3);
+		assertThat(listener.received).containsExactly("key#0", "key#1", "key#2");
+	}
+
+	@Test
+	public void forgetsTheListenerQueue() throws Exception {
+		dispatcher = new EventDispatcher(1, 10, Overflow.BLOCK);
+		RecordingListener listener = new RecordingListener();
+		dispatcher.dispatch(listener, event("key", "0"));
+		waitDelivered(listener, 1);
+		dispatcher.forget(listener);
+		assertThat(dispatcher.stats(listener)).isNull();
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsUnknownOverflowPolicies() {
+		Overflow.parse("ignore");
+	}
+
+	@Test
+	public void parsesOverflowPolicies() {
+		assertThat(Overflow.parse("dropOldest")).isEqualTo(Overflow.DROP_OLDEST);
+		assertThat(Overflow.parse(" coalesce ")).isEqualTo(Overflow.COALESCE);
+		assertThat(Overflow.parse("BLOCK")).isEqualTo(Overflow.BLOCK);
+	}
+
+	private void waitDelivered(RecordingListener listener, int amount) throws InterruptedException {
+		for (int i = 0; i < 500 && listener.received.size() < amount; i++){
+			Thread.sleep(10);
+		}
+		assertThat(listener.received).hasSize(amount);
+	}
+
+	private static void waitingHandle(CountDownLatch latch) {
+		latch.countDown();
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {}
+	}
+
+	private static Notify event(String eventKey, String instanceId) {
+		return new Notify(eventKey, "driver", instanceId);
+	}
+
+	private static class RecordingListener implements UosEventListener {
+		List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		List<Notify> notifies = Collections.synchronizedList(new ArrayList<Notify>());
+		public void handleEvent(Notify event) {
+			notifies.add(event);
+			received.add(event.getEventKey() + "#" + event.getInstanceId());
+		}
+	}
+
+	private static class BlockedListener extends RecordingListener {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		public void handleEvent(Notify event) {
+			super.handleEvent(event);
+			started.countDown();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import org.junit.Test;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
+
+public class EventFilterTest {
+
+	@Test
+	public void matchesEqualValues() {
+		EventFilter filter = EventFilter.parse("email == john@mail.com");
+		assertThat(filter.matches(event("email", "john@mail.com"))).isTrue();
+		assertThat(filter.matches(event("email", "mary@mail.com"))).isFalse();
+	}
+
+	@Test
+	public void matchesDifferentValues() {
+		EventFilter filter = EventFilter.parse("email != john@mail.com");
+		assertThat(filter.matches(event("email", "john@mail.com"))).isFalse();
+		assertThat(filter.matches(event("email", "mary@mail.com"))).isTrue();
+	}
+
+	@Test
+	public void comparesNumbersAsNumbers() {
+		assertThat(EventFilter.parse("x < 10").matches(event("x", "9"))).isTrue();
+		assertThat(EventFilter.parse("x < 10").matches(event("x", "10"))).isFalse();
+		assertThat(EventFilter.parse("x <= 10").matches(event("x", "10.0"))).isTrue();
+		assertThat(EventFilter.parse("x > 10").matches(event("x", "100"))).isTrue();
+		assertThat(EventFilter.parse("x >= 10").matches(event("x", "9.5"))).isFalse();
+		assertThat(EventFilter.parse("x == 1").matches(event("x", "1.0"))).isTrue();
+	}
+
+	@Test
+	public void comparesTextAsText() {
+		assertThat(EventFilter.parse("name < b").matches(event("name", "alice"))).isTrue();
+		assertThat(EventFilter.parse("name < b").matches(event("name", "carol"))).isFalse();
+	}
+
+	@Test
+	public void matchesValuesBetweenTheLimits() {
+		EventFilter filter = EventFilter.parse("positionX between -5 and 20.5");
+		assertThat(filter.matches(event("positionX", "-5"))).isTrue();
+		assertThat(filter.matches(event("positionX", "0"))).isTrue();
+		assertThat(filter.matches(event("positionX", "20.5"))).isTrue();
+		assertThat(filter.matches(event("positionX", "21"))).isFalse();
+		assertThat(filter.matches(event("positionX", "-6"))).isFalse();
+	}
+
+	@Test
+	public void requiresEveryCondition() {
+		EventFilter filter = EventFilter.parse("x between 0 and 10 and y between 0 and 10 and room == 'living room'");
+		Notify inside = new Notify("position", "driver")
+				.addParameter("x", "1").addParameter("y", "2").addParameter("room", "living room");
+		Notify outside = new Notify("position", "driver")
+				.addParameter("x", "1").addParameter("y", "20").addParameter("room", "living room");
+		assertThat(filter.matches(inside)).isTrue();
+		assertThat(filter.matches(outside)).isFalse();
+	}
+
+	@Test
+	public void acceptsOperatorsWithoutSpaces() {
+		EventFilter filter = EventFilter.parse("x>=1 and y!=\"a b\"");
+		assertThat(filter.matches(new Notify("k", "d").addParameter("x", "1").addParameter("y", "c"))).isTrue();
+		assertThat(filter.matches(new Notify("k", "d").addParameter("x", "1").addParameter("y", "a b"))).isFalse();
+	}
+
+	@Test
+	public void doesntMatchWithoutTheParameter() {
+		assertThat(EventFilter.parse("email != x").matches(new Notify("k", "d"))).isFalse();
+	}
+
+	@Test
+	public void readsTheFilterOfARegisterCall() {
+		ServiceCall call = new ServiceCall("driver", "registerListener");
+		assertThat(EventFilter.of(call)).isNull();
+		call.addParameter(EventFilter.FILTER_PARAM, " x == 1 ");
+		assertThat(EventFilter.of(call).toString()).isEqualTo("x == 1");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsIncompleteConditions() {
+		EventFilter.parse("x ==");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsUnknownOperators() {
+		EventFilter.parse("x like y");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsBetweenWithoutUpperLimit() {
+		EventFilter.parse("x between 1 or 2");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsConditionsNotJoinedByAnd() {
+		EventFilter.parse("x == 1 or y == 2");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsUnclosedQuotes() {
+		EventFilter.parse("x == 'a");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsEmptyFilters() {
+		EventFilter.parse("  ");
+	}
+
+	private static Notify event(String param, String value) {
+		return new Notify("key", "driver").addParameter(param, value);
+	}
+}
@@ -5,19 +5,27 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.unbiquitous.uos.core.applicationManager.UOSMessageContext;
 import org.unbiquitous.uos.core.messageEngine.MessageEngine;
 import org.unbiquitous.uos.core.messageEngine.MessageEngineException;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
 import org.unbiquitous.uos.core.messageEngine.messages.Notify;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.network.model.NetworkDevice;
 
 public class EventManagerTest {
 
@@ -47,6 +55,230 @@ public class EventManagerTest {
 		assertThat(call.getValue().getService()).isEqualTo("registerListener");
 	}
 	
+	@Test
+	public void registeringSendsTheFilterToTheProducer() throws Exception{
+		UpDevice device = new UpDevice("the_device");
+		
+		manager.registerForEvent(listener, device, "driver", "id", "key", "email == 'a@b.com'");
+		
+		verify(engine).callService(eq(device), call.capture());
+		assertThat(call.getValue().getParameter("eventKey")).isEqualTo("key");
+		assertThat(call.getValue().getParameter("filter")).isEqualTo("email == 'a@b.com'");
+	}
+	
+	@Test
+	public void registeringWithoutFilterDoesntSendIt() throws Exception{
+		UpDevice device = new UpDevice("the_device");
+		
+		manager.registerForEvent(listener, device, "driver", "id", "key");
+		
+		verify(engine).callService(eq(device), call.capture());
+		assertThat(call.getValue().getParameter("filter")).isNull();
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsMalformedFiltersBeforeRegistering() throws Exception{
+		try {
+			manager.registerForEvent(listener, new UpDevice("the_device"), "driver", "id", "key", "email ==");
+		} finally {
+			verify(engine,never()).callService((UpDevice)any(),(ServiceCall)any());
+		}
+	}
+	
+	@Test
+	public void onlyDeliversTheNotifiesMatchingTheFilter() throws Exception{
+		manager.registerForEvent(listener, null, "driver", null, "key", "x between 1 and 5");
+		Notify inside = new Notify("key","driver").addParameter("x", "3");
+		Notify outside = new Notify("key","driver").addParameter("x", "7");
+		
+		manager.handleNofify(inside, null);
+		manager.handleNofify(outside, null);
+		
+		verify(listener).handleEvent(inside);
+		verify(listener,never()).handleEvent(outside);
+	}
+	
+	@Test
+	public void answersTheRegistrationWithTheLastValuesMatchingTheFilter() throws Exception{
+		manager.setLastValueCache(new LastValueCache(10, null));
+		manager.sendEventNotify(new Notify("key","driver","1").addParameter("x", "1"), null);
+		manager.sendEventNotify(new Notify("key","driver","2").addParameter("x", "9"), null);
+		ServiceCall register = new ServiceCall("driver", "registerListener");
+		register.addParameter("eventKey", "key");
+		register.addParameter("filter", "x < 5");
+		ServiceResponse response = new ServiceResponse();
+		
+		manager.attachSnapshot(register, response);
+		
+		EventManager consumer = new EventManager(engine);
+		when(engine.callService((UpDevice)any(), (ServiceCall)any())).thenReturn(response);
+		consumer.registerForEvent(listener, new UpDevice("producer"), "driver", null, "key", "x < 5");
+		ArgumentCaptor<Notify> received = ArgumentCaptor.forClass(Notify.class);
+		verify(listener).handleEvent(received.capture());
+		assertThat(received.getValue().getInstanceId()).isEqualTo("1");
+		assertThat(received.getValue().getParameter("x")).isEqualTo("1");
+	}
+	
+	@Test
+	public void doesntAnswerFailedRegistrationsWithTheLastValues() throws Exception{
+		manager.setLastValueCache(new LastValueCache(10, null));
+		manager.sendEventNotify(new Notify("key","driver"), null);
+		ServiceCall register = new ServiceCall("driver", "registerListener");
+		register.addParameter("eventKey", "key");
+		ServiceResponse response = new ServiceResponse();
+		response.setError("failed");
+		
+		manager.attachSnapshot(register, response);
+		
+		assertThat(response.getResponseData("snapshot")).isNull();
+	}
+	
+	@Test
+	public void handsTheLastLocalValuesToNewLocalListeners() throws Exception{
+		manager.setLastValueCache(new LastValueCache(10, null));
+		Notify current = new Notify("key","driver","id").addParameter("v", "1");
+		manager.sendEventNotifyToAll(current, Arrays.asList(new UpDevice[]{null}));
+		UosEventListener late = mock(UosEventListener.class);
+		
+		manager.registerForEvent(late, null, "driver", "id", "key");
+		
+		verify(late).handleEvent(current);
+	}
+	
+	@Test
+	public void handsTheLastValuesBeforeTheNotifiesReceivedMeanwhile() throws Exception{
+		manager.setLastValueCache(new LastValueCache(10, null));
+		final Notify old = new Notify("key","driver").addParameter("v", "1");
+		manager.sendEventNotify(old, null);
+		ServiceCall register = new ServiceCall("driver", "registerListener");
+		register.addParameter("eventKey", "key");
+		final ServiceResponse response = new ServiceResponse();
+		manager.attachSnapshot(register, response);
+		
+		final UpDevice producer = new UpDevice("producer");
+		final Notify live = new Notify("key","driver").addParameter("v", "2");
+		final EventManager consumer = new EventManager(engine);
+		when(engine.callService((UpDevice)any(), (ServiceCall)any())).thenAnswer(new Answer<ServiceResponse>() {
+			public ServiceResponse answer(InvocationOnMock invocation) throws Throwable {
+				consumer.handleNofify(live, producer);
+				return response;
+			}
+		});
+		consumer.registerForEvent(listener, producer, "driver", null, "key");
+		
+		ArgumentCaptor<Notify> received = ArgumentCaptor.forClass(Notify.class);
+		verify(listener, times(2)).handleEvent(received.capture());
+		assertThat(received.getAllValues().get(0).getParameter("v")).isEqualTo("1");
+		assertThat(received.getAllValues().get(1)).isSameAs(live);
+		
+		Notify later = new Notify("key","driver").addParameter("v", "3");
+		consumer.handleNofify(later, producer);
+		verify(listener).handleEvent(later);
+	}
+	
+	@Test
+	public void doesntListenWhenTheRegistrationFails() throws Exception{
+		ServiceResponse failed = new ServiceResponse();
+		failed.setError("failed");
+		when(engine.callService((UpDevice)any(), (ServiceCall)any())).thenReturn(failed);
+		UpDevice producer = new UpDevice("producer");
+		try {
+			manager.registerForEvent(listener, producer, "driver", null, "key");
+		} catch (NotifyException e) {}
+		
+		manager.handleNofify(new Notify("key","driver"), producer);
+		
+		verify(listener,never()).handleEvent((Notify)any());
+	}
+	
+	@Test
+	public void holdsTheLatestNotifiesToAPausedListener() throws Exception{
+		UpDevice consumer = new UpDevice("Anonymous").addNetworkInterface("A", "T");
+		UpDevice other = new UpDevice("Anonymous").addNetworkInterface("B", "T");
+		manager.handleListenerCall(register("0"), callerAt("A"), new ServiceResponse());
+		
+		Notify first = new Notify("key","driver").addParameter("v", "1");
+		Notify latest = new Notify("key","driver").addParameter("v", "2");
+		manager.sendEventNotifyToAll(first, Arrays.asList(consumer, other));
+		manager.sendEventNotify(latest, consumer);
+		verify(engine).notifyEventToAll(first, Arrays.asList(other));
+		verify(engine,never()).notifyEvent((Notify)any(), eq(consumer));
+		
+		manager.handleListenerCall(register("10"), callerAt("A"), new ServiceResponse());
+		ArgumentCaptor<Notify> sent = ArgumentCaptor.forClass(Notify.class);
+		verify(engine).notifyEvent(sent.capture(), eq(consumer));
+		assertThat(sent.getValue().getParameter("v")).isEqualTo("2");
+		
+		manager.sendEventNotify(first, consumer);
+		verify(engine).notifyEvent(first, consumer);
+	}
+	
+	@Test
+	public void forgetsThePauseWhenTheListenerUnregisters() throws Exception{
+		UpDevice consumer = new UpDevice("Anonymous").addNetworkInterface("A", "T");
+		manager.handleListenerCall(register("0"), callerAt("A"), new ServiceResponse());
+		ServiceCall unregister = new ServiceCall("driver", "unregisterListener");
+		manager.handleListenerCall(unregister, callerAt("A"), new ServiceResponse());
+		
+		Notify notify = new Notify("key","driver");
+		manager.sendEventNotify(notify, consumer);
+		
+		verify(engine).notifyEvent(notify, consumer);
+	}
+	
+	@Test
+	public void aPlainListenerOnThePausedDeviceReceivesWhatWasHeld() throws Exception{
+		UpDevice consumer = new UpDevice("Anonymous").addNetworkInterface("A", "T");
+		manager.handleListenerCall(register("0"), callerAt("A"), new ServiceResponse());
+		Notify latest = new Notify("key","driver").addParameter("v", "2");
+		manager.sendEventNotify(latest, consumer);
+		verify(engine,never()).notifyEvent((Notify)any(), eq(consumer));
+		
+		ServiceCall plain = new ServiceCall("driver", "registerListener");
+		plain.addParameter("eventKey", "key");
+		manager.handleListenerCall(plain, callerAt("A"), new ServiceResponse());
+		
+		verify(engine).notifyEvent(latest, consumer);
+		Notify next = new Notify("key","driver").addParameter("v", "3");
+		manager.sendEventNotify(next, consumer);
+		verify(engine).notifyEvent(next, consumer);
+	}
+	
+	@Test
+	public void aSubscriberDoesntPauseTheDeviceForAPlainListener() throws Exception{
+		UpDevice producer = new UpDevice("producer");
+		UosEventListener subscriber = mock(UosEventListener.class);
+		manager.registerForEvent(listener, producer, "driver", null, "key");
+		manager.registerForEvent(subscriber, producer, "driver", "id", "key");
+		
+		manager.updateDemand(subscriber, producer, "driver", "id", "key", 0);
+		
+		verify(engine,times(2)).callService(eq(producer), call.capture());
+		for (ServiceCall sent : call.getAllValues()){
+			assertThat(sent.getParameter("demand")).isNull();
+		}
+		
+		manager.updateDemand(listener, producer, "driver", null, "key", 0);
+		
+		verify(engine,times(3)).callService(eq(producer), call.capture());
+		assertThat(call.getValue().getParameter("demand")).isEqualTo("0");
+	}
+	
+	private static ServiceCall register(String demand) {
+		ServiceCall register = new ServiceCall("driver", "registerListener");
+		register.addParameter("eventKey", "key");
+		register.addParameter("demand", demand);
+		return register;
+	}
+	
+	private static UOSMessageContext callerAt(String address) {
+		NetworkDevice caller = mock(NetworkDevice.class);
+		when(caller.getNetworkDeviceName()).thenReturn(address);
+		UOSMessageContext context = new UOSMessageContext();
+		context.setCallerDevice(caller);
+		return context;
+	}
+	
 	@Test
 	public void registeringDontDelegatesForNullDevice() throws Exception{
 		manager.registerForEvent(listener, null, "driver", "id", "key");
@@ -64,6 +296,19 @@ public class EventManagerTest {
 		verify(engine).notifyEvent(eq(notify),eq(device));
 	}
 	
+	@Test
+	public void notifyToAllSendsTheRemoteDevicesAtOnce() throws Exception{
+		UpDevice first = new UpDevice("first");
+		UpDevice second = new UpDevice("second");
+		manager.registerForEvent(listener, null, "driver", "id", "key");
+		
+		Notify notify = new Notify("key","driver","id");
+		manager.sendEventNotifyToAll(notify, Arrays.asList(first, null, second));
+		
+		verify(engine).notifyEventToAll(notify, Arrays.asList(first, second));
+		verify(listener).handleEvent(eq(notify));
+	}
+	
 	@Test
 	public void notifiesToThelistenerWhenDeviceIsNull() throws Exception{
 		manager.registerForEvent(listener, null, "driver", "id", "key");
@@ -105,4 +350,108 @@ public class EventManagerTest {
 									"driver", "id", "key");
 	}
 	
+	@Test
+	public void notifiesFromTheMostSpecificToTheMostGeneralRegistration() throws Exception{
+		UpDevice device = new UpDevice("the_device");
+		UosEventListener specific = mock(UosEventListener.class);
+		UosEventListener general = mock(UosEventListener.class);
+		UosEventListener other = mock(UosEventListener.class);
+		manager.registerForEvent(specific, null, "driver", "id", "key");
+		manager.registerForEvent(general, null, "driver", null, "key");
+		manager.registerForEvent(other, null, "driver", null, "otherKey");
+		
+		Notify notify = new Notify("key","driver","id");
+		manager.handleNofify(notify, null);
+		
+		verify(specific, times(1)).handleEvent(eq(notify));
+		verify(general, times(1)).handleEvent(eq(notify));
+		verify(other, never()).handleEvent((Notify)any());
+		
+		manager.handleNofify(notify, device);
+		verify(general, times(2)).handleEvent(eq(notify));
+	}
+	
+	@Test
+	public void unregisteringWithoutEventKeyStopsAllEvents() throws Exception{
+		manager.registerForEvent(listener, null, "driver", null, "key");
+		manager.registerForEvent(listener, null, "driver", null, "otherKey");
+		manager.unregisterForEvent(listener, null, null, null, null);
+		
+		manager.handleNofify(new Notify("key","driver"), null);
+		manager.handleNofify(new Notify("otherKey","driver"), null);
+		
+		verify(listener,never()).handleEvent((Notify)any());
+	}
+	
+	@Test
+	public void registeringTheSameListenerTwiceNotifiesItOnce() throws Exception{
+		manager.registerForEvent(listener, null, "driver", null, "key");
+		manager.registerForEvent(listener, null, "driver", null, "key");
+		
+		manager.handleNofify(new Notify("key","driver"), null);
+		
+		verify(listener,times(1)).handleEvent((Notify)any());
+	}
+	
+	@Test
+	public void dispatchesWhileListenersAreRegistered() throws Exception{
+		final AtomicInteger received = new AtomicInteger();
+		UosEventListener counter = new UosEventListener() {
+			public void handleEvent(Notify event) {
+				received.incrementAndGet();
+			}
+		};
+		manager.registerForEvent(counter, null, "driver", null, "key");
+		Thread registering = new Thread(){
+			public void run() {
+				try {
+					for (int i = 0; i < 200; i++){
+						UosEventListener l = mock(UosEventListener.class);
+						manager.registerForEvent(l, null, "driver", null, "key");
+						manager.unregisterForEvent(l, null, "driver", null, "key");
+					}
+				} catch (NotifyException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		registering.start();
+		Notify notify = new Notify("key","driver");
+		for (int i = 0; i < 1000; i++){
+			manager.handleNofify(notify, null);
+		}
+		registering.join();
+		assertThat(received.get()).isEqualTo(1000);
+	}
+	
+	@Test
+	public void queuesNotifiesToTheDispatcherWhenSet() throws Exception{
+		EventDispatcher dispatcher = new EventDispatcher(1, 10, EventDispatcher.Overflow.BLOCK);
+		try {
+			manager.setDispatcher(dispatcher);
+			manager.registerForEvent(listener, null, "driver", "id", "key");
+			
+			Notify notify = new Notify("key","driver","id");
+			manager.handleNofify(notify, null);
+			
+			verify(listener, timeout(5000)).handleEvent(eq(notify));
+			for (int i = 0; i < 500 && manager.dispatchStats(listener).delivered() == 0; i++){
+				Thread.sleep(10);
+			}
+			assertThat(manager.dispatchStats(listener).delivered()).isEqualTo(1);
+			
+			manager.unregisterForEvent(listener, null, null, null, null);
+			assertThat(manager.dispatchStats(listener)).isNull();
+		} finally {
+			dispatcher.shutdown();
+		}
+	}
+	
+	@Test
+	public void hasNoDispatchStatsWhenNotifyingInline() throws Exception{
+		manager.registerForEvent(listener, null, "driver", "id", "key");
+		manager.handleNofify(new Notify("key","driver","id"), null);
+		
+		assertThat(manager.dispatchStats(listener)).isNull();
+	}
 }
@@ -0,0 +1,197 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.unbiquitous.uos.core.messageEngine.MessageEngine;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+
+public class EventPublisherTest {
+
+	private MessageEngine engine;
+	private EventManager manager;
+	private UpDevice producer;
+
+	@Before
+	public void setUp() throws Exception {
+		engine = mock(MessageEngine.class);
+		when(engine.callService((UpDevice)any(), (ServiceCall)any())).thenReturn(new ServiceResponse());
+		manager = new EventManager(engine);
+		producer = new UpDevice("producer");
+	}
+
+	@Test
+	public void onlyDeliversTheRequestedNotifies() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(2);
+		publisher(null, 10).subscribe(subscriber);
+
+		manager.handleNofify(event("1"), null);
+		manager.handleNofify(event("2"), null);
+		manager.handleNofify(event("3"), null);
+		assertThat(subscriber.received).containsExactly("1", "2");
+
+		subscriber.subscription.request(5);
+		assertThat(subscriber.received).containsExactly("1", "2", "3");
+	}
+
+	@Test
+	public void registersEachSubscriberAsAListener() throws Exception {
+		publisher(producer, 10).subscribe(new RecordingSubscriber(1));
+
+		ArgumentCaptor<ServiceCall> call = ArgumentCaptor.forClass(ServiceCall.class);
+		verify(engine).callService(eq(producer), call.capture());
+		assertThat(call.getValue().getService()).isEqualTo("registerListener");
+		assertThat(call.getValue().getParameter("eventKey")).isEqualTo("key");
+		assertThat(call.getValue().getParameter("demand")).isNull();
+	}
+
+	@Test
+	public void asksTheProducerToHoldTheNotifiesWithoutDemand() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(0);
+		publisher(producer, 10).subscribe(subscriber);
+
+		manager.handleNofify(event("1"), producer);
+		manager.handleNofify(event("2"), producer);
+		subscriber.subscription.request(3);
+
+		ArgumentCaptor<ServiceCall> call = ArgumentCaptor.forClass(ServiceCall.class);
+		verify(engine, times(3)).callService(eq(producer), call.capture());
+		assertThat(call.getAllValues().get(1).getParameter("demand")).isEqualTo("0");
+		// the buffered ones are delivered before resuming
+		assertThat(call.getAllValues().get(2).getParameter("demand")).isEqualTo("1");
+		assertThat(subscriber.received).containsExactly("1", "2");
+	}
+
+	@Test
+	public void doesntResumeWhileTheBufferSatisfiesTheDemand() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(0);
+		publisher(producer, 10).subscribe(subscriber);
+
+		manager.handleNofify(event("1"), producer);
+		manager.handleNofify(event("2"), producer);
+		subscriber.subscription.request(1);
+
+		verify(engine, times(2)).callService(eq(producer), (ServiceCall)any());
+		assertThat(subscriber.received).containsExactly("1");
+	}
+
+	@Test
+	public void discardsTheOldestNotifiesBeyondTheBuffer() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(0);
+		publisher(null, 2).subscribe(subscriber);
+
+		manager.handleNofify(event("1"), null);
+		manager.handleNofify(event("2"), null);
+		manager.handleNofify(event("3"), null);
+		subscriber.subscription.request(Long.MAX_VALUE);
+
+		assertThat(subscriber.received).containsExactly("2", "3");
+	}
+
+	@Test
+	public void servesRequestsMadeWhileReceiving() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(1){
+			public void onNext(Notify item) {
+				super.onNext(item);
+				subscription.request(1);
+			}
+		};
+		publisher(null, 10).subscribe(subscriber);
+
+		manager.handleNofify(event("1"), null);
+		manager.handleNofify(event("2"), null);
+
+		assertThat(subscriber.received).containsExactly("1", "2");
+	}
+
+	@Test
+	public void cancellingUnregistersTheSubscriber() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(10);
+		publisher(producer, 10).subscribe(subscriber);
+
+		subscriber.subscription.cancel();
+		manager.handleNofify(event("1"), producer);
+
+		ArgumentCaptor<ServiceCall> call = ArgumentCaptor.forClass(ServiceCall.class);
+		verify(engine, times(2)).callService(eq(producer), call.capture());
+		assertThat(call.getValue().getService()).isEqualTo("unregisterListener");
+		assertThat(subscriber.received).isEmpty();
+	}
+
+	@Test
+	public void failsOnNonPositiveRequests() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber(0);
+		publisher(null, 10).subscribe(subscriber);
+
+		subscriber.subscription.request(0);
+		manager.handleNofify(event("1"), null);
+
+		assertThat(subscriber.error).isInstanceOf(IllegalArgumentException.class);
+		assertThat(subscriber.received).isEmpty();
+	}
+
+	@Test
+	public void failsWhenTheRegistrationFails() throws Exception {
+		ServiceResponse refused = new ServiceResponse();
+		refused.setError("refused");
+		when(engine.callService((UpDevice)any(), (ServiceCall)any())).thenReturn(refused);
+		RecordingSubscriber subscriber = new RecordingSubscriber(1);
+
+		publisher(producer, 10).subscribe(subscriber);
+
+		assertThat(subscriber.error).isInstanceOf(NotifyException.class);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsNoBuffer() {
+		publisher(null, 0);
+	}
+
+	private EventPublisher publisher(UpDevice device, int buffer) {
+		return new EventPublisher(manager, device, "driver", null, "key", null, buffer);
+	}
+
+	private static Notify event(String instanceId) {
+		return new Notify("key", "driver", instanceId);
+	}
+
+	private static class RecordingSubscriber implements EventFlow.Subscriber<Notify> {
+		final long initial;
+		EventFlow.Subscription subscription;
+		List<String> received = new ArrayList<String>();
+		Throwable error;
+
+		RecordingSubscriber(long initial) {
+			this.initial = initial;
+		}
+
+		public void onSubscribe(EventFlow.Subscription subscription) {
+			this.subscription = subscription;
+			if (initial > 0) subscription.request(initial);
+		}
+
+		public void onNext(Notify item) {
+			received.add(item.getInstanceId());
+		}
+
+		public void onError(Throwable error) {
+			this.error = error;
+		}
+
+		public void onComplete() {}
+	}
+}
@@ -0,0 +1,261 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.uos.core.driverManager.DriverData;
+import org.unbiquitous.uos.core.driverManager.DriverManager;
+import org.unbiquitous.uos.core.messageEngine.MessageEngineException;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
+import org.unbiquitous.uos.core.messageEngine.dataType.json.JSONService;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+
+public class HedgedCallsTest {
+
+	private DriverManager driverManager;
+	private HedgedCalls hedged;
+	private UpDevice slow;
+	private UpDevice fast;
+	private UpDriver driver;
+
+	@Before
+	public void setUp() {
+		driverManager = mock(DriverManager.class);
+		driver = new UpDriver("thermometer");
+		driver.addService("temperature").setIdempotent(true);
+		driver.addService("calibrate");
+		when(driverManager.getDriverFromEquivalanceTree("thermometer")).thenReturn(driver);
+		slow = new UpDevice("slow");
+		fast = new UpDevice("fast");
+		when(driverManager.listDrivers("thermometer", null)).thenReturn(Arrays.asList(
+				new DriverData(driver, slow, "t1"),
+				new DriverData(driver, fast, "t2")));
+		hedged = new HedgedCalls(driverManager, 90);
+	}
+
+	@After
+	public void tearDown() {
+		hedged.shutdown();
+	}
+
+	@Test
+	public void sendsTheSlowCallToAnotherInstanceAndUsesTheFirstResponse() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		// so the slow call is running when hedged, and gets interrupted
+		sender.delay(slow, 20);
+		warmUp(sender);
+		sender.delay(slow, 5000);
+
+		ServiceResponse response = hedged.call(slow, temperature("t1"), sender);
+
+		assertThat(response.getResponseData("from")).isEqualTo("fast");
+		assertThat(sender.calls()).endsWith("slow#t1", "fast#t2");
+		assertThat(sender.interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+	}
+
+	@Test
+	public void doesNotHedgeACallAnsweredInTime() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		sender.delay(slow, 50);
+		warmUp(sender);
+		sender.delay(slow, 0);
+
+		ServiceResponse response = hedged.call(slow, temperature("t1"), sender);
+
+		assertThat(response.getResponseData("from")).isEqualTo("slow");
+		assertThat(sender.calls()).doesNotContain("fast#t2");
+	}
+
+	@Test
+	public void doesNotHedgeBeforeObservingEnoughCalls() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		sender.delay(slow, 50);
+
+		hedged.call(slow, temperature("t1"), sender);
+
+		assertThat(sender.calls()).containsExactly("slow#t1");
+	}
+
+	@Test
+	public void doesNotHedgeServicesWhichAreNotIdempotent() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		for (int i = 0; i < HedgedCalls.MIN_SAMPLES; i++){
+			hedged.call(slow, new ServiceCall("thermometer", "calibrate", "t1"), sender);
+		}
+		sender.delay(slow, 50);
+
+		hedged.call(slow, new ServiceCall("thermometer", "calibrate", "t1"), sender);
+
+		assertThat(sender.calls()).doesNotContain("fast#t2");
+	}
+
+	@Test
+	public void usesTheOtherResponseWhenOneFails() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		warmUp(sender);
+		sender.delay(slow, 200);
+		sender.fail(fast);
+
+		ServiceResponse response = hedged.call(slow, temperature("t1"), sender);
+
+		assertThat(response.getResponseData("from")).isEqualTo("slow");
+	}
+
+	@Test
+	public void failsWhenEveryCallFails() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		warmUp(sender);
+		sender.delay(slow, 200);
+		sender.fail(slow);
+		sender.fail(fast);
+
+		try {
+			hedged.call(slow, temperature("t1"), sender);
+			fail("Should have failed");
+		} catch (MessageEngineException e) {
+			assertThat(e.getMessage()).contains("is gone");
+		}
+	}
+
+	@Test
+	public void recordsTheCancelledCallAsTakingAtLeastTheHedgeDelay() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		warmUp(sender);
+		HedgedCalls.Latencies latencies = hedged.latenciesOf(temperature("t1"));
+		long delay = latencies.percentile(90);
+		sender.delay(slow, 5000);
+
+		hedged.call(slow, temperature("t1"), sender);
+
+		assertThat(latencies.count()).isEqualTo(HedgedCalls.MIN_SAMPLES + 2);
+		assertThat(latencies.percentile(99)).isGreaterThanOrEqualTo(delay);
+	}
+
+	@Test
+	public void waitsForTheFirstCallAloneWhenThePoolIsFull() throws Exception {
+		hedged.shutdown();
+		hedged = new HedgedCalls(driverManager, 90, 1);
+		RecordingSender sender = new RecordingSender();
+		warmUp(sender);
+		sender.delay(slow, 200);
+
+		ServiceResponse response = hedged.call(slow, temperature("t1"), sender);
+
+		assertThat(response.getResponseData("from")).isEqualTo("slow");
+		assertThat(sender.calls()).doesNotContain("fast#t2");
+	}
+
+	@Test
+	public void sendsTheCallAloneWhenThePoolIsFull() throws Exception {
+		hedged.shutdown();
+		hedged = new HedgedCalls(driverManager, 90, 1);
+		final RecordingSender sender = new RecordingSender();
+		warmUp(sender);
+		sender.delay(slow, 500);
+		Thread busy = new Thread(){
+			public void run() {
+				try {
+					hedged.call(slow, temperature("t1"), sender);
+				} catch (MessageEngineException e) {}
+			}
+		};
+		busy.start();
+		while (sender.calls().size() <= HedgedCalls.MIN_SAMPLES) Thread.sleep(5);
+
+		ServiceResponse response = hedged.call(fast, temperature("t2"), sender);
+
+		assertThat(response.getResponseData("from")).isEqualTo("fast");
+		assertThat(sender.calls()).endsWith("slow#t1", "fast#t2");
+		busy.join();
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void theThreadsMustBePositive() {
+		new HedgedCalls(driverManager, 90, 0);
+	}
+
+	@Test
+	public void thePercentileIsOverTheLatestLatencies() {
+		HedgedCalls.Latencies latencies = new HedgedCalls.Latencies();
+		for (int i = 1; i <= HedgedCalls.MIN_SAMPLES - 1; i++) latencies.add(i);
+		assertThat(latencies.percentile(90)).isEqualTo(-1);
+
+		latencies.add(HedgedCalls.MIN_SAMPLES);
+		assertThat(latencies.percentile(90)).isEqualTo(18);
+		assertThat(latencies.percentile(50)).isEqualTo(10);
+	}
+
+	@Test
+	public void idempotenceIsSentWithTheService() throws Exception {
+		assertThat(new JSONService(new JSONService(driver.getServices().get(0)).toString()).getAsObject().isIdempotent())
+			.isTrue();
+		assertThat(new JSONService(new JSONService(driver.getServices().get(1)).toString()).getAsObject().isIdempotent())
+			.isFalse();
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void thePercentileMustBeBelowAHundred() {
+		new HedgedCalls(driverManager, 100);
+	}
+
+	private void warmUp(RecordingSender sender) throws Exception {
+		for (int i = 0; i < HedgedCalls.MIN_SAMPLES; i++){
+			hedged.call(slow, temperature("t1"), sender);
+		}
+	}
+
+	private static ServiceCall temperature(String instanceId) {
+		return new ServiceCall("thermometer", "temperature", instanceId);
+	}
+
+	private static class RecordingSender implements HedgedCalls.Sender {
+		final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		final List<String> failing = new ArrayList<String>();
+		volatile String delayed;
+		volatile long delay;
+
+		void delay(UpDevice device, long millis) {
+			delayed = device.getName();
+			delay = millis;
+		}
+
+		void fail(UpDevice device) {
+			failing.add(device.getName());
+		}
+
+		List<String> calls() {
+			return new ArrayList<String>(calls);
+		}
+
+		public ServiceResponse send(UpDevice device, ServiceCall serviceCall) throws MessageEngineException {
+			calls.add(device.getName()+"#"+serviceCall.getInstanceId());
+			if (device.getName().equals(delayed)){
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+					throw new MessageEngineException(e);
+				}
+			}
+			if (failing.contains(device.getName())){
+				throw new MessageEngineException(device.getName()+" is gone");
+			}
+			return new ServiceResponse().addParameter("from", device.getName());
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.unbiquitous.uos.core.messageEngine.EventConflation;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+public class LastValueCacheTest {
+
+	@Test
+	public void keepsTheLastValueOfEachEvent() {
+		LastValueCache cache = new LastValueCache(10, null);
+		Notify last = new Notify("key", "driver", "id").addParameter("v", "2");
+		cache.record(new Notify("key", "driver", "id").addParameter("v", "1"));
+		cache.record(last);
+		cache.record(new Notify("other", "driver", "id"));
+
+		assertThat(cache.snapshot("driver", "id", "key")).containsExactly(last);
+		assertThat(cache.size()).isEqualTo(2);
+	}
+
+	@Test
+	public void keepsAValueForEachConflationKey() {
+		EventConflation conflation = mock(EventConflation.class);
+		Notify john = new Notify("position", "driver", "id").addParameter("user", "john");
+		Notify mary = new Notify("position", "driver", "id").addParameter("user", "mary");
+		Notify johnAgain = new Notify("position", "driver", "id").addParameter("user", "john").addParameter("x", "1");
+		when(conflation.keyOf(john)).thenReturn("john");
+		when(conflation.keyOf(mary)).thenReturn("mary");
+		when(conflation.keyOf(johnAgain)).thenReturn("john");
+		LastValueCache cache = new LastValueCache(10, conflation);
+
+		cache.record(john);
+		cache.record(mary);
+		cache.record(johnAgain);
+
+		assertThat(cache.snapshot("driver", "id", "position")).containsExactly(mary, johnAgain);
+	}
+
+	@Test
+	public void listsEveryInstanceWhenNoneIsInformed() {
+		LastValueCache cache = new LastValueCache(10, null);
+		Notify first = new Notify("key", "driver", "1");
+		Notify second = new Notify("key", "driver", "2");
+		cache.record(first);
+		cache.record(second);
+
+		assertThat(cache.snapshot("driver", null, "key")).containsExactly(first, second);
+		assertThat(cache.snapshot("driver", "2", "key")).containsExactly(second);
+		assertThat(cache.snapshot("otherDriver", null, "key")).isEmpty();
+	}
+
+	@Test
+	public void discardsTheLeastRecentlyUpdatedBeyondTheCapacity() {
+		LastValueCache cache = new LastValueCache(2, null);
+		Notify a = new Notify("a", "driver");
+		Notify b = new Notify("b", "driver");
+		Notify c = new Notify("c", "driver");
+		cache.record(a);
+		cache.record(b);
+		cache.record(a);
+		cache.record(c);
+
+		assertThat(cache.size()).isEqualTo(2);
+		assertThat(cache.snapshot("driver", null, "b")).isEmpty();
+		assertThat(cache.snapshot("driver", null, "a")).containsExactly(a);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsNoCapacity() {
+		new LastValueCache(0, null);
+	}
+}
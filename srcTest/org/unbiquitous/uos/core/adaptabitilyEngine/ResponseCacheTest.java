@@ -0,0 +1,152 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.uos.core.driverManager.DriverManager;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpService;
+import org.unbiquitous.uos.core.messageEngine.dataType.json.JSONService;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+
+public class ResponseCacheTest {
+
+	private ResponseCache cache;
+	private UpDevice device;
+
+	@Before
+	public void setUp() {
+		DriverManager driverManager = mock(DriverManager.class);
+		UpDriver driver = new UpDriver("ontology");
+		driver.addService("isSubClassOf").setCacheTtl(60000);
+		driver.addService("shortLived").setCacheTtl(1);
+		driver.addService("addClass");
+		when(driverManager.getDriverFromEquivalanceTree("ontology")).thenReturn(driver);
+		cache = new ResponseCache(2, driverManager);
+		device = new UpDevice("provider");
+	}
+
+	@Test
+	public void answersTheSameCallWithTheResponseKept() {
+		cache.put(device, query("isSubClassOf", "a", "b"), answer("true"));
+
+		ServiceResponse cached = cache.get(device, query("isSubClassOf", "a", "b"));
+		assertThat(cached).isNotNull();
+		assertThat(cached.getResponseData("result")).isEqualTo("true");
+	}
+
+	@Test
+	public void parametersInAnyOrderAreTheSameCall() {
+		ServiceCall call = new ServiceCall("ontology", "isSubClassOf");
+		call.addParameter("className", "b");
+		call.addParameter("subClassName", "a");
+		cache.put(device, call, answer("true"));
+
+		assertThat(cache.get(device, query("isSubClassOf", "a", "b"))).isNotNull();
+	}
+
+	@Test
+	public void doesNotAnswerOtherParametersOrDevices() {
+		cache.put(device, query("isSubClassOf", "a", "b"), answer("true"));
+
+		assertThat(cache.get(device, query("isSubClassOf", "a", "c"))).isNull();
+		assertThat(cache.get(new UpDevice("other"), query("isSubClassOf", "a", "b"))).isNull();
+	}
+
+	@Test
+	public void onlyKeepsTheServicesDeclaredCacheable() {
+		cache.put(device, query("addClass", "a", "b"), answer("ok"));
+
+		assertThat(cache.size()).isZero();
+	}
+
+	@Test
+	public void doesNotKeepErrors() {
+		ServiceResponse error = new ServiceResponse();
+		error.setError("No such class");
+		cache.put(device, query("isSubClassOf", "a", "b"), error);
+
+		assertThat(cache.get(device, query("isSubClassOf", "a", "b"))).isNull();
+	}
+
+	@Test
+	public void expiresTheResponseAfterItsTtl() throws Exception {
+		cache.put(device, query("shortLived", "a", "b"), answer("true"));
+
+		Thread.sleep(5);
+		assertThat(cache.get(device, query("shortLived", "a", "b"))).isNull();
+		assertThat(cache.size()).isZero();
+	}
+
+	@Test
+	public void discardsTheLeastRecentlyUsed() {
+		cache.put(device, query("isSubClassOf", "a", "b"), answer("1"));
+		cache.put(device, query("isSubClassOf", "c", "d"), answer("2"));
+		cache.get(device, query("isSubClassOf", "a", "b"));
+		cache.put(device, query("isSubClassOf", "e", "f"), answer("3"));
+
+		assertThat(cache.get(device, query("isSubClassOf", "a", "b"))).isNotNull();
+		assertThat(cache.get(device, query("isSubClassOf", "c", "d"))).isNull();
+		assertThat(cache.size()).isEqualTo(2);
+	}
+
+	@Test
+	public void invalidatesTheResponsesOfTheDriver() {
+		cache.put(device, query("isSubClassOf", "a", "b"), answer("true"));
+
+		cache.invalidate("other", "ontology", null);
+		assertThat(cache.size()).isEqualTo(1);
+		cache.invalidate("provider", "ontology", null);
+		assertThat(cache.size()).isZero();
+	}
+
+	@Test
+	public void callingAnotherServiceOfTheDriverInvalidatesItsResponses() {
+		cache.put(device, query("isSubClassOf", "a", "b"), answer("true"));
+
+		cache.put(device, query("addClass", "a", "b"), answer("ok"));
+
+		assertThat(cache.get(device, query("isSubClassOf", "a", "b"))).isNull();
+	}
+
+	@Test
+	public void changingTheCopyAnsweredDoesNotChangeTheResponseKept() {
+		cache.put(device, query("isSubClassOf", "a", "b"), answer("true"));
+
+		cache.get(device, query("isSubClassOf", "a", "b")).addParameter("result", "false");
+
+		assertThat(cache.get(device, query("isSubClassOf", "a", "b")).getResponseData("result")).isEqualTo("true");
+	}
+
+	@Test
+	public void theTtlIsSentWithTheService() throws Exception {
+		UpService service = new UpService("isSubClassOf");
+		service.setCacheTtl(2000);
+
+		assertThat(new JSONService(new JSONService(service).toString()).getAsObject().getCacheTtl())
+			.isEqualTo(2000);
+		assertThat(new JSONService(new JSONService(new UpService("addClass")).toString()).getAsObject().getCacheTtl())
+			.isZero();
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void aNegativeTtlIsInvalid() {
+		new UpService("isSubClassOf").setCacheTtl(-1);
+	}
+
+	private static ServiceCall query(String service, String subClass, String className) {
+		ServiceCall call = new ServiceCall("ontology", service);
+		call.addParameter("subClassName", subClass);
+		call.addParameter("className", className);
+		return call;
+	}
+
+	private static ServiceResponse answer(String result) {
+		return new ServiceResponse().addParameter("result", result);
+	}
+}
@@ -0,0 +1,259 @@
+package org.unbiquitous.uos.core.adaptabitilyEngine;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.unbiquitous.uos.core.applicationManager.UOSMessageContext;
+import org.unbiquitous.uos.core.driverManager.DriverManager;
+import org.unbiquitous.uos.core.messageEngine.MessageEngine;
+import org.unbiquitous.uos.core.messageEngine.MessageEngineException;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.messageEngine.messages.json.JSONServiceResponse;
+
+public class WatchManagerTest {
+
+	private DriverManager driverManager;
+	private MessageEngine engine;
+	private Gateway gateway;
+	private WatchManager watches;
+	private UpDevice watcher;
+
+	@Before
+	public void setUp() throws Exception {
+		driverManager = mock(DriverManager.class);
+		engine = mock(MessageEngine.class);
+		gateway = mock(Gateway.class);
+		watches = new WatchManager(driverManager, new EventManager(engine), gateway);
+		watcher = new UpDevice("Anonymous").addNetworkInterface("10.0.0.1", "Ethernet:TCP");
+	}
+
+	@After
+	public void tearDown() {
+		watches.shutdown();
+	}
+
+	@Test
+	public void respondsTheCurrentResultOfTheWatchedCall() throws Exception {
+		ServiceCall call = new ServiceCall("uos.UserDriver", "listKnownUsers");
+		when(driverManager.handleServiceCall(eq(call), (UOSMessageContext)any())).thenReturn(result("a"));
+
+		String encoded = watches.watched("w1", call, watcher, new UOSMessageContext());
+
+		assertThat(new JSONServiceResponse(encoded).getAsObject().getResponseData("users")).isEqualTo("a");
+	}
+
+	@Test
+	public void notifiesTheWatcherWhenTheResultChanges() throws Exception {
+		ServiceCall call = new ServiceCall("uos.UserDriver", "listKnownUsers");
+		when(driverManager.handleServiceCall(eq(call), (UOSMessageContext)any()))
+			.thenReturn(result("a"), result("b"));
+		watches.watched("w1", call, watcher, new UOSMessageContext());
+
+		watches.invalidate("uos.UserDriver", null);
+
+		ArgumentCaptor<Notify> sent = ArgumentCaptor.forClass(Notify.class);
+		verify(engine, timeout(5000)).notifyEvent(sent.capture(), eq(watcher));
+		assertThat(sent.getValue().getEventKey()).isEqualTo(WatchManager.WATCH_EVENT_KEY);
+		assertThat(sent.getValue().getParameter("watchId")).isEqualTo("w1");
+		String response = sent.getValue().getParameter("response").toString();
+		assertThat(new JSONServiceResponse(response).getAsObject().getResponseData("users")).isEqualTo("b");
+	}
+
+	@Test
+	public void notifiesAChangeWhileTheFirstResultIsRunning() throws Exception {
+		ServiceCall call = new ServiceCall("uos.UserDriver", "listKnownUsers");
+		when(driverManager.handleServiceCall(eq(call), (UOSMessageContext)any())).thenAnswer(new Answer<ServiceResponse>() {
+			int calls = 0;
+			public ServiceResponse answer(InvocationOnMock invocation) {
+				if (calls++ > 0) return result("b");
+				watches.invalidate("uos.UserDriver", null);
+				return result("a");
+			}
+		});
+
+		watches.watched("w1", call, watcher, new UOSMessageContext());
+
+		ArgumentCaptor<Notify> sent = ArgumentCaptor.forClass(Notify.class);
+		verify(engine, timeout(5000)).notifyEvent(sent.capture(), eq(watcher));
+		String response = sent.getValue().getParameter("response").toString();
+		assertThat(new JSONServiceResponse(response).getAsObject().getResponseData("users")).isEqualTo("b");
+	}
+
+	@Test
+	public void doesNotNotifyWhenTheResultIsTheSame() throws Exception {
+		ServiceCall call = new ServiceCall("uos.UserDriver", "listKnownUsers");
+		when(driverManager.handleServiceCall(eq(call), (UOSMessageContext)any())).thenReturn(result("a"));
+		watches.watched("w1", call, watcher, new UOSMessageContext());
+
+		watches.invalidate("uos.UserDriver", null);
+
+		verify(driverManager, timeout(5000).times(2)).handleServiceCall(eq(call), (UOSMessageContext)any());
+		Thread.sleep(50);
+		verify(engine, never()).notifyEvent((Notify)any(), (UpDevice)any());
+	}
+
+	@Test
+	public void onlyRunsAgainTheCallsOfTheInvalidatedDriver() throws Exception {
+		ServiceCall users = new ServiceCall("uos.UserDriver", "listKnownUsers");
+		ServiceCall classes = new ServiceCall("ontologyDriver", "getInstancesFromClass", "onto1");
+		when(driverManager.handleServiceCall((ServiceCall)any(), (UOSMessageContext)any())).thenReturn(result("a"));
+		watches.watched("w1", users, watcher, new UOSMessageContext());
+		watches.watched("w2", classes, watcher, new UOSMessageContext());
+
+		watches.invalidate("ontologyDriver", "onto2");
+		watches.invalidate("ontologyDriver", "onto1");
+
+		verify(driverManager, timeout(5000).times(2)).handleServiceCall(eq(classes), (UOSMessageContext)any());
+		Thread.sleep(50);
+		verify(driverManager, times(1)).handleServiceCall(eq(users), (UOSMessageContext)any());
+	}
+
+	@Test
+	public void stopsRunningTheCallWhenUnwatched() throws Exception {
+		ServiceCall call = new ServiceCall("uos.UserDriver", "listKnownUsers");
+		when(driverManager.handleServiceCall(eq(call), (UOSMessageContext)any()))
+			.thenReturn(result("a"), result("b"));
+		watches.watched("w1", call, watcher, new UOSMessageContext());
+
+		watches.unwatched("w1", watcher);
+		watches.invalidate("uos.UserDriver", null);
+
+		Thread.sleep(50);
+		verify(driverManager, times(1)).handleServiceCall(eq(call), (UOSMessageContext)any());
+	}
+
+	@Test
+	public void dropsTheWatchOfAWatcherWhichIsGone() throws Exception {
+		ServiceCall call = new ServiceCall("uos.UserDriver", "listKnownUsers");
+		when(driverManager.handleServiceCall(eq(call), (UOSMessageContext)any()))
+			.thenReturn(result("a"), result("b"), result("c"));
+		doThrow(new MessageEngineException("gone")).when(engine).notifyEvent((Notify)any(), eq(watcher));
+		watches.watched("w1", call, watcher, new UOSMessageContext());
+
+		watches.invalidate("uos.UserDriver", null);
+		verify(engine, timeout(5000)).notifyEvent((Notify)any(), eq(watcher));
+		Thread.sleep(50);
+		watches.invalidate("uos.UserDriver", null);
+
+		Thread.sleep(50);
+		verify(driverManager, times(2)).handleServiceCall(eq(call), (UOSMessageContext)any());
+	}
+
+	@Test
+	public void watchesThroughTheProvidingDevice() throws Exception {
+		UpDevice provider = new UpDevice("provider");
+		when(gateway.callService(eq(provider), (ServiceCall)any())).thenReturn(
+				new ServiceResponse().addParameter("response", new JSONServiceResponse(result("a")).toString()));
+		ServiceCall call = new ServiceCall("uos.UserDriver", "listKnownUsers", "user1");
+		call.addParameter("email", "john@mail.com");
+		RecordingListener listener = new RecordingListener();
+
+		String watchId = watches.watch(provider, call, listener);
+
+		ArgumentCaptor<ServiceCall> watch = ArgumentCaptor.forClass(ServiceCall.class);
+		verify(gateway).callService(eq(provider), watch.capture());
+		assertThat(watch.getValue().getDriver()).isEqualTo("uos.DeviceDriver");
+		assertThat(watch.getValue().getService()).isEqualTo("watch");
+		assertThat(watch.getValue().getParameter("watchId")).isEqualTo(watchId);
+		assertThat(watch.getValue().getParameter("driverName")).isEqualTo("uos.UserDriver");
+		assertThat(watch.getValue().getParameter("serviceName")).isEqualTo("listKnownUsers");
+		assertThat(watch.getValue().getParameter("instanceId")).isEqualTo("user1");
+		assertThat(watch.getValue().getParameterString("parameters")).contains("john@mail.com");
+		assertThat(listener.received).containsExactly("a");
+	}
+
+	@Test
+	public void deliversTheChangesNotifiedToTheListener() throws Exception {
+		when(gateway.callService((UpDevice)any(), (ServiceCall)any())).thenReturn(
+				new ServiceResponse().addParameter("response", new JSONServiceResponse(result("a")).toString()));
+		RecordingListener listener = new RecordingListener();
+		String watchId = watches.watch(null, new ServiceCall("uos.UserDriver", "listKnownUsers"), listener);
+
+		watches.handleEvent(changed(watchId, "b"));
+		watches.handleEvent(changed("other", "c"));
+
+		assertThat(listener.received).containsExactly("a", "b");
+	}
+
+	@Test
+	public void ignoresTheFirstResultWhenAChangeArrivedBeforeIt() throws Exception {
+		when(gateway.callService((UpDevice)any(), (ServiceCall)any())).thenAnswer(new Answer<ServiceResponse>() {
+			public ServiceResponse answer(InvocationOnMock invocation) throws Throwable {
+				ServiceCall watch = (ServiceCall) invocation.getArguments()[1];
+				watches.handleEvent(changed(watch.getParameterString("watchId"), "b"));
+				return new ServiceResponse().addParameter("response", new JSONServiceResponse(result("a")).toString());
+			}
+		});
+		RecordingListener listener = new RecordingListener();
+
+		watches.watch(null, new ServiceCall("uos.UserDriver", "listKnownUsers"), listener);
+
+		assertThat(listener.received).containsExactly("b");
+	}
+
+	@Test
+	public void stopsDeliveringWhenUnwatched() throws Exception {
+		UpDevice provider = new UpDevice("provider");
+		when(gateway.callService((UpDevice)any(), (ServiceCall)any())).thenReturn(
+				new ServiceResponse().addParameter("response", new JSONServiceResponse(result("a")).toString()));
+		RecordingListener listener = new RecordingListener();
+		String watchId = watches.watch(provider, new ServiceCall("uos.UserDriver", "listKnownUsers"), listener);
+
+		watches.unwatch(watchId);
+		watches.handleEvent(changed(watchId, "b"));
+
+		ArgumentCaptor<ServiceCall> calls = ArgumentCaptor.forClass(ServiceCall.class);
+		verify(gateway, times(2)).callService(eq(provider), calls.capture());
+		assertThat(calls.getAllValues().get(1).getService()).isEqualTo("unwatch");
+		assertThat(calls.getAllValues().get(1).getParameter("watchId")).isEqualTo(watchId);
+		assertThat(listener.received).containsExactly("a");
+	}
+
+	@Test(expected=ServiceCallException.class)
+	public void failsWhenTheProviderRefusesTheWatch() throws Exception {
+		ServiceResponse refused = new ServiceResponse();
+		refused.setError("No instance found");
+		when(gateway.callService((UpDevice)any(), (ServiceCall)any())).thenReturn(refused);
+
+		watches.watch(null, new ServiceCall("uos.UserDriver", "listKnownUsers"), new RecordingListener());
+	}
+
+	private static ServiceResponse result(String users) {
+		return new ServiceResponse().addParameter("users", users);
+	}
+
+	private static Notify changed(String watchId, String users) throws Exception {
+		Notify notify = new Notify(WatchManager.WATCH_EVENT_KEY, "uos.DeviceDriver");
+		notify.addParameter("watchId", watchId);
+		notify.addParameter("response", new JSONServiceResponse(result(users)).toString());
+		return notify;
+	}
+
+	private static class RecordingListener implements ServiceWatchListener {
+		List<Object> received = new ArrayList<Object>();
+
+		public void serviceChanged(ServiceCall serviceCall, ServiceResponse response) {
+			received.add(response.getResponseData("users"));
+		}
+	}
+}
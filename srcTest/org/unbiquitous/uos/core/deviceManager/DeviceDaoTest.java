@@ -7,6 +7,8 @@ import static org.junit.Assert.assertTrue;
 import static org.fest.assertions.api.Assertions.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import org.junit.After;
@@ -200,4 +202,74 @@ public class DeviceDaoTest {
 		assertEquals(2,dao.list().size());
 	}
 	
+	@Test public void should_remove_deleted_device_from_network_indexes(){
+		dao.save(new UpDevice("a").addNetworkInterface("10.0.0.1", "Ethernet:TCP"));
+		dao.save(new UpDevice("b").addNetworkInterface("10.0.0.2", "Ethernet:TCP"));
+		dao.delete("a");
+		assertTrue(dao.list("10.0.0.1", null).isEmpty());
+		assertTrue(dao.list("10.0.0.1", "Ethernet:TCP").isEmpty());
+		assertEquals(1, dao.list(null, "Ethernet:TCP").size());
+		assertEquals("b", dao.list(null, "Ethernet:TCP").get(0).getName());
+	}
+	
+	@Test public void should_ignore_deletion_of_unknown_device(){
+		dao.save(new UpDevice("a"));
+		dao.delete("unknown");
+		assertEquals(1, dao.list().size());
+	}
+	
+	@Test public void should_return_listings_the_caller_can_change(){
+		dao.save(new UpDevice("b").addNetworkInterface("10.0.0.2", "Ethernet:TCP"));
+		dao.save(new UpDevice("a").addNetworkInterface("10.0.0.1", "Ethernet:TCP"));
+		
+		List<UpDevice> all = dao.list();
+		Collections.sort(all, new Comparator<UpDevice>() {
+			public int compare(UpDevice o1, UpDevice o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+		all.remove(0);
+		List<UpDevice> byType = dao.list(null, "Ethernet:TCP");
+		byType.clear();
+		
+		assertThat(all).hasSize(1);
+		assertThat(dao.list()).hasSize(2);
+		assertThat(dao.list(null, "Ethernet:TCP")).hasSize(2);
+		assertThat(dao.list("10.0.0.1", "Ethernet:TCP").add(new UpDevice("c"))).isTrue();
+	}
+	
+	@Test public void should_reuse_snapshots_until_devices_change(){
+		dao.save(new UpDevice("a").addNetworkInterface("10.0.0.1", "Ethernet:TCP"));
+		List<UpDevice> first = dao.snapshot(null, "Ethernet:TCP");
+		assertThat(dao.snapshot(null, "Ethernet:TCP")).isSameAs(first);
+		assertThat(dao.snapshot()).isSameAs(dao.snapshot());
+		
+		dao.save(new UpDevice("b").addNetworkInterface("10.0.0.2", "Ethernet:TCP"));
+		assertThat(dao.snapshot(null, "Ethernet:TCP")).isNotSameAs(first).hasSize(2);
+		assertThat(first).hasSize(1);
+	}
+	
+	@Test public void should_keep_indexes_consistent_under_concurrent_changes() throws Exception{
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++){
+			final int offset = t*100;
+			writers[t] = new Thread(){
+				public void run() {
+					for (int i = offset; i < offset+100; i++){
+						dao.save(new UpDevice("d"+i).addNetworkInterface("addr"+i, "Ethernet:TCP"));
+						dao.list(null, "Ethernet:TCP");
+						if (i % 2 == 0) dao.delete("d"+i);
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread t : writers) t.join();
+		
+		assertEquals(200, dao.list().size());
+		assertEquals(200, dao.list(null, "Ethernet:TCP").size());
+		assertTrue(dao.list("addr2", null).isEmpty());
+		assertEquals(1, dao.list("addr3", null).size());
+	}
+	
 }
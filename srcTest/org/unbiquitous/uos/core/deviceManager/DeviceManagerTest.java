@@ -14,7 +14,9 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -32,6 +34,7 @@ import org.unbiquitous.uos.core.adaptabitilyEngine.ServiceCallException;
 import org.unbiquitous.uos.core.connectivity.ConnectivityManager;
 import org.unbiquitous.uos.core.driverManager.DriverDao;
 import org.unbiquitous.uos.core.driverManager.DriverData;
+import org.unbiquitous.uos.core.driverManager.DriverDigest;
 import org.unbiquitous.uos.core.driverManager.DriverManager;
 import org.unbiquitous.uos.core.driverManager.DriverManagerException;
 import org.unbiquitous.uos.core.driverManager.DriverModel;
@@ -946,11 +949,13 @@ public class DeviceManagerTest {
 		return enteree;
 	}
 
-	private ServiceResponse gatewayHandshakeCall() throws ServiceCallException {
+	private ServiceResponse gatewayHandshakeCall() throws ServiceCallException, JSONException {
 		ServiceCall handshake = new ServiceCall(
 				"uos.DeviceDriver",
 				"handshake", null);
 		handshake.addParameter("device", currentDevice.toString());
+		handshake.addParameter("driversDigest", DriverDigest.ofSet(
+				DriverDigest.ofData(driverManager.listDrivers(null, currentDevice.getName()))));
 		return gateway.callService(any(UpDevice.class), eq(handshake));
 	}
 
@@ -1153,4 +1158,243 @@ public class DeviceManagerTest {
 		assertEquals(2, dao.list().size());
 		assertEquals(2, driverDao.list().size());
 	}
+	
+	@Test
+	public void shouldForgetDevicesNotSeenForLongerThanTheTTL() throws Exception {
+		UpDevice gone = new UpDevice("gone").addNetworkInterface("127.0.0.2", "Ethernet:TCP");
+		deviceManager.registerDevice(gone);
+		driverManager.insert(new DriverModel("id1", new UpDriver("d1"), "gone"));
+		deviceManager.startSweeper(1000, 0, 60000);
+		try {
+			deviceManager.sweep(System.currentTimeMillis() + 500);
+			assertNotNull(dao.find("gone"));
+			
+			deviceManager.sweep(System.currentTimeMillis() + 2000);
+			assertNull(dao.find("gone"));
+			assertTrue(driverDao.list().isEmpty());
+			assertNotNull(dao.find(currentDevice.getName()));
+		} finally {
+			deviceManager.tearDown();
+		}
+	}
+	
+	@Test
+	public void shouldKeepDevicesSeenAgain() throws Exception {
+		UpDevice device = new UpDevice("device").addNetworkInterface("127.0.0.2", "Ethernet:TCP");
+		deviceManager.registerDevice(device);
+		long registered = deviceManager.lastSeen("device");
+		Thread.sleep(5);
+		NetworkDevice seen = mock(NetworkDevice.class);
+		when(seen.getNetworkDeviceName()).thenReturn("127.0.0.2");
+		when(seen.getNetworkDeviceType()).thenReturn("Ethernet:TCP");
+		deviceManager.deviceSeen(seen);
+		assertTrue(deviceManager.lastSeen("device") > registered);
+	}
+	
+	@Test
+	public void shouldEvictTheLeastRecentlySeenDevicesOverTheLimit() throws Exception {
+		for (int i = 0; i < 3; i++){
+			deviceManager.registerDevice(new UpDevice("d"+i));
+			Thread.sleep(5);
+		}
+		deviceManager.deviceSeen(dao.find("d0"));
+		deviceManager.startSweeper(0, 2, 60000);
+		try {
+			deviceManager.sweep(System.currentTimeMillis());
+		} finally {
+			deviceManager.tearDown();
+		}
+		assertNotNull(dao.find("d0"));
+		assertNull(dao.find("d1"));
+		assertNotNull(dao.find("d2"));
+		assertNotNull(dao.find(currentDevice.getName()));
+	}
+	
+	@Test
+	public void shouldServeDevicesRestoredFromTheSnapshot() throws Exception {
+		RegistrySnapshot snapshot = snapshotWith(new UpDevice("known").addNetworkInterface("ADDR_KNOWN", "T"));
+		try {
+			deviceManager.restore(snapshot);
+			assertNotNull(dao.find("known"));
+			assertEquals(1, driverDao.list(null, "known").size());
+		} finally {
+			deviceManager.tearDown();
+		}
+	}
+	
+	@Test
+	public void shouldNotListDriversOfAnUnchangedRestoredDevice() throws Exception {
+		UpDevice known = new UpDevice("known").addNetworkInterface("ADDR_KNOWN", "T");
+		RegistrySnapshot snapshot = snapshotWith(known);
+		try {
+			deviceManager.restore(snapshot);
+			when(gatewayHandshakeCall()).thenReturn(new ServiceResponse().addParameter("device", known.toString()));
+			deviceManager.deviceEntered(networkDevice("ADDR_KNOWN", "T"));
+			deviceManager.deviceEntered(networkDevice("ADDR_KNOWN", "T"));
+			ArgumentCaptor<ServiceCall> calls = ArgumentCaptor.forClass(ServiceCall.class);
+			verify(gateway, times(1)).callService(any(UpDevice.class), calls.capture());
+			assertEquals("handshake", calls.getValue().getService());
+			assertEquals(1, driverDao.list(null, "known").size());
+		} finally {
+			deviceManager.tearDown();
+		}
+	}
+	
+	@Test
+	public void shouldListDriversAgainOfAChangedRestoredDevice() throws Exception {
+		RegistrySnapshot snapshot = snapshotWith(new UpDevice("known").addNetworkInterface("ADDR_KNOWN", "T"));
+		try {
+			deviceManager.restore(snapshot);
+			UpDevice changed = new UpDevice("known").addNetworkInterface("ADDR_KNOWN", "T")
+													.addNetworkInterface("ADDR_NEW", "T");
+			when(gatewayHandshakeCall()).thenReturn(new ServiceResponse().addParameter("device", changed.toString()));
+			deviceManager.deviceEntered(networkDevice("ADDR_KNOWN", "T"));
+			verify(gateway, times(2)).callService(any(UpDevice.class), any(ServiceCall.class));
+			assertTrue(driverDao.list(null, "known").isEmpty());
+			assertEquals(changed.toString(), dao.find("known").toString());
+		} finally {
+			deviceManager.tearDown();
+		}
+	}
+	
+	@Test
+	public void shouldNotListDriversOfADeviceWithTheSameDriversDigest() throws Exception {
+		UpDevice known = new UpDevice("known").addNetworkInterface("ADDR_KNOWN", "T");
+		RegistrySnapshot snapshot = snapshotWith(known);
+		try {
+			deviceManager.restore(snapshot);
+			UpDevice changed = new UpDevice("known").addNetworkInterface("ADDR_KNOWN", "T")
+													.addNetworkInterface("ADDR_NEW", "T");
+			String digest = DriverDigest.ofSet(DriverDigest.ofModels(driverDao.list(null, "known")));
+			when(gatewayHandshakeCall()).thenReturn(new ServiceResponse()
+														.addParameter("device", changed.toString())
+														.addParameter("driversDigest", digest));
+			deviceManager.deviceEntered(networkDevice("ADDR_KNOWN", "T"));
+			verify(gateway, times(1)).callService(any(UpDevice.class), any(ServiceCall.class));
+			assertEquals(1, driverDao.list(null, "known").size());
+			assertEquals(changed.toString(), dao.find("known").toString());
+		} finally {
+			deviceManager.tearDown();
+		}
+	}
+	
+	@Test
+	public void shouldNotListDriversOfADeviceComingBackWithTheSameDriversDigest() throws Exception {
+		NetworkDevice card = networkDevice("ADDR_FLAPPING", "T");
+		UpDevice flapping = upDevice("flapping", card);
+		when(connManager.getHost(eq(card.getNetworkDeviceName()))).thenReturn("ADDR_FLAPPING");
+		deviceManager.registerDevice(flapping);
+		driverManager.insert(new DriverModel("id1", serviceDriver("d1"), "flapping"));
+		driverManager.insert(new DriverModel("id2", serviceDriver("d2"), "flapping"));
+		String digest = DriverDigest.ofSet(DriverDigest.ofModels(driverDao.list(null, "flapping")));
+		
+		deviceManager.deviceLeft(card);
+		assertTrue(driverDao.list(null, "flapping").isEmpty());
+		
+		when(gatewayHandshakeCall()).thenReturn(new ServiceResponse()
+													.addParameter("device", flapping.toString())
+													.addParameter("driversDigest", digest));
+		deviceManager.deviceEntered(card);
+		
+		verify(gateway, never()).callService(any(UpDevice.class), eq(new ServiceCall("uos.DeviceDriver", "listDrivers")));
+		assertEquals(2, driverDao.list(null, "flapping").size());
+		assertNotNull(dao.find("flapping"));
+	}
+	
+	@Test
+	public void shouldOnlyListTheChangedDriversOfADeviceComingBack() throws Exception {
+		NetworkDevice card = networkDevice("ADDR_FLAPPING", "T");
+		UpDevice flapping = upDevice("flapping", card);
+		when(connManager.getHost(eq(card.getNetworkDeviceName()))).thenReturn("ADDR_FLAPPING");
+		deviceManager.registerDevice(flapping);
+		driverManager.insert(new DriverModel("id1", serviceDriver("d1"), "flapping"));
+		Map<String, String> known = DriverDigest.ofModels(driverDao.list(null, "flapping"));
+		
+		deviceManager.deviceLeft(card);
+		when(gatewayHandshakeCall()).thenReturn(new ServiceResponse()
+													.addParameter("device", flapping.toString())
+													.addParameter("driversDigest", "changed"));
+		deviceManager.deviceEntered(card);
+		
+		ServiceCall listDrivers = new ServiceCall("uos.DeviceDriver", "listDrivers");
+		listDrivers.addParameter("knownDrivers", new JSONObject(known).toString());
+		verify(gateway).callService(any(UpDevice.class), eq(listDrivers));
+		assertEquals(1, driverDao.list(null, "flapping").size());
+	}
+	
+	@Test
+	public void registryDeltaSkipsWhatTheOtherDeviceKnows() throws Exception {
+		deviceManager.registerDevice(new UpDevice("other").addNetworkInterface("ADDR_OTHER", "T"));
+		driverManager.insert(new DriverModel("id1", serviceDriver("d1"), "other"));
+		
+		assertEquals(2, deviceManager.registryDelta(null).length());
+		assertEquals(0, deviceManager.registryDelta(deviceManager.registrySummary()).length());
+		
+		Map<String, String> outdated = deviceManager.registrySummary();
+		outdated.put("other", "outdated");
+		JSONArray delta = deviceManager.registryDelta(outdated);
+		assertEquals(1, delta.length());
+		assertEquals("other", delta.getJSONObject(0).getJSONObject("device").getString("name"));
+		assertTrue(delta.getJSONObject(0).getJSONObject("drivers").has("id1"));
+	}
+	
+	@Test
+	public void shouldUseDevicesLearnedFromPeersWithoutHandshakingThem() throws Exception {
+		UpDevice peer = new UpDevice("peer").addNetworkInterface("ADDR_PEER", "T");
+		when(gateway.callService(eq(peer), any(ServiceCall.class)))
+			.thenReturn(new ServiceResponse().addParameter("registry", 
+						registryOf(new UpDevice("other").addNetworkInterface("ADDR_OTHER", "T")).toString()));
+		
+		deviceManager.pullRegistry(peer);
+		assertNotNull(dao.find("other"));
+		assertEquals(1, driverDao.list(null, "other").size());
+		
+		deviceManager.deviceEntered(networkDevice("ADDR_OTHER", "T"));
+		verify(gateway, times(1)).callService(any(UpDevice.class), any(ServiceCall.class));
+	}
+	
+	@Test
+	public void shouldKeepWhatWasLearnedFromTheDeviceItself() throws Exception {
+		UpDevice other = new UpDevice("other").addNetworkInterface("ADDR_OTHER", "T");
+		deviceManager.registerDevice(other);
+		UpDevice peer = new UpDevice("peer").addNetworkInterface("ADDR_PEER", "T");
+		when(gateway.callService(eq(peer), any(ServiceCall.class)))
+			.thenReturn(new ServiceResponse().addParameter("registry", 
+						registryOf(new UpDevice("other").addNetworkInterface("ADDR_ELSEWHERE", "T")).toString()));
+		
+		deviceManager.pullRegistry(peer);
+		assertEquals(other.toString(), dao.find("other").toString());
+		assertTrue(driverDao.list(null, "other").isEmpty());
+	}
+	
+	private JSONArray registryOf(UpDevice device) throws Exception {
+		DeviceDao otherDao = new DeviceDao(null);
+		DriverDao otherDriverDao = new DriverDao(null);
+		DriverManager otherDrivers = new DriverManager(device, otherDriverDao, otherDao, new ReflectionServiceCaller(null));
+		DeviceManager otherDevices = new DeviceManager(device, otherDao, otherDriverDao, 
+											connManager, proxier, gateway, otherDrivers);
+		otherDrivers.insert(new DriverModel("id1", serviceDriver("d1"), device.getName()));
+		Map<String, String> known = new HashMap<String, String>();
+		known.put(currentDevice.getName(), deviceManager.registrySummary().get(currentDevice.getName()));
+		return otherDevices.registryDelta(known);
+	}
+	
+	private static UpDriver serviceDriver(String name) {
+		UpDriver driver = new UpDriver(name);
+		driver.addService("s1");
+		return driver;
+	}
+	
+	private RegistrySnapshot snapshotWith(UpDevice device) throws Exception {
+		File file = File.createTempFile("registry", ".snapshot");
+		file.deleteOnExit();
+		RegistrySnapshot previous = new RegistrySnapshot(file);
+		previous.load(new ArrayList<UpDevice>(), new ArrayList<DriverModel>());
+		previous.deviceSaved(device);
+		UpDriver driver = new UpDriver("d1");
+		driver.addService("s1");
+		previous.driverSaved(new DriverModel("id1", driver, device.getName()));
+		previous.close();
+		return new RegistrySnapshot(file);
+	}
 }
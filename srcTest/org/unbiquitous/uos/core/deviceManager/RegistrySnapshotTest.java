@@ -0,0 +1,141 @@
+package org.unbiquitous.uos.core.deviceManager;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.uos.core.driverManager.DriverModel;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
+
+public class RegistrySnapshotTest {
+
+	private File file;
+	private RegistrySnapshot snapshot;
+	private List<UpDevice> devices;
+	private List<DriverModel> drivers;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("registry", ".snapshot");
+		file.delete();
+		snapshot = new RegistrySnapshot(file);
+		devices = new ArrayList<UpDevice>();
+		drivers = new ArrayList<DriverModel>();
+	}
+
+	@After
+	public void tearDown() {
+		snapshot.close();
+		file.delete();
+	}
+
+	@Test
+	public void startsEmptyWithoutAFile() {
+		snapshot.load(devices, drivers);
+		assertThat(devices).isEmpty();
+		assertThat(drivers).isEmpty();
+	}
+
+	@Test
+	public void restoresRecordedDevicesAndDrivers() {
+		snapshot.load(devices, drivers);
+		UpDevice device = new UpDevice("aDevice").addNetworkInterface("127.0.0.2", "Ethernet:TCP");
+		snapshot.deviceSaved(device);
+		snapshot.driverSaved(new DriverModel("id1", driver("aDriver"), "aDevice"));
+		snapshot.close();
+
+		reload();
+		assertThat(devices).containsExactly(device);
+		assertThat(devices.get(0).getNetworks().get(0).getNetworkAddress()).isEqualTo("127.0.0.2");
+		assertThat(drivers).hasSize(1);
+		assertThat(drivers.get(0).id()).isEqualTo("id1");
+		assertThat(drivers.get(0).device()).isEqualTo("aDevice");
+		assertThat(drivers.get(0).driver().getName()).isEqualTo("aDriver");
+	}
+
+	@Test
+	public void removedDevicesTakeTheirDriversAlong() {
+		snapshot.load(devices, drivers);
+		snapshot.deviceSaved(device("gone"));
+		snapshot.driverSaved(new DriverModel("id1", driver("aDriver"), "gone"));
+		snapshot.deviceSaved(device("stays"));
+		snapshot.deviceRemoved("GONE");
+
+		reload();
+		assertThat(devices).containsExactly(device("stays"));
+		assertThat(drivers).isEmpty();
+	}
+
+	@Test
+	public void keepsOnlyTheLatestRecordOfEachEntry() {
+		snapshot.load(devices, drivers);
+		snapshot.deviceSaved(new UpDevice("aDevice").addNetworkInterface("A", "T"));
+		snapshot.deviceSaved(new UpDevice("aDevice").addNetworkInterface("B", "T"));
+
+		reload();
+		assertThat(devices).hasSize(1);
+		assertThat(devices.get(0).getNetworks().get(0).getNetworkAddress()).isEqualTo("B");
+	}
+
+	@Test
+	public void compactsTheFileWhenMostRecordsAreDead() throws Exception {
+		snapshot.load(devices, drivers);
+		for (int i = 0; i < 500; i++){
+			snapshot.deviceSaved(device("aDevice"));
+		}
+		assertThat(snapshot.size()).isEqualTo(1);
+		assertThat(lines()).isLessThanOrEqualTo(100);
+
+		reload();
+		assertThat(devices).hasSize(1);
+		assertThat(lines()).isEqualTo(1);
+	}
+
+	@Test
+	public void ignoresCorruptedRecords() throws Exception {
+		snapshot.load(devices, drivers);
+		snapshot.deviceSaved(device("aDevice"));
+		snapshot.close();
+		FileWriter writer = new FileWriter(file, true);
+		writer.write("{\"op\":\"device\",\"dev");
+		writer.close();
+
+		reload();
+		assertThat(devices).containsExactly(device("aDevice"));
+	}
+
+	private static UpDevice device(String name) {
+		return new UpDevice(name).addNetworkInterface(name, "T");
+	}
+
+	private static UpDriver driver(String name) {
+		UpDriver driver = new UpDriver(name);
+		driver.addService("aService");
+		return driver;
+	}
+
+	private void reload() {
+		snapshot.close();
+		snapshot = new RegistrySnapshot(file);
+		devices.clear();
+		drivers.clear();
+		snapshot.load(devices, drivers);
+	}
+
+	private int lines() throws Exception {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		int count = 0;
+		while (reader.readLine() != null) count++;
+		reader.close();
+		return count;
+	}
+}
@@ -22,6 +22,8 @@ import org.unbiquitous.uos.core.UOS;
 import org.unbiquitous.uos.core.adaptabitilyEngine.AdaptabilityEngine;
 import org.unbiquitous.uos.core.adaptabitilyEngine.SmartSpaceGateway;
 import org.unbiquitous.uos.core.deviceManager.DeviceManager;
+import org.unbiquitous.uos.core.driverManager.DriverData;
+import org.unbiquitous.uos.core.driverManager.DriverDigest;
 import org.unbiquitous.uos.core.driverManager.DriverManager;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
@@ -212,6 +214,78 @@ public class DeviceDriverTest_handShake {
 		assertThat(driverManager.listDrivers("ddd", "Dummy")).isNotEmpty();
 	}
 
+	@Test public void skipsListingTheDriversWhenTheDigestMatches() throws Exception{
+		SmartSpaceGateway gateway = mockGateway(new UpDevice());
+		when(gateway.callService((UpDevice)any(), (ServiceCall)any()))
+			.thenReturn(new ServiceResponse().addParameter("driverList", driverList("id_d", "ddd")));
+		driver.init(gateway, "id");
+		UpDevice toRegister = new UpDevice("Dummy").addNetworkInterface("HERE", "LOCAL");
+		driver.handshake(new ServiceCall()
+					.addParameter("device",new JSONDevice(toRegister).toString()), 
+					new ServiceResponse(), null);
+		
+		String digest = DriverDigest.ofSet(DriverDigest.ofModels(driverManager.list(null, "Dummy")));
+		ServiceResponse response = new ServiceResponse();
+		driver.handshake(new ServiceCall()
+					.addParameter("device",new JSONDevice(toRegister).toString())
+					.addParameter("driversDigest", digest), 
+					response, null);
+		
+		verify(gateway, times(1)).callService(eq(toRegister), (ServiceCall)any());
+		assertThat(response.getResponseString("driversDigest")).isNotEmpty();
+		assertThat(response.getError()).isNullOrEmpty();
+	}
+	
+	@Test public void listsOnlyWhatChangedWhenTheDigestDiffers() throws Exception{
+		SmartSpaceGateway gateway = mockGateway(new UpDevice());
+		when(gateway.callService((UpDevice)any(), (ServiceCall)any()))
+			.thenReturn(new ServiceResponse().addParameter("driverList", driverList("id_d", "ddd")))
+			.thenReturn(new ServiceResponse()
+							.addParameter("driverList", driverList("id_e", "eee"))
+							.addParameter("removedDrivers", "[\"id_d\"]"));
+		driver.init(gateway, "id");
+		UpDevice toRegister = new UpDevice("Dummy").addNetworkInterface("HERE", "LOCAL");
+		driver.handshake(new ServiceCall()
+					.addParameter("device",new JSONDevice(toRegister).toString()), 
+					new ServiceResponse(), null);
+		driver.handshake(new ServiceCall()
+					.addParameter("device",new JSONDevice(toRegister).toString())
+					.addParameter("driversDigest", "changed"), 
+					new ServiceResponse(), null);
+		
+		ArgumentCaptor<ServiceCall> getCall = ArgumentCaptor.forClass(ServiceCall.class); 
+		verify(gateway, times(2)).callService(eq(toRegister), getCall.capture());
+		JSONObject known = new JSONObject(getCall.getValue().getParameterString("knownDrivers"));
+		assertThat(known.has("id_d")).isTrue();
+		assertThat(driverManager.listDrivers("ddd", "Dummy")).isNullOrEmpty();
+		assertThat(driverManager.listDrivers("eee", "Dummy")).isNotEmpty();
+	}
+	
+	@Test public void listDriversSendsOnlyWhatTheCallerDoesntKnow() throws Exception{
+		SmartSpaceGateway gateway = mockGateway(currentDevice);
+		when(gateway.getConnectivityManager()).thenReturn(null);
+		driver.init(gateway, "id");
+		JSONObject known = new JSONObject();
+		known.put("gone", "someDigest");
+		for (DriverData data : driverManager.listDrivers(null, currentDevice.getName())){
+			known.put(data.getInstanceID(), DriverDigest.of(data.getInstanceID(), data.getDriver()));
+		}
+		
+		ServiceResponse response = new ServiceResponse();
+		driver.listDrivers(new ServiceCall().addParameter("knownDrivers", known.toString()), response, null);
+		
+		assertThat(new JSONObject(response.getResponseData("driverList").toString()).length()).isEqualTo(0);
+		assertThat(response.getResponseString("removedDrivers")).isEqualTo("[\"gone\"]");
+	}
+
+	private static JSONObject driverList(String id, String driverName) throws Exception {
+		JSONObject driversList = new JSONObject();
+		UpDriver dummyInterface = new UpDriver(driverName);
+		dummyInterface.addService("s");
+		driversList.put(id, new JSONDriver(dummyInterface));
+		return driversList;
+	}
+
 	private SmartSpaceGateway mockGateway(UpDevice currentDevice) {
 		SmartSpaceGateway gateway = mock(SmartSpaceGateway.class);
 		when(gateway.getDeviceManager()).thenReturn(deviceManager);
@@ -0,0 +1,68 @@
+package org.unbiquitous.uos.core.driver;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.uos.core.adaptabitilyEngine.EventFilter;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpNetworkInterface;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+public class ListenerFiltersTest {
+
+	private static final String EVENT = "NEW_USER";
+
+	private ListenerFilters filters;
+	private UpNetworkInterface device;
+
+	@Before
+	public void setUp() {
+		filters = new ListenerFilters();
+		device = new UpNetworkInterface("Ethernet:TCP", "10.0.0.1");
+	}
+
+	@Test
+	public void twoListenersOnADeviceReceiveWhatEitherAskedFor() {
+		filters.add(EVENT, device, EventFilter.parse("email == john@mail.com"));
+		filters.add(EVENT, device, EventFilter.parse("email == mary@mail.com"));
+
+		assertThat(filters.matches(device, user("john@mail.com"))).isTrue();
+		assertThat(filters.matches(device, user("mary@mail.com"))).isTrue();
+		assertThat(filters.matches(device, user("bob@mail.com"))).isFalse();
+	}
+
+	@Test
+	public void anUnfilteredListenerReceivesEverything() {
+		filters.add(EVENT, device, EventFilter.parse("email == john@mail.com"));
+		filters.add(EVENT, device, null);
+		filters.add(EVENT, device, EventFilter.parse("email == mary@mail.com"));
+
+		assertThat(filters.matches(device, user("bob@mail.com"))).isTrue();
+	}
+
+	@Test
+	public void devicesAndEventsAreIndependent() {
+		UpNetworkInterface other = new UpNetworkInterface("Ethernet:TCP", "10.0.0.2");
+		filters.add(EVENT, device, EventFilter.parse("email == john@mail.com"));
+
+		assertThat(filters.matches(other, user("bob@mail.com"))).isTrue();
+		Notify lost = new Notify("LOST_USER");
+		lost.addParameter("email", "bob@mail.com");
+		assertThat(filters.matches(device, lost)).isTrue();
+	}
+
+	@Test
+	public void forgetsTheFiltersOfARemovedDevice() {
+		filters.add(EVENT, device, EventFilter.parse("email == john@mail.com"));
+
+		filters.remove(EVENT, device);
+
+		assertThat(filters.matches(device, user("bob@mail.com"))).isTrue();
+	}
+
+	private static Notify user(String email) {
+		Notify notify = new Notify(EVENT);
+		notify.addParameter("email", email);
+		return notify;
+	}
+}
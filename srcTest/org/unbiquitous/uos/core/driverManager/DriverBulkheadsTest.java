@@ -0,0 +1,198 @@
+package org.unbiquitous.uos.core.driverManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ListResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponseFuture;
+
+public class DriverBulkheadsTest {
+
+	private DriverBulkheads bulkheads;
+	private CountDownLatch release;
+	private CountDownLatch started;
+	
+	@Before public void setUp(){
+		bulkheads = new DriverBulkheads(null);
+		release = new CountDownLatch(1);
+	}
+	
+	@After public void tearDown(){
+		release.countDown();
+		bulkheads.shutdown();
+	}
+	
+	private Callable<ServiceResponseFuture> currentThread(){
+		return new Callable<ServiceResponseFuture>() {
+			public ServiceResponseFuture call() throws Exception {
+				return ServiceResponseFuture.completed(
+						new ServiceResponse().addParameter("thread", Thread.currentThread().getName()));
+			}
+		};
+	}
+	
+	private String threadOf(String driver) throws Exception{
+		return (String) bulkheads.submit(driver, currentThread()).get(1, TimeUnit.SECONDS).getResponseData("thread");
+	}
+	
+	private void block(String driver, int calls) throws DriverManagerException{
+		started = new CountDownLatch(calls);
+		for (int i = 0; i < calls; i++){
+			bulkheads.submit(driver, new Callable<ServiceResponseFuture>() {
+				public ServiceResponseFuture call() throws Exception {
+					started.countDown();
+					release.await();
+					return null;
+				}
+			});
+		}
+	}
+	
+	@Test public void driversWithoutBulkheadRunOnTheCallerThread() throws Exception{
+		assertEquals(Thread.currentThread().getName(), threadOf("driver"));
+	}
+	
+	@Test public void driversWithBulkheadRunOnItsOwnThreads() throws Exception{
+		bulkheads.configure("driver", 1, 0);
+		assertTrue(threadOf("driver").startsWith("uos-driver-driver-"));
+	}
+	
+	@Test public void queuesCallsWhileTheThreadsAreBusy() throws Exception{
+		bulkheads.configure("driver", 1, 1);
+		block("driver", 1);
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+		
+		ServiceResponseFuture queued = bulkheads.submit("driver", currentThread());
+		
+		assertEquals(1, bulkheads.queueDepth("driver"));
+		assertFalse(queued.isDone());
+		release.countDown();
+		assertTrue(((String) queued.get(1, TimeUnit.SECONDS).getResponseData("thread")).startsWith("uos-driver-driver-"));
+	}
+	
+	@Test public void rejectsCallsWhenSaturated() throws Exception{
+		bulkheads.configure("driver", 1, 1);
+		block("driver", 1);
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+		block("driver", 1);
+		assertEquals(1, bulkheads.queueDepth("driver"));
+		
+		assertEquals(1, bulkheads.active("driver"));
+		try {
+			bulkheads.submit("driver", currentThread());
+			fail("Call should be rejected");
+		} catch (DriverManagerException e) {
+			assertEquals(1, bulkheads.rejected("driver"));
+		}
+	}
+	
+	@Test public void saturatedDriverDoesntAffectOthers() throws Exception{
+		bulkheads.configure("slow", 1, 0);
+		bulkheads.configure("fast", 1, 0);
+		block("slow", 1);
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+		
+		assertTrue(threadOf("fast").startsWith("uos-driver-fast-"));
+		assertEquals(0, bulkheads.rejected("fast"));
+	}
+	
+	@Test public void unwrapsDriverManagerExceptions() throws Exception{
+		bulkheads.configure("driver", 1, 0);
+		final DriverManagerException error = new DriverManagerException("boom");
+		ServiceResponseFuture future = bulkheads.submit("driver", new Callable<ServiceResponseFuture>() {
+			public ServiceResponseFuture call() throws Exception {
+				throw error;
+			}
+		});
+		try {
+			future.get(1, TimeUnit.SECONDS);
+			fail("Exception should be propagated");
+		} catch (ExecutionException e) {
+			assertSame(error, future.getError());
+		}
+	}
+	
+	@Test public void readsConfigurationFromBundle() throws Exception{
+		bulkheads = new DriverBulkheads(new ListResourceBundle() {
+			protected Object[][] getContents() {
+				return new Object[][] {
+					{"ubiquitos.driver.bulkheads", "isolated(1,0); malformed(x)"},
+				};
+			}
+		});
+		assertTrue(threadOf("isolated").startsWith("uos-driver-isolated-"));
+		assertEquals(Thread.currentThread().getName(), threadOf("other"));
+		assertEquals(Thread.currentThread().getName(), threadOf("malformed"));
+	}
+	
+	@Test public void defaultBulkheadAppliesToEveryDriver() throws Exception{
+		bulkheads = new DriverBulkheads(new ListResourceBundle() {
+			protected Object[][] getContents() {
+				return new Object[][] {
+					{"ubiquitos.driver.bulkheads.default", "2,4"},
+				};
+			}
+		});
+		assertTrue(threadOf("any").startsWith("uos-driver-any-"));
+	}
+	
+	@Test public void submittedCallsDontHoldTheCallerThread() throws Exception{
+		bulkheads.configure("driver", 1, 0);
+		ServiceResponseFuture future = bulkheads.submit("driver", new Callable<ServiceResponseFuture>() {
+			public ServiceResponseFuture call() throws Exception {
+				release.await();
+				return ServiceResponseFuture.completed(new ServiceResponse().addParameter("bla", "0"));
+			}
+		});
+		assertFalse(future.isDone());
+		
+		release.countDown();
+		
+		assertEquals("0", future.get(1, TimeUnit.SECONDS).getResponseData("bla"));
+	}
+	
+	@Test public void submittedCallsFollowTheDriverFuture() throws Exception{
+		bulkheads.configure("driver", 1, 0);
+		final ServiceResponseFuture answer = new ServiceResponseFuture();
+		ServiceResponseFuture future = bulkheads.submit("driver", new Callable<ServiceResponseFuture>() {
+			public ServiceResponseFuture call() throws Exception {
+				return answer;
+			}
+		});
+		while (bulkheads.active("driver") > 0) Thread.sleep(5);
+		assertFalse(future.isDone());
+		
+		future.cancel(true);
+		
+		assertTrue(answer.isCancelled());
+	}
+	
+	@Test public void rejectsSubmittedCallsWhenSaturated() throws Exception{
+		bulkheads.configure("driver", 1, 0);
+		block("driver", 1);
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+		
+		try {
+			bulkheads.submit("driver", new Callable<ServiceResponseFuture>() {
+				public ServiceResponseFuture call() throws Exception {
+					return null;
+				}
+			});
+			fail("Call should be rejected");
+		} catch (DriverManagerException e) {
+			assertEquals(1, bulkheads.rejected("driver"));
+		}
+	}
+}
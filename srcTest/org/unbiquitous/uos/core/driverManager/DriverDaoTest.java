@@ -4,6 +4,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
@@ -230,4 +235,30 @@ public class DriverDaoTest {
 		dao.insert(createDriver("id.b1","b", "Db"));
 		assertNull(dao.retrieve("id.a1","Dc"));
 	}
+	@Test public void mustStayConsistentUnderConcurrentChanges() throws Exception{
+		final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++){
+			final String device = "D"+t;
+			writers[t] = new Thread(){
+				public void run() {
+					try {
+						for (int i = 0; i < 200; i++){
+							dao.insert(new DriverModel("id"+i, new UpDriver("driver"), device));
+							dao.list("driver");
+							if (i % 2 == 0) dao.delete("id"+i, device);
+						}
+					} catch (Exception e) {
+						failures.add(e);
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread t : writers) t.join();
+		
+		assertTrue(failures.isEmpty());
+		assertEquals(400, dao.list("driver").size());
+		assertEquals(100, dao.list(null, "D0").size());
+	}
 }
@@ -0,0 +1,55 @@
+package org.unbiquitous.uos.core.driverManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpService;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpService.ParameterType;
+import org.unbiquitous.uos.core.messageEngine.dataType.json.JSONDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.json.JSONDriver;
+
+public class DriverDigestTest {
+
+	@Test public void aDriverReceivedFromThePeerHasTheSameDigest() throws Exception{
+		UpDriver driver = new UpDriver("camera");
+		for (int i = 0; i < 20; i++){
+			UpService service = driver.addService("service"+i);
+			for (int j = 20; j > 0; j--){
+				service.addParameter("param"+j, j % 2 == 0 ? ParameterType.MANDATORY : ParameterType.OPTIONAL);
+			}
+		}
+		driver.addEquivalentDrivers("sensor");
+
+		UpDriver received = new JSONDriver(new JSONDriver(driver).toString()).getAsObject();
+
+		assertEquals(DriverDigest.of("id", driver), DriverDigest.of("id", received));
+	}
+
+	@Test public void aDeviceReceivedFromThePeerHasTheSameDigest() throws Exception{
+		UpDevice device = new UpDevice("phone");
+		for (int i = 0; i < 20; i++){
+			device.addNetworkInterface("10.0.0."+i, "Ethernet:TCP");
+		}
+		Map<String, String> digests = Collections.singletonMap("id", DriverDigest.of("id", new UpDriver("camera")));
+
+		UpDevice received = new JSONDevice(new JSONDevice(device).toString()).getAsObject();
+
+		assertEquals(DriverDigest.ofDevice(device, digests), DriverDigest.ofDevice(received, digests));
+	}
+
+	@Test public void aChangedDriverHasAnotherDigest() throws Exception{
+		UpDriver driver = new UpDriver("camera");
+		driver.addService("picture");
+		String before = DriverDigest.of("id", driver);
+
+		driver.addService("video");
+
+		assertFalse(before.equals(DriverDigest.of("id", driver)));
+	}
+}
@@ -9,7 +9,11 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.fest.assertions.core.Condition;
 import org.junit.Before;
@@ -93,6 +97,35 @@ public class DriverManagerTest {
 		assertTrue(driver.called);
 	}
 	
+	@Test
+	public void shouldSpreadCallsAmongInstancesWhenNoInstanceIdIsInformed() throws DriverManagerException, InterfaceValidationException, DriverNotFoundException{
+		DriverSpy other = new DriverSpy();
+		manager.deployDriver(driver.upDriver, driver, "id1");
+		manager.deployDriver(other.upDriver, other, "id2");
+		manager.handleServiceCall(new ServiceCall("driver","service"), null);
+		manager.handleServiceCall(new ServiceCall("driver","service"), null);
+		
+		assertTrue(driver.called);
+		assertTrue(other.called);
+	}
+	
+	@Test
+	public void shouldUseTheInformedInstanceSelector() throws DriverManagerException, InterfaceValidationException, DriverNotFoundException{
+		DriverSpy other = new DriverSpy();
+		manager.deployDriver(driver.upDriver, driver, "id1");
+		manager.deployDriver(other.upDriver, other, "id2");
+		manager.setInstanceSelector(new InstanceSelector() {
+			public DriverModel select(String driverName, List<DriverModel> candidates, int[] inFlight) {
+				return candidates.get(1);
+			}
+		});
+		manager.handleServiceCall(new ServiceCall("driver","service"), null);
+		manager.handleServiceCall(new ServiceCall("driver","service"), null);
+		
+		assertFalse(driver.called);
+		assertTrue(other.called);
+	}
+	
 	@Test(expected=DriverManagerException.class)
 	public void shouldFailCallingServiceOnDriverUsingAnInvalidDriver() throws DriverManagerException, InterfaceValidationException, DriverNotFoundException{
 		manager.handleServiceCall(new ServiceCall("driver","service"), null);
@@ -124,6 +157,62 @@ public class DriverManagerTest {
 		assertTrue(secondLevelEquivalentDriver.called);
 	}
 	
+	@Test
+	public void shouldCallTheDirectDriverOnceItIsDeployedAfterAnEquivalentOne() throws DriverManagerException, InterfaceValidationException, DriverNotFoundException{
+		manager.insert(new DriverModel("id1",driver.upDriver,"my.Phone"));
+		DriverSpy equivalentDriver = new DriverSpy("Bumblebee");
+		equivalentDriver.upDriver.addEquivalentDrivers(driver.upDriver.getName());
+		manager.deployDriver(equivalentDriver.upDriver, equivalentDriver);
+		manager.handleServiceCall(new ServiceCall("driver","service"), null);
+		assertTrue(equivalentDriver.called);
+		
+		equivalentDriver.called = false;
+		manager.deployDriver(driver.upDriver, driver, "direct");
+		manager.handleServiceCall(new ServiceCall("driver","service"), null);
+		assertTrue(driver.called);
+		assertFalse(equivalentDriver.called);
+	}
+	
+	@Test
+	public void shouldFallBackToTheEquivalentDriverWhenTheDirectOneIsUndeployed() throws DriverManagerException, InterfaceValidationException, DriverNotFoundException{
+		manager.deployDriver(driver.upDriver, driver, "direct");
+		DriverSpy equivalentDriver = new DriverSpy("Bumblebee");
+		equivalentDriver.upDriver.addEquivalentDrivers(driver.upDriver.getName());
+		manager.deployDriver(equivalentDriver.upDriver, equivalentDriver);
+		manager.handleServiceCall(new ServiceCall("driver","service"), null);
+		assertTrue(driver.called);
+		
+		manager.undeployDriver("direct");
+		manager.handleServiceCall(new ServiceCall("driver","service"), null);
+		assertTrue(equivalentDriver.called);
+	}
+	
+	@Test 
+	public void shouldListEquivalentDriversInsertedAfterAPreviousListing() throws DriverManagerException, DriverNotFoundException{
+		UpDriver driver = new UpDriver("d1");
+		manager.insert(new DriverModel("id1",driver,currentDevice.getName()));
+		assertEquals(1,manager.listDrivers("d1", currentDevice.getName()).size());
+		
+		UpDriver equivalentDriver = new UpDriver("d2");
+		equivalentDriver.addEquivalentDrivers(driver.getName());
+		manager.insert(new DriverModel("id2",equivalentDriver,"other.device"));
+		assertEquals(2,manager.listDrivers("d1", currentDevice.getName()).size());
+		
+		manager.delete("id2", "other.device");
+		assertEquals(1,manager.listDrivers("d1", currentDevice.getName()).size());
+	}
+	
+	@Test
+	public void shouldIgnoreDeletingADriverAlreadyGone() throws DriverManagerException, DriverNotFoundException{
+		manager.insert(new DriverModel("id1",new UpDriver("d1"),"other.device"));
+		manager.delete("id1", "other.device");
+		
+		manager.delete("id1", "other.device");
+		manager.delete("unknown", "other.device");
+		
+		assertNull(manager.listDrivers("d1", "other.device"));
+	}
+	
 	@Test(expected=DriverManagerException.class)
 	public void shouldFailOnTryingToFindAnEquivalentDriverToHandleServiceCall() throws DriverManagerException, DriverNotFoundException, InterfaceValidationException {
 		manager.insert(new DriverModel("id1",driver.upDriver,"my.Phone"));
@@ -404,6 +493,138 @@ public class DriverManagerTest {
 		assertEquals(1, after.initCount);
 	}
 	
+	@Test
+	public void shouldInitIndependentDriversConcurrently() throws Exception{
+		final CyclicBarrier bothInitializing = new CyclicBarrier(2);
+		DriverSpy drivers[] = new DriverSpy[2];
+		for (int i = 0; i < drivers.length; i++){
+			drivers[i] = new DriverSpy("driver"+i){
+				public void init(Gateway gateway, String instanceId) {
+					try {
+						bothInitializing.await(1, TimeUnit.SECONDS);
+					} catch (Exception e) {
+						throw new RuntimeException("Drivers were not initialized concurrently", e);
+					}
+					super.init(gateway, instanceId);
+				}
+			};
+			manager.deployDriver(drivers[i].upDriver, drivers[i]);
+		}
+		manager.setStartupThreads(2);
+		manager.initDrivers(null);
+		for (DriverSpy m : drivers) assertTrue(m.inittiated);
+	}
+	
+	@Test
+	public void shouldInitADriverOnlyAfterTheDriversItIsEquivalentTo() throws Exception{
+		final List<String> initialized = Collections.synchronizedList(new ArrayList<String>());
+		DriverSpy base = new DriverSpy(){
+			public void init(Gateway gateway, String instanceId) {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {}
+				initialized.add(getDriver().getName());
+			}
+		};
+		DriverSpy equivalent = new DriverSpy("Bumblebee"){
+			public void init(Gateway gateway, String instanceId) {
+				initialized.add(getDriver().getName());
+			}
+		};
+		equivalent.upDriver.addEquivalentDrivers(base.upDriver.getName());
+		DriverSpy independent = new DriverSpy("Ironhide"){
+			public void init(Gateway gateway, String instanceId) {
+				initialized.add(getDriver().getName());
+			}
+		};
+		manager.deployDriver(base.upDriver, base);
+		manager.deployDriver(equivalent.upDriver, equivalent);
+		manager.deployDriver(independent.upDriver, independent);
+		manager.setStartupThreads(4);
+		manager.initDrivers(null);
+		
+		assertTrue(initialized.indexOf("driver") < initialized.indexOf("Bumblebee"));
+		assertTrue(initialized.contains("Ironhide"));
+	}
+	
+	@Test
+	public void shouldInitALazyDriverOnlyOnItsFirstCall() throws Exception{
+		manager.setLazyDrivers(Collections.singleton("driver"));
+		manager.deployDriver(driver.upDriver, driver, "id");
+		manager.initDrivers(null);
+		
+		assertFalse(driver.inittiated);
+		assertThat(manager.listDrivers()).contains(driver);
+		
+		manager.handleServiceCall(new ServiceCall("driver","service"), null);
+		manager.handleServiceCall(new ServiceCall("driver","service","id"), null);
+		
+		assertTrue(driver.called);
+		assertEquals(1, driver.initCount);
+	}
+	
+	@Test
+	public void shouldMatchLazyDriversIgnoringCase() throws Exception{
+		manager.setLazyDrivers(Collections.singleton("DRIVER"));
+		manager.deployDriver(driver.upDriver, driver, "id");
+		manager.initDrivers(null);
+		
+		assertFalse(driver.inittiated);
+	}
+	
+	@Test
+	public void shouldInitALazyDriverOnceForConcurrentFirstCalls() throws Exception{
+		final AtomicInteger served = new AtomicInteger();
+		final AtomicInteger servedBeforeInit = new AtomicInteger();
+		final DriverSpy slow = new DriverSpy(){
+			public synchronized void init(Gateway gateway, String instanceId) {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {}
+				super.init(gateway, instanceId);
+			}
+			public void service(ServiceCall s, ServiceResponse r, UOSMessageContext c){
+				// asserted by the test thread, as errors here don't reach it
+				if (!inittiated) servedBeforeInit.incrementAndGet();
+				served.incrementAndGet();
+				super.service(s, r, c);
+			}
+		};
+		manager.setLazyDrivers(Collections.singleton("*"));
+		manager.deployDriver(slow.upDriver, slow, "id");
+		manager.initDrivers(null);
+		
+		final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+		Thread[] callers = new Thread[4];
+		for (int i = 0; i < callers.length; i++){
+			callers[i] = new Thread(){
+				public void run() {
+					try {
+						manager.handleServiceCall(new ServiceCall("driver","service"), null);
+					} catch (Exception e) {
+						failures.add(e);
+					}
+				}
+			};
+			callers[i].start();
+		}
+		for (Thread t : callers) t.join();
+		
+		assertTrue(failures.isEmpty());
+		assertEquals(callers.length, served.get());
+		assertEquals(0, servedBeforeInit.get());
+		assertEquals(1, slow.initCount);
+	}
+	
+	@Test
+	public void shouldNotTearDownALazyDriverNeverCalled() throws Exception{
+		manager.setLazyDrivers(Collections.singleton("driver"));
+		manager.deployDriver(driver.upDriver, driver, "id");
+		manager.initDrivers(null);
+		manager.tearDown();
+		assertFalse(driver.destroyed);
+	}
+	
 	@Test
 	public void shouldDoNothingWithoutDriversToInit() throws DriverManagerException, InterfaceValidationException{
 		manager.initDrivers(null);
@@ -0,0 +1,69 @@
+package org.unbiquitous.uos.core.driverManager;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
+
+public class InstanceSelectorTest {
+
+	private List<DriverModel> candidates;
+	
+	@Before public void setUp(){
+		candidates = new ArrayList<DriverModel>();
+		candidates.add(new DriverModel("a", new UpDriver("driver"), "device"));
+		candidates.add(new DriverModel("b", new UpDriver("driver"), "device"));
+		candidates.add(new DriverModel("c", new UpDriver("driver"), "device"));
+	}
+	
+	private Map<String, Integer> distribution(InstanceSelector selector, int calls){
+		Map<String, Integer> count = new HashMap<String, Integer>();
+		for (DriverModel m : candidates) count.put(m.id(), 0);
+		for (int i = 0; i < calls; i++){
+			DriverModel chosen = selector.select("driver", candidates, new int[candidates.size()]);
+			count.put(chosen.id(), count.get(chosen.id())+1);
+		}
+		return count;
+	}
+	
+	@Test public void roundRobinSpreadsCallsEvenly(){
+		Map<String, Integer> count = distribution(new RoundRobinSelector(), 9);
+		assertEquals(3, (int)count.get("a"));
+		assertEquals(3, (int)count.get("b"));
+		assertEquals(3, (int)count.get("c"));
+	}
+	
+	@Test public void roundRobinKeepsASequencePerDriver(){
+		RoundRobinSelector selector = new RoundRobinSelector();
+		assertEquals("a", selector.select("driver", candidates, new int[3]).id());
+		assertEquals("a", selector.select("other", candidates, new int[3]).id());
+		assertEquals("b", selector.select("driver", candidates, new int[3]).id());
+	}
+	
+	@Test public void leastInFlightChoosesTheLessBusyInstance(){
+		InstanceSelector selector = new LeastInFlightSelector();
+		assertEquals("b", selector.select("driver", candidates, new int[]{2,0,1}).id());
+		assertEquals("a", selector.select("driver", candidates, new int[]{0,0,0}).id());
+	}
+	
+	@Test public void weightedSpreadsCallsProportionallyToTheWeights(){
+		WeightedSelector selector = new WeightedSelector(null);
+		selector.weight("a", 3);
+		selector.weight("c", 2);
+		Map<String, Integer> count = distribution(selector, 12);
+		assertEquals(6, (int)count.get("a"));
+		assertEquals(2, (int)count.get("b"));
+		assertEquals(4, (int)count.get("c"));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void weightedDoesNotAcceptNonPositiveWeights(){
+		new WeightedSelector(null).weight("a", 0);
+	}
+}
@@ -1,6 +1,7 @@
 package org.unbiquitous.uos.core.driverManager;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -24,6 +25,7 @@ import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponseFuture;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall.ServiceType;
 import org.unbiquitous.uos.core.network.connectionManager.ConnectionManagerControlCenter;
 import org.unbiquitous.uos.core.network.loopback.LoopbackDevice;
@@ -144,16 +146,66 @@ public class ReflectionServiceCallerTest {
 		assertNull(msgCtx.getDataOutputStream(4));
 	}
 	
+	@Test public void shouldReturnTheFutureOfAnAsynchronousService() throws Exception{
+		DriverSpy driver = new DriverSpy();
+		ServiceResponseFuture future = caller.callServiceOnDriverAsync(new ServiceCall(null, "asyncService"), driver, null);
+		
+		assertFalse(future.isDone());
+		assertEquals(1, caller.inFlight(driver));
+		
+		driver.pending.complete(new ServiceResponse().addParameter("answer", "42"));
+		
+		assertTrue(future.isDone());
+		assertEquals("42", future.get().getResponseString("answer"));
+		assertEquals(0, caller.inFlight(driver));
+	}
+	
+	@Test public void shouldReturnACompletedFutureForASynchronousService() throws Exception{
+		DriverSpy driver = new DriverSpy();
+		ServiceResponseFuture future = caller.callServiceOnDriverAsync(new ServiceCall(null, "myService"), driver, null);
+		
+		assertTrue(future.isDone());
+		assertEquals(driver.capturedResponse, future.get());
+		assertEquals(0, caller.inFlight(driver));
+	}
+	
+	@Test public void shouldWaitForAnAsynchronousServiceWhenCalledSynchronously() throws Exception{
+		final DriverSpy driver = new DriverSpy();
+		new Thread(){
+			public void run() {
+				try {
+					while(driver.pending == null) Thread.sleep(5);
+				} catch (InterruptedException e) {}
+				driver.pending.complete(new ServiceResponse().addParameter("answer", "42"));
+			}
+		}.start();
+		
+		ServiceResponse response = caller.callServiceOnDriver(new ServiceCall(null, "asyncService"), driver, null);
+		assertEquals("42", response.getResponseString("answer"));
+	}
+	
+	@Test(expected=DriverManagerException.class)
+	public void shouldFailWhenAnAsynchronousServiceFails() throws Exception{
+		DriverSpy driver = new DriverSpy();
+		driver.pending = ServiceResponseFuture.failed(new RuntimeException("Failed on purpose"));
+		caller.callServiceOnDriver(new ServiceCall(null, "asyncService"), driver, null);
+	}
+	
 	public static class DriverSpy {
 		ServiceCall capturedCall; 
 		ServiceResponse capturedResponse; 
 		UOSMessageContext capturedContext;
+		volatile ServiceResponseFuture pending;
 		
 		public void myService(ServiceCall sc, ServiceResponse r, UOSMessageContext ctx){
 			capturedCall = sc;
 			capturedResponse = r;
 			capturedContext = ctx;
 		}
+		public ServiceResponseFuture asyncService(ServiceCall sc, ServiceResponse r, UOSMessageContext ctx){
+			if (pending == null) pending = new ServiceResponseFuture();
+			return pending;
+		}
 		public void failService(ServiceCall sc, ServiceResponse r, UOSMessageContext ctx){
 			throw new RuntimeException("Failed on purpose");
 		}
@@ -0,0 +1,129 @@
+package org.unbiquitous.uos.core.messageEngine;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
+
+public class CallCoalescerTest {
+
+	private CallCoalescer coalescer;
+
+	@Before
+	public void setUp() {
+		coalescer = new CallCoalescer();
+	}
+
+	@Test
+	public void identicalCallsInFlightShareTheRequest() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger sent = new AtomicInteger();
+		CallCoalescer.Request request = new CallCoalescer.Request() {
+			public String send() throws Exception {
+				sent.incrementAndGet();
+				release.await(5, TimeUnit.SECONDS);
+				return "response";
+			}
+		};
+
+		List<String> responses = callConcurrently(5, "key", request, release);
+
+		assertThat(sent.get()).isEqualTo(1);
+		assertThat(responses).containsOnly("response").hasSize(5);
+		assertThat(coalescer.inFlight()).isZero();
+	}
+
+	@Test
+	public void everyWaiterReceivesTheFailure() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		CallCoalescer.Request request = new CallCoalescer.Request() {
+			public String send() throws Exception {
+				release.await(5, TimeUnit.SECONDS);
+				throw new MessageEngineException("device is gone");
+			}
+		};
+
+		List<String> responses = callConcurrently(3, "key", request, release);
+
+		assertThat(responses).containsOnly("device is gone").hasSize(3);
+	}
+
+	@Test
+	public void callsAfterTheResponseSendTheirOwnRequest() throws Exception {
+		final AtomicInteger sent = new AtomicInteger();
+		CallCoalescer.Request request = new CallCoalescer.Request() {
+			public String send() throws Exception {
+				return "response "+sent.incrementAndGet();
+			}
+		};
+
+		assertThat(coalescer.call("key", request)).isEqualTo("response 1");
+		assertThat(coalescer.call("key", request)).isEqualTo("response 2");
+	}
+
+	@Test
+	public void callsWithTheSameParametersHaveTheSameKey() {
+		UpDevice device = new UpDevice("provider");
+		ServiceCall call = new ServiceCall("uos.DeviceDriver", "listDrivers");
+		call.addParameter("driverName", "camera");
+		call.addParameter("knownDrivers", "{}");
+		ServiceCall same = new ServiceCall("uos.DeviceDriver", "listDrivers");
+		same.addParameter("knownDrivers", "{}");
+		same.addParameter("driverName", "camera");
+
+		assertThat(CallCoalescer.keyOf(device, call)).isEqualTo(CallCoalescer.keyOf(device, same));
+		assertThat(CallCoalescer.keyOf(new UpDevice("other"), same)).isNotEqualTo(CallCoalescer.keyOf(device, call));
+		assertThat(CallCoalescer.keyOf(device, new ServiceCall("uos.DeviceDriver", "listDrivers")))
+			.isNotEqualTo(CallCoalescer.keyOf(device, call));
+	}
+
+	@Test
+	public void streamCallsAreNotShared() {
+		ServiceCall call = new ServiceCall("camera", "stream");
+		call.setServiceType(ServiceCall.ServiceType.STREAM);
+
+		assertThat(CallCoalescer.keyOf(new UpDevice("provider"), call)).isNull();
+	}
+
+	/**
+	 * Makes the calls from many threads, releasing the request once all of
+	 * them are waiting.
+	 *
+	 * @return The responses (or failure messages) received.
+	 */
+	private List<String> callConcurrently(int threads, final String key,
+			final CallCoalescer.Request request, CountDownLatch release) throws Exception {
+		final List<String> responses = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch started = new CountDownLatch(threads);
+		List<Thread> callers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++){
+			Thread caller = new Thread(){
+				public void run() {
+					started.countDown();
+					try {
+						responses.add(coalescer.call(key, request));
+					} catch (Exception e) {
+						responses.add(e.getMessage());
+					}
+				}
+			};
+			caller.start();
+			callers.add(caller);
+		}
+		started.await(5, TimeUnit.SECONDS);
+		while (coalescer.inFlight() == 0) Thread.sleep(1);
+		Thread.sleep(50);
+		release.countDown();
+		for (Thread caller : callers) caller.join(5000);
+		return responses;
+	}
+}
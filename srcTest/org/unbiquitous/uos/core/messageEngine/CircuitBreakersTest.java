@@ -0,0 +1,129 @@
+package org.unbiquitous.uos.core.messageEngine;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.uos.core.messageEngine.CircuitBreakers.State;
+
+public class CircuitBreakersTest {
+
+	private static final long OPEN = 100;
+
+	private CircuitBreakers breakers;
+
+	@Before
+	public void setUp() {
+		breakers = new CircuitBreakers(3, OPEN, 50);
+	}
+
+	@Test
+	public void opensAfterTheConsecutiveFailures() throws Exception {
+		failures("A", 2);
+		assertThat(breakers.state("A")).isEqualTo(State.CLOSED);
+		breakers.acquire("A");
+
+		failures("A", 1);
+
+		assertThat(breakers.state("A")).isEqualTo(State.OPEN);
+		assertFailsFast("A");
+	}
+
+	@Test
+	public void aSuccessResetsTheFailures() throws Exception {
+		failures("A", 2);
+		breakers.success("A", 0);
+		failures("A", 2);
+
+		assertThat(breakers.state("A")).isEqualTo(State.CLOSED);
+	}
+
+	@Test
+	public void addressesAreIndependent() throws Exception {
+		failures("A", 3);
+
+		breakers.acquire("B");
+		assertThat(breakers.state("B")).isEqualTo(State.CLOSED);
+	}
+
+	@Test
+	public void letsASingleProbeThroughAfterTheOpenTime() throws Exception {
+		failures("A", 3);
+		Thread.sleep(OPEN + 20);
+
+		assertThat(breakers.state("A")).isEqualTo(State.HALF_OPEN);
+		breakers.acquire("A");
+		assertFailsFast("A");
+	}
+
+	@Test
+	public void aSuccessfulProbeClosesIt() throws Exception {
+		failures("A", 3);
+		Thread.sleep(OPEN + 20);
+		breakers.acquire("A");
+
+		breakers.success("A", 0);
+
+		assertThat(breakers.state("A")).isEqualTo(State.CLOSED);
+		breakers.acquire("A");
+	}
+
+	@Test
+	public void aFailedProbeReopensIt() throws Exception {
+		failures("A", 3);
+		Thread.sleep(OPEN + 20);
+		breakers.acquire("A");
+
+		breakers.failure("A");
+
+		assertThat(breakers.state("A")).isEqualTo(State.OPEN);
+		assertFailsFast("A");
+	}
+
+	@Test
+	public void slowAnswersCountAsFailures() throws Exception {
+		breakers.success("A", 51);
+		breakers.success("A", 51);
+		breakers.success("A", 51);
+
+		assertThat(breakers.state("A")).isEqualTo(State.OPEN);
+	}
+
+	@Test
+	public void withoutSlowTimeOnlyErrorsCount() throws Exception {
+		breakers = new CircuitBreakers(1, OPEN, 0);
+
+		breakers.success("A", Long.MAX_VALUE);
+
+		assertThat(breakers.state("A")).isEqualTo(State.CLOSED);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void failuresMustBePositive() {
+		new CircuitBreakers(0, OPEN, 0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void theOpenTimeMustBePositive() {
+		new CircuitBreakers(1, 0, 0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void theSlowTimeCannotBeNegative() {
+		new CircuitBreakers(1, OPEN, -1);
+	}
+
+	private void failures(String address, int times) {
+		for (int i = 0; i < times; i++) breakers.failure(address);
+	}
+
+	private void assertFailsFast(String address) {
+		try {
+			breakers.acquire(address);
+			fail("Should have failed fast");
+		} catch (CircuitOpenException e) {
+			assertThat(e.getMessage()).contains(address);
+		}
+	}
+}
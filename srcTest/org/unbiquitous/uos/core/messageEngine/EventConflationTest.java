@@ -0,0 +1,69 @@
+package org.unbiquitous.uos.core.messageEngine;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.uos.core.driverManager.DriverManager;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDriver;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpService;
+import org.unbiquitous.uos.core.messageEngine.dataType.json.JSONService;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+public class EventConflationTest {
+
+	private DriverManager driverManager;
+	private EventConflation conflation;
+
+	@Before
+	public void setUp() {
+		driverManager = mock(DriverManager.class);
+		UpDriver driver = new UpDriver("users");
+		driver.addEvent("position").setConflationKey("email");
+		driver.addEvent("arrived");
+		when(driverManager.getDriverFromEquivalanceTree("users")).thenReturn(driver);
+		conflation = new EventConflation(driverManager);
+	}
+
+	@Test
+	public void notifiesOfTheSameKeyValueShareTheKey() {
+		String first = conflation.keyOf(position("a@b.c", "1"));
+		String second = conflation.keyOf(position("a@b.c", "2"));
+		assertThat(first).isNotNull().isEqualTo(second);
+	}
+
+	@Test
+	public void notifiesOfOtherKeyValuesDontShareTheKey() {
+		assertThat(conflation.keyOf(position("a@b.c", "1")))
+			.isNotEqualTo(conflation.keyOf(position("x@y.z", "1")));
+	}
+
+	@Test
+	public void eventsWithoutConflationKeyAreNotConflated() {
+		assertThat(conflation.keyOf(new Notify("arrived", "users").addParameter("email", "a@b.c"))).isNull();
+	}
+
+	@Test
+	public void notifiesMissingTheKeyParameterAreNotConflated() {
+		assertThat(conflation.keyOf(new Notify("position", "users"))).isNull();
+	}
+
+	@Test
+	public void notifiesOfUnknownDriversAreNotConflated() {
+		assertThat(conflation.keyOf(new Notify("position", "other").addParameter("email", "a@b.c"))).isNull();
+	}
+
+	@Test
+	public void theConflationKeyIsSharedWithOtherDevices() throws Exception {
+		UpService event = new UpService("position");
+		event.setConflationKey("email");
+		assertThat(new JSONService(new JSONService(event).toString()).getAsObject().getConflationKey())
+			.isEqualTo("email");
+	}
+
+	private static Notify position(String email, String x) {
+		return new Notify("position", "users").addParameter("email", email).addParameter("x", x);
+	}
+}
@@ -6,10 +6,16 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -21,8 +27,13 @@ import org.unbiquitous.uos.core.applicationManager.UOSMessageContext;
 import org.unbiquitous.uos.core.deviceManager.DeviceManager;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
 import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.messageEngine.messages.NotifyBatch;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceCall;
 import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponse;
+import org.unbiquitous.uos.core.messageEngine.messages.ServiceResponseFuture;
+import org.unbiquitous.uos.core.messageEngine.messages.json.JSONNotify;
+import org.unbiquitous.uos.core.messageEngine.messages.json.JSONNotifyBatch;
+import org.unbiquitous.uos.core.network.connectionManager.AsyncMessageListener.Reply;
 import org.unbiquitous.uos.core.network.connectionManager.ConnectionManagerControlCenter;
 import org.unbiquitous.uos.core.network.model.NetworkDevice;
 
@@ -123,6 +134,87 @@ public class MessageEngineTest {
 		assertFalse(response.optString("error").isEmpty());
 	}
 	
+	@Test public void handleIncomingMessage_repliesWhenAsynchronousServiceCompletes() throws Exception{
+		JSONObject call = new JSONObject();
+			call.put("type", "SERVICE_CALL_REQUEST");
+			call.put("driver", "my.driver");
+			call.put("service", "my.service");
+		ServiceResponseFuture future = new ServiceResponseFuture();
+		when(callHandler.handleServiceCallAsync(any(ServiceCall.class), any(UOSMessageContext.class)))
+			.thenReturn(future);
+		final List<String> replies = new ArrayList<String>();
+		
+		engine.handleIncomingMessage(call.toString(), mock(NetworkDevice.class), new Reply() {
+			public void send(String response) { replies.add(response); }
+			public void close() {}
+		});
+		assertTrue(replies.isEmpty());
+		
+		future.complete(new ServiceResponse().addParameter("bla", "0"));
+		
+		assertEquals(1, replies.size());
+		JSONObject response = new JSONObject(replies.get(0));
+		assertFalse(response.has("error"));
+		assertEquals("0",response.optJSONObject("responseData").optString("bla"));
+	}
+	
+	@Test public void handleIncomingMessage_repliesErrorWhenAsynchronousServiceFails() throws Exception{
+		JSONObject call = new JSONObject();
+			call.put("type", "SERVICE_CALL_REQUEST");
+			call.put("driver", "my.driver");
+			call.put("service", "my.service");
+		when(callHandler.handleServiceCallAsync(any(ServiceCall.class), any(UOSMessageContext.class)))
+			.thenReturn(ServiceResponseFuture.failed(new RuntimeException("failed")));
+		final List<String> replies = new ArrayList<String>();
+		
+		engine.handleIncomingMessage(call.toString(), mock(NetworkDevice.class), new Reply() {
+			public void send(String response) { replies.add(response); }
+			public void close() {}
+		});
+		
+		JSONObject response = new JSONObject(replies.get(0));
+		assertEquals("SERVICE_CALL_RESPONSE",response.optString("type"));
+		assertEquals("failed",response.optString("error"));
+	}
+	
+	@Test public void handleIncomingMessage_repliesErrorAndClosesWhenAsynchronousServiceTimesOut() throws Exception{
+		JSONObject call = new JSONObject();
+			call.put("type", "SERVICE_CALL_REQUEST");
+			call.put("driver", "my.driver");
+			call.put("service", "my.service");
+		ServiceResponseFuture future = new ServiceResponseFuture();
+		when(callHandler.handleServiceCallAsync(any(ServiceCall.class), any(UOSMessageContext.class)))
+			.thenReturn(future);
+		final List<String> replies = new CopyOnWriteArrayList<String>();
+		final List<Boolean> closed = new CopyOnWriteArrayList<Boolean>();
+		engine.setReplyTimeout(50);
+		
+		engine.handleIncomingMessage(call.toString(), mock(NetworkDevice.class), new Reply() {
+			public void send(String response) { replies.add(response); }
+			public void close() { closed.add(true); }
+		});
+		for (int i = 0; i < 100 && replies.isEmpty(); i++) Thread.sleep(10);
+		
+		assertEquals(1, replies.size());
+		assertTrue(new JSONObject(replies.get(0)).optString("error").contains("didn't answer"));
+		assertEquals(1, closed.size());
+		assertTrue(future.isDone());
+		assertFalse(future.complete(new ServiceResponse()));
+		engine.stop();
+	}
+	
+	@Test public void handleIncomingMessage_repliesOtherMessagesRightAway() throws Exception{
+		final List<String> replies = new ArrayList<String>();
+		
+		engine.handleIncomingMessage("{type:\"NotKnownType\"}", mock(NetworkDevice.class), new Reply() {
+			public void send(String response) { replies.add(response); }
+			public void close() {}
+		});
+		
+		assertEquals(1, replies.size());
+		assertNull(replies.get(0));
+	}
+	
 	// SERVICE NOTIFY
 	@Test public void handleIncomingMessage_delegateNotifyToHandler() throws Exception{
 		JSONObject call = new JSONObject();
@@ -154,6 +246,36 @@ public class MessageEngineTest {
 		assertNull(engine.handleIncomingMessage(call.toString(), caller));
 		//Nothing Happens
 	}
+	@Test public void handleIncomingMessage_delegateEachNotifyOfABatchInOrder() throws Exception{
+		List<String> notifies = new ArrayList<String>();
+		notifies.add(new JSONNotify(new Notify("first", "my.driver")).toString());
+		notifies.add(new JSONNotify(new Notify("second", "my.driver")).toString());
+		NetworkDevice caller = mock(NetworkDevice.class);
+		when(deviceManager.retrieveDevice(null, null)).thenReturn(new UpDevice("oi"));
+		
+		assertNull(engine.handleIncomingMessage(JSONNotifyBatch.pack(notifies), caller));
+		
+		ArgumentCaptor<Notify> eventCatcher = ArgumentCaptor.forClass(Notify.class);
+		verify(eventHandler, times(2)).handleNofify(eventCatcher.capture(), eq(new UpDevice("oi")));
+		assertEquals("first",eventCatcher.getAllValues().get(0).getEventKey());
+		assertEquals("second",eventCatcher.getAllValues().get(1).getEventKey());
+	}
+	
+	@Test public void handleIncomingMessage_aFailingNotifyDoesntStopTheBatch() throws Exception{
+		NotifyBatch batch = new NotifyBatch()
+									.addNotify(new Notify("first", "my.driver"))
+									.addNotify(new Notify("second", "my.driver"));
+		NetworkDevice caller = mock(NetworkDevice.class);
+		when(deviceManager.retrieveDevice(null, null)).thenReturn(new UpDevice("oi"));
+		doThrow(new RuntimeException()).doNothing().when(eventHandler).handleNofify((Notify)any(), (UpDevice)any());
+		
+		assertNull(engine.handleIncomingMessage(new JSONNotifyBatch(batch).toString(), caller));
+		
+		ArgumentCaptor<Notify> eventCatcher = ArgumentCaptor.forClass(Notify.class);
+		verify(eventHandler, times(2)).handleNofify(eventCatcher.capture(), (UpDevice)any());
+		assertEquals("second",eventCatcher.getAllValues().get(1).getEventKey());
+	}
+	
 	// SERVICE ENCAPSULATED MESSAGE
 	
 	@Test public void handleIncomingMessage_AnEncapsulatedMessageMustBeDelegatedToTheAppropriateKindOfHanlderAfterTranslation_ServiceCall() throws Exception{
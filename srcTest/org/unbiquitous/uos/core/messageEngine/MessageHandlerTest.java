@@ -2,9 +2,12 @@ package org.unbiquitous.uos.core.messageEngine;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -13,6 +16,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.Arrays;
 import java.util.ListResourceBundle;
 import java.util.ResourceBundle;
 
@@ -34,6 +38,7 @@ import org.unbiquitous.uos.core.messageEngine.messages.json.JSONEncapsulatedMess
 import org.unbiquitous.uos.core.messageEngine.messages.json.JSONNotify;
 import org.unbiquitous.uos.core.messageEngine.messages.json.JSONServiceCall;
 import org.unbiquitous.uos.core.network.connectionManager.ConnectionManagerControlCenter;
+import org.unbiquitous.uos.core.network.exceptions.NetworkException;
 import org.unbiquitous.uos.core.network.model.connection.ClientConnection;
 
 
@@ -205,6 +210,25 @@ public class MessageHandlerTest {
 		handler.callService(scenario.target, scenario.snapshot);
 	}
 	
+	@Test public void callService_ADeviceWhichKeepsFailingIsNotTriedAgainForAWhile() throws Exception{
+		SnapshotScenario scenario = new SnapshotScenario();
+		when(controlCenter.openActiveConnection(
+				scenario.wifi.getNetworkAddress(), 
+				scenario.wifi.getNetType())).thenReturn(null);
+		handler.setCircuitBreakers(new CircuitBreakers(2, 60000, 0));
+		
+		assertNull(handler.callService(scenario.target, scenario.snapshot));
+		assertNull(handler.callService(scenario.target, scenario.snapshot));
+		try {
+			handler.callService(scenario.target, scenario.snapshot);
+			fail("Should have failed fast");
+		} catch (MessageEngineException e) {
+			assertTrue(e.getCause() instanceof CircuitOpenException);
+		}
+		verify(controlCenter, times(2)).openActiveConnection(
+				scenario.wifi.getNetworkAddress(), scenario.wifi.getNetType());
+	}
+	
 	@Test(expected=MessageEngineException.class) public void callService_ACallWithSecurityTypeFailsWihtoutProperAuthenticator() throws Exception{
 		SnapshotScenario scenario = new SnapshotScenario();
 		scenario.snapshot.setSecurityType("Pig-Latin");
@@ -256,6 +280,29 @@ public class MessageHandlerTest {
 		handler.notifyEvent(new Notify("d",""),mock(UpDevice.class));
 	}
 	
+	@Test public void notifyEventToAll_keepsNotifyingAfterAFailure() throws Exception{
+		UpDevice dead = new UpDevice("dead").addNetworkInterface("A", "T");
+		UpDevice alive = new UpDevice("alive").addNetworkInterface("B", "T");
+		when(connManager.getAppropriateInterface(dead)).thenReturn(new UpNetworkInterface("T", "A"));
+		when(connManager.getAppropriateInterface(alive)).thenReturn(new UpNetworkInterface("T", "B"));
+		when(controlCenter.openActiveConnection("A", "T")).thenThrow(new NetworkException("down"));
+		ClientConnection connection = mock(ClientConnection.class);
+		PipedInputStream received = new PipedInputStream();
+		when(connection.getDataOutputStream()).thenReturn(new DataOutputStream(new PipedOutputStream(received)));
+		when(connection.getDataInputStream()).thenReturn(new DataInputStream(new PipedInputStream()));
+		when(controlCenter.openActiveConnection("B", "T")).thenReturn(connection);
+		
+		Notify event = new Notify("e", "d");
+		handler.notifyEventToAll(event, Arrays.asList(dead, alive));
+		
+		byte[] content = new byte[received.available()];
+		received.read(content);
+		assertEquals(new JSONNotify(event).toString()+"\n", new String(content));
+	}
+	@Test(expected=IllegalArgumentException.class) public void notifyEventToAll_ShouldRejectNullDevices() throws Exception{
+		handler.notifyEventToAll(new Notify("d", "s"), null);
+	}
+	
 	private class UserEnteredScenario{
 		private UpDevice target;
 		private Notify userEntered;
@@ -311,6 +358,29 @@ public class MessageHandlerTest {
 		handler.notifyEvent(scenario.userEntered, scenario.target);
 	}
 
+	@Test public void ignoresMalformedNotifyAndBreakerProperties() throws Exception{
+		ResourceBundle bundle = new ListResourceBundle() {
+			protected Object[][] getContents() {
+				return new Object[][] {
+		             {"ubiquitos.message.response.timeout", "1"},
+		             {"ubiquitos.message.response.retry", "1"},
+		             {"ubiquitos.message.notify.threads", "two"},
+		             {"ubiquitos.message.notify.linger", "-1"},
+		             {"ubiquitos.message.notify.ttl", "0"},
+		             {"ubiquitos.message.breaker.failures", " 3 "},
+		             {"ubiquitos.message.breaker.open", "soon"},
+		             {"ubiquitos.message.breaker.slow", "-5"},
+		        };
+			}
+		};
+		handler = new MessageHandler(bundle,controlCenter, securityManager, connManager);
+		UserEnteredScenario scenario = new UserEnteredScenario();
+		
+		handler.notifyEvent(scenario.userEntered,scenario.target);
+		
+		assertEquals(scenario.userEntered,new JSONNotify(scenario.grabSentString()).getAsObject());
+	}
+	
 	//TODO: Do Events have the capability to use security channels? If so create tests based on callService
 		
 }
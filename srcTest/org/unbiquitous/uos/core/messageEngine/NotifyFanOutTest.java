@@ -0,0 +1,259 @@
+package org.unbiquitous.uos.core.messageEngine;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.unbiquitous.uos.core.connectivity.ConnectivityManager;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpNetworkInterface;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+import org.unbiquitous.uos.core.messageEngine.messages.NotifyBatch;
+import org.unbiquitous.uos.core.messageEngine.messages.json.JSONNotify;
+import org.unbiquitous.uos.core.messageEngine.messages.json.JSONNotifyBatch;
+import org.unbiquitous.uos.core.network.connectionManager.ConnectionManagerControlCenter;
+import org.unbiquitous.uos.core.network.exceptions.NetworkException;
+import org.unbiquitous.uos.core.network.model.connection.ClientConnection;
+
+public class NotifyFanOutTest {
+
+	private ConnectivityManager connectivity;
+	private ConnectionManagerControlCenter connections;
+	private NotifyFanOut fanOut;
+
+	@Before
+	public void setUp() {
+		connectivity = mock(ConnectivityManager.class);
+		connections = mock(ConnectionManagerControlCenter.class);
+	}
+
+	@After
+	public void tearDown() {
+		if (fanOut != null) fanOut.shutdown();
+	}
+
+	@Test
+	public void sendsEveryNotifyOverTheSameConnection() throws Exception {
+		fanOut = new NotifyFanOut(connections, connectivity, 2, 10, 5000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		UpDevice device = device("A", connection(out));
+
+		fanOut.send("first", Arrays.asList(device));
+		fanOut.send("second", Arrays.asList(device));
+		waitSent(2);
+
+		assertThat(out.toString()).isEqualTo("first\nsecond\n");
+		verify(connections, times(1)).openActiveConnection("A", "T");
+	}
+
+	@Test
+	public void aSlowListenerDoesntDelayTheOthers() throws Exception {
+		fanOut = new NotifyFanOut(connections, connectivity, 2, 10, 5000);
+		CountDownLatch release = new CountDownLatch(1);
+		UpDevice slow = device("A", connection(new BlockedStream(release)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		UpDevice fast = device("B", connection(out));
+
+		fanOut.send("event", Arrays.asList(slow, fast));
+		waitSent(1);
+		assertThat(out.toString()).isEqualTo("event\n");
+
+		release.countDown();
+		waitSent(2);
+	}
+
+	@Test
+	public void dropsNotifiesToUnreachableListeners() throws Exception {
+		fanOut = new NotifyFanOut(connections, connectivity, 1, 10, 5000);
+		UpDevice dead = device("A", null);
+		when(connections.openActiveConnection("A", "T")).thenThrow(new NetworkException("down"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		UpDevice alive = device("B", connection(out));
+
+		fanOut.send("first", Arrays.asList(dead, alive));
+		waitSent(1);
+		for (int i = 0; i < 500 && fanOut.dropped() == 0; i++){
+			Thread.sleep(10);
+		}
+		fanOut.send("second", Arrays.asList(dead, alive));
+		waitSent(2);
+
+		assertThat(out.toString()).isEqualTo("first\nsecond\n");
+		assertThat(fanOut.dropped()).isEqualTo(2);
+		// it isn't retried while considered down
+		verify(connections, times(1)).openActiveConnection("A", "T");
+	}
+
+	@Test
+	public void forgetsAFailedListenerOnceItMayBeTriedAgain() throws Exception {
+		fanOut = new NotifyFanOut(connections, connectivity, 1, 10, 100);
+		UpDevice dead = device("A", null);
+		when(connections.openActiveConnection("A", "T")).thenThrow(new NetworkException("down"));
+
+		fanOut.send("first", Arrays.asList(dead));
+		for (int i = 0; i < 500 && fanOut.dropped() == 0; i++){
+			Thread.sleep(10);
+		}
+		assertThat(fanOut.destinations()).isEqualTo(1);
+		for (int i = 0; i < 500 && fanOut.destinations() > 0; i++){
+			Thread.sleep(10);
+		}
+
+		assertThat(fanOut.destinations()).isZero();
+	}
+
+	@Test
+	public void expiresNotifiesWaitingLongerThanTheTimeToLive() throws Exception {
+		fanOut = new NotifyFanOut(connections, connectivity, 1, 10, 100);
+		CountDownLatch release = new CountDownLatch(1);
+		UpDevice slow = device("A", connection(new BlockedStream(release)));
+
+		fanOut.send("first", Arrays.asList(slow));
+		fanOut.send("second", Arrays.asList(slow));
+		Thread.sleep(200);
+		release.countDown();
+		for (int i = 0; i < 500 && fanOut.pending() > 0; i++){
+			Thread.sleep(10);
+		}
+
+		assertThat(fanOut.sent()).isEqualTo(1);
+		assertThat(fanOut.expired()).isEqualTo(1);
+	}
+
+	@Test
+	public void dropsTheOldestNotifyWhenTheQueueIsFull() throws Exception {
+		fanOut = new NotifyFanOut(connections, connectivity, 1, 1, 5000);
+		CountDownLatch release = new CountDownLatch(1);
+		BlockedStream out = new BlockedStream(release);
+		UpDevice slow = device("A", connection(out));
+
+		fanOut.send("first", Arrays.asList(slow));
+		for (int i = 0; i < 500 && fanOut.pending() > 0; i++){
+			Thread.sleep(10);
+		}
+		fanOut.send("second", Arrays.asList(slow));
+		fanOut.send("third", Arrays.asList(slow));
+		release.countDown();
+		waitSent(2);
+
+		assertThat(out.toString()).isEqualTo("first\nthird\n");
+		assertThat(fanOut.dropped()).isEqualTo(1);
+	}
+
+	@Test
+	public void packsTheNotifiesWithinTheLingerTimeInOneBatch() throws Exception {
+		fanOut = new NotifyFanOut(connections, connectivity, 1, 10, 5000);
+		fanOut.setLinger(100);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		UpDevice device = device("A", connection(out));
+		String first = new JSONNotify(new Notify("first", "driver")).toString();
+		String second = new JSONNotify(new Notify("second", "driver")).toString();
+
+		fanOut.send(first, Arrays.asList(device));
+		fanOut.send(second, Arrays.asList(device));
+		waitSent(2);
+
+		String frame = out.toString();
+		assertThat(frame).isEqualTo(JSONNotifyBatch.pack(Arrays.asList(first, second))+"\n");
+		NotifyBatch batch = new JSONNotifyBatch(frame.trim()).getAsObject();
+		assertThat(batch.getNotifies()).hasSize(2);
+		assertThat(batch.getNotifies().get(0).getEventKey()).isEqualTo("first");
+		assertThat(batch.getNotifies().get(1).getEventKey()).isEqualTo("second");
+	}
+
+	@Test
+	public void sendsALoneNotifyWithoutBatch() throws Exception {
+		fanOut = new NotifyFanOut(connections, connectivity, 1, 10, 5000);
+		fanOut.setLinger(10);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		UpDevice device = device("A", connection(out));
+
+		fanOut.send("lonely", Arrays.asList(device));
+		waitSent(1);
+
+		assertThat(out.toString()).isEqualTo("lonely\n");
+	}
+
+	@Test
+	public void replacesAWaitingNotifyWithTheSameConflationKey() throws Exception {
+		fanOut = new NotifyFanOut(connections, connectivity, 1, 10, 5000);
+		CountDownLatch release = new CountDownLatch(1);
+		BlockedStream out = new BlockedStream(release);
+		UpDevice slow = device("A", connection(out));
+
+		fanOut.send("busy", Arrays.asList(slow));
+		for (int i = 0; i < 500 && fanOut.pending() > 0; i++){
+			Thread.sleep(10);
+		}
+		fanOut.send("a=1", "a", Arrays.asList(slow));
+		fanOut.send("b=1", "b", Arrays.asList(slow));
+		fanOut.send("a=2", "a", Arrays.asList(slow));
+		assertThat(fanOut.pending()).isEqualTo(2);
+		release.countDown();
+		waitSent(3);
+
+		assertThat(out.toString()).isEqualTo("busy\na=2\nb=1\n");
+		assertThat(fanOut.conflated()).isEqualTo(1);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsNegativeLinger() {
+		new NotifyFanOut(connections, connectivity, 1, 10, 5000).setLinger(-1);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsNoThreads() {
+		new NotifyFanOut(connections, connectivity, 0, 10, 5000);
+	}
+
+	private void waitSent(int amount) throws InterruptedException {
+		for (int i = 0; i < 500 && fanOut.sent() < amount; i++){
+			Thread.sleep(10);
+		}
+		assertThat(fanOut.sent()).isEqualTo(amount);
+	}
+
+	private UpDevice device(String address, ClientConnection connection) throws Exception {
+		UpDevice device = new UpDevice(address).addNetworkInterface(address, "T");
+		when(connectivity.getAppropriateInterface(device)).thenReturn(new UpNetworkInterface("T", address));
+		when(connections.openActiveConnection(address, "T")).thenReturn(connection);
+		return device;
+	}
+
+	private static ClientConnection connection(OutputStream out) throws IOException {
+		ClientConnection connection = mock(ClientConnection.class);
+		when(connection.isConnected()).thenReturn(true);
+		when(connection.getDataOutputStream()).thenReturn(new DataOutputStream(out));
+		when(connection.getDataInputStream()).thenReturn(new DataInputStream(new ByteArrayInputStream(new byte[0])));
+		return connection;
+	}
+
+	/** Holds the writes until released, as a listener on a slow network. */
+	private static class BlockedStream extends ByteArrayOutputStream {
+		private final CountDownLatch release;
+		BlockedStream(CountDownLatch release) {
+			this.release = release;
+		}
+		public synchronized void write(byte[] b, int off, int len) {
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {}
+			super.write(b, off, len);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package org.unbiquitous.uos.core.network.radar;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.unbiquitous.uos.core.network.model.NetworkDevice;
+
+public class RadarEventQueueTest {
+
+	private RadarEventQueue queue;
+
+	@After
+	public void tearDown() {
+		if (queue != null) queue.shutdown();
+	}
+
+	@Test
+	public void handlesEventsOnTheRadarThreadWithoutThreads() {
+		RecordingListener listener = new RecordingListener();
+		queue = new RadarEventQueue(listener, 0);
+		queue.deviceEntered(device("A"));
+		queue.deviceLeft(device("A"));
+		assertThat(listener.events).containsExactly("entered A", "left A");
+		assertThat(queue.pending()).isZero();
+	}
+
+	@Test
+	public void handlesDifferentDevicesInParallel() throws Exception {
+		final CountDownLatch bothIn = new CountDownLatch(2);
+		queue = new RadarEventQueue(new RadarListener() {
+			public void deviceEntered(NetworkDevice device) {
+				bothIn.countDown();
+				try {
+					bothIn.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {}
+			}
+			public void deviceLeft(NetworkDevice device) {}
+		}, 2);
+		queue.deviceEntered(device("A"));
+		queue.deviceEntered(device("B"));
+		assertThat(bothIn.await(5, TimeUnit.SECONDS)).isTrue();
+	}
+
+	@Test
+	public void collapsesEventsOfADeviceBeingHandled() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		RecordingListener listener = new RecordingListener(){
+			public void deviceEntered(NetworkDevice device) {
+				super.deviceEntered(device);
+				started.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {}
+			}
+		};
+		queue = new RadarEventQueue(listener, 4);
+		queue.deviceEntered(device("A"));
+		assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+		queue.deviceEntered(device("A"));
+		queue.deviceLeft(device("A"));
+		queue.deviceEntered(device("A"));
+		release.countDown();
+		waitUntilIdle();
+
+		// flapping while the first was being handled collapses into the same state
+		assertThat(listener.events).containsExactly("entered A");
+	}
+
+	@Test
+	public void handlesTheLatestStateOfADeviceBeingHandled() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		RecordingListener listener = new RecordingListener(){
+			public void deviceEntered(NetworkDevice device) {
+				super.deviceEntered(device);
+				started.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {}
+			}
+		};
+		queue = new RadarEventQueue(listener, 4);
+		queue.deviceEntered(device("A"));
+		assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+		queue.deviceLeft(device("A"));
+		queue.deviceEntered(device("A"));
+		queue.deviceLeft(device("A"));
+		release.countDown();
+		waitUntilIdle();
+
+		assertThat(listener.events).containsExactly("entered A", "left A");
+	}
+
+	@Test
+	public void keepsHandlingEventsAfterAListenerFailure() throws Exception {
+		RecordingListener listener = new RecordingListener(){
+			public void deviceEntered(NetworkDevice device) {
+				super.deviceEntered(device);
+				throw new RuntimeException("failed");
+			}
+		};
+		queue = new RadarEventQueue(listener, 0);
+		queue.deviceEntered(device("A"));
+		queue.deviceLeft(device("A"));
+		assertThat(listener.events).containsExactly("entered A", "left A");
+	}
+
+	private void waitUntilIdle() throws InterruptedException {
+		for (int i = 0; i < 500 && queue.pending() > 0; i++){
+			Thread.sleep(10);
+		}
+		assertThat(queue.pending()).isZero();
+	}
+
+	private static NetworkDevice device(String address) {
+		NetworkDevice device = mock(NetworkDevice.class);
+		when(device.getNetworkDeviceName()).thenReturn(address);
+		when(device.getNetworkDeviceType()).thenReturn("T");
+		return device;
+	}
+
+	private static class RecordingListener implements RadarListener {
+		List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		public void deviceEntered(NetworkDevice device) {
+			events.add("entered "+device.getNetworkDeviceName());
+		}
+		public void deviceLeft(NetworkDevice device) {
+			events.add("left "+device.getNetworkDeviceName());
+		}
+	}
+}